@@ -2,43 +2,283 @@ package com.minorityhobbies.util;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
-import java.util.stream.Stream;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
 
 
+/**
+ * Holds the subscribers in an immutable snapshot which is replaced, never
+ * modified, when a subscriber is added or removed, so dispatching an event
+ * needs no lock and sees a consistent set of subscribers even while others
+ * subscribe.
+ *
+ * Plain subscribers are tested one by one. Subscribers to an event type or to
+ * an extracted key are indexed, so an event only reaches the subscribers
+ * indexed under its class or key and the rest cost nothing. Each subscriber's
+ * {@link EventBusSubscriber#matches()} is called once and the predicate kept.
+ *
+ * Events dispatched as a batch reach each plain
+ * {@link BatchEventBusSubscriber} in a single call; every other subscriber
+ * still receives them one at a time.
+ */
 abstract class AbstractEventBus<T> implements AutoCloseable, EventBus<T> {
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
-    private final List<EventBusSubscriber<T>> subscribers = new LinkedList<>();
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final AtomicReference<Subscribers<T>> subscribers = new AtomicReference<>(new Subscribers<>());
+
+    private static final class Registration<T> {
+        private final EventBusSubscriber<T> subscriber;
+        private final Class<?> type;
+        private final Function<? super T, ?> keyExtractor;
+        private final Object key;
+        private volatile Predicate<T> matches;
+
+        Registration(EventBusSubscriber<T> subscriber, Class<?> type, Function<? super T, ?> keyExtractor,
+                Object key) {
+            this.subscriber = subscriber;
+            this.type = type;
+            this.keyExtractor = keyExtractor;
+            this.key = key;
+        }
+
+        Predicate<T> matches() {
+            Predicate<T> m = matches;
+            if (m == null) {
+                // left unset if it throws, so it is asked again next time
+                m = subscriber.matches();
+                matches = m;
+            }
+            return m;
+        }
+    }
+
+    private static final class Subscribers<T> {
+        private final Registration<T>[] all;
+        private final Map<Class<?>, Registration<T>[]> byType;
+        private final Map<Function<? super T, ?>, Map<Object, Registration<T>[]>> byKey;
+        // the subscribers for each class of event seen, including its supertypes
+        private final ConcurrentMap<Class<?>, Registration<T>[]> byClass = new ConcurrentHashMap<>();
+
+        Subscribers() {
+            this(none(), Collections.emptyMap(), Collections.emptyMap());
+        }
+
+        Subscribers(Registration<T>[] all, Map<Class<?>, Registration<T>[]> byType,
+                Map<Function<? super T, ?>, Map<Object, Registration<T>[]>> byKey) {
+            this.all = all;
+            this.byType = byType;
+            this.byKey = byKey;
+        }
+
+        Subscribers<T> with(Registration<T> r) {
+            if (r.type != null) {
+                Map<Class<?>, Registration<T>[]> types = new HashMap<>(byType);
+                types.put(r.type, add(types.get(r.type), r));
+                return new Subscribers<>(all, types, byKey);
+            }
+            if (r.keyExtractor != null) {
+                Map<Function<? super T, ?>, Map<Object, Registration<T>[]>> extractors = new HashMap<>(byKey);
+                Map<Object, Registration<T>[]> keys = new HashMap<>(
+                        extractors.getOrDefault(r.keyExtractor, Collections.emptyMap()));
+                keys.put(r.key, add(keys.get(r.key), r));
+                extractors.put(r.keyExtractor, keys);
+                return new Subscribers<>(all, byType, extractors);
+            }
+            return new Subscribers<>(add(all, r), byType, byKey);
+        }
+
+        Subscribers<T> without(Registration<T> r) {
+            if (r.type != null) {
+                Map<Class<?>, Registration<T>[]> types = new HashMap<>(byType);
+                put(types, r.type, remove(types.get(r.type), r));
+                return new Subscribers<>(all, types, byKey);
+            }
+            if (r.keyExtractor != null) {
+                Map<Function<? super T, ?>, Map<Object, Registration<T>[]>> extractors = new HashMap<>(byKey);
+                Map<Object, Registration<T>[]> keys = new HashMap<>(
+                        extractors.getOrDefault(r.keyExtractor, Collections.emptyMap()));
+                put(keys, r.key, remove(keys.get(r.key), r));
+                if (keys.isEmpty()) {
+                    extractors.remove(r.keyExtractor);
+                } else {
+                    extractors.put(r.keyExtractor, keys);
+                }
+                return new Subscribers<>(all, byType, extractors);
+            }
+            return new Subscribers<>(remove(all, r), byType, byKey);
+        }
+
+        Registration<T>[] forClass(Class<?> c) {
+            Registration<T>[] registrations = byClass.get(c);
+            if (registrations == null) {
+                registrations = none();
+                for (Map.Entry<Class<?>, Registration<T>[]> type : byType.entrySet()) {
+                    if (type.getKey().isAssignableFrom(c)) {
+                        for (Registration<T> r : type.getValue()) {
+                            registrations = add(registrations, r);
+                        }
+                    }
+                }
+                byClass.putIfAbsent(c, registrations);
+            }
+            return registrations;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static <T> Registration<T>[] none() {
+            return new Registration[0];
+        }
+
+        private static <T> Registration<T>[] add(Registration<T>[] current, Registration<T> r) {
+            if (current == null) {
+                current = none();
+            }
+            Registration<T>[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = r;
+            return updated;
+        }
+
+        private static <T> Registration<T>[] remove(Registration<T>[] current, Registration<T> r) {
+            if (current == null) {
+                return none();
+            }
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == r) {
+                    Registration<T>[] updated = Arrays.copyOf(current, current.length - 1);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    return updated;
+                }
+            }
+            return current;
+        }
+
+        private static <K, T> void put(Map<K, Registration<T>[]> map, K key, Registration<T>[] registrations) {
+            if (registrations.length == 0) {
+                map.remove(key);
+            } else {
+                map.put(key, registrations);
+            }
+        }
+    }
 
     @Override
     public Closeable subscribe(final EventBusSubscriber<T> subscriber) {
-        try {
-            lock.writeLock().lock();
-            subscribers.add(subscriber);
-        } finally {
-            lock.writeLock().unlock();
+        return register(new Registration<>(subscriber, null, null, null));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <E extends T> Closeable subscribe(Class<E> type, EventBusSubscriber<? super E> subscriber) {
+        // only ever passed events of the given type
+        return register(new Registration<>((EventBusSubscriber<T>) subscriber, type, null, null));
+    }
+
+    @Override
+    public <K> Closeable subscribe(Function<? super T, K> keyExtractor, K key, EventBusSubscriber<T> subscriber) {
+        return register(new Registration<>(subscriber, null, keyExtractor, key));
+    }
+
+    private Closeable register(Registration<T> registration) {
+        subscribers.updateAndGet(current -> current.with(registration));
+        return () -> subscribers.updateAndGet(current -> current.without(registration));
+    }
+
+    /**
+     * Passes the event to every subscriber it matches. A subscriber which
+     * throws is logged and does not stop the others.
+     */
+    protected void dispatch(T event) {
+        Subscribers<T> snapshot = subscribers.get();
+        dispatch(snapshot.all, event);
+        dispatchIndexed(snapshot, event);
+    }
+
+    private void dispatchIndexed(Subscribers<T> snapshot, T event) {
+        if (event == null) {
+            return;
         }
-        return () -> {
+        if (!snapshot.byType.isEmpty()) {
+            dispatch(snapshot.forClass(event.getClass()), event);
+        }
+        if (!snapshot.byKey.isEmpty()) {
+            for (Map.Entry<Function<? super T, ?>, Map<Object, Registration<T>[]>> index : snapshot.byKey.entrySet()) {
                 try {
-                    lock.writeLock().lock();
-                    subscribers.remove(subscriber);
-                } finally {
-                    lock.writeLock().unlock();
+                    Registration<T>[] registrations = index.getValue().get(index.getKey().apply(event));
+                    if (registrations != null) {
+                        dispatch(registrations, event);
+                    }
+                } catch (RuntimeException e) {
+                    logger.throwing(getClass().getName(), "dispatch", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Passes a batch of events to every subscriber they match, in order. Each
+     * subscriber is given the whole batch before the next.
+     */
+    @SuppressWarnings("unchecked")
+    protected void dispatch(List<T> events) {
+        Subscribers<T> snapshot = subscribers.get();
+        List<T> matched = null;
+        for (int i = 0; i < snapshot.all.length; i++) {
+            Registration<T> r = snapshot.all[i];
+            if (!(r.subscriber instanceof BatchEventBusSubscriber)) {
+                for (int j = 0; j < events.size(); j++) {
+                    dispatch(r, events.get(j));
+                }
+                continue;
+            }
+            if (matched == null) {
+                matched = new ArrayList<>(events.size());
+            }
+            try {
+                matched.clear();
+                for (int j = 0; j < events.size(); j++) {
+                    T event = events.get(j);
+                    if (r.matches().test(event)) {
+                        matched.add(event);
+                    }
+                }
+                if (!matched.isEmpty()) {
+                    ((BatchEventBusSubscriber<T>) r.subscriber).onEvents(matched);
                 }
-            };
+            } catch (RuntimeException e) {
+                logger.throwing(getClass().getName(), "dispatch", e);
+            }
+        }
+        if (!snapshot.byType.isEmpty() || !snapshot.byKey.isEmpty()) {
+            for (int j = 0; j < events.size(); j++) {
+                dispatchIndexed(snapshot, events.get(j));
+            }
+        }
     }
 
-    protected Stream<EventBusSubscriber<T>> subscribers() {
+    private void dispatch(Registration<T>[] registrations, T event) {
+        for (int i = 0; i < registrations.length; i++) {
+            dispatch(registrations[i], event);
+        }
+    }
+
+    private void dispatch(Registration<T> r, T event) {
         try {
-            lock.readLock().lock();
-            return subscribers.stream();
-        } finally {
-            lock.readLock().unlock();
+            if (r.matches().test(event)) {
+                r.subscriber.onEvent(event);
+            }
+        } catch (RuntimeException e) {
+            logger.throwing(getClass().getName(), "dispatch", e);
         }
     }
 
@@ -47,12 +287,10 @@ abstract class AbstractEventBus<T> implements AutoCloseable, EventBus<T> {
     @Override
     public void close() throws Exception {
         try {
-            lock.writeLock().lock();
-            subscribers.clear();
+            // subscribers still receive any events drained while closing
+            onClose();
         } finally {
-            lock.writeLock().unlock();
+            subscribers.set(new Subscribers<>());
         }
-
-        onClose();
     }
 }
@@ -0,0 +1,24 @@
+package com.minorityhobbies.util;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A subscriber which takes events in batches. A bus dispatching in batches
+ * passes all the matching events it took in one go in a single call; other
+ * buses pass each event as a batch of one.
+ */
+@FunctionalInterface
+public interface BatchEventBusSubscriber<T> extends EventBusSubscriber<T> {
+    /**
+     * @param events
+     *            the matching events in the order published; only valid for
+     *            the duration of the call
+     */
+    void onEvents(List<T> events);
+
+    @Override
+    default void onEvent(T event) {
+        onEvents(Collections.singletonList(event));
+    }
+}
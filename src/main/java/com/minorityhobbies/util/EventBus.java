@@ -1,9 +1,50 @@
 package com.minorityhobbies.util;
 
 import java.io.Closeable;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 public interface EventBus<T> {
     void publish(T event);
 
     Closeable subscribe(EventBusSubscriber<T> subscriber);
+
+    /**
+     * Subscribes to events of the given type, including its subtypes.
+     */
+    default <E extends T> Closeable subscribe(Class<E> type, EventBusSubscriber<? super E> subscriber) {
+        return subscribe(new EventBusSubscriber<T>() {
+            @Override
+            public void onEvent(T event) {
+                subscriber.onEvent(type.cast(event));
+            }
+
+            @Override
+            public Predicate<T> matches() {
+                Predicate<? super E> matches = subscriber.matches();
+                return e -> type.isInstance(e) && matches.test(type.cast(e));
+            }
+        });
+    }
+
+    /**
+     * Subscribes to events whose extracted key equals the given key. Each
+     * distinct extractor is applied to every event, so subscriptions should
+     * share one extractor instance rather than each creating their own.
+     */
+    default <K> Closeable subscribe(Function<? super T, K> keyExtractor, K key, EventBusSubscriber<T> subscriber) {
+        return subscribe(new EventBusSubscriber<T>() {
+            @Override
+            public void onEvent(T event) {
+                subscriber.onEvent(event);
+            }
+
+            @Override
+            public Predicate<T> matches() {
+                Predicate<T> matches = subscriber.matches();
+                return e -> Objects.equals(keyExtractor.apply(e), key) && matches.test(e);
+            }
+        });
+    }
 }
@@ -1,49 +1,203 @@
 package com.minorityhobbies.util;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
+/**
+ * An event bus which dispatches events on its own threads. By default one
+ * thread dispatches every event in the order published.
+ *
+ * In partitioned mode events are spread over a number of lanes, each with its
+ * own queue and dispatcher thread, by the hash of a key taken from each event.
+ * Events with equal keys always go to the same lane and so are dispatched in
+ * the order published; events with different keys may be dispatched in
+ * parallel.
+ *
+ * In batch mode each dispatcher takes every queued event, up to a maximum, on
+ * each wakeup and dispatches them together, so a
+ * {@link BatchEventBusSubscriber} receives them in a single call. The sizes
+ * of the batches taken are recorded in a histogram.
+ *
+ * Closing the bus stops it accepting events, then waits for each lane to
+ * dispatch the events already queued. Every event published before close()
+ * was called is dispatched; one published while the bus is closing is either
+ * dispatched or dropped, but never left queued.
+ */
 public class ProcessEventBus<T> extends AbstractEventBus<T> implements Runnable {
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000L;
+    // queued behind the last event when the bus closes
+    private static final Object END = new Object();
+
     private final Logger logger = Logger.getLogger(getClass().getName());
-    private final LinkedBlockingDeque<T> eventQueue = new LinkedBlockingDeque<>();
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Function<? super T, ?> keyExtractor;
+    private final int maxBatchSize;
+    private final List<Lane> lanes = new ArrayList<>();
+    // batches of 2^i to 2^(i+1)-1 events are counted in element i
+    private final AtomicLongArray batchSizes = new AtomicLongArray(Integer.SIZE);
+    private final ExecutorService executor;
+    private volatile boolean closed;
 
     public ProcessEventBus() {
+        this(event -> null, 1);
+    }
+
+    /**
+     * Creates a bus in partitioned mode.
+     *
+     * @param keyExtractor
+     *            takes the key from an event; events with equal keys are
+     *            dispatched in order
+     * @param laneCount
+     *            the number of lanes, each dispatched by its own thread
+     */
+    public ProcessEventBus(Function<? super T, ?> keyExtractor, int laneCount) {
+        this(keyExtractor, laneCount, 1);
+    }
+
+    /**
+     * Creates a bus with a single lane in batch mode.
+     *
+     * @param maxBatchSize
+     *            the most events dispatched together
+     */
+    public ProcessEventBus(int maxBatchSize) {
+        this(event -> null, 1, maxBatchSize);
+    }
+
+    /**
+     * Creates a bus in partitioned and batch mode.
+     *
+     * @param maxBatchSize
+     *            the most events each lane dispatches together, or 1 to
+     *            dispatch them one at a time
+     */
+    public ProcessEventBus(Function<? super T, ?> keyExtractor, int laneCount, int maxBatchSize) {
+        if (laneCount < 1) {
+            throw new IllegalArgumentException("At least one lane is required: " + laneCount);
+        }
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batches must hold at least one event: " + maxBatchSize);
+        }
+        this.keyExtractor = keyExtractor;
+        this.maxBatchSize = maxBatchSize;
+        this.executor = Executors.newFixedThreadPool(laneCount);
+        for (int i = 0; i < laneCount; i++) {
+            lanes.add(new Lane());
+        }
         executor.submit(this);
+        for (int i = 1; i < laneCount; i++) {
+            executor.submit(lanes.get(i));
+        }
     }
 
-    @Override
-    public void run() {
-        while (!Thread.currentThread().isInterrupted()) {
-            try {
-                T event = eventQueue.take();
-                subscribers().forEach(s -> {
-                    try {
-                        if (s.matches().test(event)) {
-                            s.onEvent(event);
-                        }
-                    } catch (RuntimeException e) {
-                        logger.throwing(ProcessEventBus.class.getName(), "run", e);
+    private class Lane implements Runnable {
+        private final LinkedBlockingDeque<Object> eventQueue = new LinkedBlockingDeque<>();
+        private final List<Object> batch = new ArrayList<>();
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    batch.add(eventQueue.take());
+                    if (maxBatchSize > 1) {
+                        eventQueue.drainTo(batch, maxBatchSize - 1);
                     }
-                });
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            } catch (RuntimeException e) {
-                logger.throwing(ProcessEventBus.class.getName(), "run", e);
+                    int end = batch.indexOf(END);
+                    List<T> events = (List<T>) (end < 0 ? batch : batch.subList(0, end));
+                    if (events.size() == 1) {
+                        dispatch(events.get(0));
+                    } else if (events.size() > 1) {
+                        dispatch(events);
+                    }
+                    if (!events.isEmpty()) {
+                        batchSizes.incrementAndGet(31 - Integer.numberOfLeadingZeros(events.size()));
+                    }
+                    if (end >= 0) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    logger.throwing(ProcessEventBus.class.getName(), "run", e);
+                } finally {
+                    batch.clear();
+                }
             }
+            logger.warning("ProcessEventBus dispatcher thread terminated");
         }
-        logger.warning("ProcessEventBus dispatcher thread terminated");
+    }
+
+    /**
+     * Dispatches the events of the first lane.
+     */
+    @Override
+    public void run() {
+        lanes.get(0).run();
     }
 
     @Override
     public void publish(T event) {
+        if (closed) {
+            return;
+        }
+        LinkedBlockingDeque<Object> eventQueue = lanes.get(lane(event)).eventQueue;
         eventQueue.add(event);
+        if (closed) {
+            // may be queued behind the end of the lane, where nothing takes it
+            eventQueue.removeLastOccurrence(event);
+        }
+    }
+
+    private int lane(T event) {
+        if (lanes.size() == 1) {
+            return 0;
+        }
+        int hash = Objects.hashCode(keyExtractor.apply(event));
+        return Math.floorMod(hash ^ (hash >>> 16), lanes.size());
+    }
+
+    public int getLaneCount() {
+        return lanes.size();
+    }
+
+    /**
+     * @return the number of events waiting to be dispatched by the given lane
+     */
+    public int getLaneDepth(int lane) {
+        return lanes.get(lane).eventQueue.size();
+    }
+
+    /**
+     * @return the number of batches dispatched by size, where element i
+     *         counts the batches of 2^i to 2^(i+1)-1 events
+     */
+    public long[] getBatchSizeHistogram() {
+        long[] histogram = new long[batchSizes.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = batchSizes.get(i);
+        }
+        return histogram;
     }
 
     @Override
     protected void onClose() throws Exception {
-        executor.shutdownNow();
+        closed = true;
+        for (Lane lane : lanes) {
+            lane.eventQueue.add(END);
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            logger.warning("ProcessEventBus lanes did not drain within " + CLOSE_TIMEOUT_MILLIS + "ms");
+            executor.shutdownNow();
+        }
     }
 }
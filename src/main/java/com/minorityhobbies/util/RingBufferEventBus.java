@@ -0,0 +1,157 @@
+package com.minorityhobbies.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * An event bus which passes events to its dispatcher thread through a
+ * fixed-size ring of slots rather than a queue, so publishing allocates
+ * nothing. Any number of threads may publish: each claims the next sequence,
+ * waits for its slot to be free, fills it and then marks it published. The
+ * dispatcher takes events in sequence order, so events published by one
+ * thread are delivered in the order it published them.
+ *
+ * A publisher finding the ring full, and the dispatcher finding it empty, wait
+ * according to the {@link WaitStrategy}.
+ */
+public class RingBufferEventBus<T> extends AbstractEventBus<T> implements Runnable {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * How threads wait for the ring.
+     */
+    public enum WaitStrategy {
+        /**
+         * Spin without giving up the CPU. Lowest latency, but each waiting
+         * thread occupies a core.
+         */
+        BUSY_SPIN,
+        /**
+         * Spin, yielding the CPU to other threads between checks.
+         */
+        YIELD,
+        /**
+         * Park the dispatcher until an event is published, and publishers
+         * briefly while the ring is full. Publishers only unpark the
+         * dispatcher when it is actually parked.
+         */
+        PARK
+    }
+
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final WaitStrategy waitStrategy;
+    private final Object[] slots;
+    private final int mask;
+    private final int shift;
+    // the lap of the ring on which each slot was last published
+    private final AtomicIntegerArray published;
+    private final AtomicLong claimed = new AtomicLong(-1L);
+    private volatile long consumed = -1L;
+    private volatile Thread dispatcher;
+    private volatile boolean parked;
+    private volatile boolean closed;
+
+    public RingBufferEventBus() {
+        this(DEFAULT_CAPACITY, WaitStrategy.PARK);
+    }
+
+    /**
+     * @param capacity
+     *            the number of slots, which must be a power of two
+     */
+    public RingBufferEventBus(int capacity, WaitStrategy waitStrategy) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        this.waitStrategy = waitStrategy;
+        this.slots = new Object[capacity];
+        this.mask = capacity - 1;
+        this.shift = Integer.numberOfTrailingZeros(capacity);
+        this.published = new AtomicIntegerArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+        executor.submit(this);
+    }
+
+    @Override
+    public void publish(T event) {
+        long sequence = claimed.incrementAndGet();
+        for (int attempts = 0; sequence - slots.length > consumed; attempts++) {
+            if (closed) {
+                return;
+            }
+            waitForSpace(attempts);
+        }
+        int index = (int) sequence & mask;
+        slots[index] = event;
+        published.set(index, (int) (sequence >>> shift));
+        if (parked) {
+            LockSupport.unpark(dispatcher);
+        }
+    }
+
+    private void waitForSpace(int attempts) {
+        switch (waitStrategy) {
+        case BUSY_SPIN:
+            break;
+        case YIELD:
+            Thread.yield();
+            break;
+        default:
+            LockSupport.parkNanos(attempts < 100 ? 1000L : 100000L);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void run() {
+        dispatcher = Thread.currentThread();
+        long next = 0L;
+        while (!Thread.currentThread().isInterrupted()) {
+            int index = (int) next & mask;
+            int lap = (int) (next >>> shift);
+            if (published.get(index) != lap) {
+                waitForEvent(index, lap);
+                continue;
+            }
+            T event = (T) slots[index];
+            slots[index] = null;
+            consumed = next++;
+            try {
+                dispatch(event);
+            } catch (RuntimeException e) {
+                logger.throwing(RingBufferEventBus.class.getName(), "run", e);
+            }
+        }
+        logger.warning("RingBufferEventBus dispatcher thread terminated");
+    }
+
+    private void waitForEvent(int index, int lap) {
+        switch (waitStrategy) {
+        case BUSY_SPIN:
+            break;
+        case YIELD:
+            Thread.yield();
+            break;
+        default:
+            parked = true;
+            // a publisher which missed the flag has already published
+            if (published.get(index) != lap) {
+                LockSupport.park(this);
+            }
+            parked = false;
+        }
+    }
+
+    @Override
+    protected void onClose() throws Exception {
+        closed = true;
+        executor.shutdownNow();
+    }
+}
@@ -1,5 +1,8 @@
 package com.minorityhobbies.util.bus;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 /**
  * General purpose message bus. Allows for the creation of messages and standard
  * subscriptions as well as the publication of messages.
@@ -14,6 +17,62 @@ public interface Bus {
 
 	void publish(BusMessage msg);
 
+	/**
+	 * Publishes the message unless a connection to a remote peer is
+	 * congested, so that publishers can shed or defer work when peers cannot
+	 * keep up rather than letting messages queue without bound.
+	 * 
+	 * By default the message is always published, for buses which do not
+	 * track congestion.
+	 * 
+	 * @return false, without publishing the message, if a connection is
+	 *         congested
+	 */
+	default boolean tryPublish(BusMessage msg) {
+		publish(msg);
+		return true;
+	}
+
+	/**
+	 * Publishes a request from the reply address of this bus and awaits the
+	 * reply, which is the first message sent to that address with the same
+	 * message id. A request without a message id is given a unique one.
+	 * Responders build replies with {@link #getReplyBuilder(BusMessage)}.
+	 * 
+	 * By default the future is completed exceptionally with an
+	 * {@link UnsupportedOperationException}, for buses which do not track
+	 * replies.
+	 * 
+	 * @return a future completed by the thread which delivers the reply, or
+	 *         completed exceptionally with a
+	 *         {@link java.util.concurrent.TimeoutException} if none arrives in
+	 *         time
+	 */
+	default CompletableFuture<BusMessage> request(BusMessage msg,
+			long timeout, TimeUnit unit) {
+		CompletableFuture<BusMessage> reply = new CompletableFuture<BusMessage>();
+		reply.completeExceptionally(new UnsupportedOperationException(
+				"Requests are not supported by " + getClass().getName()));
+		return reply;
+	}
+
+	/**
+	 * @return a builder for a reply to the request, with its message id and
+	 *         destination already set
+	 */
+	default BusMessageBuilder getReplyBuilder(BusMessage request) {
+		return getBusMessageBuilder().setMessageId(
+				BusMessageAttribute.MESSAGE_ID.get(request))
+				.setMessageDestination(BusMessageAttribute.SOURCE.get(request));
+	}
+
+	/**
+	 * @return the number of requests awaiting a reply
+	 */
+	default int getRequestsInFlight() {
+		return 0;
+	}
+
 	BusMessageSubscriptionHandle subscribe(BusMessageSubscription subscription,
 			BusMessageHandler handler);
 
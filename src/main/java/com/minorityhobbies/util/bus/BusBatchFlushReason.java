@@ -0,0 +1,19 @@
+package com.minorityhobbies.util.bus;
+
+/**
+ * Why a batch of outbound messages was written to a connection.
+ */
+public enum BusBatchFlushReason {
+	/**
+	 * The batch reached its maximum size.
+	 */
+	SIZE,
+	/**
+	 * The linger time expired after the first message was added.
+	 */
+	LINGER,
+	/**
+	 * The connection was closed with messages still in the batch.
+	 */
+	CLOSE
+}
@@ -0,0 +1,17 @@
+package com.minorityhobbies.util.bus;
+
+/**
+ * Counters for a connection which batches outbound messages. The average
+ * batch size is {@link #getMessageCount()} divided by {@link #getBatchCount()}.
+ */
+public interface BusBatchStatistics {
+	long getBatchCount();
+
+	long getMessageCount();
+
+	long getByteCount();
+
+	int getLargestBatch();
+
+	long getFlushCount(BusBatchFlushReason reason);
+}
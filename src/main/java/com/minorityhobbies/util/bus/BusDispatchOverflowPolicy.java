@@ -0,0 +1,19 @@
+package com.minorityhobbies.util.bus;
+
+/**
+ * What an asynchronous {@link Bus} does when a subscriber's queue is full.
+ */
+public enum BusDispatchOverflowPolicy {
+	/**
+	 * The publishing thread waits until the subscriber has room.
+	 */
+	BLOCK,
+	/**
+	 * The oldest queued message is discarded to make room for the new one.
+	 */
+	DROP_OLDEST,
+	/**
+	 * The new message is discarded.
+	 */
+	DROP_NEWEST
+}
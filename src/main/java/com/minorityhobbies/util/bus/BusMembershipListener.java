@@ -0,0 +1,15 @@
+package com.minorityhobbies.util.bus;
+
+import java.net.URI;
+
+/**
+ * Notified as discovered services join and leave. A service joins when its
+ * first beacon is heard and leaves when its beacons stop, after its
+ * connection has been torn down. Called by the discovery thread, so
+ * implementations must not block.
+ */
+public interface BusMembershipListener {
+	void joined(String serviceName, URI address);
+
+	void left(String serviceName, URI address);
+}
@@ -4,5 +4,9 @@ import java.util.Map;
 
 public interface BusMessage {
 	String get(String attributeName);
+
+	/**
+	 * @return the attributes of this message, which may be a read-only view
+	 */
 	Map<String, String> getAttributes();
 }
@@ -1,6 +1,7 @@
 package com.minorityhobbies.util.bus;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 interface BusMessageSerialiser {
 
@@ -8,4 +9,22 @@ interface BusMessageSerialiser {
 
 	BusMessage fromBytes(byte[] msg) throws IOException;
 
-}
\ No newline at end of file
+	/**
+	 * Encodes the message into a buffer ready for reading. The returned buffer
+	 * may be reused by a later call on the same thread so it must be consumed
+	 * before this serialiser is called again.
+	 */
+	default ByteBuffer toBuffer(BusMessage msg) throws IOException {
+		return ByteBuffer.wrap(toBytes(msg));
+	}
+
+	/**
+	 * Decodes the message held in the remaining bytes of the buffer. The
+	 * buffer position is advanced past the consumed bytes.
+	 */
+	default BusMessage fromBuffer(ByteBuffer msg) throws IOException {
+		byte[] b = new byte[msg.remaining()];
+		msg.get(b);
+		return fromBytes(b);
+	}
+}
@@ -6,6 +6,34 @@ public interface BusMessageSubscriptions {
 	BusMessageSubscription newSourceSubscription(String source);
 
 	BusMessageSubscription newDestinationSubscription(String destination);
+
+	/**
+	 * Subscribes to the messages which pass a filter expression such as
+	 * <code>_type = 'quote' AND symbol IN ('VOD.L', 'BP.L') AND bid &gt; 100</code>.
+	 *
+	 * <pre>
+	 * expression := term ( OR term )*
+	 * term       := factor ( AND factor )*
+	 * factor     := NOT factor | '(' expression ')' | test
+	 * test       := name ( '=' | '&lt;&gt;' | '!=' ) ( string | number )
+	 *             | name ( '&lt;' | '&lt;=' | '&gt;' | '&gt;=' ) number
+	 *             | name [ NOT ] BETWEEN number AND number
+	 *             | name [ NOT ] IN '(' string ( ',' string )* ')'
+	 *             | name [ NOT ] LIKE 'prefix%'
+	 * </pre>
+	 *
+	 * Keywords are case insensitive and strings are single quoted, with
+	 * <code>''</code> for a quote. A test of an absent attribute, or a numeric
+	 * test of a value which is not a number, fails.
+	 *
+	 * Filters which require an attribute to equal a string, or be IN a list
+	 * of strings, are indexed by it and are cheap to add in large numbers.
+	 * Filters are advertised to peers when subscriptions are propagated.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the expression is malformed
+	 */
+	BusMessageSubscription newFilterSubscription(String expression);
 	
 	BusMessageSubscription newAllMessagesSubscription();
 }
\ No newline at end of file
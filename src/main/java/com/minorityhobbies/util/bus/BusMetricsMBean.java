@@ -0,0 +1,85 @@
+package com.minorityhobbies.util.bus;
+
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.TabularData;
+
+/**
+ * Counters and latency percentiles for a {@link Bus} and its connections,
+ * exported through JMX. Latencies are in nanoseconds. Handler latency is the
+ * time spent in a subscriber's handler; delivery latency runs from the call to
+ * {@link Bus#publish(BusMessage)} until the handler returns, so it includes
+ * any time spent queued for asynchronous dispatch.
+ */
+public interface BusMetricsMBean {
+	long getPublishedCount();
+
+	long getDeliveredCount();
+
+	long getDroppedCount();
+
+	/**
+	 * @return the number of calls to {@link Bus#tryPublish(BusMessage)} which
+	 *         were refused because a connection was congested
+	 */
+	long getRejectedCount();
+
+	long getConnectionsAddedCount();
+
+	long getConnectionFailureCount();
+
+	long getHandlerLatencyMeanNanos();
+
+	long getHandlerLatencyP50Nanos();
+
+	long getHandlerLatencyP99Nanos();
+
+	long getHandlerLatencyP999Nanos();
+
+	long getHandlerLatencyMaxNanos();
+
+	long getDeliveryLatencyMeanNanos();
+
+	long getDeliveryLatencyP50Nanos();
+
+	long getDeliveryLatencyP99Nanos();
+
+	long getDeliveryLatencyP999Nanos();
+
+	long getDeliveryLatencyMaxNanos();
+
+	/**
+	 * @return the number of batches written by connections which batch
+	 *         outbound messages, counted since each last connected
+	 */
+	long getBatchCount();
+
+	long getBatchedMessageCount();
+
+	long getBatchedByteCount();
+
+	/**
+	 * @return the most messages written in a single batch by any connection
+	 */
+	int getLargestBatch();
+
+	/**
+	 * @return the number of batches written because they were full
+	 */
+	long getSizeFlushCount();
+
+	/**
+	 * @return the number of batches written because their linger time expired
+	 */
+	long getLingerFlushCount();
+
+	/**
+	 * @return the number of batches written because their connection closed
+	 */
+	long getCloseFlushCount();
+
+	/**
+	 * @return one row per connection with its message and byte counts in
+	 *         each direction
+	 */
+	TabularData getConnections() throws OpenDataException;
+}
@@ -1,5 +1,6 @@
 package com.minorityhobbies.util.bus;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URI;
@@ -9,6 +10,13 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
 
 public class BusServerFactory {
 	private List<URI> remoteEndpoints;
@@ -17,6 +25,27 @@ public class BusServerFactory {
 	private String serviceName;
 	private URI discoveryAddress;
 	private String protocol = "STANDARD";
+	private int maxFrameSize = StandardBusMessageFrameBuffer.DEFAULT_MAX_FRAME_SIZE;
+	private Executor dispatchExecutor;
+	private boolean ownDispatchPool;
+	private int dispatchQueueCapacity;
+	private BusDispatchOverflowPolicy overflowPolicy;
+	private int selectorThreads = 1;
+	private long maxPeerBacklog = StandardSocketBusMessagePeerWriter.DEFAULT_MAX_BACKLOG;
+	private long batchLingerMicros = -1L;
+	private int maxBatchBytes;
+	private byte[] encryptionKey;
+	private String metricsName;
+	private File journalDirectory;
+	private int journalSegmentSize;
+	private int journalSyncBatchSize;
+	private long journalRetainedBytes;
+	private long journalRetainedMillis;
+	private long replayFromSequence = -1L;
+	private int creditWindow;
+	private boolean propagateSubscriptions;
+	private int compressionThreshold;
+	private BusMembershipListener membershipListener;
 
 	public BusServerFactory() {
 		this.remoteEndpoints = new LinkedList<URI>();
@@ -51,6 +80,17 @@ public class BusServerFactory {
 		return this;
 	}
 
+	/**
+	 * Connects to a remote endpoint given by URI, for example
+	 * <code>socket://host:port</code>, for peers on the same host
+	 * <code>shm:///dev/shm/bus-name</code> or, to reach every peer in a
+	 * multicast group with one send, <code>udp://239.1.2.3:port</code>.
+	 */
+	public BusServerFactory connectTo(URI remoteEndpoint) {
+		this.remoteEndpoints.add(remoteEndpoint);
+		return this;
+	}
+
 	public BusServerFactory connectToSSL(String hostname, int port) {
 		try {
 			this.remoteEndpoints.add(new URI("ssl://" + hostname + ":" + port));
@@ -79,21 +119,251 @@ public class BusServerFactory {
 		return this;
 	}
 
+	/**
+	 * Tells the listener as the services found by
+	 * {@link #discoverAndConnect(String, URI)} join and leave.
+	 */
+	public BusServerFactory withMembershipListener(
+			BusMembershipListener listener) {
+		this.membershipListener = listener;
+		return this;
+	}
+
 	public BusServerFactory withProtocol(String protocol) {
 		this.protocol = protocol;
 		return this;
 	}
 
+	/**
+	 * Sets the largest message, in bytes, that connections will accept. A
+	 * connection which receives a larger message is closed.
+	 */
+	public BusServerFactory withMaxFrameSize(int maxFrameSize) {
+		this.maxFrameSize = maxFrameSize;
+		return this;
+	}
+
+	/**
+	 * Delivers messages to each subscriber from its own bounded queue rather
+	 * than on the publishing thread. Queues are drained by a shared pool of
+	 * one daemon thread per processor, created when the bus is built and shut
+	 * down when its server is closed.
+	 */
+	public BusServerFactory withAsyncDispatch(int queueCapacity,
+			BusDispatchOverflowPolicy overflowPolicy) {
+		withAsyncDispatch((Executor) null, queueCapacity, overflowPolicy);
+		this.ownDispatchPool = true;
+		return this;
+	}
+
+	/**
+	 * Delivers messages to each subscriber from its own bounded queue, drained
+	 * by the supplied executor. Messages to a given subscriber are always
+	 * delivered in order, one at a time.
+	 */
+	public BusServerFactory withAsyncDispatch(Executor executor,
+			int queueCapacity, BusDispatchOverflowPolicy overflowPolicy) {
+		if (overflowPolicy == null) {
+			throw new IllegalArgumentException("An overflow policy is required");
+		}
+		this.dispatchExecutor = executor;
+		this.ownDispatchPool = false;
+		this.dispatchQueueCapacity = queueCapacity;
+		this.overflowPolicy = overflowPolicy;
+		return this;
+	}
+
+	private static ExecutorService newDispatchPool() {
+		return Executors.newFixedThreadPool(Runtime.getRuntime()
+				.availableProcessors(), new ThreadFactory() {
+			private final AtomicInteger threadCount = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "bus-dispatch-"
+						+ threadCount.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Sets the number of selector threads used to serve peers when listening
+	 * on an <code>nio://</code> URI.
+	 */
+	public BusServerFactory withSelectorThreads(int selectorThreads) {
+		this.selectorThreads = selectorThreads;
+		return this;
+	}
+
+	/**
+	 * Sets the number of bytes which may be queued for a single peer of the
+	 * local service before that peer is considered too slow and disconnected.
+	 * Also bounds the bytes a connection to a remote endpoint buffers while it
+	 * waits for credit.
+	 */
+	public BusServerFactory withMaxPeerBacklog(long maxPeerBacklog) {
+		this.maxPeerBacklog = maxPeerBacklog;
+		return this;
+	}
+
+	/**
+	 * Batches messages sent to remote endpoints. A batch is written once it
+	 * holds maxBatchBytes or lingerMicros after its first message, whichever
+	 * comes first.
+	 */
+	public BusServerFactory withBatching(long lingerMicros, int maxBatchBytes) {
+		this.batchLingerMicros = lingerMicros;
+		this.maxBatchBytes = maxBatchBytes;
+		return this;
+	}
+
+	/**
+	 * Encrypts and authenticates every message with AES-GCM under a key which
+	 * must be the same on every peer. Takes precedence over
+	 * {@link #withProtocol(String)}.
+	 */
+	public BusServerFactory withEncryptionKey(byte[] encryptionKey) {
+		this.encryptionKey = encryptionKey.clone();
+		return this;
+	}
+
+	/**
+	 * Records publish, delivery and per-connection metrics and exports them as
+	 * an MBean named <code>com.minorityhobbies.util.bus:type=Bus,name=</code>
+	 * <i>name</i>. The MBean is unregistered when the bus server is closed.
+	 */
+	public BusServerFactory withMetrics(String name) {
+		this.metricsName = name;
+		return this;
+	}
+
+	/**
+	 * Appends every message sent to remote peers to memory-mapped segment
+	 * files of segmentSize bytes in the given directory, numbering each with a
+	 * sequence, so that peers which reconnect can replay what they missed.
+	 * Peers of an <code>nio://</code> listener are not replayed to; they
+	 * resume from the next message instead. Appended messages are forced to disk every syncBatchSize messages; 0
+	 * leaves it to the operating system until a segment is full.
+	 */
+	public BusServerFactory withJournal(File directory, int segmentSize,
+			int syncBatchSize) {
+		this.journalDirectory = directory;
+		this.journalSegmentSize = segmentSize;
+		this.journalSyncBatchSize = syncBatchSize;
+		return this;
+	}
+
+	/**
+	 * Deletes the oldest journal segments once the journal exceeds maxBytes or
+	 * a segment is older than maxAgeMillis. Either limit may be 0 to disable
+	 * it. Retention is applied whenever a segment fills.
+	 */
+	public BusServerFactory withJournalRetention(long maxBytes,
+			long maxAgeMillis) {
+		this.journalRetainedBytes = maxBytes;
+		this.journalRetainedMillis = maxAgeMillis;
+		return this;
+	}
+
+	/**
+	 * Asks each remote endpoint, which must have a journal, to replay its
+	 * messages from the given sequence. Connections to remote endpoints then
+	 * reconnect whenever they are lost and replay what they missed.
+	 */
+	public BusServerFactory withReplay(long fromSequence) {
+		this.replayFromSequence = fromSequence;
+		return this;
+	}
+
+	/**
+	 * Grants each remote peer credit for window messages at a time, so that a
+	 * peer stops sending, and buffers, once this bus has fallen window
+	 * messages behind. Peers always respect the credit they are granted, so
+	 * only receivers need this setting. Publishers see a peer which is not
+	 * keeping up through {@link Bus#tryPublish(BusMessage)}.
+	 */
+	public BusServerFactory withFlowControl(int window) {
+		this.creditWindow = window;
+		return this;
+	}
+
+	/**
+	 * Advertises the type, source and destination subscriptions of the bus to
+	 * every remote peer so that peers only push messages which match, and
+	 * withdraws them when their handles are closed. While any other kind of
+	 * subscription is registered peers push every message. Peers always
+	 * respect what they are advertised, so this only needs setting where
+	 * subscribers want fewer messages.
+	 */
+	public BusServerFactory withSubscriptionPropagation() {
+		this.propagateSubscriptions = true;
+		return this;
+	}
+
+	/**
+	 * Offers each remote peer connected to with {@link #connectTo(URI)}
+	 * compression of every frame of at least thresholdBytes, in both
+	 * directions. Peers listening with this version accept the offer;
+	 * others ignore it and the connection carries on uncompressed.
+	 */
+	public BusServerFactory withCompression(int thresholdBytes) {
+		this.compressionThreshold = thresholdBytes;
+		return this;
+	}
+
 	public Bus build() throws IOException {
-		StandardBus bus = new StandardBus();
+		StandardBusMetrics metrics = null;
+		if (metricsName != null) {
+			metrics = new StandardBusMetrics();
+			try {
+				metrics.register(metricsName);
+			} catch (JMException e) {
+				throw new IOException("Failed to register bus metrics", e);
+			}
+		}
+		StandardBusJournal journal = null;
+		if (journalDirectory != null) {
+			journal = new StandardBusJournal(journalDirectory,
+					journalSegmentSize, journalSyncBatchSize,
+					journalRetainedBytes, journalRetainedMillis);
+		}
+		StandardBusOptions options = new StandardBusOptions().withMetrics(
+				metrics).withJournal(journal);
+		if (propagateSubscriptions) {
+			options.withInterest(new StandardBusMessageInterest());
+		}
+		ExecutorService dispatchPool = ownDispatchPool ? newDispatchPool()
+				: null;
+		StandardBus bus = new StandardBus(
+				dispatchPool != null ? dispatchPool : dispatchExecutor,
+				dispatchQueueCapacity, overflowPolicy, options);
 		BusServer server = bus.getBusServer();
+		if (dispatchPool != null) {
+			((StandardBusServer) server).setDispatchPool(dispatchPool);
+		}
 
-		BusMessageSerialiser serialiser = StandardBusMessageSerialisers
-				.valueOf(protocol).get();
+		BusMessageSerialiser serialiser = encryptionKey != null ? new StandardBusMessageSerialiserAESGCM(
+				encryptionKey) : StandardBusMessageSerialisers.valueOf(protocol)
+				.get();
 
 		if (localServiceUri != null) {
-			server.addConnection(new StandardSocketServerBusMessageConnection(
-					localServiceUri));
+			if ("shm".equals(localServiceUri.getScheme())) {
+				server.addConnection(new StandardSharedMemoryBusMessageConnection(
+						localServiceUri, serialiser));
+			} else if ("nio".equals(localServiceUri.getScheme())) {
+				StandardNioServerBusMessageConnection connection = new StandardNioServerBusMessageConnection(
+						localServiceUri, serialiser, maxFrameSize, maxPeerBacklog,
+						selectorThreads);
+				connection.setFlowControl(creditWindow);
+				server.addConnection(connection);
+			} else {
+				StandardSocketServerBusMessageConnection connection = new StandardSocketServerBusMessageConnection(
+						localServiceUri, serialiser, maxFrameSize, maxPeerBacklog);
+				connection.setFlowControl(creditWindow);
+				server.addConnection(connection);
+			}
 
 			// is it discoverable?
 			if (serviceName != null) {
@@ -106,13 +376,35 @@ public class BusServerFactory {
 		}
 
 		for (URI remoteEndpoint : remoteEndpoints) {
-			server.addConnection(new StandardSocketBusMessageConnection(
-					remoteEndpoint, serialiser));
+			if ("shm".equals(remoteEndpoint.getScheme())) {
+				server.addConnection(new StandardSharedMemoryBusMessageConnection(
+						remoteEndpoint, serialiser));
+				continue;
+			}
+			if ("udp".equals(remoteEndpoint.getScheme())) {
+				server.addConnection(new StandardMulticastBusMessageConnection(
+						remoteEndpoint, serialiser));
+				continue;
+			}
+			StandardSocketBusMessageConnection connection = new StandardSocketBusMessageConnection(
+					remoteEndpoint, serialiser, maxFrameSize);
+			if (batchLingerMicros >= 0L) {
+				connection.setBatching(batchLingerMicros, maxBatchBytes);
+			}
+			if (replayFromSequence >= 0L) {
+				connection.setReplay(replayFromSequence);
+			}
+			connection.setFlowControl(creditWindow);
+			connection.setMaxPendingBytes(maxPeerBacklog);
+			if (compressionThreshold > 0) {
+				connection.setCompression(compressionThreshold);
+			}
+			server.addConnection(connection);
 		}
 
 		if (remoteServices != null && remoteServices.size() > 0) {
 			StandardBusServerMulticastDiscoveryClient discoveryClient = new StandardBusServerMulticastDiscoveryClient(
-					server, remoteServices, serialiser);
+					server, remoteServices, serialiser, membershipListener);
 			server.addConnection(discoveryClient);
 		}
 
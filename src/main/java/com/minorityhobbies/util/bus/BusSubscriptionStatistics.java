@@ -0,0 +1,17 @@
+package com.minorityhobbies.util.bus;
+
+/**
+ * Delivery statistics for a single subscription on an asynchronous
+ * {@link Bus}.
+ */
+public interface BusSubscriptionStatistics {
+	BusMessageSubscription getSubscription();
+
+	int getQueueDepth();
+
+	int getQueueCapacity();
+
+	long getDeliveredCount();
+
+	long getDroppedCount();
+}
@@ -1,12 +1,59 @@
 package com.minorityhobbies.util.bus;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 public class StandardBus implements Bus {
-	private final Map<BusMessageSubscription, BusMessageHandler> subscriptions = new ConcurrentHashMap<BusMessageSubscription, BusMessageHandler>();
-	private StandardBusServer busServer = new StandardBusServer(this);
-	
+	private final StandardBusMessageSubscriptionIndex subscriptions = new StandardBusMessageSubscriptionIndex();
+	private final Executor dispatchExecutor;
+	private final int dispatchQueueCapacity;
+	private final BusDispatchOverflowPolicy overflowPolicy;
+	private final StandardBusMetrics metrics;
+	private final StandardBusServer busServer;
+	private final StandardBusRequests requests = new StandardBusRequests(this);
+
+	/**
+	 * Creates a bus which calls every handler on the publishing thread.
+	 */
+	public StandardBus() {
+		this(null, 0, null);
+	}
+
+	/**
+	 * Creates a bus which gives each subscription its own queue of up to
+	 * queueCapacity messages, delivered in order by the executor.
+	 */
+	public StandardBus(Executor dispatchExecutor, int queueCapacity,
+			BusDispatchOverflowPolicy overflowPolicy) {
+		this(dispatchExecutor, queueCapacity, overflowPolicy,
+				new StandardBusOptions());
+	}
+
+	/**
+	 * @param options
+	 *            the metrics, journal and subscription interest used by this
+	 *            bus and its server
+	 */
+	StandardBus(Executor dispatchExecutor, int queueCapacity,
+			BusDispatchOverflowPolicy overflowPolicy, StandardBusOptions options) {
+		super();
+		if (dispatchExecutor != null && queueCapacity <= 0) {
+			throw new IllegalArgumentException("Queue capacity must be positive");
+		}
+		if (dispatchExecutor != null && overflowPolicy == null) {
+			throw new IllegalArgumentException("An overflow policy is required");
+		}
+		this.dispatchExecutor = dispatchExecutor;
+		this.dispatchQueueCapacity = queueCapacity;
+		this.overflowPolicy = overflowPolicy;
+		this.metrics = options.getMetrics();
+		this.busServer = new StandardBusServer(this, options);
+	}
+
 	@Override
 	public BusMessageBuilder getBusMessageBuilder() {
 		return new StandardBusMessageBuilder();
@@ -19,21 +66,73 @@ public class StandardBus implements Bus {
 
 	@Override
 	public void publish(BusMessage msg) {
-		for (Map.Entry<BusMessageSubscription, BusMessageHandler> subscriptionEntry : subscriptions
-				.entrySet()) {
-			BusMessageSubscription subscription = subscriptionEntry.getKey();
-			if (subscription.matches(msg)) {
-				BusMessageHandler handler = subscriptionEntry.getValue();
-				handler.onMessage(msg);
+		if (metrics != null) {
+			metrics.published();
+			msg = new StandardBusTimedMessage(msg, System.nanoTime());
+		}
+		subscriptions.dispatch(msg);
+	}
+
+	@Override
+	public boolean tryPublish(BusMessage msg) {
+		if (busServer.isCongested()) {
+			if (metrics != null) {
+				metrics.rejected();
 			}
+			return false;
 		}
+		publish(msg);
+		return true;
+	}
+
+	@Override
+	public CompletableFuture<BusMessage> request(BusMessage msg, long timeout,
+			TimeUnit unit) {
+		return requests.request(msg, timeout, unit);
+	}
+
+	@Override
+	public int getRequestsInFlight() {
+		return requests.getInFlight();
 	}
 
 	@Override
 	public BusMessageSubscriptionHandle subscribe(
 			final BusMessageSubscription subscription, BusMessageHandler handler) {
-		subscriptions.put(subscription, handler);
-		return new StandardBusMessageSubscriptionHandle(subscriptions, subscription);
+		if (metrics != null) {
+			handler = new StandardBusMeteredMessageHandler(handler, metrics);
+		}
+		if (dispatchExecutor != null) {
+			handler = new StandardBusAsyncMessageHandler(subscription, handler,
+					dispatchExecutor, dispatchQueueCapacity, overflowPolicy,
+					metrics);
+		}
+		if (subscriptions.put(subscription, handler) == null) {
+			busServer.subscribed(subscription);
+		}
+		return new BusMessageSubscriptionHandle() {
+			@Override
+			public void close() throws IOException {
+				if (subscriptions.remove(subscription) != null) {
+					busServer.unsubscribed(subscription);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return the queue statistics of every subscription, or an empty list if
+	 *         this bus dispatches synchronously
+	 */
+	public List<BusSubscriptionStatistics> getSubscriptionStatistics() {
+		List<BusSubscriptionStatistics> statistics = new LinkedList<BusSubscriptionStatistics>();
+		for (StandardBusMessageSubscriptionIndex.Entry entry : subscriptions
+				.entries()) {
+			if (entry.getHandler() instanceof BusSubscriptionStatistics) {
+				statistics.add((BusSubscriptionStatistics) entry.getHandler());
+			}
+		}
+		return statistics;
 	}
 
 	@Override
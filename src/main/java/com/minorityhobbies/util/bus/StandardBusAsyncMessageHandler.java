@@ -0,0 +1,141 @@
+package com.minorityhobbies.util.bus;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Queues messages for a single subscription and delivers them to its handler
+ * on a shared {@link Executor}. At most one task per subscription is running
+ * at any time so messages are delivered in the order they were queued.
+ */
+final class StandardBusAsyncMessageHandler implements BusMessageHandler,
+		BusSubscriptionStatistics, Runnable {
+	private static final int MAX_MESSAGES_PER_RUN = 64;
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+	private final BusMessageSubscription subscription;
+	private final BusMessageHandler handler;
+	private final Executor executor;
+	private final BusDispatchOverflowPolicy overflowPolicy;
+	private final BlockingQueue<BusMessage> queue;
+	private final int capacity;
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final StandardBusMetrics metrics;
+
+	public StandardBusAsyncMessageHandler(BusMessageSubscription subscription,
+			BusMessageHandler handler, Executor executor, int capacity,
+			BusDispatchOverflowPolicy overflowPolicy) {
+		this(subscription, handler, executor, capacity, overflowPolicy, null);
+	}
+
+	StandardBusAsyncMessageHandler(BusMessageSubscription subscription,
+			BusMessageHandler handler, Executor executor, int capacity,
+			BusDispatchOverflowPolicy overflowPolicy, StandardBusMetrics metrics) {
+		super();
+		this.subscription = subscription;
+		this.handler = handler;
+		this.executor = executor;
+		this.capacity = capacity;
+		this.overflowPolicy = overflowPolicy;
+		this.queue = new ArrayBlockingQueue<BusMessage>(capacity);
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void onMessage(BusMessage msg) {
+		switch (overflowPolicy) {
+		case BLOCK:
+			try {
+				queue.put(msg);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				dropped();
+				return;
+			}
+			break;
+		case DROP_OLDEST:
+			while (!queue.offer(msg)) {
+				if (queue.poll() != null) {
+					dropped();
+				}
+			}
+			break;
+		case DROP_NEWEST:
+			if (!queue.offer(msg)) {
+				dropped();
+				return;
+			}
+			break;
+		}
+		schedule();
+	}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			executor.execute(this);
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			for (int i = 0; i < MAX_MESSAGES_PER_RUN; i++) {
+				BusMessage msg = queue.poll();
+				if (msg == null) {
+					break;
+				}
+				try {
+					handler.onMessage(msg);
+				} catch (RuntimeException e) {
+					logger.log(Level.WARNING, "Subscriber failed to handle message", e);
+				}
+				delivered.incrementAndGet();
+			}
+		} finally {
+			scheduled.set(false);
+		}
+		// pick up anything queued since the last poll or left over from this run
+		if (!queue.isEmpty()) {
+			schedule();
+		}
+	}
+
+	private void dropped() {
+		dropped.incrementAndGet();
+		if (metrics != null) {
+			metrics.dropped();
+		}
+	}
+
+	@Override
+	public BusMessageSubscription getSubscription() {
+		return subscription;
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	@Override
+	public int getQueueCapacity() {
+		return capacity;
+	}
+
+	@Override
+	public long getDeliveredCount() {
+		return delivered.get();
+	}
+
+	@Override
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+}
@@ -0,0 +1,76 @@
+package com.minorityhobbies.util.bus;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Message and byte counts for a single {@link BusMessageConnection}. Byte
+ * counts include the frame header. Counters are striped so that updates from
+ * many threads do not contend.
+ */
+final class StandardBusConnectionMetrics {
+	private static final AtomicLong ids = new AtomicLong();
+
+	private final long id = ids.incrementAndGet();
+	private final String name;
+	private final LongAdder messagesIn = new LongAdder();
+	private final LongAdder messagesOut = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private volatile BusBatchStatistics batches;
+
+	public StandardBusConnectionMetrics(String name) {
+		super();
+		this.name = name;
+	}
+
+	void messageIn(int bytes) {
+		messagesIn.increment();
+		bytesIn.add(bytes);
+	}
+
+	void messageOut(int bytes) {
+		messagesOut.increment();
+		bytesOut.add(bytes);
+	}
+
+	long getId() {
+		return id;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	long getMessagesOut() {
+		return messagesOut.sum();
+	}
+
+	long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	/**
+	 * @param batches
+	 *            the batching counters of the connection, replaced each time
+	 *            it connects
+	 */
+	void setBatchStatistics(BusBatchStatistics batches) {
+		this.batches = batches;
+	}
+
+	/**
+	 * @return the batching counters or null if the connection does not batch
+	 */
+	BusBatchStatistics getBatchStatistics() {
+		return batches;
+	}
+}
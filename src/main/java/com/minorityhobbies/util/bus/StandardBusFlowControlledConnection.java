@@ -0,0 +1,13 @@
+package com.minorityhobbies.util.bus;
+
+/**
+ * Implemented by connections which buffer messages for peers that cannot
+ * keep up.
+ */
+interface StandardBusFlowControlledConnection {
+	/**
+	 * @return true if messages are buffered for a peer past the point where
+	 *         publishers should back off
+	 */
+	boolean isCongested();
+}
@@ -0,0 +1,12 @@
+package com.minorityhobbies.util.bus;
+
+/**
+ * Implemented by connections which advertise the subscriptions of the bus
+ * server they belong to, so that their peers only push matching messages.
+ */
+interface StandardBusInterestedConnection {
+	/**
+	 * Called by the bus server before the connection is started.
+	 */
+	void setInterest(StandardBusMessageInterest interest);
+}
@@ -0,0 +1,406 @@
+package com.minorityhobbies.util.bus;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Appends every message published by a {@link StandardBusServer} to a
+ * directory of memory-mapped segment files, numbering each with a sequence
+ * which increases by one per message, so that a peer which reconnects can
+ * replay the messages it missed.
+ *
+ * Each record is its length, a CRC32 of the rest of the record, its sequence
+ * and the {@link StandardBusMessageSerialiserBinary} encoding of the message.
+ * A segment is named after the sequence of its first record and a new one is
+ * started once a record no longer fits. Whenever a segment rolls the oldest
+ * segments are deleted until the journal is within its retained size and age.
+ *
+ * A record is written straight into the mapping, so it survives the process
+ * dying as soon as it is appended. It survives the host failing only once the
+ * mapping is forced to disk, which happens every syncBatchSize messages and
+ * whenever a segment rolls. On opening an existing journal, appends resume
+ * after the last intact record.
+ *
+ * Appends are serialised; replay may run concurrently with them.
+ */
+final class StandardBusJournal implements Closeable {
+	static final String SEQUENCE_ATTRIBUTE = "_seq";
+	static final String REPLAY_TYPE = "_replay";
+	static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	private static final String SUFFIX = ".journal";
+	private static final int RECORD_HEADER_SIZE = 16;
+	private static final int CRC_OFFSET = 4;
+	private static final int SEQUENCE_OFFSET = 8;
+
+	/**
+	 * Receives the records of a replay, in sequence order.
+	 */
+	interface RecordHandler {
+		void onRecord(long sequence, BusMessage msg) throws IOException;
+	}
+
+	private static final class Segment {
+		private final long firstSequence;
+		private final File file;
+		private MappedByteBuffer map;
+		private int limit;
+		private long closedMillis;
+
+		Segment(long firstSequence, File file) {
+			super();
+			this.firstSequence = firstSequence;
+			this.file = file;
+		}
+	}
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+	private final File directory;
+	private final int segmentSize;
+	private final int syncBatchSize;
+	private final long maxRetainedBytes;
+	private final long maxRetainedMillis;
+	private final StandardBusMessageSerialiserBinary encoding = new StandardBusMessageSerialiserBinary(
+			"JOURNAL");
+	private final CRC32 crc = new CRC32();
+	// guarded by this
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private Segment active;
+	private ByteBuffer writeView;
+	private ByteBuffer crcView;
+	private int unsynced;
+	private volatile long lastSequence;
+
+	/**
+	 * @param syncBatchSize
+	 *            number of appends between forcing the mapping to disk; 1
+	 *            forces every append and 0 forces only when a segment rolls
+	 * @param maxRetainedBytes
+	 *            total size of segments to retain or 0 for no limit
+	 * @param maxRetainedMillis
+	 *            age after which a full segment is deleted or 0 for no limit
+	 */
+	StandardBusJournal(File directory, int segmentSize, int syncBatchSize,
+			long maxRetainedBytes, long maxRetainedMillis) throws IOException {
+		super();
+		if (segmentSize <= RECORD_HEADER_SIZE || syncBatchSize < 0) {
+			throw new IllegalArgumentException(
+					"Segment size must hold a record and sync batch size must not be negative");
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.syncBatchSize = syncBatchSize;
+		this.maxRetainedBytes = maxRetainedBytes;
+		this.maxRetainedMillis = maxRetainedMillis;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create journal directory " + directory);
+		}
+		recover();
+	}
+
+	private synchronized void recover() throws IOException {
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.getName().endsWith(SUFFIX);
+			}
+		});
+		// names are zero padded so they sort in sequence order
+		Arrays.sort(files);
+		for (File file : files) {
+			String name = file.getName();
+			Segment segment = new Segment(Long.parseLong(name.substring(0,
+					name.length() - SUFFIX.length())), file);
+			segment.closedMillis = file.lastModified();
+			segments.add(segment);
+		}
+		if (segments.isEmpty()) {
+			lastSequence = 0L;
+			activate(createSegment(1L));
+			return;
+		}
+
+		Segment last = segments.get(segments.size() - 1);
+		last.map = map(last.file, FileChannel.MapMode.READ_WRITE);
+		long sequence = last.firstSequence - 1L;
+		int position = 0;
+		ByteBuffer view = last.map.duplicate();
+		while (position + RECORD_HEADER_SIZE <= view.capacity()) {
+			view.clear();
+			int length = view.getInt(position);
+			if (length <= 0 || length > view.capacity() - position
+					- RECORD_HEADER_SIZE
+					|| view.getLong(position + SEQUENCE_OFFSET) != sequence + 1L) {
+				break;
+			}
+			view.clear().position(position + SEQUENCE_OFFSET)
+					.limit(position + RECORD_HEADER_SIZE + length);
+			crc.reset();
+			crc.update(view);
+			if (view.getInt(position + CRC_OFFSET) != (int) crc.getValue()) {
+				logger.warning(String.format(
+						"Discarding damaged record %d at offset %d of %s",
+						sequence + 1L, position, last.file));
+				break;
+			}
+			sequence++;
+			position += RECORD_HEADER_SIZE + length;
+		}
+		last.limit = position;
+		lastSequence = sequence;
+		segments.remove(last);
+		activate(last);
+		logger.info(String.format("Opened journal %s at sequence %d",
+				directory, sequence));
+	}
+
+	private Segment createSegment(long firstSequence) throws IOException {
+		File file = new File(directory, String.format("%020d%s",
+				firstSequence, SUFFIX));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(segmentSize);
+		} finally {
+			raf.close();
+		}
+		Segment segment = new Segment(firstSequence, file);
+		segment.map = map(file, FileChannel.MapMode.READ_WRITE);
+		return segment;
+	}
+
+	private static MappedByteBuffer map(File file, FileChannel.MapMode mode)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file,
+				mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+		try {
+			// the mapping remains valid once the file is closed
+			return raf.getChannel().map(mode, 0L, raf.length());
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void activate(Segment segment) {
+		segments.add(segment);
+		active = segment;
+		writeView = segment.map.duplicate();
+		crcView = segment.map.duplicate();
+	}
+
+	/**
+	 * @return the sequence given to the message
+	 */
+	synchronized long append(BusMessage msg) throws IOException {
+		if (active == null) {
+			throw new IOException("Journal is closed");
+		}
+		StandardCompactBusMessage compact = msg instanceof StandardCompactBusMessage ? (StandardCompactBusMessage) msg
+				: StandardCompactBusMessage.of(msg.getAttributes());
+		int length = encoding.encodedSize(compact);
+		if (length > segmentSize - RECORD_HEADER_SIZE) {
+			throw new IOException(String.format(
+					"Message of %d bytes exceeds journal segment size of %d",
+					length, segmentSize));
+		}
+		if (length > writeView.capacity() - active.limit - RECORD_HEADER_SIZE) {
+			roll();
+		}
+		long sequence = lastSequence + 1L;
+		int position = active.limit;
+		writeView.clear().position(position + RECORD_HEADER_SIZE);
+		encoding.encode(compact, writeView);
+		writeView.putLong(position + SEQUENCE_OFFSET, sequence);
+		crcView.clear().position(position + SEQUENCE_OFFSET)
+				.limit(position + RECORD_HEADER_SIZE + length);
+		crc.reset();
+		crc.update(crcView);
+		writeView.putInt(position + CRC_OFFSET, (int) crc.getValue());
+		// the length is written last so a torn record is never read as whole
+		writeView.putInt(position, length);
+		active.limit = position + RECORD_HEADER_SIZE + length;
+		lastSequence = sequence;
+		if (syncBatchSize > 0 && ++unsynced >= syncBatchSize) {
+			sync();
+		}
+		return sequence;
+	}
+
+	/**
+	 * Forces appended records to disk.
+	 */
+	synchronized void sync() {
+		if (active != null) {
+			active.map.force();
+			unsynced = 0;
+		}
+	}
+
+	private void roll() throws IOException {
+		active.map.force();
+		unsynced = 0;
+		active.closedMillis = System.currentTimeMillis();
+		// remapped read-only if it is replayed
+		active.map = null;
+		activate(createSegment(lastSequence + 1L));
+		retain();
+	}
+
+	private void retain() {
+		long now = System.currentTimeMillis();
+		long total = 0L;
+		for (Segment segment : segments) {
+			total += segment.file.length();
+		}
+		while (segments.size() > 1) {
+			Segment oldest = segments.get(0);
+			boolean expired = maxRetainedMillis > 0L
+					&& now - oldest.closedMillis > maxRetainedMillis;
+			if (!expired && (maxRetainedBytes <= 0L || total <= maxRetainedBytes)) {
+				break;
+			}
+			segments.remove(0);
+			total -= oldest.file.length();
+			if (!oldest.file.delete()) {
+				logger.warning("Failed to delete journal segment " + oldest.file);
+			}
+		}
+	}
+
+	long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * @return the sequence of the oldest retained message, which is one more
+	 *         than {@link #getLastSequence()} if the journal is empty
+	 */
+	synchronized long getFirstSequence() {
+		return segments.isEmpty() ? lastSequence + 1L : segments.get(0).firstSequence;
+	}
+
+	/**
+	 * Passes every retained message from the given sequence up to the last
+	 * one appended before this call to the handler.
+	 *
+	 * @return the sequence of the last message appended before this call
+	 */
+	long replay(long fromSequence, RecordHandler handler) throws IOException {
+		List<Segment> snapshot;
+		ByteBuffer activeView;
+		long end;
+		synchronized (this) {
+			snapshot = new ArrayList<Segment>(segments);
+			activeView = active != null ? active.map.duplicate() : null;
+			end = lastSequence;
+		}
+		for (int i = 0; i < snapshot.size(); i++) {
+			Segment segment = snapshot.get(i);
+			boolean isActive = i == snapshot.size() - 1 && activeView != null;
+			if (segment.firstSequence > end
+					|| (i + 1 < snapshot.size() && snapshot.get(i + 1).firstSequence <= fromSequence)) {
+				continue;
+			}
+			ByteBuffer view;
+			if (isActive) {
+				view = activeView;
+			} else {
+				try {
+					view = map(segment.file, FileChannel.MapMode.READ_ONLY);
+				} catch (IOException e) {
+					// deleted by retention since the snapshot was taken
+					logger.info(String.format("Skipping journal segment %s: %s",
+							segment.file, e.getMessage()));
+					continue;
+				}
+			}
+			int position = 0;
+			while (position + RECORD_HEADER_SIZE <= view.capacity()) {
+				view.clear();
+				int length = view.getInt(position);
+				if (length <= 0 || length > view.capacity() - position
+						- RECORD_HEADER_SIZE) {
+					break;
+				}
+				long sequence = view.getLong(position + SEQUENCE_OFFSET);
+				if (sequence > end) {
+					return end;
+				}
+				if (sequence >= fromSequence) {
+					view.clear().position(position + RECORD_HEADER_SIZE)
+							.limit(position + RECORD_HEADER_SIZE + length);
+					handler.onRecord(sequence, encoding.fromBuffer(view));
+				}
+				position += RECORD_HEADER_SIZE + length;
+			}
+		}
+		return end;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (active != null) {
+			active.map.force();
+			active = null;
+			writeView = null;
+			crcView = null;
+		}
+	}
+
+	/**
+	 * @return a copy of the message which carries the given sequence
+	 */
+	static BusMessage sequenced(BusMessage msg, long sequence) {
+		StandardBusMessageBuilder builder = new StandardBusMessageBuilder();
+		for (Map.Entry<String, String> attribute : msg.getAttributes()
+				.entrySet()) {
+			if (!StandardBusMessageSerialiserBinary.PROTOCOL_ATTRIBUTE
+					.equals(attribute.getKey())) {
+				builder.put(attribute.getKey(), attribute.getValue());
+			}
+		}
+		builder.put(SEQUENCE_ATTRIBUTE, Long.toString(sequence));
+		return builder.build();
+	}
+
+	/**
+	 * @return the sequence carried by the message or -1 if it has none
+	 */
+	static long sequenceOf(BusMessage msg) {
+		String sequence = msg.get(SEQUENCE_ATTRIBUTE);
+		if (sequence == null) {
+			return -1L;
+		}
+		try {
+			return Long.parseLong(sequence);
+		} catch (NumberFormatException e) {
+			return -1L;
+		}
+	}
+
+	/**
+	 * A peer sends this message to ask for replay from the given sequence. In
+	 * reply it receives the same message carrying the sequence before the
+	 * first one replayed, followed by the replayed messages.
+	 */
+	static BusMessage replayMessage(long sequence) {
+		return new StandardBusMessageBuilder()
+				.put(BusMessageAttribute.MESSAGE_TYPE.getAttributeName(),
+						REPLAY_TYPE)
+				.put(SEQUENCE_ATTRIBUTE, Long.toString(sequence)).build();
+	}
+
+	static boolean isReplayMessage(BusMessage msg) {
+		return REPLAY_TYPE.equals(BusMessageAttribute.MESSAGE_TYPE.get(msg));
+	}
+}
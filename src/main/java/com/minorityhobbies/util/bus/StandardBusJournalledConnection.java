@@ -0,0 +1,12 @@
+package com.minorityhobbies.util.bus;
+
+/**
+ * Implemented by connections which serve replay requests from their peers
+ * out of the journal of the bus server they belong to.
+ */
+interface StandardBusJournalledConnection {
+	/**
+	 * Called by the bus server before the connection is started.
+	 */
+	void setJournal(StandardBusJournal journal);
+}
@@ -0,0 +1,94 @@
+package com.minorityhobbies.util.bus;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records durations in nanoseconds into log-linear buckets in the manner of
+ * an HDR histogram. Values below {@link #SUB_BUCKETS} are counted exactly;
+ * above that every power of two is split into {@link #SUB_BUCKETS} / 2 linear
+ * buckets, so a reported percentile is within about 3% of the true value.
+ *
+ * Recording is a single atomic increment and takes no locks. Safe for use by
+ * concurrent threads; readers see a consistent-enough view for monitoring but
+ * not an atomic snapshot.
+ */
+final class StandardBusLatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 6;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+	private static final int BUCKETS = bucketFor(Long.MAX_VALUE) + 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+
+	void record(long nanos) {
+		if (nanos < 0L) {
+			nanos = 0L;
+		}
+		counts.incrementAndGet(bucketFor(nanos));
+		count.increment();
+		total.add(nanos);
+	}
+
+	long getCount() {
+		return count.sum();
+	}
+
+	long getMean() {
+		long n = count.sum();
+		return n == 0L ? 0L : total.sum() / n;
+	}
+
+	/**
+	 * @return the highest value equivalent to the given percentile, between 0
+	 *         and 100, or 0 if nothing has been recorded
+	 */
+	long getPercentile(double percentile) {
+		long n = 0L;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0L) {
+			return 0L;
+		}
+		long rank = Math.max(1L, (long) Math.ceil(n * percentile / 100.0));
+		long seen = 0L;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return highestValueIn(i);
+			}
+		}
+		return highestValueIn(BUCKETS - 1);
+	}
+
+	long getMax() {
+		for (int i = BUCKETS - 1; i >= 0; i--) {
+			if (counts.get(i) > 0L) {
+				return highestValueIn(i);
+			}
+		}
+		return 0L;
+	}
+
+	static int bucketFor(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	static long highestValueIn(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / HALF_SUB_BUCKETS - 1;
+		long mantissa = bucket - shift * HALF_SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+}
@@ -1,10 +1,11 @@
 package com.minorityhobbies.util.bus;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class StandardBusMessageBuilder implements BusMessageBuilder {
-	private final Map<String, String> attributes = new HashMap<String, String>();
+	private String[] names = new String[8];
+	private String[] values = new String[8];
+	private int size;
 	
 	public StandardBusMessageBuilder() {
 		super();
@@ -12,25 +13,25 @@ class StandardBusMessageBuilder implements BusMessageBuilder {
 	
 	@Override
 	public final BusMessageBuilder setMessageId(String messageId) {
-		attributes.put(BusMessageAttribute.MESSAGE_ID.getAttributeName(), messageId);
+		put(BusMessageAttribute.MESSAGE_ID.getAttributeName(), messageId);
 		return this;
 	}
 
 	@Override
 	public final BusMessageBuilder setMessageType(String type) {
-		attributes.put(BusMessageAttribute.MESSAGE_TYPE.getAttributeName(), type);
+		put(BusMessageAttribute.MESSAGE_TYPE.getAttributeName(), type);
 		return this;
 	}
 
 	@Override
 	public final BusMessageBuilder setMessageSource(String source) {
-		attributes.put(BusMessageAttribute.SOURCE.getAttributeName(), source);
+		put(BusMessageAttribute.SOURCE.getAttributeName(), source);
 		return this;
 	}
 	
 	@Override
 	public final BusMessageBuilder setMessageDestination(String destination) {
-		attributes.put(BusMessageAttribute.DESTINATION.getAttributeName(), destination);
+		put(BusMessageAttribute.DESTINATION.getAttributeName(), destination);
 		return this;
 	}
 	
@@ -39,12 +40,32 @@ class StandardBusMessageBuilder implements BusMessageBuilder {
 		if (attributeName.startsWith("_")) {
 			throw new IllegalArgumentException("Attribute names cannot start with _");
 		}
-		attributes.put(attributeName, attributeValue);
+		put(attributeName, attributeValue);
+		return this;
+	}
+
+	/**
+	 * Sets any attribute, including the reserved ones, without validation.
+	 */
+	final StandardBusMessageBuilder put(String attributeName, String attributeValue) {
+		for (int i = 0; i < size; i++) {
+			if (names[i].equals(attributeName)) {
+				values[i] = attributeValue;
+				return this;
+			}
+		}
+		if (size == names.length) {
+			names = Arrays.copyOf(names, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		names[size] = StandardCompactBusMessage.intern(attributeName);
+		values[size++] = attributeValue;
 		return this;
 	}
 	
 	@Override
 	public final BusMessage build() {
-		return new StandardBusMessage(attributes);
+		return new StandardCompactBusMessage(Arrays.copyOf(names, size),
+				Arrays.copyOf(values, size), false);
 	}
 }
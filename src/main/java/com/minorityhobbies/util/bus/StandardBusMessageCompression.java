@@ -0,0 +1,336 @@
+package com.minorityhobbies.util.bus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the frames exchanged with one peer, negotiated when the
+ * connection starts.
+ *
+ * The connecting side offers compression and names the size threshold. A
+ * peer which understands the offer answers with a start message, and every
+ * frame it writes after that carries a flag byte saying whether the rest of
+ * the frame is deflated. On receiving the start message the offering side
+ * begins reading flagged frames and sends its own start message in turn. A
+ * peer which ignores the offer never answers, so nothing changes.
+ *
+ * Each direction is a single deflate stream, flushed at the end of every
+ * compressed frame, so later frames are compressed against the earlier ones
+ * as well as against a dictionary of the attribute names the bus itself
+ * uses. Frames below the threshold are sent uncompressed.
+ *
+ * Compression messages are control messages and are not passed on.
+ */
+final class StandardBusMessageCompression implements BusMessageHandler {
+	static final String COMPRESSION_TYPE = "_compression";
+	static final String OPERATION_ATTRIBUTE = "_op";
+	static final String CODEC_ATTRIBUTE = "_codec";
+	static final String THRESHOLD_ATTRIBUTE = "_threshold";
+	static final String OFFER = "offer";
+	static final String START = "start";
+	// names the dictionary too, so it must change whenever the dictionary does
+	static final String DEFLATE = "deflate-1";
+	static final int DEFAULT_THRESHOLD = 256;
+	private static final byte PLAIN = 0;
+	private static final byte DEFLATED = 1;
+	private static final byte[] DICTIONARY = dictionary(
+			StandardBusMessageSerialiserBinary.PROTOCOL_ATTRIBUTE,
+			StandardBusJournal.SEQUENCE_ATTRIBUTE,
+			StandardBusMessageCredits.CREDITS_ATTRIBUTE,
+			StandardBusMessageInterest.NAME_ATTRIBUTE,
+			StandardBusMessageInterest.VALUE_ATTRIBUTE,
+			BusMessageAttribute.DESTINATION.getAttributeName(),
+			BusMessageAttribute.SOURCE.getAttributeName(),
+			BusMessageAttribute.MESSAGE_TYPE.getAttributeName(),
+			BusMessageAttribute.MESSAGE_ID.getAttributeName());
+
+	/**
+	 * The connection to the peer.
+	 */
+	interface Peer {
+		/**
+		 * Sends the offer ahead of any buffered messages.
+		 */
+		void sendOffer(BusMessage msg) throws IOException;
+
+		/**
+		 * Sends the start message uncompressed, then passes every frame
+		 * written after it through
+		 * {@link StandardBusMessageCompression#deflate(ByteBuffer)}.
+		 */
+		void startDeflating(BusMessage msg) throws IOException;
+	}
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+	private final BusMessageHandler handler;
+	private final Peer peer;
+	private final int maxFrameSize;
+	private volatile int threshold;
+	private volatile boolean started;
+	private volatile boolean inflating;
+	private volatile boolean closed;
+	// only used by one writing thread at a time, but ended by close()
+	private final Object deflaterLock = new Object();
+	private Deflater deflater;
+	private byte[] deflated = new byte[1024];
+	// only used by the reading thread, but ended by close()
+	private final Object inflaterLock = new Object();
+	private Inflater inflater;
+	private byte[] inflated = new byte[1024];
+
+	/**
+	 * @param threshold
+	 *            the smallest frame to compress, or 0 to not offer
+	 *            compression but accept an offer from the peer
+	 */
+	StandardBusMessageCompression(BusMessageHandler handler, Peer peer,
+			int threshold, int maxFrameSize) {
+		super();
+		if (threshold < 0) {
+			throw new IllegalArgumentException("Threshold must not be negative");
+		}
+		this.handler = handler;
+		this.peer = peer;
+		this.threshold = threshold;
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	/**
+	 * Offers compression to the peer, if a threshold was given.
+	 */
+	void start() throws IOException {
+		if (threshold > 0) {
+			peer.sendOffer(compressionMessage(OFFER, threshold));
+		}
+	}
+
+	@Override
+	public void onMessage(BusMessage msg) {
+		if (!COMPRESSION_TYPE.equals(BusMessageAttribute.MESSAGE_TYPE.get(msg))) {
+			handler.onMessage(msg);
+			return;
+		}
+		String operation = msg.get(OPERATION_ATTRIBUTE);
+		if (!DEFLATE.equals(msg.get(CODEC_ATTRIBUTE))) {
+			// a codec we do not have, so leave the offer unanswered
+			logger.info("Declining compression codec " + msg.get(CODEC_ATTRIBUTE));
+			return;
+		}
+		try {
+			if (OFFER.equals(operation) && !started) {
+				threshold = Integer.parseInt(msg.get(THRESHOLD_ATTRIBUTE));
+				sendStart();
+			} else if (START.equals(operation)) {
+				inflating = true;
+				if (!started) {
+					sendStart();
+				}
+			}
+		} catch (NumberFormatException e) {
+			logger.warning("Ignoring malformed compression message: " + msg);
+		} catch (IOException e) {
+			logger.info("Failed to start compression: " + e.getMessage());
+		}
+	}
+
+	private void sendStart() throws IOException {
+		started = true;
+		peer.startDeflating(compressionMessage(START, threshold));
+	}
+
+	/**
+	 * @return true once the peer has started sending compressed frames
+	 */
+	boolean isInflating() {
+		return inflating;
+	}
+
+	/**
+	 * Flags the payload of a frame and compresses it if it is large enough.
+	 * The result is only valid until the next call.
+	 */
+	ByteBuffer deflate(ByteBuffer payload) {
+		int length = payload.remaining();
+		if (length >= threshold) {
+			synchronized (deflaterLock) {
+				if (!closed) {
+					return deflateLocked(payload, length);
+				}
+			}
+			// sent as it is once closed, since the peer is going anyway
+		}
+		ensureDeflated(length + 1);
+		deflated[0] = PLAIN;
+		payload.duplicate().get(deflated, 1, length);
+		return ByteBuffer.wrap(deflated, 0, length + 1);
+	}
+
+	private ByteBuffer deflateLocked(ByteBuffer payload, int length) {
+		if (deflater == null) {
+			deflater = new Deflater(Deflater.BEST_SPEED);
+			deflater.setDictionary(DICTIONARY);
+		}
+		if (payload.hasArray()) {
+			deflater.setInput(payload.array(), payload.arrayOffset()
+					+ payload.position(), length);
+		} else {
+			byte[] b = new byte[length];
+			payload.duplicate().get(b);
+			deflater.setInput(b);
+		}
+		deflated[0] = DEFLATED;
+		int size = 1;
+		while (true) {
+			size += deflater.deflate(deflated, size, deflated.length - size,
+					Deflater.SYNC_FLUSH);
+			if (size < deflated.length) {
+				break;
+			}
+			ensureDeflated(deflated.length * 2);
+		}
+		return ByteBuffer.wrap(deflated, 0, size);
+	}
+
+	/**
+	 * Strips the flag from a frame read from the peer and inflates the
+	 * payload if it is compressed. Frames read before the peer started
+	 * compressing are returned as they are. The result is only valid until the
+	 * next call.
+	 */
+	ByteBuffer inflate(ByteBuffer frame) throws IOException {
+		if (!inflating) {
+			return frame;
+		}
+		if (!frame.hasRemaining()) {
+			throw new IOException("Empty compressed frame");
+		}
+		byte flag = frame.get();
+		if (flag == PLAIN) {
+			return frame.slice();
+		}
+		if (flag != DEFLATED) {
+			throw new IOException("Unknown compression flag " + flag);
+		}
+		synchronized (inflaterLock) {
+			if (closed) {
+				throw new IOException("Compression has been closed");
+			}
+			return inflateLocked(frame);
+		}
+	}
+
+	private ByteBuffer inflateLocked(ByteBuffer frame) throws IOException {
+		if (inflater == null) {
+			inflater = new Inflater();
+		}
+		if (frame.hasArray()) {
+			inflater.setInput(frame.array(), frame.arrayOffset()
+					+ frame.position(), frame.remaining());
+		} else {
+			byte[] b = new byte[frame.remaining()];
+			frame.get(b);
+			inflater.setInput(b);
+		}
+		try {
+			int size = 0;
+			while (true) {
+				int n = inflater.inflate(inflated, size, inflated.length - size);
+				if (n == 0 && inflater.needsDictionary()) {
+					inflater.setDictionary(DICTIONARY);
+					continue;
+				}
+				size += n;
+				if (size < inflated.length && inflater.needsInput()) {
+					return ByteBuffer.wrap(inflated, 0, size);
+				}
+				if (size == inflated.length) {
+					if (size >= maxFrameSize) {
+						throw new IOException(String.format(
+								"Compressed frame exceeds maximum frame size of %d",
+								maxFrameSize));
+					}
+					inflated = Arrays.copyOf(inflated,
+							Math.min(size * 2, maxFrameSize));
+				} else if (n == 0) {
+					throw new IOException("Truncated compressed frame");
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed frame", e);
+		}
+	}
+
+	/**
+	 * Frees the native memory held by the deflate streams. Frames deflated
+	 * after this are sent uncompressed and compressed frames can no longer be
+	 * read.
+	 */
+	void close() {
+		closed = true;
+		synchronized (deflaterLock) {
+			if (deflater != null) {
+				deflater.end();
+				deflater = null;
+			}
+		}
+		synchronized (inflaterLock) {
+			if (inflater != null) {
+				inflater.end();
+				inflater = null;
+			}
+		}
+	}
+
+	/**
+	 * @return a serialiser which inflates frames before the given serialiser
+	 *         reads them
+	 */
+	BusMessageSerialiser reading(final BusMessageSerialiser serialiser) {
+		return new BusMessageSerialiser() {
+			@Override
+			public byte[] toBytes(BusMessage msg) throws IOException {
+				return serialiser.toBytes(msg);
+			}
+
+			@Override
+			public BusMessage fromBytes(byte[] msg) throws IOException {
+				return fromBuffer(ByteBuffer.wrap(msg));
+			}
+
+			@Override
+			public BusMessage fromBuffer(ByteBuffer msg) throws IOException {
+				return serialiser.fromBuffer(inflate(msg));
+			}
+		};
+	}
+
+	private void ensureDeflated(int size) {
+		if (deflated.length < size) {
+			deflated = Arrays.copyOf(deflated, Math.max(size,
+					deflated.length * 2));
+		}
+	}
+
+	static BusMessage compressionMessage(String operation, int threshold) {
+		return new StandardBusMessageBuilder()
+				.put(BusMessageAttribute.MESSAGE_TYPE.getAttributeName(),
+						COMPRESSION_TYPE).put(OPERATION_ATTRIBUTE, operation)
+				.put(CODEC_ATTRIBUTE, DEFLATE)
+				.put(THRESHOLD_ATTRIBUTE, Integer.toString(threshold)).build();
+	}
+
+	private static byte[] dictionary(String... names) {
+		// deflate favours the end of the dictionary, so the commonest go last
+		StringBuilder dictionary = new StringBuilder();
+		for (String name : names) {
+			dictionary.append(name).append('\u0003');
+		}
+		return dictionary.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
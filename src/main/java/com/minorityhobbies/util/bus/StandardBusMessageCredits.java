@@ -0,0 +1,141 @@
+package com.minorityhobbies.util.bus;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Credit-based flow control for the messages exchanged with one peer.
+ *
+ * As a receiver, it grants the peer credit for window messages when the
+ * connection starts and grants more each time the wrapped handler has
+ * consumed half a window. A receiver with a window of 0 grants nothing.
+ *
+ * As a sender, it holds the credit granted by the peer. Each message sent
+ * takes one credit, and the connection buffers messages while it has none.
+ * A peer which has never granted credit is not flow controlled, so flow
+ * control is enabled by configuring the receivers alone.
+ *
+ * Credit grants are control messages; they are sent ahead of buffered
+ * messages and need no credit themselves.
+ */
+final class StandardBusMessageCredits implements BusMessageHandler {
+	static final String CREDIT_TYPE = "_credit";
+	static final String CREDITS_ATTRIBUTE = "_credits";
+
+	/**
+	 * The connection to the peer.
+	 */
+	interface Peer {
+		/**
+		 * Sends a credit grant to the peer ahead of any buffered messages.
+		 */
+		void sendCredits(BusMessage msg) throws IOException;
+
+		/**
+		 * Called on the reading thread when the peer has granted more credit.
+		 */
+		void creditsGranted();
+	}
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+	private final BusMessageHandler handler;
+	private final Peer peer;
+	private final int window;
+	private final int grantBatch;
+	private final AtomicLong credits = new AtomicLong(Long.MAX_VALUE);
+	private volatile boolean limited;
+	// only used by the reading thread
+	private int consumed;
+
+	StandardBusMessageCredits(BusMessageHandler handler, Peer peer, int window) {
+		super();
+		if (window < 0) {
+			throw new IllegalArgumentException("Window must not be negative");
+		}
+		this.handler = handler;
+		this.peer = peer;
+		this.window = window;
+		this.grantBatch = Math.max(1, window / 2);
+	}
+
+	/**
+	 * Grants the initial window to the peer.
+	 */
+	void start() throws IOException {
+		if (window > 0) {
+			peer.sendCredits(creditMessage(window));
+		}
+	}
+
+	@Override
+	public void onMessage(BusMessage msg) {
+		if (CREDIT_TYPE.equals(BusMessageAttribute.MESSAGE_TYPE.get(msg))) {
+			granted(msg.get(CREDITS_ATTRIBUTE));
+			return;
+		}
+		handler.onMessage(msg);
+		if (window > 0 && ++consumed >= grantBatch) {
+			try {
+				peer.sendCredits(creditMessage(consumed));
+				consumed = 0;
+			} catch (IOException e) {
+				logger.info("Failed to grant credit: " + e.getMessage());
+			}
+		}
+	}
+
+	private void granted(String value) {
+		long granted;
+		try {
+			granted = Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			logger.warning("Ignoring malformed credit grant: " + value);
+			return;
+		}
+		if (limited) {
+			credits.addAndGet(granted);
+		} else {
+			// messages sent before the first grant are not counted against it
+			limited = true;
+			credits.set(granted);
+		}
+		peer.creditsGranted();
+	}
+
+	/**
+	 * Takes one credit to send a message.
+	 *
+	 * @return false if the peer has granted no more credit
+	 */
+	boolean tryAcquire() {
+		while (true) {
+			long available = credits.get();
+			if (available <= 0L) {
+				return false;
+			}
+			if (credits.compareAndSet(available, available - 1L)) {
+				return true;
+			}
+		}
+	}
+
+	boolean hasCredit() {
+		return credits.get() > 0L;
+	}
+
+	/**
+	 * @return the credit remaining or {@link Long#MAX_VALUE} if the peer is
+	 *         not flow controlled
+	 */
+	long getCredits() {
+		return limited ? credits.get() : Long.MAX_VALUE;
+	}
+
+	static BusMessage creditMessage(int credits) {
+		return new StandardBusMessageBuilder()
+				.put(BusMessageAttribute.MESSAGE_TYPE.getAttributeName(),
+						CREDIT_TYPE)
+				.put(CREDITS_ATTRIBUTE, Integer.toString(credits)).build();
+	}
+}
@@ -0,0 +1,417 @@
+package com.minorityhobbies.util.bus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import com.minorityhobbies.util.CompositeAndLogicSelector;
+import com.minorityhobbies.util.CompositeOrLogicSelector;
+import com.minorityhobbies.util.Selector;
+
+/**
+ * Compiles a filter expression, as described by
+ * {@link BusMessageSubscriptions#newFilterSubscription(String)}, into a tree
+ * of {@link Selector}s over bus messages.
+ *
+ * Also finds the first equality or IN test on a string which the whole
+ * expression depends on, so that the subscription can be indexed by it.
+ */
+final class StandardBusMessageFilterParser {
+	private enum Kind {
+		WORD, STRING, NUMBER, SYMBOL, END
+	}
+
+	private static final class Token {
+		private final Kind kind;
+		private final String text;
+		private final int position;
+
+		Token(Kind kind, String text, int position) {
+			this.kind = kind;
+			this.text = text;
+			this.position = position;
+		}
+	}
+
+	/**
+	 * A test which passes only for the given values of one attribute.
+	 */
+	static final class AttributeValues extends Selector<BusMessage> {
+		private final String name;
+		private final Set<String> values;
+
+		AttributeValues(String name, Set<String> values) {
+			this.name = name;
+			this.values = values;
+		}
+
+		String getName() {
+			return name;
+		}
+
+		Set<String> getValues() {
+			return values;
+		}
+
+		@Override
+		public boolean select(BusMessage msg) {
+			String value = msg.get(name);
+			return value != null && values.contains(value);
+		}
+	}
+
+	private static final class Prefix extends Selector<BusMessage> {
+		private final String name;
+		private final String prefix;
+
+		Prefix(String name, String prefix) {
+			this.name = name;
+			this.prefix = prefix;
+		}
+
+		@Override
+		public boolean select(BusMessage msg) {
+			String value = msg.get(name);
+			return value != null && value.startsWith(prefix);
+		}
+	}
+
+	private static final class Range extends Selector<BusMessage> {
+		private final String name;
+		private final double lower;
+		private final boolean lowerInclusive;
+		private final double upper;
+		private final boolean upperInclusive;
+
+		Range(String name, double lower, boolean lowerInclusive, double upper,
+				boolean upperInclusive) {
+			this.name = name;
+			this.lower = lower;
+			this.lowerInclusive = lowerInclusive;
+			this.upper = upper;
+			this.upperInclusive = upperInclusive;
+		}
+
+		@Override
+		public boolean select(BusMessage msg) {
+			String value = msg.get(name);
+			if (value == null) {
+				return false;
+			}
+			double number;
+			try {
+				number = Double.parseDouble(value);
+			} catch (NumberFormatException e) {
+				return false;
+			}
+			return (lowerInclusive ? number >= lower : number > lower)
+					&& (upperInclusive ? number <= upper : number < upper);
+		}
+	}
+
+	private static final class Not extends Selector<BusMessage> {
+		private final Selector<BusMessage> selector;
+
+		Not(Selector<BusMessage> selector) {
+			this.selector = selector;
+		}
+
+		@Override
+		public boolean select(BusMessage msg) {
+			return !selector.select(msg);
+		}
+	}
+
+	private final String expression;
+	private final List<Token> tokens = new ArrayList<Token>();
+	private int next;
+	private List<Selector<BusMessage>> conjuncts = Collections.emptyList();
+
+	StandardBusMessageFilterParser(String expression) {
+		super();
+		this.expression = expression;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the expression is malformed
+	 */
+	Selector<BusMessage> parse() {
+		tokenise();
+		Selector<BusMessage> selector = or(true);
+		if (peek().kind != Kind.END) {
+			throw error("Unexpected '" + peek().text + "'", peek());
+		}
+		return selector;
+	}
+
+	/**
+	 * @return the first equality or IN test on a string which must pass for
+	 *         the whole expression to pass, or null if there is none
+	 */
+	AttributeValues getAccessTest() {
+		for (Selector<BusMessage> conjunct : conjuncts) {
+			if (conjunct instanceof AttributeValues) {
+				return (AttributeValues) conjunct;
+			}
+		}
+		return null;
+	}
+
+	private Selector<BusMessage> or(boolean topLevel) {
+		List<Selector<BusMessage>> alternatives = new ArrayList<Selector<BusMessage>>();
+		List<Selector<BusMessage>> first = and();
+		alternatives.add(all(first));
+		while (accept("OR")) {
+			alternatives.add(all(and()));
+		}
+		if (alternatives.size() == 1) {
+			if (topLevel) {
+				conjuncts = first;
+			}
+			return alternatives.get(0);
+		}
+		return new CompositeOrLogicSelector<BusMessage>(alternatives);
+	}
+
+	private List<Selector<BusMessage>> and() {
+		List<Selector<BusMessage>> conjuncts = new ArrayList<Selector<BusMessage>>();
+		conjuncts.add(unary());
+		while (accept("AND")) {
+			conjuncts.add(unary());
+		}
+		return conjuncts;
+	}
+
+	private static Selector<BusMessage> all(List<Selector<BusMessage>> conjuncts) {
+		return conjuncts.size() == 1 ? conjuncts.get(0)
+				: new CompositeAndLogicSelector<BusMessage>(conjuncts);
+	}
+
+	private Selector<BusMessage> unary() {
+		if (accept("NOT")) {
+			return new Not(unary());
+		}
+		if (accept("(")) {
+			Selector<BusMessage> selector = or(false);
+			expect(")");
+			return selector;
+		}
+		return test();
+	}
+
+	private Selector<BusMessage> test() {
+		Token name = take();
+		if (name.kind != Kind.WORD || isKeyword(name.text)) {
+			throw error("Expected an attribute name", name);
+		}
+		if (accept("=")) {
+			return equality(name);
+		}
+		if (accept("<>") || accept("!=")) {
+			return new Not(equality(name));
+		}
+		if (accept("<")) {
+			return new Range(name.text, Double.NEGATIVE_INFINITY, true,
+					number(), false);
+		}
+		if (accept("<=")) {
+			return new Range(name.text, Double.NEGATIVE_INFINITY, true,
+					number(), true);
+		}
+		if (accept(">")) {
+			return new Range(name.text, number(), false,
+					Double.POSITIVE_INFINITY, true);
+		}
+		if (accept(">=")) {
+			return new Range(name.text, number(), true,
+					Double.POSITIVE_INFINITY, true);
+		}
+		boolean negated = accept("NOT");
+		Selector<BusMessage> selector;
+		if (accept("IN")) {
+			selector = in(name);
+		} else if (accept("LIKE")) {
+			selector = like(name);
+		} else if (accept("BETWEEN")) {
+			double lower = number();
+			expect("AND");
+			selector = new Range(name.text, lower, true, number(), true);
+		} else {
+			throw error("Expected a comparison", peek());
+		}
+		return negated ? new Not(selector) : selector;
+	}
+
+	private Selector<BusMessage> equality(Token name) {
+		Token literal = take();
+		if (literal.kind == Kind.STRING) {
+			return new AttributeValues(name.text,
+					Collections.singleton(literal.text));
+		}
+		if (literal.kind == Kind.NUMBER) {
+			double number = Double.parseDouble(literal.text);
+			return new Range(name.text, number, true, number, true);
+		}
+		throw error("Expected a string or number", literal);
+	}
+
+	private Selector<BusMessage> in(Token name) {
+		expect("(");
+		Set<String> values = new HashSet<String>();
+		do {
+			values.add(string());
+		} while (accept(","));
+		expect(")");
+		return new AttributeValues(name.text, values);
+	}
+
+	private Selector<BusMessage> like(Token name) {
+		Token pattern = peek();
+		String prefix = string();
+		int wildcard = prefix.indexOf('%');
+		if (wildcard < 0) {
+			return new AttributeValues(name.text, Collections.singleton(prefix));
+		}
+		if (wildcard != prefix.length() - 1) {
+			throw error("Only prefix patterns ending in % are supported",
+					pattern);
+		}
+		return new Prefix(name.text, prefix.substring(0, wildcard));
+	}
+
+	private String string() {
+		Token literal = take();
+		if (literal.kind != Kind.STRING) {
+			throw error("Expected a quoted string", literal);
+		}
+		return literal.text;
+	}
+
+	private double number() {
+		Token literal = take();
+		if (literal.kind != Kind.NUMBER) {
+			throw error("Expected a number", literal);
+		}
+		return Double.parseDouble(literal.text);
+	}
+
+	private Token peek() {
+		return tokens.get(next);
+	}
+
+	private Token take() {
+		Token token = tokens.get(next);
+		if (token.kind != Kind.END) {
+			next++;
+		}
+		return token;
+	}
+
+	private boolean accept(String text) {
+		Token token = peek();
+		if ((token.kind == Kind.SYMBOL || token.kind == Kind.WORD)
+				&& token.text.equalsIgnoreCase(text)) {
+			next++;
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(String text) {
+		if (!accept(text)) {
+			throw error("Expected '" + text + "'", peek());
+		}
+	}
+
+	private static boolean isKeyword(String word) {
+		String upper = word.toUpperCase(Locale.ROOT);
+		return upper.equals("AND") || upper.equals("OR") || upper.equals("NOT")
+				|| upper.equals("IN") || upper.equals("LIKE")
+				|| upper.equals("BETWEEN");
+	}
+
+	private void tokenise() {
+		int i = 0;
+		int length = expression.length();
+		while (i < length) {
+			char c = expression.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+			} else if (c == '\'') {
+				StringBuilder text = new StringBuilder();
+				int start = i++;
+				while (true) {
+					if (i >= length) {
+						throw error("Unterminated string", new Token(
+								Kind.STRING, "", start));
+					}
+					char s = expression.charAt(i++);
+					if (s == '\'') {
+						if (i < length && expression.charAt(i) == '\'') {
+							text.append('\'');
+							i++;
+						} else {
+							break;
+						}
+					} else {
+						text.append(s);
+					}
+				}
+				tokens.add(new Token(Kind.STRING, text.toString(), start));
+			} else if (Character.isDigit(c)
+					|| ((c == '-' || c == '.') && i + 1 < length && Character
+							.isDigit(expression.charAt(i + 1)))) {
+				int start = i++;
+				while (i < length
+						&& (Character.isDigit(expression.charAt(i))
+								|| expression.charAt(i) == '.'
+								|| expression.charAt(i) == 'e' || expression
+								.charAt(i) == 'E')) {
+					i++;
+				}
+				String text = expression.substring(start, i);
+				try {
+					Double.parseDouble(text);
+				} catch (NumberFormatException e) {
+					throw error("Malformed number", new Token(Kind.NUMBER, text,
+							start));
+				}
+				tokens.add(new Token(Kind.NUMBER, text, start));
+			} else if (Character.isLetter(c) || c == '_') {
+				int start = i++;
+				while (i < length
+						&& (Character.isLetterOrDigit(expression.charAt(i))
+								|| expression.charAt(i) == '_'
+								|| expression.charAt(i) == '.' || expression
+								.charAt(i) == '-')) {
+					i++;
+				}
+				tokens.add(new Token(Kind.WORD, expression.substring(start, i),
+						start));
+			} else if ((c == '<' || c == '>' || c == '!') && i + 1 < length
+					&& (expression.charAt(i + 1) == '=' || (c == '<' && expression
+							.charAt(i + 1) == '>'))) {
+				tokens.add(new Token(Kind.SYMBOL, expression.substring(i, i + 2),
+						i));
+				i += 2;
+			} else if ("()=<>,".indexOf(c) >= 0) {
+				tokens.add(new Token(Kind.SYMBOL, String.valueOf(c), i));
+				i++;
+			} else {
+				throw error("Unexpected character '" + c + "'", new Token(
+						Kind.SYMBOL, String.valueOf(c), i));
+			}
+		}
+		tokens.add(new Token(Kind.END, "end of filter", length));
+	}
+
+	private IllegalArgumentException error(String problem, Token token) {
+		return new IllegalArgumentException(String.format(
+				"%s at position %d of filter: %s", problem, token.position,
+				expression));
+	}
+}
@@ -0,0 +1,58 @@
+package com.minorityhobbies.util.bus;
+
+import java.util.Collections;
+import java.util.Set;
+
+import com.minorityhobbies.util.Selector;
+
+/**
+ * A subscription to the messages which pass a filter expression. The
+ * expression is compiled once and the subscription is indexed by the first
+ * equality or IN test which the whole expression depends on, if there is one.
+ */
+final class StandardBusMessageFilterSubscription implements BusMessageSubscription {
+	private final String expression;
+	private final Selector<BusMessage> selector;
+	private final String attributeName;
+	private final Set<String> attributeValues;
+
+	StandardBusMessageFilterSubscription(String expression) {
+		super();
+		StandardBusMessageFilterParser parser = new StandardBusMessageFilterParser(
+				expression);
+		this.expression = expression;
+		this.selector = parser.parse();
+		StandardBusMessageFilterParser.AttributeValues access = parser
+				.getAccessTest();
+		this.attributeName = access != null ? access.getName() : null;
+		this.attributeValues = access != null ? Collections
+				.unmodifiableSet(access.getValues()) : null;
+	}
+
+	String getExpression() {
+		return expression;
+	}
+
+	/**
+	 * @return the attribute every matching message has one of the
+	 *         {@link #getAttributeValues()} for, or null if the subscription
+	 *         cannot be indexed
+	 */
+	String getAttributeName() {
+		return attributeName;
+	}
+
+	Set<String> getAttributeValues() {
+		return attributeValues;
+	}
+
+	@Override
+	public boolean matches(BusMessage msg) {
+		return selector.select(msg);
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+}
@@ -0,0 +1,216 @@
+package com.minorityhobbies.util.bus;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a byte stream into length-prefixed frames. Each frame on the wire is
+ * a four byte big-endian length followed by that many bytes of payload.
+ *
+ * Bytes are read into a growable ring buffer. Every complete frame found after
+ * a read is passed to the {@link FrameHandler} as a view onto the ring buffer
+ * without copying; the view is only valid for the duration of the callback.
+ * Partial frames are retained until the rest of the frame arrives. A frame
+ * which wraps around the end of the ring is the only case which is copied.
+ *
+ * Not safe for use by concurrent threads.
+ */
+final class StandardBusMessageFrameBuffer {
+	static final int HEADER_SIZE = 4;
+	static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+	private static final int INITIAL_CAPACITY = 32 * 1024;
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	interface FrameHandler {
+		void onFrame(ByteBuffer frame) throws IOException;
+	}
+
+	private final int maxFrameSize;
+	private byte[] ring;
+	private int mask;
+	private long head;
+	private long tail;
+	private byte[] scratch = new byte[0];
+
+	public StandardBusMessageFrameBuffer() {
+		this(DEFAULT_MAX_FRAME_SIZE);
+	}
+
+	public StandardBusMessageFrameBuffer(int maxFrameSize) {
+		this(maxFrameSize, INITIAL_CAPACITY);
+	}
+
+	StandardBusMessageFrameBuffer(int maxFrameSize, int initialCapacity) {
+		super();
+		if (maxFrameSize <= 0) {
+			throw new IllegalArgumentException("Maximum frame size must be positive");
+		}
+		if (maxFrameSize > MAX_CAPACITY - HEADER_SIZE) {
+			throw new IllegalArgumentException("Maximum frame size is too large: "
+					+ maxFrameSize);
+		}
+		this.maxFrameSize = maxFrameSize;
+		this.ring = new byte[capacityFor(initialCapacity)];
+		this.mask = ring.length - 1;
+	}
+
+	/**
+	 * Performs a single read from the stream and delivers every complete frame
+	 * now held in the buffer.
+	 *
+	 * @return the number of bytes read or -1 at the end of the stream
+	 */
+	int read(InputStream in, FrameHandler handler) throws IOException {
+		if (tail - head == ring.length) {
+			grow(ring.length + 1);
+		}
+		int writeIndex = (int) (tail & mask);
+		int free = ring.length - (int) (tail - head);
+		int read = in.read(ring, writeIndex, Math.min(free, ring.length - writeIndex));
+		if (read > 0) {
+			tail += read;
+			drain(handler);
+		}
+		return read;
+	}
+
+	/**
+	 * Appends bytes to the buffer and delivers every complete frame.
+	 */
+	void write(byte[] b, int offset, int length, FrameHandler handler)
+			throws IOException {
+		while (length > 0) {
+			if (tail - head == ring.length) {
+				grow(ring.length + 1);
+			}
+			int writeIndex = (int) (tail & mask);
+			int free = ring.length - (int) (tail - head);
+			int n = Math.min(length, Math.min(free, ring.length - writeIndex));
+			System.arraycopy(b, offset, ring, writeIndex, n);
+			tail += n;
+			offset += n;
+			length -= n;
+			drain(handler);
+		}
+	}
+
+	/**
+	 * Appends the remaining bytes of the buffer and delivers every complete
+	 * frame. The source buffer is consumed.
+	 */
+	void write(ByteBuffer src, FrameHandler handler) throws IOException {
+		while (src.hasRemaining()) {
+			if (tail - head == ring.length) {
+				grow(ring.length + 1);
+			}
+			int writeIndex = (int) (tail & mask);
+			int free = ring.length - (int) (tail - head);
+			int n = Math.min(src.remaining(), Math.min(free, ring.length - writeIndex));
+			src.get(ring, writeIndex, n);
+			tail += n;
+			drain(handler);
+		}
+	}
+
+	int available() {
+		return (int) (tail - head);
+	}
+
+	int capacity() {
+		return ring.length;
+	}
+
+	private void drain(FrameHandler handler) throws IOException {
+		while (tail - head >= HEADER_SIZE) {
+			int length = frameLength();
+			if (length < 0 || length > maxFrameSize) {
+				throw new IOException(String.format(
+						"Frame of %d bytes exceeds maximum frame size of %d",
+						length, maxFrameSize));
+			}
+			int frameSize = HEADER_SIZE + length;
+			if (tail - head < frameSize) {
+				if (frameSize > ring.length) {
+					grow(frameSize);
+				}
+				return;
+			}
+
+			int start = (int) ((head + HEADER_SIZE) & mask);
+			head += frameSize;
+			if (start + length <= ring.length) {
+				handler.onFrame(ByteBuffer.wrap(ring, start, length).slice());
+			} else {
+				if (scratch.length < length) {
+					scratch = new byte[length];
+				}
+				int firstPart = ring.length - start;
+				System.arraycopy(ring, start, scratch, 0, firstPart);
+				System.arraycopy(ring, 0, scratch, firstPart, length - firstPart);
+				handler.onFrame(ByteBuffer.wrap(scratch, 0, length).slice());
+			}
+		}
+		if (head == tail) {
+			// empty so start again from the beginning to keep frames contiguous
+			head = 0;
+			tail = 0;
+		}
+	}
+
+	private int frameLength() {
+		int length = 0;
+		for (int i = 0; i < HEADER_SIZE; i++) {
+			length = (length << 8) | (ring[(int) ((head + i) & mask)] & 0xff);
+		}
+		return length;
+	}
+
+	private void grow(int required) {
+		byte[] grown = new byte[capacityFor(required)];
+		int size = (int) (tail - head);
+		int readIndex = (int) (head & mask);
+		int firstPart = Math.min(size, ring.length - readIndex);
+		System.arraycopy(ring, readIndex, grown, 0, firstPart);
+		System.arraycopy(ring, 0, grown, firstPart, size - firstPart);
+		ring = grown;
+		mask = grown.length - 1;
+		head = 0;
+		tail = size;
+	}
+
+	private static int capacityFor(int required) {
+		int capacity = Integer.highestOneBit(Math.max(required, 16));
+		if (capacity < required) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Copies the payload into a new buffer holding the complete frame, ready
+	 * for reading.
+	 */
+	static ByteBuffer toFrame(ByteBuffer payload) {
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.remaining());
+		frame.putInt(payload.remaining()).put(payload).flip();
+		return frame;
+	}
+
+	/**
+	 * Writes the payload as a single frame. The stream is not flushed.
+	 */
+	static void writeFrame(DataOutputStream out, ByteBuffer payload)
+			throws IOException {
+		out.writeInt(payload.remaining());
+		if (payload.hasArray()) {
+			out.write(payload.array(), payload.arrayOffset() + payload.position(),
+					payload.remaining());
+		} else {
+			byte[] b = new byte[payload.remaining()];
+			payload.duplicate().get(b);
+			out.write(b);
+		}
+	}
+}
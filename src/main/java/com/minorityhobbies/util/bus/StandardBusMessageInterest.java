@@ -0,0 +1,160 @@
+package com.minorityhobbies.util.bus;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The messages wanted by the subscribers of a bus, advertised to its peers so
+ * that they only push messages which match.
+ *
+ * Type, source and destination subscriptions, and the expressions of filter
+ * subscriptions, are advertised individually as they come and go. Any other
+ * subscription could match any message, so while one is registered peers are
+ * asked for every message.
+ *
+ * Advertisements are control messages, applied by the peer with a
+ * {@link StandardBusPeerInterest}. A peer which has not been sent any is
+ * pushed every message. Safe for use by concurrent threads.
+ */
+final class StandardBusMessageInterest {
+	static final String INTEREST_TYPE = "_interest";
+	static final String OPERATION_ATTRIBUTE = "_op";
+	static final String NAME_ATTRIBUTE = "_name";
+	static final String VALUE_ATTRIBUTE = "_value";
+	static final String ADD = "add";
+	static final String REMOVE = "remove";
+	static final String ADD_FILTER = "addFilter";
+	static final String REMOVE_FILTER = "removeFilter";
+	static final String ALL = "all";
+	static final String MATCHING = "matching";
+
+	/**
+	 * Sends advertisements to one peer. Called with the lock on this interest
+	 * held, so advertisements reach each peer in the order they were made.
+	 */
+	interface Advertiser {
+		/**
+		 * @return false once the peer has gone, to stop advertising to it
+		 */
+		boolean advertise(BusMessage msg);
+	}
+
+	// attribute name to attribute value to number of subscriptions
+	private final Map<String, Map<String, Integer>> counts = new HashMap<String, Map<String, Integer>>();
+	// filter expression to number of subscriptions
+	private final Map<String, Integer> filters = new HashMap<String, Integer>();
+	private final List<Advertiser> advertisers = new LinkedList<Advertiser>();
+	private int opaque;
+
+	synchronized void add(BusMessageSubscription subscription) {
+		if (subscription instanceof StandardBusMessageSingleAttributeSubscription) {
+			StandardBusMessageSingleAttributeSubscription s = (StandardBusMessageSingleAttributeSubscription) subscription;
+			Map<String, Integer> values = counts.get(s.getAttributeName());
+			if (values == null) {
+				values = new HashMap<String, Integer>();
+				counts.put(s.getAttributeName(), values);
+			}
+			Integer count = values.get(s.getAttributeValue());
+			values.put(s.getAttributeValue(), count == null ? 1 : count + 1);
+			if (count == null) {
+				broadcast(interestMessage(ADD, s.getAttributeName(),
+						s.getAttributeValue()));
+			}
+		} else if (subscription instanceof StandardBusMessageFilterSubscription) {
+			String expression = ((StandardBusMessageFilterSubscription) subscription)
+					.getExpression();
+			Integer count = filters.get(expression);
+			filters.put(expression, count == null ? 1 : count + 1);
+			if (count == null) {
+				broadcast(interestMessage(ADD_FILTER, null, expression));
+			}
+		} else if (opaque++ == 0) {
+			broadcast(interestMessage(ALL, null, null));
+		}
+	}
+
+	synchronized void remove(BusMessageSubscription subscription) {
+		if (subscription instanceof StandardBusMessageSingleAttributeSubscription) {
+			StandardBusMessageSingleAttributeSubscription s = (StandardBusMessageSingleAttributeSubscription) subscription;
+			Map<String, Integer> values = counts.get(s.getAttributeName());
+			Integer count = values != null ? values.get(s.getAttributeValue())
+					: null;
+			if (count == null) {
+				return;
+			}
+			if (count > 1) {
+				values.put(s.getAttributeValue(), count - 1);
+				return;
+			}
+			values.remove(s.getAttributeValue());
+			broadcast(interestMessage(REMOVE, s.getAttributeName(),
+					s.getAttributeValue()));
+		} else if (subscription instanceof StandardBusMessageFilterSubscription) {
+			String expression = ((StandardBusMessageFilterSubscription) subscription)
+					.getExpression();
+			Integer count = filters.get(expression);
+			if (count == null) {
+				return;
+			}
+			if (count > 1) {
+				filters.put(expression, count - 1);
+				return;
+			}
+			filters.remove(expression);
+			broadcast(interestMessage(REMOVE_FILTER, null, expression));
+		} else if (opaque > 0 && --opaque == 0) {
+			broadcast(interestMessage(MATCHING, null, null));
+		}
+	}
+
+	/**
+	 * Advertises the current interest to a newly connected peer, then every
+	 * change to it for as long as the peer remains.
+	 */
+	synchronized void addAdvertiser(Advertiser advertiser) {
+		for (Map.Entry<String, Map<String, Integer>> values : counts.entrySet()) {
+			for (String value : values.getValue().keySet()) {
+				if (!advertiser.advertise(interestMessage(ADD, values.getKey(),
+						value))) {
+					return;
+				}
+			}
+		}
+		for (String expression : filters.keySet()) {
+			if (!advertiser.advertise(interestMessage(ADD_FILTER, null,
+					expression))) {
+				return;
+			}
+		}
+		if (advertiser.advertise(interestMessage(opaque > 0 ? ALL : MATCHING,
+				null, null))) {
+			advertisers.add(advertiser);
+		}
+	}
+
+	// you must hold the lock on this interest to call this method
+	private void broadcast(BusMessage msg) {
+		for (Iterator<Advertiser> it = advertisers.iterator(); it.hasNext();) {
+			if (!it.next().advertise(msg)) {
+				it.remove();
+			}
+		}
+	}
+
+	static BusMessage interestMessage(String operation, String name,
+			String value) {
+		StandardBusMessageBuilder builder = new StandardBusMessageBuilder();
+		builder.put(BusMessageAttribute.MESSAGE_TYPE.getAttributeName(),
+				INTEREST_TYPE).put(OPERATION_ATTRIBUTE, operation);
+		if (name != null) {
+			builder.put(NAME_ATTRIBUTE, name);
+		}
+		if (value != null) {
+			builder.put(VALUE_ATTRIBUTE, value);
+		}
+		return builder.build();
+	}
+}
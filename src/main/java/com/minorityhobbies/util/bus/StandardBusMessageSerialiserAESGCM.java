@@ -0,0 +1,164 @@
+package com.minorityhobbies.util.bus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts and authenticates each message with AES-GCM under a key shared by
+ * every peer. The plaintext is the {@link StandardBusMessageSerialiserBinary}
+ * encoding of the message.
+ *
+ * Each message is a twelve byte nonce followed by the ciphertext and a
+ * sixteen byte authentication tag. The nonce is a 64 bit prefix followed by
+ * a 32 bit counter. Both are chosen at random when the serialiser is created,
+ * and the prefix is stepped each time the counter comes round again, so one
+ * serialiser never reuses a nonce. Serialisers sharing a key only risk reusing
+ * one if their random prefixes fall within each other's steps: with n
+ * serialisers created under a key the chance is about n * n / 2^65, so a key
+ * should not be shared by more than around 2^24 serialisers over its life,
+ * after which it should be replaced. The message is encrypted in place in a
+ * per-thread buffer
+ * and each thread keeps its own {@link Cipher} instances, so this class is
+ * safe for concurrent use.
+ */
+class StandardBusMessageSerialiserAESGCM implements BusMessageSerialiser {
+	static final String PROTOCOL = "AES_GCM";
+	static final int NONCE_SIZE = 12;
+	static final int TAG_SIZE = 16;
+	private static final String cipherSpec = "AES/GCM/NoPadding";
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+
+	private final SecretKey key;
+	private final StandardBusMessageSerialiserBinary encoding = new StandardBusMessageSerialiserBinary(
+			PROTOCOL);
+	private final long noncePrefix;
+	private final long nonceStart;
+	private final AtomicLong nonceCounter;
+	private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			try {
+				return Cipher.getInstance(cipherSpec);
+			} catch (GeneralSecurityException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	};
+	private final ThreadLocal<ByteBuffer> encodeBuffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		}
+	};
+	private final ThreadLocal<ByteBuffer> decodeBuffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		}
+	};
+
+	/**
+	 * @param sharedKey
+	 *            key material shared by all peers; it is hashed with SHA-256
+	 *            to give a 256 bit AES key
+	 */
+	public StandardBusMessageSerialiserAESGCM(byte[] sharedKey) {
+		super();
+		try {
+			MessageDigest sha = MessageDigest.getInstance("SHA-256");
+			this.key = new SecretKeySpec(sha.digest(sharedKey), "AES");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		SecureRandom random = new SecureRandom();
+		this.noncePrefix = random.nextLong();
+		this.nonceStart = random.nextInt() & 0xffffffffL;
+		this.nonceCounter = new AtomicLong(nonceStart);
+	}
+
+	@Override
+	public byte[] toBytes(BusMessage msg) throws IOException {
+		ByteBuffer buf = toBuffer(msg);
+		byte[] b = new byte[buf.remaining()];
+		buf.get(b);
+		return b;
+	}
+
+	@Override
+	public ByteBuffer toBuffer(BusMessage msg) throws IOException {
+		StandardCompactBusMessage compact = msg instanceof StandardCompactBusMessage ? (StandardCompactBusMessage) msg
+				: StandardCompactBusMessage.of(msg.getAttributes());
+		int plaintextSize = encoding.encodedSize(compact);
+		int size = NONCE_SIZE + plaintextSize + TAG_SIZE;
+		ByteBuffer buf = encodeBuffers.get();
+		if (buf.capacity() < size) {
+			buf = ByteBuffer.allocate(Math.max(size, buf.capacity() * 2));
+			encodeBuffers.set(buf);
+		}
+		buf.clear();
+		long n = nonceCounter.getAndIncrement();
+		// a new prefix each time the 32 bit counter wraps
+		buf.putLong(noncePrefix + ((n - nonceStart) >>> 32)).putInt((int) n);
+		encoding.encode(compact, buf);
+
+		ByteBuffer plaintext = buf.duplicate();
+		plaintext.flip().position(NONCE_SIZE);
+		ByteBuffer ciphertext = buf.duplicate();
+		ciphertext.clear().position(NONCE_SIZE);
+		try {
+			Cipher cipher = ciphers.get();
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(
+					TAG_SIZE * 8, buf.array(), buf.arrayOffset(), NONCE_SIZE));
+			cipher.doFinal(plaintext, ciphertext);
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+		buf.clear().limit(size);
+		return buf;
+	}
+
+	@Override
+	public BusMessage fromBytes(byte[] msg) throws IOException {
+		return fromBuffer(ByteBuffer.wrap(msg));
+	}
+
+	@Override
+	public BusMessage fromBuffer(ByteBuffer in) throws IOException {
+		if (in.remaining() < NONCE_SIZE + TAG_SIZE) {
+			throw new IOException("Deserialisation failure: message too short");
+		}
+		byte[] nonce = new byte[NONCE_SIZE];
+		in.get(nonce);
+		int plaintextSize = in.remaining() - TAG_SIZE;
+		ByteBuffer plaintext = decodeBuffers.get();
+		if (plaintext.capacity() < plaintextSize) {
+			plaintext = ByteBuffer.allocate(Math.max(plaintextSize,
+					plaintext.capacity() * 2));
+			decodeBuffers.set(plaintext);
+		}
+		plaintext.clear();
+		try {
+			Cipher cipher = ciphers.get();
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(
+					TAG_SIZE * 8, nonce));
+			cipher.doFinal(in, plaintext);
+		} catch (AEADBadTagException e) {
+			throw new IOException("Deserialisation failure: message failed authentication");
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+		plaintext.flip();
+		return encoding.fromBuffer(plaintext);
+	}
+}
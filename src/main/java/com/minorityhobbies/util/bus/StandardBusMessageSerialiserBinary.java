@@ -0,0 +1,265 @@
+package com.minorityhobbies.util.bus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary encoding of a {@link BusMessage}. Each attribute is written
+ * as a one byte tag followed by varint length-prefixed UTF-8 strings. The
+ * reserved attributes (see {@link BusMessageAttribute}) are written with their
+ * own tag and no key; all other attributes use {@link #TAG_ATTRIBUTE} followed
+ * by the key and then the value.
+ *
+ * Encoding and decoding work directly against {@link ByteBuffer}s. Each thread
+ * reuses its own encode buffer so this class is safe for concurrent use.
+ */
+class StandardBusMessageSerialiserBinary implements BusMessageSerialiser {
+	static final byte TAG_ATTRIBUTE = 0;
+	static final byte TAG_MESSAGE_ID = 1;
+	static final byte TAG_SOURCE = 2;
+	static final byte TAG_DESTINATION = 3;
+	static final byte TAG_MESSAGE_TYPE = 4;
+	static final byte TAG_PROTOCOL = 5;
+
+	static final String PROTOCOL_ATTRIBUTE = "_protocol";
+
+	private static final String[] TAG_NAMES = {
+			null,
+			BusMessageAttribute.MESSAGE_ID.getAttributeName(),
+			BusMessageAttribute.SOURCE.getAttributeName(),
+			BusMessageAttribute.DESTINATION.getAttributeName(),
+			BusMessageAttribute.MESSAGE_TYPE.getAttributeName(),
+			PROTOCOL_ATTRIBUTE };
+
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+
+	private final String protocol;
+	private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		}
+	};
+
+	public StandardBusMessageSerialiserBinary() {
+		this("BINARY");
+	}
+
+	StandardBusMessageSerialiserBinary(String protocol) {
+		super();
+		this.protocol = protocol;
+	}
+
+	@Override
+	public byte[] toBytes(BusMessage msg) throws IOException {
+		ByteBuffer buf = toBuffer(msg);
+		byte[] b = new byte[buf.remaining()];
+		buf.get(b);
+		return b;
+	}
+
+	@Override
+	public ByteBuffer toBuffer(BusMessage msg) throws IOException {
+		StandardCompactBusMessage compact = msg instanceof StandardCompactBusMessage ? (StandardCompactBusMessage) msg
+				: StandardCompactBusMessage.of(msg.getAttributes());
+		int size = encodedSize(compact);
+		ByteBuffer buf = buffers.get();
+		if (buf.capacity() < size) {
+			buf = ByteBuffer.allocate(Math.max(size, buf.capacity() * 2));
+			buffers.set(buf);
+		}
+		buf.clear();
+		encode(compact, buf);
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Writes the encoded form of the message into the supplied buffer, which
+	 * must have at least {@link #encodedSize(StandardCompactBusMessage)} bytes
+	 * remaining.
+	 */
+	void encode(StandardCompactBusMessage msg, ByteBuffer out) {
+		for (int i = 0; i < msg.size(); i++) {
+			String key = msg.nameAt(i);
+			byte tag = tagFor(key);
+			if (tag == TAG_PROTOCOL) {
+				continue;
+			}
+			out.put(tag);
+			if (tag == TAG_ATTRIBUTE) {
+				putString(out, key);
+			}
+			putString(out, msg.valueAt(i));
+		}
+		out.put(TAG_PROTOCOL);
+		putString(out, protocol);
+	}
+
+	int encodedSize(StandardCompactBusMessage msg) {
+		int size = 1 + stringSize(protocol);
+		for (int i = 0; i < msg.size(); i++) {
+			String key = msg.nameAt(i);
+			byte tag = tagFor(key);
+			if (tag == TAG_PROTOCOL) {
+				continue;
+			}
+			size += 1 + stringSize(msg.valueAt(i));
+			if (tag == TAG_ATTRIBUTE) {
+				size += stringSize(key);
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public BusMessage fromBytes(byte[] msg) throws IOException {
+		return fromBuffer(ByteBuffer.wrap(msg));
+	}
+
+	@Override
+	public BusMessage fromBuffer(ByteBuffer in) throws IOException {
+		StandardBusMessageBuilder msgValues = new StandardBusMessageBuilder();
+		while (in.hasRemaining()) {
+			byte tag = in.get();
+			String key;
+			if (tag == TAG_ATTRIBUTE) {
+				key = getString(in);
+			} else if (tag > 0 && tag < TAG_NAMES.length) {
+				key = TAG_NAMES[tag];
+			} else {
+				throw new IOException("Deserialisation failure: unknown tag "
+						+ tag);
+			}
+			msgValues.put(key, getString(in));
+		}
+		return msgValues.build();
+	}
+
+	private static byte tagFor(String key) {
+		if (key.length() == 0 || key.charAt(0) != '_') {
+			return TAG_ATTRIBUTE;
+		}
+		for (byte tag = 1; tag < TAG_NAMES.length; tag++) {
+			if (TAG_NAMES[tag].equals(key)) {
+				return tag;
+			}
+		}
+		return TAG_ATTRIBUTE;
+	}
+
+	static int stringSize(String s) {
+		int len = utf8Length(s);
+		return varintSize(len) + len;
+	}
+
+	static void putString(ByteBuffer out, String s) {
+		putVarint(out, utf8Length(s));
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				out.put((byte) c);
+			} else if (c < 0x800) {
+				out.put((byte) (0xc0 | (c >> 6)));
+				out.put((byte) (0x80 | (c & 0x3f)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				out.put((byte) (0xf0 | (cp >> 18)));
+				out.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+				out.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+				out.put((byte) (0x80 | (cp & 0x3f)));
+			} else if (Character.isSurrogate(c)) {
+				// unpaired surrogate: same replacement as String.getBytes
+				out.put((byte) '?');
+			} else {
+				out.put((byte) (0xe0 | (c >> 12)));
+				out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+				out.put((byte) (0x80 | (c & 0x3f)));
+			}
+		}
+	}
+
+	static String getString(ByteBuffer in) throws IOException {
+		int len = getVarint(in);
+		if (len < 0) {
+			throw new IOException("Deserialisation failure: negative length");
+		}
+		if (len > in.remaining()) {
+			throw new IOException("Deserialisation failure: truncated value");
+		}
+		String s;
+		if (in.hasArray()) {
+			s = new String(in.array(), in.arrayOffset() + in.position(), len,
+					StandardCharsets.UTF_8);
+			in.position(in.position() + len);
+		} else {
+			byte[] b = new byte[len];
+			in.get(b);
+			s = new String(b, StandardCharsets.UTF_8);
+		}
+		return s;
+	}
+
+	static int utf8Length(String s) {
+		int len = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				len++;
+			} else if (c < 0x800) {
+				len += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				len += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				len++;
+			} else {
+				len += 3;
+			}
+		}
+		return len;
+	}
+
+	static int varintSize(int value) {
+		int size = 1;
+		while ((value & ~0x7f) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	static void putVarint(ByteBuffer out, int value) {
+		while ((value & ~0x7f) != 0) {
+			out.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	/**
+	 * Reads a length of at most five bytes, rejecting any which would not fit
+	 * a non-negative int.
+	 */
+	static int getVarint(ByteBuffer in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			if (!in.hasRemaining()) {
+				throw new IOException("Deserialisation failure: truncated length");
+			}
+			byte b = in.get();
+			if (shift == 28 && (b & 0xf8) != 0) {
+				// only the low three bits of the fifth byte fit
+				break;
+			}
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Deserialisation failure: malformed length");
+	}
+}
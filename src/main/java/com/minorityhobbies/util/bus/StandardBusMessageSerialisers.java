@@ -1,7 +1,8 @@
 package com.minorityhobbies.util.bus;
 
 public enum StandardBusMessageSerialisers {
-	STANDARD(new StandardBusMessageSerialiser()), AES(new StandardBusMessageSerialiserAES());
+	STANDARD(new StandardBusMessageSerialiser()), AES(new StandardBusMessageSerialiserAES()), BINARY(
+			new StandardBusMessageSerialiserBinary());
 	
 	private final BusMessageSerialiser serialiser;
 	
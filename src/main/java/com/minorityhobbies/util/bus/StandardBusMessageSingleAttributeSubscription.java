@@ -11,6 +11,14 @@ class StandardBusMessageSingleAttributeSubscription implements BusMessageSubscri
 		this.attributeValue = attributeValue;
 	}
 
+	String getAttributeName() {
+		return attributeName;
+	}
+
+	String getAttributeValue() {
+		return attributeValue;
+	}
+
 	@Override
 	public final boolean matches(BusMessage msg) {
 		return attributeValue.equals(msg.get(attributeName));
@@ -0,0 +1,200 @@
+package com.minorityhobbies.util.bus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds the handlers for a set of subscriptions so that a message is only
+ * tested against the subscriptions which could match it.
+ *
+ * Single attribute subscriptions are indexed by attribute name and value so
+ * matching them costs one map lookup per indexed attribute name. Filter
+ * subscriptions which require an attribute to have one of a set of values are
+ * indexed under each value and only tested against messages which have one.
+ * Any other subscription is opaque and is tested with
+ * {@link BusMessageSubscription#matches(BusMessage)} on every message.
+ *
+ * Dispatch reads immutable snapshots and takes no locks; changes to the
+ * subscriptions are serialised and copy the affected snapshot. Safe for use by
+ * concurrent threads.
+ */
+final class StandardBusMessageSubscriptionIndex {
+	private static final Entry[] NO_ENTRIES = new Entry[0];
+
+	static final class Entry {
+		private final BusMessageSubscription subscription;
+		// matched by the index alone without testing the subscription
+		private final boolean exact;
+		private volatile BusMessageHandler handler;
+
+		Entry(BusMessageSubscription subscription, BusMessageHandler handler) {
+			this.subscription = subscription;
+			this.exact = subscription instanceof StandardBusMessageSingleAttributeSubscription;
+			this.handler = handler;
+		}
+
+		BusMessageSubscription getSubscription() {
+			return subscription;
+		}
+
+		BusMessageHandler getHandler() {
+			return handler;
+		}
+	}
+
+	private final ConcurrentMap<String, ConcurrentMap<String, Entry[]>> index = new ConcurrentHashMap<String, ConcurrentMap<String, Entry[]>>();
+	private final Map<BusMessageSubscription, Entry> entries = new HashMap<BusMessageSubscription, Entry>();
+	private volatile String[] indexedAttributes = new String[0];
+	private volatile Entry[] unindexed = NO_ENTRIES;
+
+	/**
+	 * Adds the subscription, replacing the handler if it is already present.
+	 *
+	 * @return the handler previously registered for the subscription or null
+	 */
+	synchronized BusMessageHandler put(BusMessageSubscription subscription,
+			BusMessageHandler handler) {
+		Entry entry = entries.get(subscription);
+		if (entry != null) {
+			BusMessageHandler previous = entry.handler;
+			entry.handler = handler;
+			return previous;
+		}
+
+		entry = new Entry(subscription, handler);
+		entries.put(subscription, entry);
+		String name = attributeName(subscription);
+		if (name != null) {
+			ConcurrentMap<String, Entry[]> values = index.get(name);
+			if (values == null) {
+				values = new ConcurrentHashMap<String, Entry[]>();
+				index.put(name, values);
+				String[] attributes = Arrays.copyOf(indexedAttributes,
+						indexedAttributes.length + 1);
+				attributes[attributes.length - 1] = name;
+				indexedAttributes = attributes;
+			}
+			for (String value : attributeValues(subscription)) {
+				Entry[] current = values.get(value);
+				values.put(value, add(current == null ? NO_ENTRIES : current,
+						entry));
+			}
+		} else {
+			unindexed = add(unindexed, entry);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the handler which was registered for the subscription or null
+	 */
+	synchronized BusMessageHandler remove(BusMessageSubscription subscription) {
+		Entry entry = entries.remove(subscription);
+		if (entry == null) {
+			return null;
+		}
+
+		String name = attributeName(subscription);
+		if (name != null) {
+			ConcurrentMap<String, Entry[]> values = index.get(name);
+			for (String value : attributeValues(subscription)) {
+				Entry[] remaining = remove(values.get(value), entry);
+				if (remaining.length == 0) {
+					values.remove(value);
+				} else {
+					values.put(value, remaining);
+				}
+			}
+		} else {
+			unindexed = remove(unindexed, entry);
+		}
+		return entry.handler;
+	}
+
+	/**
+	 * Passes the message to the handler of every matching subscription.
+	 */
+	void dispatch(BusMessage msg) {
+		String[] attributes = indexedAttributes;
+		for (int i = 0; i < attributes.length; i++) {
+			String value = msg.get(attributes[i]);
+			if (value == null) {
+				continue;
+			}
+			Entry[] candidates = index.get(attributes[i]).get(value);
+			if (candidates != null) {
+				for (int j = 0; j < candidates.length; j++) {
+					Entry entry = candidates[j];
+					if (entry.exact || entry.subscription.matches(msg)) {
+						entry.handler.onMessage(msg);
+					}
+				}
+			}
+		}
+
+		Entry[] opaque = unindexed;
+		for (int i = 0; i < opaque.length; i++) {
+			Entry entry = opaque[i];
+			if (entry.subscription.matches(msg)) {
+				entry.handler.onMessage(msg);
+			}
+		}
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	synchronized List<Entry> entries() {
+		return new ArrayList<Entry>(entries.values());
+	}
+
+	// the attribute an indexed subscription is indexed by, or null
+	private static String attributeName(BusMessageSubscription subscription) {
+		if (subscription instanceof StandardBusMessageSingleAttributeSubscription) {
+			return ((StandardBusMessageSingleAttributeSubscription) subscription)
+					.getAttributeName();
+		}
+		if (subscription instanceof StandardBusMessageFilterSubscription) {
+			return ((StandardBusMessageFilterSubscription) subscription)
+					.getAttributeName();
+		}
+		return null;
+	}
+
+	private static Collection<String> attributeValues(
+			BusMessageSubscription subscription) {
+		if (subscription instanceof StandardBusMessageSingleAttributeSubscription) {
+			return Collections
+					.singleton(((StandardBusMessageSingleAttributeSubscription) subscription)
+							.getAttributeValue());
+		}
+		return ((StandardBusMessageFilterSubscription) subscription)
+				.getAttributeValues();
+	}
+
+	private static Entry[] add(Entry[] entries, Entry entry) {
+		Entry[] added = Arrays.copyOf(entries, entries.length + 1);
+		added[entries.length] = entry;
+		return added;
+	}
+
+	private static Entry[] remove(Entry[] entries, Entry entry) {
+		for (int i = 0; i < entries.length; i++) {
+			if (entries[i] == entry) {
+				Entry[] removed = new Entry[entries.length - 1];
+				System.arraycopy(entries, 0, removed, 0, i);
+				System.arraycopy(entries, i + 1, removed, i, entries.length - i - 1);
+				return removed;
+			}
+		}
+		return entries;
+	}
+}
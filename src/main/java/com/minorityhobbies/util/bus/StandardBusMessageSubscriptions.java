@@ -19,6 +19,11 @@ class StandardBusMessageSubscriptions implements BusMessageSubscriptions {
 		return new StandardBusMessageSingleAttributeSubscription(
 				BusMessageAttribute.DESTINATION.getAttributeName(), destination);
 	}
+
+	@Override
+	public BusMessageSubscription newFilterSubscription(String expression) {
+		return new StandardBusMessageFilterSubscription(expression);
+	}
 	
 	@Override
 	public BusMessageSubscription newAllMessagesSubscription() {
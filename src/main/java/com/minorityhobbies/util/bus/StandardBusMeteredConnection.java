@@ -0,0 +1,9 @@
+package com.minorityhobbies.util.bus;
+
+/**
+ * Implemented by connections which count the messages and bytes passing
+ * through them.
+ */
+interface StandardBusMeteredConnection {
+	StandardBusConnectionMetrics getMetrics();
+}
@@ -0,0 +1,36 @@
+package com.minorityhobbies.util.bus;
+
+/**
+ * Times a subscriber's handler and records its handler and delivery latency.
+ * Unwraps {@link StandardBusTimedMessage} so the subscriber receives the
+ * message as published.
+ */
+final class StandardBusMeteredMessageHandler implements BusMessageHandler {
+	private final BusMessageHandler handler;
+	private final StandardBusMetrics metrics;
+
+	public StandardBusMeteredMessageHandler(BusMessageHandler handler,
+			StandardBusMetrics metrics) {
+		super();
+		this.handler = handler;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void onMessage(BusMessage msg) {
+		long publishedNanos = -1L;
+		if (msg instanceof StandardBusTimedMessage) {
+			StandardBusTimedMessage timed = (StandardBusTimedMessage) msg;
+			publishedNanos = timed.getPublishedNanos();
+			msg = timed.getMessage();
+		}
+		long start = System.nanoTime();
+		try {
+			handler.onMessage(msg);
+		} finally {
+			long end = System.nanoTime();
+			metrics.delivered(end - start, publishedNanos < 0L ? -1L : end
+					- publishedNanos);
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package com.minorityhobbies.util.bus;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+
+import com.minorityhobbies.util.MBeanUtilities;
+
+/**
+ * Collects the metrics of a {@link StandardBus}, its {@link StandardBusServer}
+ * and their connections. Counters are striped and latencies are recorded
+ * into {@link StandardBusLatencyHistogram}s so that recording is cheap on the
+ * publishing and dispatching threads. Safe for use by concurrent threads.
+ */
+final class StandardBusMetrics implements BusMetricsMBean {
+	static final String DOMAIN = "com.minorityhobbies.util.bus";
+	private static final String[] CONNECTION_FIELDS = { "id", "name",
+			"messagesIn", "messagesOut", "bytesIn", "bytesOut" };
+	private static final OpenType<?>[] CONNECTION_TYPES = { SimpleType.LONG,
+			SimpleType.STRING, SimpleType.LONG, SimpleType.LONG,
+			SimpleType.LONG, SimpleType.LONG };
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+	private final LongAdder published = new LongAdder();
+	private final LongAdder delivered = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder connectionsAdded = new LongAdder();
+	private final LongAdder connectionFailures = new LongAdder();
+	private final StandardBusLatencyHistogram handlerLatency = new StandardBusLatencyHistogram();
+	private final StandardBusLatencyHistogram deliveryLatency = new StandardBusLatencyHistogram();
+	private final Map<StandardBusConnectionMetrics, Boolean> connections = new ConcurrentHashMap<StandardBusConnectionMetrics, Boolean>();
+	private volatile String beanName;
+
+	/**
+	 * Registers these metrics with the platform MBean server under
+	 * <code>com.minorityhobbies.util.bus:type=Bus,name=</code><i>name</i>.
+	 */
+	void register(String name) throws JMException {
+		String beanName = String.format("%s:type=Bus,name=%s", DOMAIN,
+				ObjectName.quote(name));
+		MBeanUtilities.registerMBean(beanName, new StandardMBean(this,
+				BusMetricsMBean.class));
+		this.beanName = beanName;
+	}
+
+	void unregister() {
+		String name = beanName;
+		if (name == null) {
+			return;
+		}
+		beanName = null;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					new ObjectName(name));
+		} catch (JMException e) {
+			logger.log(Level.INFO, "Failed to unregister " + name, e);
+		}
+	}
+
+	void published() {
+		published.increment();
+	}
+
+	/**
+	 * @param deliveryNanos
+	 *            time since the message was published or -1 if unknown
+	 */
+	void delivered(long handlerNanos, long deliveryNanos) {
+		delivered.increment();
+		handlerLatency.record(handlerNanos);
+		if (deliveryNanos >= 0L) {
+			deliveryLatency.record(deliveryNanos);
+		}
+	}
+
+	void dropped() {
+		dropped.increment();
+	}
+
+	void rejected() {
+		rejected.increment();
+	}
+
+	void connectionAdded(StandardBusConnectionMetrics connection) {
+		connectionsAdded.increment();
+		if (connection != null) {
+			connections.put(connection, Boolean.TRUE);
+		}
+	}
+
+	void connectionRemoved(StandardBusConnectionMetrics connection) {
+		if (connection != null) {
+			connections.remove(connection);
+		}
+	}
+
+	void connectionFailed() {
+		connectionFailures.increment();
+	}
+
+	@Override
+	public long getPublishedCount() {
+		return published.sum();
+	}
+
+	@Override
+	public long getDeliveredCount() {
+		return delivered.sum();
+	}
+
+	@Override
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	@Override
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	@Override
+	public long getConnectionsAddedCount() {
+		return connectionsAdded.sum();
+	}
+
+	@Override
+	public long getConnectionFailureCount() {
+		return connectionFailures.sum();
+	}
+
+	@Override
+	public long getHandlerLatencyMeanNanos() {
+		return handlerLatency.getMean();
+	}
+
+	@Override
+	public long getHandlerLatencyP50Nanos() {
+		return handlerLatency.getPercentile(50.0);
+	}
+
+	@Override
+	public long getHandlerLatencyP99Nanos() {
+		return handlerLatency.getPercentile(99.0);
+	}
+
+	@Override
+	public long getHandlerLatencyP999Nanos() {
+		return handlerLatency.getPercentile(99.9);
+	}
+
+	@Override
+	public long getHandlerLatencyMaxNanos() {
+		return handlerLatency.getMax();
+	}
+
+	@Override
+	public long getDeliveryLatencyMeanNanos() {
+		return deliveryLatency.getMean();
+	}
+
+	@Override
+	public long getDeliveryLatencyP50Nanos() {
+		return deliveryLatency.getPercentile(50.0);
+	}
+
+	@Override
+	public long getDeliveryLatencyP99Nanos() {
+		return deliveryLatency.getPercentile(99.0);
+	}
+
+	@Override
+	public long getDeliveryLatencyP999Nanos() {
+		return deliveryLatency.getPercentile(99.9);
+	}
+
+	@Override
+	public long getDeliveryLatencyMaxNanos() {
+		return deliveryLatency.getMax();
+	}
+
+	@Override
+	public long getBatchCount() {
+		long count = 0L;
+		for (BusBatchStatistics batches : batches()) {
+			count += batches.getBatchCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getBatchedMessageCount() {
+		long count = 0L;
+		for (BusBatchStatistics batches : batches()) {
+			count += batches.getMessageCount();
+		}
+		return count;
+	}
+
+	@Override
+	public long getBatchedByteCount() {
+		long count = 0L;
+		for (BusBatchStatistics batches : batches()) {
+			count += batches.getByteCount();
+		}
+		return count;
+	}
+
+	@Override
+	public int getLargestBatch() {
+		int largest = 0;
+		for (BusBatchStatistics batches : batches()) {
+			largest = Math.max(largest, batches.getLargestBatch());
+		}
+		return largest;
+	}
+
+	@Override
+	public long getSizeFlushCount() {
+		return getFlushCount(BusBatchFlushReason.SIZE);
+	}
+
+	@Override
+	public long getLingerFlushCount() {
+		return getFlushCount(BusBatchFlushReason.LINGER);
+	}
+
+	@Override
+	public long getCloseFlushCount() {
+		return getFlushCount(BusBatchFlushReason.CLOSE);
+	}
+
+	private long getFlushCount(BusBatchFlushReason reason) {
+		long count = 0L;
+		for (BusBatchStatistics batches : batches()) {
+			count += batches.getFlushCount(reason);
+		}
+		return count;
+	}
+
+	private List<BusBatchStatistics> batches() {
+		List<BusBatchStatistics> batches = new LinkedList<BusBatchStatistics>();
+		for (StandardBusConnectionMetrics connection : connections.keySet()) {
+			BusBatchStatistics statistics = connection.getBatchStatistics();
+			if (statistics != null) {
+				batches.add(statistics);
+			}
+		}
+		return batches;
+	}
+
+	@Override
+	public TabularData getConnections() throws OpenDataException {
+		List<Map<String, Object>> rows = new LinkedList<Map<String, Object>>();
+		for (StandardBusConnectionMetrics connection : connections.keySet()) {
+			Map<String, Object> row = new HashMap<String, Object>();
+			row.put("id", connection.getId());
+			row.put("name", connection.getName());
+			row.put("messagesIn", connection.getMessagesIn());
+			row.put("messagesOut", connection.getMessagesOut());
+			row.put("bytesIn", connection.getBytesIn());
+			row.put("bytesOut", connection.getBytesOut());
+			rows.add(row);
+		}
+		return MBeanUtilities.createTable("BusConnections", CONNECTION_FIELDS,
+				CONNECTION_TYPES, new String[] { "id" }, rows);
+	}
+}
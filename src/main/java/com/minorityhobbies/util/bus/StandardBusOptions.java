@@ -0,0 +1,52 @@
+package com.minorityhobbies.util.bus;
+
+/**
+ * The optional collaborators of a {@link StandardBus} and its server. Each is
+ * null unless set, which disables the feature it provides.
+ */
+class StandardBusOptions {
+	private StandardBusMetrics metrics;
+	private StandardBusJournal journal;
+	private StandardBusMessageInterest interest;
+
+	/**
+	 * @param metrics
+	 *            collects publish, delivery and connection metrics
+	 */
+	StandardBusOptions withMetrics(StandardBusMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	/**
+	 * @param journal
+	 *            records every message pushed to connections so that peers
+	 *            can replay them
+	 */
+	StandardBusOptions withJournal(StandardBusJournal journal) {
+		this.journal = journal;
+		return this;
+	}
+
+	/**
+	 * @param interest
+	 *            advertises the subscriptions of the bus to remote peers so
+	 *            that they only push matching messages
+	 */
+	StandardBusOptions withInterest(StandardBusMessageInterest interest) {
+		this.interest = interest;
+		return this;
+	}
+
+	StandardBusMetrics getMetrics() {
+		return metrics;
+	}
+
+	StandardBusJournal getJournal() {
+		return journal;
+	}
+
+	StandardBusMessageInterest getInterest() {
+		return interest;
+	}
+}
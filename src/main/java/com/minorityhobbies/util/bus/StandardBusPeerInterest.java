@@ -0,0 +1,99 @@
+package com.minorityhobbies.util.bus;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+/**
+ * The messages one peer has asked to be pushed, learnt from the
+ * advertisements of its {@link StandardBusMessageInterest}. Every other
+ * message is passed on to the wrapped handler.
+ *
+ * Until the peer advertises its interest it wants every message.
+ * Advertisements are applied by the reading thread and
+ * {@link #wants(BusMessage)} may be called by any thread.
+ */
+final class StandardBusPeerInterest implements BusMessageHandler {
+	private final Logger logger = Logger.getLogger(getClass().getName());
+	private final BusMessageHandler handler;
+	private final ConcurrentMap<String, Set<String>> wanted = new ConcurrentHashMap<String, Set<String>>();
+	private final ConcurrentMap<String, BusMessageSubscription> filters = new ConcurrentHashMap<String, BusMessageSubscription>();
+	private volatile boolean all = true;
+
+	StandardBusPeerInterest(BusMessageHandler handler) {
+		super();
+		this.handler = handler;
+	}
+
+	@Override
+	public void onMessage(BusMessage msg) {
+		if (!StandardBusMessageInterest.INTEREST_TYPE
+				.equals(BusMessageAttribute.MESSAGE_TYPE.get(msg))) {
+			handler.onMessage(msg);
+			return;
+		}
+		String operation = msg.get(StandardBusMessageInterest.OPERATION_ATTRIBUTE);
+		String name = msg.get(StandardBusMessageInterest.NAME_ATTRIBUTE);
+		String value = msg.get(StandardBusMessageInterest.VALUE_ATTRIBUTE);
+		if (StandardBusMessageInterest.ADD.equals(operation) && name != null
+				&& value != null) {
+			Set<String> values = wanted.get(name);
+			if (values == null) {
+				values = ConcurrentHashMap.<String> newKeySet();
+				wanted.put(name, values);
+			}
+			values.add(value);
+		} else if (StandardBusMessageInterest.REMOVE.equals(operation)
+				&& name != null && value != null) {
+			Set<String> values = wanted.get(name);
+			if (values != null) {
+				values.remove(value);
+			}
+		} else if (StandardBusMessageInterest.ADD_FILTER.equals(operation)
+				&& value != null) {
+			BusMessageSubscription filter;
+			try {
+				filter = new StandardBusMessageFilterSubscription(value);
+			} catch (IllegalArgumentException e) {
+				// pushing too much is safe as the peer filters what it receives
+				logger.warning("Pushing every message for malformed filter: "
+						+ e.getMessage());
+				filter = new StandardBusMessageSubscriptions()
+						.newAllMessagesSubscription();
+			}
+			filters.put(value, filter);
+		} else if (StandardBusMessageInterest.REMOVE_FILTER.equals(operation)
+				&& value != null) {
+			filters.remove(value);
+		} else if (StandardBusMessageInterest.ALL.equals(operation)) {
+			all = true;
+		} else if (StandardBusMessageInterest.MATCHING.equals(operation)) {
+			all = false;
+		} else {
+			logger.warning("Ignoring malformed interest: " + msg);
+		}
+	}
+
+	/**
+	 * @return true if the message should be pushed to the peer
+	 */
+	boolean wants(BusMessage msg) {
+		if (all) {
+			return true;
+		}
+		for (Map.Entry<String, Set<String>> values : wanted.entrySet()) {
+			String value = msg.get(values.getKey());
+			if (value != null && values.getValue().contains(value)) {
+				return true;
+			}
+		}
+		for (BusMessageSubscription filter : filters.values()) {
+			if (filter.matches(msg)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
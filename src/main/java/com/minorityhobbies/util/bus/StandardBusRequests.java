@@ -0,0 +1,139 @@
+package com.minorityhobbies.util.bus;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * The requests made by one bus which are awaiting a reply.
+ *
+ * Each request is sent from a reply address unique to the bus and replies
+ * are correlated on their message id, so a single destination subscription
+ * receives the replies to every request. The subscription is made with the
+ * first request and kept for the life of the bus. Safe for use by concurrent
+ * threads.
+ */
+final class StandardBusRequests implements BusMessageHandler {
+	// one timer thread serves the requests of every bus
+	private static final StandardBusTimerWheel TIMER = new StandardBusTimerWheel(
+			10L, TimeUnit.MILLISECONDS, 512);
+
+	private final ConcurrentMap<String, CompletableFuture<BusMessage>> pending = new ConcurrentHashMap<String, CompletableFuture<BusMessage>>();
+	private final String replyAddress = "_reply-" + UUID.randomUUID();
+	private final AtomicLong ids = new AtomicLong();
+	private final Bus bus;
+	private volatile boolean subscribed;
+
+	StandardBusRequests(Bus bus) {
+		super();
+		this.bus = bus;
+	}
+
+	CompletableFuture<BusMessage> request(BusMessage msg, long timeout,
+			TimeUnit unit) {
+		subscribe();
+		String id = BusMessageAttribute.MESSAGE_ID.get(msg);
+		if (id == null) {
+			id = replyAddress + "-" + ids.incrementAndGet();
+		}
+		final Request reply = new Request(id);
+		if (pending.putIfAbsent(id, reply) != null) {
+			reply.completeExceptionally(new IllegalStateException(
+					"A request with id " + id + " is already in flight"));
+			return reply;
+		}
+		final String requestId = id;
+		final StandardBusTimerWheel.Timeout expiry = TIMER.schedule(
+				new Runnable() {
+					@Override
+					public void run() {
+						reply.completeExceptionally(new TimeoutException(
+								"No reply to request " + requestId));
+					}
+				}, timeout, unit);
+		// however the request ends, including cancellation by the caller
+		reply.whenComplete(new BiConsumer<BusMessage, Throwable>() {
+			@Override
+			public void accept(BusMessage response, Throwable failure) {
+				expiry.cancel();
+			}
+		});
+
+		StandardBusMessageBuilder builder = new StandardBusMessageBuilder();
+		for (Map.Entry<String, String> attribute : msg.getAttributes()
+				.entrySet()) {
+			builder.put(attribute.getKey(), attribute.getValue());
+		}
+		builder.put(BusMessageAttribute.MESSAGE_ID.getAttributeName(), id);
+		builder.put(BusMessageAttribute.SOURCE.getAttributeName(), replyAddress);
+		try {
+			bus.publish(builder.build());
+		} catch (RuntimeException e) {
+			reply.completeExceptionally(e);
+		}
+		return reply;
+	}
+
+	private void subscribe() {
+		if (!subscribed) {
+			synchronized (this) {
+				if (!subscribed) {
+					bus.subscribe(bus.getSubscriptions()
+							.newDestinationSubscription(replyAddress), this);
+					subscribed = true;
+				}
+			}
+		}
+	}
+
+	@Override
+	public void onMessage(BusMessage msg) {
+		String id = BusMessageAttribute.MESSAGE_ID.get(msg);
+		CompletableFuture<BusMessage> reply = id != null ? pending.get(id)
+				: null;
+		if (reply != null) {
+			reply.complete(msg);
+		}
+	}
+
+	int getInFlight() {
+		return pending.size();
+	}
+
+	/**
+	 * Leaves the in-flight requests before it completes, so the count is
+	 * exact as soon as anyone waiting on it wakes.
+	 */
+	private final class Request extends CompletableFuture<BusMessage> {
+		private final String id;
+
+		Request(String id) {
+			super();
+			this.id = id;
+		}
+
+		@Override
+		public boolean complete(BusMessage value) {
+			pending.remove(id, this);
+			return super.complete(value);
+		}
+
+		@Override
+		public boolean completeExceptionally(Throwable ex) {
+			pending.remove(id, this);
+			return super.completeExceptionally(ex);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			pending.remove(id, this);
+			return super.cancel(mayInterruptIfRunning);
+		}
+	}
+}
@@ -2,7 +2,10 @@ package com.minorityhobbies.util.bus;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -11,15 +14,32 @@ class StandardBusServer implements BusServer {
 	private final BusMessageSubscriptions subscriptions;
 	private final Map<BusMessageConnection, BusMessageSubscriptionHandle> connections;
 	private final ReadWriteLock connectionLock = new ReentrantReadWriteLock();
+	private final StandardBusMetrics metrics;
+	private final StandardBusJournal journal;
+	private final StandardBusMessageInterest interest;
+	private volatile ExecutorService dispatchPool;
+	private BusMessageSubscription forwarding;
 	private BusMessageSubscriptionHandle handle;
 	private volatile boolean started = false;
 
 	public StandardBusServer(Bus internalBus) {
+		this(internalBus, new StandardBusOptions());
+	}
+
+	/**
+	 * @param options
+	 *            the metrics, journal and subscription interest used by this
+	 *            server; without an interest peers push every message
+	 */
+	StandardBusServer(Bus internalBus, StandardBusOptions options) {
 		connections = new HashMap<BusMessageConnection, BusMessageSubscriptionHandle>();
 
 		this.internalBus = internalBus;
 
 		subscriptions = internalBus.getSubscriptions();
+		this.metrics = options.getMetrics();
+		this.journal = options.getJournal();
+		this.interest = options.getInterest();
 	}
 
 	@Override
@@ -37,11 +57,24 @@ class StandardBusServer implements BusServer {
 		
 		try {
 			connectionLock.writeLock().lock();
+			if (journal != null
+					&& connection instanceof StandardBusJournalledConnection) {
+				((StandardBusJournalledConnection) connection)
+						.setJournal(journal);
+			}
+			if (interest != null
+					&& connection instanceof StandardBusInterestedConnection) {
+				((StandardBusInterestedConnection) connection)
+						.setInterest(interest);
+			}
 			if (started) {
 				startConnection(connection);
 			} else {
 				connections.put(connection, null);
 			}
+			if (metrics != null) {
+				metrics.connectionAdded(metricsOf(connection));
+			}
 		} finally {
 			connectionLock.writeLock().unlock();
 		}
@@ -55,8 +88,7 @@ class StandardBusServer implements BusServer {
 				new BusMessageHandler() {
 					@Override
 					public void onMessage(BusMessage msg) {
-						internalBus.publish(new LocalBusMessage(msg
-								.getAttributes()));
+						internalBus.publish(StandardCompactBusMessage.local(msg));
 					}
 				});
 		connections.put(connection, handle);
@@ -68,8 +100,17 @@ class StandardBusServer implements BusServer {
 			throws IOException {
 		try {
 			connectionLock.writeLock().lock();
+			if (!connections.containsKey(connection)) {
+				// already removed, perhaps by another publishing thread
+				return;
+			}
 			BusMessageSubscriptionHandle handle = connections.remove(connection);
-			handle.close();
+			if (metrics != null) {
+				metrics.connectionRemoved(metricsOf(connection));
+			}
+			if (handle != null) {
+				handle.close();
+			}
 		} catch (IOException e) { 
 			e.printStackTrace();
 		} finally {
@@ -83,33 +124,33 @@ class StandardBusServer implements BusServer {
 
 		// push all messages received from the internal message bus to
 		// all connections
-		handle = internalBus.subscribe(subscriptions.newAllMessagesSubscription(),
+		forwarding = subscriptions.newAllMessagesSubscription();
+		handle = internalBus.subscribe(forwarding,
 				new BusMessageHandler() {
 					@Override
 					public void onMessage(BusMessage msg) {
-						try {
-							connectionLock.readLock().lock();
-							for (BusMessageConnection connection : connections.keySet()) {
-								if (!(msg instanceof LocalBusMessage)) {
-									try {
-										connection.push(msg);
-									} catch (IOException e) {
-										try {
-											removeConnection(connection);
-										} catch (IOException io) {
-											io.printStackTrace();
-										}
-									}
+						if (StandardCompactBusMessage.isLocal(msg)) {
+							return;
+						}
+						if (journal != null) {
+							// peers rely on receiving messages in sequence order
+							synchronized (journal) {
+								try {
+									msg = StandardBusJournal.sequenced(msg,
+											journal.append(msg));
+								} catch (IOException e) {
+									e.printStackTrace();
 								}
+								push(msg);
 							}
-						} finally {
-							connectionLock.readLock().unlock();
+						} else {
+							push(msg);
 						}
 					}
 				});
 
 		// publish all messages pulled from each connection to the internal bus
-		// as a LocalBusMessage
+		// marked as local
 		try {
 			connectionLock.writeLock().lock();
 			for (BusMessageConnection connection : connections.keySet()) {
@@ -120,8 +161,117 @@ class StandardBusServer implements BusServer {
 		}
 	}
 
+	private void push(BusMessage msg) {
+		List<BusMessageConnection> failed = null;
+		try {
+			connectionLock.readLock().lock();
+			for (BusMessageConnection connection : connections.keySet()) {
+				try {
+					connection.push(msg);
+				} catch (IOException e) {
+					if (metrics != null) {
+						metrics.connectionFailed();
+					}
+					if (failed == null) {
+						failed = new LinkedList<BusMessageConnection>();
+					}
+					failed.add(connection);
+				}
+			}
+		} finally {
+			connectionLock.readLock().unlock();
+		}
+		// the read lock cannot be upgraded, so they are removed once released
+		if (failed != null) {
+			for (BusMessageConnection connection : failed) {
+				detach(connection);
+			}
+		}
+	}
+
+	private void detach(BusMessageConnection connection) {
+		try {
+			removeConnection(connection);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		try {
+			connection.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Called by the internal bus when a subscription is added.
+	 */
+	void subscribed(BusMessageSubscription subscription) {
+		// the subscription forwarding to peers is not interested in their
+		// messages
+		if (interest != null && subscription != forwarding) {
+			interest.add(subscription);
+		}
+	}
+
+	/**
+	 * Called by the internal bus when a subscription is removed.
+	 */
+	void unsubscribed(BusMessageSubscription subscription) {
+		if (interest != null && subscription != forwarding) {
+			interest.remove(subscription);
+		}
+	}
+
+	/**
+	 * @return true if any connection is buffering messages for a peer which
+	 *         is not keeping up
+	 */
+	boolean isCongested() {
+		try {
+			connectionLock.readLock().lock();
+			for (BusMessageConnection connection : connections.keySet()) {
+				if (connection instanceof StandardBusFlowControlledConnection
+						&& ((StandardBusFlowControlledConnection) connection)
+								.isCongested()) {
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			connectionLock.readLock().unlock();
+		}
+	}
+
+	private static StandardBusConnectionMetrics metricsOf(
+			BusMessageConnection connection) {
+		return connection instanceof StandardBusMeteredConnection ? ((StandardBusMeteredConnection) connection)
+				.getMetrics() : null;
+	}
+
+	/**
+	 * @param dispatchPool
+	 *            delivers messages to the subscribers of the internal bus and
+	 *            belongs to this server, so is shut down when it closes
+	 */
+	void setDispatchPool(ExecutorService dispatchPool) {
+		this.dispatchPool = dispatchPool;
+	}
+
 	@Override
 	public void close() throws IOException {
+		if (dispatchPool != null) {
+			dispatchPool.shutdown();
+		}
+		if (metrics != null) {
+			metrics.unregister();
+		}
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 		if (handle != null) {
 			try {
 				handle.close();
@@ -135,10 +285,12 @@ class StandardBusServer implements BusServer {
 			for (Map.Entry<BusMessageConnection, BusMessageSubscriptionHandle> connectionEntry : connections.entrySet()) {
 				BusMessageConnection connection = connectionEntry.getKey();
 				BusMessageSubscriptionHandle handle = connectionEntry.getValue();
-				try {
-					handle.close();
-				} catch (IOException e) {
-					e.printStackTrace();
+				if (handle != null) {
+					try {
+						handle.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
 				}
 				try {
 					connection.close();
@@ -4,29 +4,74 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+/**
+ * Advertises a service by multicasting beacons to a discovery group.
+ *
+ * Each beacon carries the interval within which the next will be sent, so
+ * that clients can expire a service whose beacons stop. The interval starts
+ * at the minimum and doubles with each beacon up to the maximum. A probe from
+ * a newly started client resets it, so new clients hear a beacon at once
+ * while a stable cluster sends few of them.
+ *
+ * Beacons are encoded once when discovery starts.
+ */
 class StandardBusServerMulticastDiscovery implements Callable<Void>,
 		BusMessageConnection {
+	static final String DISCOVERY_TYPE = "DISCOVERY";
+	static final String PROBE_TYPE = "DISCOVERY_PROBE";
+	static final String ADDRESS_ATTRIBUTE = "address";
+	static final String INTERVAL_ATTRIBUTE = "interval";
+	static final long MIN_INTERVAL_MILLIS = 250L;
+	static final long MAX_INTERVAL_MILLIS = 8000L;
+	static final int MAX_DATAGRAM_SIZE = 1024;
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
 	private final ExecutorService executor;
 	private final BusMessageSerialiser serialiser;
 	private final String serviceName;
 	private final URI serviceUri;
 	private final URI discoveryAddress;
+	private final long minIntervalMillis;
+	private final long maxIntervalMillis;
 	private InetAddress discoveryAddr;
 	private MulticastSocket socket;
+	// one per interval, from the minimum up to the maximum
+	private DatagramPacket[] beacons;
+	private ByteBuffer[] encoded;
+	private long[] intervals;
 
 	public StandardBusServerMulticastDiscovery(String serviceName,
 			URI serviceUri, URI discoveryAddress, BusMessageSerialiser serialiser) {
+		this(serviceName, serviceUri, discoveryAddress, serialiser,
+				MIN_INTERVAL_MILLIS, MAX_INTERVAL_MILLIS);
+	}
+
+	StandardBusServerMulticastDiscovery(String serviceName, URI serviceUri,
+			URI discoveryAddress, BusMessageSerialiser serialiser,
+			long minIntervalMillis, long maxIntervalMillis) {
 		super();
+		if (minIntervalMillis <= 0L || maxIntervalMillis < minIntervalMillis) {
+			throw new IllegalArgumentException("Invalid beacon intervals");
+		}
 		this.executor = Executors.newSingleThreadExecutor();
 		this.serialiser = serialiser;
 		this.serviceName = serviceName;
 		this.discoveryAddress = discoveryAddress;
 		this.serviceUri = serviceUri;
+		this.minIntervalMillis = minIntervalMillis;
+		this.maxIntervalMillis = maxIntervalMillis;
 	}
 
 	public void start() throws IOException {
@@ -34,35 +79,91 @@ class StandardBusServerMulticastDiscovery implements Callable<Void>,
 		discoveryAddr = InetAddress.getByName(discoveryAddress.getHost());
 		socket.joinGroup(discoveryAddr);
 
+		List<Long> steps = new LinkedList<Long>();
+		for (long interval = minIntervalMillis; interval < maxIntervalMillis; interval *= 2) {
+			steps.add(interval);
+		}
+		steps.add(maxIntervalMillis);
+		beacons = new DatagramPacket[steps.size()];
+		encoded = new ByteBuffer[steps.size()];
+		intervals = new long[steps.size()];
+		for (int i = 0; i < beacons.length; i++) {
+			intervals[i] = steps.get(i);
+			StandardBusMessageBuilder mb = new StandardBusMessageBuilder();
+			mb.setMessageType(DISCOVERY_TYPE);
+			mb.setMessageSource(serviceName);
+			mb.setAttribute(ADDRESS_ATTRIBUTE, serviceUri.toString());
+			mb.setAttribute(INTERVAL_ATTRIBUTE, Long.toString(intervals[i]));
+			byte[] m = serialiser.toBytes(mb.build());
+			beacons[i] = new DatagramPacket(m, m.length, discoveryAddr,
+					discoveryAddress.getPort());
+			encoded[i] = ByteBuffer.wrap(m).asReadOnlyBuffer();
+		}
+
 		executor.submit(this);
 	}
 
 	@Override
 	public Void call() throws Exception {
-		try {			
-			StandardBusMessageBuilder mb = new StandardBusMessageBuilder();
-			mb.setMessageType("DISCOVERY");
-			mb.setMessageSource(serviceName);
-			mb.setAttribute("address", serviceUri.toString());
-			BusMessage msg = mb.build();
-
+		byte[] b = new byte[MAX_DATAGRAM_SIZE];
+		DatagramPacket received = new DatagramPacket(b, b.length);
+		ByteBuffer view = ByteBuffer.wrap(b);
+		int step = 0;
+		long next = System.nanoTime();
+		try {
 			while (!Thread.currentThread().isInterrupted()) {
-				byte[] m = serialiser.toBytes(msg);
-				DatagramPacket p = new DatagramPacket(m, m.length, discoveryAddr, socket.getLocalPort());
-				socket.send(p);
+				long now = System.nanoTime();
+				if (now - next >= 0L) {
+					socket.send(beacons[step]);
+					next = now + TimeUnit.MILLISECONDS.toNanos(intervals[step]);
+					step = Math.min(step + 1, beacons.length - 1);
+				}
+
+				// listen for probes until the next beacon is due
+				socket.setSoTimeout((int) Math.max(1L,
+						TimeUnit.NANOSECONDS.toMillis(next - now)));
+				received.setLength(b.length);
 				try {
-					Thread.sleep(1000L);
-				} catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
+					socket.receive(received);
+				} catch (SocketTimeoutException e) {
+					continue;
+				}
+				view.clear();
+				view.limit(received.getLength());
+				if (!isOwnBeacon(view) && isProbe(view)) {
+					step = 0;
+					next = System.nanoTime();
 				}
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
+		} catch (IOException e) {
+			if (!socket.isClosed()) {
+				logger.log(Level.WARNING, "Discovery beacon stopped", e);
+			}
 		}
-
 		return null;
 	}
 
+	private boolean isOwnBeacon(ByteBuffer datagram) {
+		for (ByteBuffer beacon : encoded) {
+			if (datagram.equals(beacon)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isProbe(ByteBuffer datagram) {
+		try {
+			return PROBE_TYPE.equals(BusMessageAttribute.MESSAGE_TYPE
+					.get(serialiser.fromBuffer(datagram)));
+		} catch (IOException e) {
+			// not every datagram sent to the group need be ours
+			return false;
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
 	@Override
 	public void close() throws IOException {
 		if (executor != null) {
@@ -10,32 +10,92 @@ import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.net.SocketTimeoutException;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Connects to the services heard on discovery groups and disconnects from
+ * them when they fall silent.
+ *
+ * A service is a member from its first beacon until it has missed
+ * {@link #EXPIRY_INTERVALS} of the intervals its beacons advertise. A probe
+ * is sent to each group on start so that services beacon at once rather
+ * than after their current interval.
+ *
+ * Services send the same few beacons again and again, so each beacon is
+ * decoded the first time it is heard and recognised by its bytes after that.
+ */
 class StandardBusServerMulticastDiscoveryClient implements BusMessageConnection {
+	static final int EXPIRY_INTERVALS = 3;
+	private static final int RECEIVE_TIMEOUT_MILLIS = 50;
+
+	private static final class Member {
+		private final String serviceName;
+		private final URI address;
+		// set once connected, guarded by the member
+		private BusMessageConnection connection;
+		// set if the member left before it was connected
+		private boolean left;
+		private volatile long expires;
+
+		private Member(String serviceName, URI address) {
+			super();
+			this.serviceName = serviceName;
+			this.address = address;
+		}
+	}
+
+	private static final class Beacon {
+		private final Member member;
+		private final long intervalNanos;
+
+		private Beacon(Member member, long intervalNanos) {
+			super();
+			this.member = member;
+			this.intervalNanos = intervalNanos;
+		}
+	}
+
 	private final Logger logger = Logger.getLogger(getClass().getName());
 	private final ExecutorService executor;
 	private final BusServer busServer;
 	private final BusMessageSerialiser serialiser;
 	private final Map<URI, List<String>> remoteServices;
-	private final Map<URI, BusMessageConnection> connectedServices;
-	private MulticastSocket socket;
-	
+	private final BusMembershipListener listener;
+	private final ConcurrentMap<URI, Member> members = new ConcurrentHashMap<URI, Member>();
+	private final List<MulticastSocket> sockets = new CopyOnWriteArrayList<MulticastSocket>();
+
 	public StandardBusServerMulticastDiscoveryClient(BusServer busServer,
 			Map<URI, List<String>> remoteServices, BusMessageSerialiser serialiser) {
+		this(busServer, remoteServices, serialiser, null);
+	}
+
+	/**
+	 * @param listener
+	 *            told as services join and leave, or null
+	 */
+	StandardBusServerMulticastDiscoveryClient(BusServer busServer,
+			Map<URI, List<String>> remoteServices,
+			BusMessageSerialiser serialiser, BusMembershipListener listener) {
 		super();
 		this.executor = Executors.newCachedThreadPool();
 		this.busServer = busServer;
 		this.remoteServices = remoteServices;
 		this.serialiser = serialiser;
-		this.connectedServices = new HashMap<URI, BusMessageConnection>();
+		this.listener = listener;
 	}
 
 	@Override
@@ -46,70 +106,192 @@ class StandardBusServerMulticastDiscoveryClient implements BusMessageConnection
 			final List<String> servicesAtThisAddress = remoteServiceEntry
 					.getValue();
 
-			socket = new MulticastSocket(
+			final MulticastSocket socket = new MulticastSocket(
 					discoveryAddress.getPort());
-			socket.setSoTimeout(1000);
+			sockets.add(socket);
+			socket.setSoTimeout(RECEIVE_TIMEOUT_MILLIS);
 			InetAddress discoveryAddr = InetAddress
 					.getByName(discoveryAddress.getHost());
 			socket.joinGroup(discoveryAddr);
 
+			StandardBusMessageBuilder probe = new StandardBusMessageBuilder();
+			probe.setMessageType(StandardBusServerMulticastDiscovery.PROBE_TYPE);
+			byte[] p = serialiser.toBytes(probe.build());
+			socket.send(new DatagramPacket(p, p.length, discoveryAddr,
+					discoveryAddress.getPort()));
+
 			executor.submit(new Callable<Void>() {
 				@Override
 				public Void call() throws Exception {
-					try {
-						byte[] b = new byte[1024];
-						while (!Thread.currentThread().isInterrupted()) {
-							DatagramPacket p = new DatagramPacket(b, b.length);
-							try {
-								socket.receive(p);
-								byte[] data = Arrays.copyOfRange(b, 0,
-										p.getLength());
-								BusMessage discoveryMessage = serialiser
-										.fromBytes(data);
-								String type = MESSAGE_TYPE
-										.get(discoveryMessage);
-								if ("DISCOVERY".equals(type)) {
-									String serviceName = SOURCE
-											.get(discoveryMessage);
-									String protocol = discoveryMessage.get("_protocol");
-									if (servicesAtThisAddress
-											.contains(serviceName)) {
-										String address = discoveryMessage
-												.get("address");
-										connect(new URI(address), protocol);
-									}
-								}
-							} catch (SocketTimeoutException e) {
-								// check for interruptiong
-							}
-						}
-					} catch (Exception e) {
-						e.printStackTrace();
-					}
+					listen(socket, servicesAtThisAddress);
 					return null;
 				}
 			});
 		}
 	}
 
-	private void connect(final URI serviceAddress, String protocol) throws IOException {
-		if (!connectedServices.containsKey(serviceAddress)) {
-			if (protocol == null) {
-				throw new IOException(String.format("No serialiser for protocol '%s'", protocol));
+	private void listen(MulticastSocket socket, List<String> services) {
+		byte[] b = new byte[StandardBusServerMulticastDiscovery.MAX_DATAGRAM_SIZE];
+		DatagramPacket p = new DatagramPacket(b, b.length);
+		ByteBuffer view = ByteBuffer.wrap(b);
+		// the beacons heard on this group, by their bytes
+		Map<ByteBuffer, Beacon> heard = new HashMap<ByteBuffer, Beacon>();
+		while (!Thread.currentThread().isInterrupted()) {
+			p.setLength(b.length);
+			try {
+				socket.receive(p);
+				view.clear();
+				view.limit(p.getLength());
+				Beacon beacon = heard.get(view);
+				if (beacon == null
+						|| members.get(beacon.member.address) != beacon.member) {
+					beacon = join(view, services);
+					if (beacon != null) {
+						heard.put(
+								ByteBuffer.wrap(Arrays.copyOf(b, p.getLength())),
+								beacon);
+					}
+				}
+				if (beacon != null) {
+					beacon.member.expires = System.nanoTime()
+							+ EXPIRY_INTERVALS * beacon.intervalNanos;
+				}
+			} catch (SocketTimeoutException e) {
+				// check for expiry and interruption
+			} catch (IOException e) {
+				if (socket.isClosed()) {
+					return;
+				}
+				logger.log(Level.WARNING, "Ignoring discovery datagram", e);
 			}
-			BusMessageSerialiser serialiser = StandardBusMessageSerialisers.valueOf(protocol).get();
+			expire(heard);
+		}
+	}
+
+	private Beacon join(ByteBuffer datagram, List<String> services) {
+		BusMessage discoveryMessage;
+		try {
+			discoveryMessage = serialiser.fromBuffer(datagram);
+		} catch (IOException e) {
+			return null;
+		} catch (RuntimeException e) {
+			// not every datagram sent to the group need be ours
+			return null;
+		}
+		if (!StandardBusServerMulticastDiscovery.DISCOVERY_TYPE
+				.equals(MESSAGE_TYPE.get(discoveryMessage))) {
+			return null;
+		}
+		String serviceName = SOURCE.get(discoveryMessage);
+		String protocol = discoveryMessage
+				.get(StandardBusMessageSerialiserBinary.PROTOCOL_ATTRIBUTE);
+		String address = discoveryMessage
+				.get(StandardBusServerMulticastDiscovery.ADDRESS_ATTRIBUTE);
+		if (!services.contains(serviceName) || address == null) {
+			return null;
+		}
+		if (protocol == null) {
+			logger.warning(String.format(
+					"No serialiser for protocol '%s' of service at %s",
+					protocol, address));
+			return null;
+		}
+		long interval;
+		try {
+			interval = Long.parseLong(discoveryMessage
+					.get(StandardBusServerMulticastDiscovery.INTERVAL_ATTRIBUTE));
+		} catch (NumberFormatException e) {
+			// beacons from older services were sent every second
+			interval = 1000L;
+		}
+
+		Member member = new Member(serviceName, URI.create(address));
+		Member existing = members.putIfAbsent(member.address, member);
+		if (existing != null) {
+			// heard again on another group or with another interval
+			member = existing;
+		} else if (!connect(member, protocol)) {
+			members.remove(member.address, member);
+			return null;
+		}
+		return new Beacon(member, TimeUnit.MILLISECONDS.toNanos(interval));
+	}
+
+	private boolean connect(final Member member, String protocol) {
+		try {
+			BusMessageSerialiser serialiser = StandardBusMessageSerialisers
+					.valueOf(protocol).get();
 			StandardSocketBusMessageConnection conn = new StandardSocketBusMessageConnection(
-					serviceAddress, serialiser);
+					member.address, serialiser);
 			busServer.addConnection(conn);
-			logger.info("Discovered service at " + serviceAddress.toString());
-			connectedServices.put(serviceAddress, conn);
+			synchronized (member) {
+				if (member.left) {
+					// expired on another group while connecting
+					busServer.removeConnection(conn);
+					conn.close();
+					return false;
+				}
+				member.connection = conn;
+			}
 			conn.addCloseHook(new Closeable() {
 				@Override
 				public void close() throws IOException {
-					connectedServices.remove(serviceAddress);
-					logger.info("Disconnected from service at " + serviceAddress.toString());
+					members.remove(member.address, member);
+					logger.info("Disconnected from service at "
+							+ member.address);
 				}
 			});
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to connect to service at "
+					+ member.address, e);
+			return false;
+		} catch (IllegalArgumentException e) {
+			logger.warning(String.format(
+					"No serialiser for protocol '%s' of service at %s",
+					protocol, member.address));
+			return false;
+		}
+		logger.info("Discovered service at " + member.address);
+		if (listener != null) {
+			listener.joined(member.serviceName, member.address);
+		}
+		return true;
+	}
+
+	private void expire(Map<ByteBuffer, Beacon> heard) {
+		long now = System.nanoTime();
+		for (Iterator<Beacon> it = heard.values().iterator(); it.hasNext();) {
+			Member member = it.next().member;
+			if (members.get(member.address) != member) {
+				it.remove();
+			} else if (now - member.expires > 0L
+					&& members.remove(member.address, member)) {
+				it.remove();
+				leave(member);
+			}
+		}
+	}
+
+	private void leave(Member member) {
+		BusMessageConnection connection;
+		synchronized (member) {
+			connection = member.connection;
+			if (connection == null) {
+				// connect() disconnects once it sees this
+				member.left = true;
+				return;
+			}
+		}
+		logger.info("Service at " + member.address + " has left");
+		try {
+			busServer.removeConnection(connection);
+			connection.close();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to disconnect from service at "
+					+ member.address, e);
+		}
+		if (listener != null) {
+			listener.left(member.serviceName, member.address);
 		}
 	}
 
@@ -129,7 +311,7 @@ class StandardBusServerMulticastDiscoveryClient implements BusMessageConnection
 
 	@Override
 	public void close() throws IOException {
-		if (socket != null) {
+		for (MulticastSocket socket : sockets) {
 			socket.close();
 		}
 		if (executor != null) {
@@ -0,0 +1,37 @@
+package com.minorityhobbies.util.bus;
+
+import java.util.Map;
+
+/**
+ * Carries the time at which a message was published through dispatch so that
+ * delivery latency can be measured once the handler has run. Only used while
+ * metrics are enabled and never seen by subscribers.
+ */
+final class StandardBusTimedMessage implements BusMessage {
+	private final BusMessage msg;
+	private final long publishedNanos;
+
+	StandardBusTimedMessage(BusMessage msg, long publishedNanos) {
+		super();
+		this.msg = msg;
+		this.publishedNanos = publishedNanos;
+	}
+
+	BusMessage getMessage() {
+		return msg;
+	}
+
+	long getPublishedNanos() {
+		return publishedNanos;
+	}
+
+	@Override
+	public String get(String attributeName) {
+		return msg.get(attributeName);
+	}
+
+	@Override
+	public Map<String, String> getAttributes() {
+		return msg.getAttributes();
+	}
+}
@@ -0,0 +1,134 @@
+package com.minorityhobbies.util.bus;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timer wheel for large numbers of short timeouts which are usually
+ * cancelled before they expire. Scheduling and cancelling cost O(1) whatever
+ * the number of pending timeouts, at the price of firing up to one tick late.
+ *
+ * Tasks run on the daemon thread of the wheel, started on first use, and so
+ * must be brief. Safe for use by concurrent threads.
+ */
+final class StandardBusTimerWheel {
+	/**
+	 * A scheduled task.
+	 */
+	static final class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private long rounds;
+		private volatile boolean cancelled;
+
+		private Timeout(Runnable task, long deadline) {
+			super();
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Stops the task from running if it has not already.
+		 */
+		void cancel() {
+			cancelled = true;
+		}
+	}
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+	private final long tickNanos;
+	private final List<List<Timeout>> wheel = new ArrayList<List<Timeout>>();
+	private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+	private final Object lock = new Object();
+	private final long start = System.nanoTime();
+	private Thread thread;
+	// only used by the wheel thread
+	private long tick;
+
+	/**
+	 * @param tick
+	 *            the resolution of the wheel
+	 * @param ticksPerWheel
+	 *            the number of buckets, which should exceed the usual timeout
+	 *            in ticks so most timeouts are visited just once
+	 */
+	StandardBusTimerWheel(long tick, TimeUnit unit, int ticksPerWheel) {
+		super();
+		if (tick <= 0 || ticksPerWheel <= 0) {
+			throw new IllegalArgumentException(
+					"Tick and wheel size must be positive");
+		}
+		this.tickNanos = unit.toNanos(tick);
+		for (int i = 0; i < ticksPerWheel; i++) {
+			wheel.add(new LinkedList<Timeout>());
+		}
+	}
+
+	Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(task, System.nanoTime() - start
+				+ Math.max(0L, unit.toNanos(delay)));
+		scheduled.add(timeout);
+		synchronized (lock) {
+			if (thread == null) {
+				thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						turn();
+					}
+				}, "bus-timer");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+		return timeout;
+	}
+
+	private void turn() {
+		while (!Thread.currentThread().isInterrupted()) {
+			long sleep = (tick + 1) * tickNanos - (System.nanoTime() - start);
+			if (sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			for (Timeout timeout; (timeout = scheduled.poll()) != null;) {
+				if (!timeout.cancelled) {
+					// never place a timeout in a bucket which has been passed
+					long ticks = Math.max(tick, timeout.deadline / tickNanos);
+					timeout.rounds = (ticks - tick) / wheel.size();
+					wheel.get((int) (ticks % wheel.size())).add(timeout);
+				}
+			}
+			expire(wheel.get((int) (tick % wheel.size())));
+			tick++;
+		}
+	}
+
+	private void expire(List<Timeout> bucket) {
+		for (Iterator<Timeout> it = bucket.iterator(); it.hasNext();) {
+			Timeout timeout = it.next();
+			if (timeout.cancelled) {
+				it.remove();
+			} else if (timeout.rounds > 0) {
+				timeout.rounds--;
+			} else {
+				it.remove();
+				try {
+					timeout.task.run();
+				} catch (RuntimeException e) {
+					logger.log(Level.WARNING, "Timer task failed", e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package com.minorityhobbies.util.bus;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Immutable {@link BusMessage} which holds its attributes in a pair of
+ * parallel arrays. Attribute names are interned so that messages with the
+ * same shape share their name strings.
+ *
+ * {@link #getAttributes()} returns a read-only view onto the arrays rather
+ * than a copy. A message pulled from a remote connection is marked as local by
+ * {@link #local(BusMessage)}, which shares the arrays of the original message.
+ */
+final class StandardCompactBusMessage implements BusMessage {
+	// bounds the pool when peers send arbitrary attribute names
+	private static final int MAX_INTERNED_NAMES = 4096;
+	private static final ConcurrentMap<String, String> NAMES = new ConcurrentHashMap<String, String>();
+
+	private final String[] names;
+	private final String[] values;
+	private final boolean local;
+	private Map<String, String> attributes;
+
+	/**
+	 * Takes ownership of the arrays, which must not be modified afterwards.
+	 * Names must be unique.
+	 */
+	StandardCompactBusMessage(String[] names, String[] values, boolean local) {
+		super();
+		this.names = names;
+		this.values = values;
+		this.local = local;
+	}
+
+	static StandardCompactBusMessage of(Map<String, String> attributes) {
+		String[] names = new String[attributes.size()];
+		String[] values = new String[names.length];
+		int i = 0;
+		for (Map.Entry<String, String> entry : attributes.entrySet()) {
+			names[i] = intern(entry.getKey());
+			values[i++] = entry.getValue();
+		}
+		return new StandardCompactBusMessage(names, values, false);
+	}
+
+	/**
+	 * @return a message with the same attributes which will not be forwarded
+	 *         to remote connections
+	 */
+	static BusMessage local(BusMessage msg) {
+		if (msg instanceof StandardCompactBusMessage) {
+			StandardCompactBusMessage compact = (StandardCompactBusMessage) msg;
+			return compact.local ? compact : new StandardCompactBusMessage(
+					compact.names, compact.values, true);
+		}
+		StandardCompactBusMessage compact = of(msg.getAttributes());
+		return new StandardCompactBusMessage(compact.names, compact.values, true);
+	}
+
+	static boolean isLocal(BusMessage msg) {
+		return msg instanceof StandardCompactBusMessage
+				&& ((StandardCompactBusMessage) msg).local;
+	}
+
+	static String intern(String name) {
+		String interned = NAMES.get(name);
+		if (interned != null) {
+			return interned;
+		}
+		if (NAMES.size() >= MAX_INTERNED_NAMES) {
+			return name;
+		}
+		interned = NAMES.putIfAbsent(name, name);
+		return interned != null ? interned : name;
+	}
+
+	@Override
+	public String get(String attributeName) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(attributeName)) {
+				return values[i];
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Map<String, String> getAttributes() {
+		Map<String, String> view = attributes;
+		if (view == null) {
+			// racing threads may each create a view, which is harmless
+			view = new AttributeView();
+			attributes = view;
+		}
+		return view;
+	}
+
+	int size() {
+		return names.length;
+	}
+
+	String nameAt(int index) {
+		return names[index];
+	}
+
+	String valueAt(int index) {
+		return values[index];
+	}
+
+	@Override
+	public String toString() {
+		return getAttributes().toString();
+	}
+
+	private final class AttributeView extends AbstractMap<String, String> {
+		private final Set<Map.Entry<String, String>> entries = new AbstractSet<Map.Entry<String, String>>() {
+			@Override
+			public Iterator<Map.Entry<String, String>> iterator() {
+				return new Iterator<Map.Entry<String, String>>() {
+					private int next;
+
+					@Override
+					public boolean hasNext() {
+						return next < names.length;
+					}
+
+					@Override
+					public Map.Entry<String, String> next() {
+						if (next >= names.length) {
+							throw new NoSuchElementException();
+						}
+						int i = next++;
+						return new AbstractMap.SimpleImmutableEntry<String, String>(
+								names[i], values[i]);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return names.length;
+			}
+		};
+
+		@Override
+		public String get(Object key) {
+			return key instanceof String ? StandardCompactBusMessage.this
+					.get((String) key) : null;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equals(key)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public int size() {
+			return names.length;
+		}
+
+		@Override
+		public Set<Map.Entry<String, String>> entrySet() {
+			return entries;
+		}
+	}
+}
@@ -0,0 +1,513 @@
+package com.minorityhobbies.util.bus;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Connects {@link BusServer}s through a UDP multicast group, so that each
+ * message is sent once however many peers receive it. Selected with the
+ * <code>udp://group:port</code> URI scheme. The optional <code>window</code>
+ * query parameter sets how many sent messages are kept for retransmission,
+ * <code>interface</code> names the network interface to use and
+ * <code>ttl</code> sets how many routers datagrams may cross.
+ *
+ * Each connection numbers the messages it sends under a random session id.
+ * Receivers deliver the messages of each session in order. On a gap they
+ * hold later messages and send the sender a negative acknowledgement (NAK),
+ * which it answers by multicasting the missing messages again from its send
+ * window. Idle senders multicast heartbeats so that losing the last message
+ * is noticed. Messages which are no longer in the window, or which are still
+ * missing after repeated NAKs, are skipped; the loss is logged and counted.
+ *
+ * Every message must fit in a single datagram. There is no flow control: a
+ * receiver which cannot keep up loses messages once they leave the window.
+ */
+class StandardMulticastBusMessageConnection implements BusMessageConnection,
+		StandardBusMeteredConnection {
+	static final int DEFAULT_WINDOW = 4096;
+	private static final byte DATA = 1;
+	private static final byte RETRANSMIT = 2;
+	private static final byte HEARTBEAT = 3;
+	private static final byte NAK = 4;
+	// kind, session and sequence
+	private static final int HEADER_SIZE = 17;
+	private static final int MAX_DATAGRAM_SIZE = 65507;
+	private static final long HEARTBEAT_MILLIS = 100L;
+	private static final long NAK_MILLIS = 20L;
+	private static final int MAX_NAKS = 5;
+	private static final long SOURCE_TIMEOUT_MILLIS = 30000L;
+
+	/**
+	 * The receiving state for one sender session; used only by the receiving
+	 * thread.
+	 */
+	private static final class Source {
+		private final long session;
+		private SocketAddress address;
+		private long expected;
+		private final TreeMap<Long, BusMessage> held = new TreeMap<Long, BusMessage>();
+		private long nakDeadline;
+		private int naks;
+		private long lastHeard;
+
+		Source(long session, long expected) {
+			this.session = session;
+			this.expected = expected;
+		}
+	}
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+	private final URI uri;
+	private final BusMessageSerialiser serialiser;
+	private final ExecutorService executor;
+	private final Map<BusMessageSubscription, BusMessageHandler> subscriptions = new ConcurrentHashMap<BusMessageSubscription, BusMessageHandler>();
+	private final BusMessageHandler puller = new StandardSocketBusMessageConnectionPuller(
+			subscriptions);
+	private final StandardBusConnectionMetrics metrics;
+	private final long session = new SecureRandom().nextLong();
+	private final int window;
+	private final String interfaceName;
+	private final int ttl;
+	private final LongAdder lost = new LongAdder();
+	private final LongAdder naksSent = new LongAdder();
+	private final LongAdder retransmitted = new LongAdder();
+	// used only by the receiving thread
+	private final Map<Long, Source> sources = new HashMap<Long, Source>();
+	// sent messages by sequence modulo the window; guarded by this
+	private final byte[][] sent;
+	private final long[] sentSequences;
+	private long sequence;
+	private long lastSentMillis;
+	private InetSocketAddress group;
+	private MulticastSocket receiver;
+	private MulticastSocket sender;
+	private int dropEvery;
+	private int received;
+	private volatile boolean closed;
+
+	public StandardMulticastBusMessageConnection(URI uri,
+			BusMessageSerialiser serialiser) {
+		super();
+		if (!"udp".equals(uri.getScheme()) || uri.getHost() == null
+				|| uri.getPort() < 0) {
+			throw new IllegalArgumentException("Unsupported URI: " + uri);
+		}
+		int window = DEFAULT_WINDOW;
+		String interfaceName = null;
+		int ttl = 1;
+		if (uri.getQuery() != null) {
+			for (String parameter : uri.getQuery().split("&")) {
+				String[] kv = parameter.split("=", 2);
+				if (kv.length == 2 && "window".equals(kv[0])) {
+					window = Integer.parseInt(kv[1]);
+				} else if (kv.length == 2 && "interface".equals(kv[0])) {
+					interfaceName = kv[1];
+				} else if (kv.length == 2 && "ttl".equals(kv[0])) {
+					ttl = Integer.parseInt(kv[1]);
+				}
+			}
+		}
+		if (window <= 0) {
+			throw new IllegalArgumentException("Window must be positive");
+		}
+		this.uri = uri;
+		this.serialiser = serialiser;
+		this.window = window;
+		this.interfaceName = interfaceName;
+		this.ttl = ttl;
+		this.sent = new byte[window][];
+		this.sentSequences = new long[window];
+		this.executor = Executors.newFixedThreadPool(2);
+		this.metrics = new StandardBusConnectionMetrics(uri.toString());
+	}
+
+	@Override
+	public void start() throws IOException {
+		InetAddress address = InetAddress.getByName(uri.getHost());
+		if (!address.isMulticastAddress()) {
+			throw new IOException("Not a multicast group: " + uri.getHost());
+		}
+		group = new InetSocketAddress(address, uri.getPort());
+		NetworkInterface networkInterface = null;
+		if (interfaceName != null) {
+			networkInterface = NetworkInterface.getByName(interfaceName);
+			if (networkInterface == null) {
+				throw new IOException("No such network interface: "
+						+ interfaceName);
+			}
+		}
+
+		receiver = new MulticastSocket(uri.getPort());
+		receiver.setSoTimeout((int) (NAK_MILLIS / 2L));
+		receiver.joinGroup(group, networkInterface);
+
+		// sends data and heartbeats and receives NAKs from its own port
+		sender = new MulticastSocket(0);
+		sender.setTimeToLive(ttl);
+		if (networkInterface != null) {
+			sender.setNetworkInterface(networkInterface);
+		}
+		sender.setSoTimeout((int) HEARTBEAT_MILLIS);
+		logger.info(String.format("Joined %s as session %x", uri, session));
+
+		executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				receive();
+				return null;
+			}
+		});
+		executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				serveNaks();
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void push(BusMessage msg) throws IOException {
+		if (closed) {
+			throw new IOException("Connection is closed");
+		}
+		ByteBuffer payload = serialiser.toBuffer(msg);
+		if (HEADER_SIZE + payload.remaining() > MAX_DATAGRAM_SIZE) {
+			throw new IOException(String.format(
+					"Message of %d bytes does not fit in a datagram",
+					payload.remaining()));
+		}
+		synchronized (this) {
+			long sequence = ++this.sequence;
+			ByteBuffer datagram = ByteBuffer.allocate(HEADER_SIZE
+					+ payload.remaining());
+			datagram.put(DATA).putLong(session).putLong(sequence).put(payload);
+			int index = (int) (sequence % window);
+			sent[index] = datagram.array();
+			sentSequences[index] = sequence;
+			sender.send(new DatagramPacket(datagram.array(), datagram.limit(),
+					group));
+			lastSentMillis = System.currentTimeMillis();
+			metrics.messageOut(datagram.limit());
+		}
+	}
+
+	// answers NAKs from receivers and sends heartbeats while idle
+	private void serveNaks() {
+		byte[] buffer = new byte[HEADER_SIZE + 4];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		while (!closed) {
+			try {
+				try {
+					packet.setLength(buffer.length);
+					sender.receive(packet);
+					ByteBuffer nak = ByteBuffer.wrap(buffer, 0, packet.getLength());
+					if (packet.getLength() == buffer.length && nak.get() == NAK
+							&& nak.getLong() == session) {
+						retransmit(nak.getLong(), nak.getInt());
+					}
+				} catch (SocketTimeoutException e) {
+					// time to check for a heartbeat
+				}
+				synchronized (this) {
+					if (sequence > 0L
+							&& System.currentTimeMillis() - lastSentMillis >= HEARTBEAT_MILLIS) {
+						sendHeartbeat();
+					}
+				}
+			} catch (IOException e) {
+				if (!closed) {
+					logger.log(Level.WARNING, "Failed to serve NAKs on " + uri, e);
+				}
+			}
+		}
+	}
+
+	private synchronized void retransmit(long from, int count)
+			throws IOException {
+		long oldest = Math.max(1L, sequence - window + 1L);
+		long to = Math.min(sequence, from + Math.min(count, window) - 1L);
+		if (from < oldest) {
+			// tells the receiver what it can no longer have
+			sendHeartbeat();
+			from = oldest;
+		}
+		for (long s = from; s <= to; s++) {
+			int index = (int) (s % window);
+			if (sentSequences[index] != s) {
+				continue;
+			}
+			byte[] datagram = sent[index].clone();
+			datagram[0] = RETRANSMIT;
+			sender.send(new DatagramPacket(datagram, datagram.length, group));
+			retransmitted.increment();
+		}
+	}
+
+	// you must hold the lock on this connection to call this method
+	private void sendHeartbeat() throws IOException {
+		ByteBuffer heartbeat = ByteBuffer.allocate(HEADER_SIZE + 8);
+		heartbeat.put(HEARTBEAT).putLong(session).putLong(sequence)
+				.putLong(Math.max(1L, sequence - window + 1L));
+		sender.send(new DatagramPacket(heartbeat.array(), heartbeat.limit(),
+				group));
+		lastSentMillis = System.currentTimeMillis();
+	}
+
+	private void receive() {
+		byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		long nextCheck = System.currentTimeMillis() + NAK_MILLIS;
+		while (!closed) {
+			try {
+				try {
+					packet.setLength(buffer.length);
+					receiver.receive(packet);
+					onDatagram(ByteBuffer.wrap(buffer, 0, packet.getLength()),
+							packet.getSocketAddress());
+				} catch (SocketTimeoutException e) {
+					// time to check for gaps
+				} catch (RuntimeException e) {
+					// a stray datagram or a failing subscriber must not end reception
+					logger.log(Level.WARNING, "Ignoring datagram from "
+							+ packet.getSocketAddress() + " on " + uri, e);
+				}
+				long now = System.currentTimeMillis();
+				if (now >= nextCheck) {
+					checkGaps(now);
+					nextCheck = now + NAK_MILLIS;
+				}
+			} catch (IOException e) {
+				if (!closed) {
+					logger.log(Level.WARNING, "Failed to receive on " + uri, e);
+				}
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "Failed to deliver held messages on "
+						+ uri, e);
+			}
+		}
+	}
+
+	private void onDatagram(ByteBuffer datagram, SocketAddress from)
+			throws IOException {
+		if (datagram.remaining() < HEADER_SIZE) {
+			return;
+		}
+		byte kind = datagram.get();
+		long sourceSession = datagram.getLong();
+		long sourceSequence = datagram.getLong();
+		if (sourceSession == session || kind == NAK) {
+			return;
+		}
+		Source source = sources.get(sourceSession);
+		if (kind == HEARTBEAT) {
+			if (source != null && datagram.remaining() >= 8) {
+				source.lastHeard = System.currentTimeMillis();
+				onHeartbeat(source, sourceSequence, datagram.getLong());
+			}
+			return;
+		}
+		if (kind != DATA && kind != RETRANSMIT) {
+			return;
+		}
+		if (kind == DATA && dropEvery > 0 && ++received % dropEvery == 0) {
+			// simulated loss
+			return;
+		}
+		if (source == null) {
+			if (kind == RETRANSMIT) {
+				return;
+			}
+			// a new session is received from its first message heard
+			source = new Source(sourceSession, sourceSequence);
+			sources.put(sourceSession, source);
+		}
+		source.address = from;
+		source.lastHeard = System.currentTimeMillis();
+		if (sourceSequence < source.expected
+				|| source.held.containsKey(sourceSequence)) {
+			return;
+		}
+		metrics.messageIn(HEADER_SIZE + datagram.remaining());
+		BusMessage msg = serialiser.fromBuffer(datagram);
+		if (sourceSequence > source.expected) {
+			if (source.held.size() >= window) {
+				skipTo(source, source.held.firstKey());
+			} else {
+				boolean gapOpened = source.held.isEmpty();
+				source.held.put(sourceSequence, msg);
+				if (gapOpened) {
+					nak(source, source.expected, sourceSequence - 1L);
+				}
+				return;
+			}
+		}
+		if (sourceSequence == source.expected) {
+			source.expected++;
+			puller.onMessage(msg);
+		} else {
+			source.held.put(sourceSequence, msg);
+		}
+		deliverHeld(source);
+	}
+
+	private void onHeartbeat(Source source, long last, long oldest)
+			throws IOException {
+		if (oldest > source.expected) {
+			skipTo(source, oldest);
+		}
+		if (last < source.expected || !source.held.isEmpty()
+				|| System.currentTimeMillis() < source.nakDeadline) {
+			return;
+		}
+		// the most recent messages were lost; given up on like any other gap
+		if (source.naks >= MAX_NAKS) {
+			skipTo(source, last + 1L);
+		} else {
+			nak(source, source.expected, last);
+		}
+	}
+
+	// re-sends NAKs for gaps which are still open and gives up on old ones
+	private void checkGaps(long now) throws IOException {
+		for (Iterator<Source> it = sources.values().iterator(); it.hasNext();) {
+			Source source = it.next();
+			if (now - source.lastHeard > SOURCE_TIMEOUT_MILLIS) {
+				it.remove();
+				continue;
+			}
+			if (source.held.isEmpty() || now < source.nakDeadline) {
+				continue;
+			}
+			if (source.naks >= MAX_NAKS) {
+				skipTo(source, source.held.firstKey());
+			} else {
+				nak(source, source.expected, source.held.firstKey() - 1L);
+			}
+		}
+	}
+
+	private void nak(Source source, long from, long to) throws IOException {
+		if (source.address == null) {
+			return;
+		}
+		ByteBuffer nak = ByteBuffer.allocate(HEADER_SIZE + 4);
+		nak.put(NAK).putLong(source.session).putLong(from)
+				.putInt((int) Math.min(to - from + 1L, window));
+		sender.send(new DatagramPacket(nak.array(), nak.limit(), source.address));
+		naksSent.increment();
+		source.naks++;
+		source.nakDeadline = System.currentTimeMillis() + NAK_MILLIS;
+	}
+
+	private void skipTo(Source source, long sequence) {
+		long missed = sequence - source.expected;
+		for (Long held : source.held.keySet()) {
+			if (held < sequence) {
+				missed--;
+			}
+		}
+		if (missed > 0L) {
+			lost.add(missed);
+			logger.warning(String.format(
+					"Lost %d messages from session %x on %s", missed,
+					source.session, uri));
+		}
+		// deliver what was held before the skipped point
+		while (!source.held.isEmpty() && source.held.firstKey() < sequence) {
+			puller.onMessage(source.held.pollFirstEntry().getValue());
+		}
+		source.expected = sequence;
+		deliverHeld(source);
+	}
+
+	private void deliverHeld(Source source) {
+		long expected = source.expected;
+		while (!source.held.isEmpty()
+				&& source.held.firstKey() == source.expected) {
+			source.expected++;
+			puller.onMessage(source.held.pollFirstEntry().getValue());
+		}
+		if (source.expected != expected || source.held.isEmpty()) {
+			// the next gap, if any, is NAKed afresh
+			source.naks = 0;
+			source.nakDeadline = 0L;
+		}
+	}
+
+	/**
+	 * Discards every nth new message received, to exercise recovery.
+	 */
+	void setSimulatedLoss(int dropEvery) {
+		this.dropEvery = dropEvery;
+	}
+
+	long getLostCount() {
+		return lost.sum();
+	}
+
+	long getNakCount() {
+		return naksSent.sum();
+	}
+
+	long getRetransmitCount() {
+		return retransmitted.sum();
+	}
+
+	@Override
+	public StandardBusConnectionMetrics getMetrics() {
+		return metrics;
+	}
+
+	@Override
+	public BusMessageSubscriptionHandle pull(
+			BusMessageSubscription subscription, BusMessageHandler handler) {
+		subscriptions.put(subscription, handler);
+		return new StandardBusMessageSubscriptionHandle(subscriptions,
+				subscription);
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		executor.shutdownNow();
+		if (receiver != null) {
+			try {
+				receiver.leaveGroup(group, null);
+			} catch (SocketException e) {
+				// closing anyway
+			}
+			receiver.close();
+		}
+		if (sender != null) {
+			sender.close();
+		}
+		try {
+			executor.awaitTermination(1L, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
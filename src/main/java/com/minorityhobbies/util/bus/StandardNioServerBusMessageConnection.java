@@ -0,0 +1,575 @@
+package com.minorityhobbies.util.bus;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Accepts connections from other {@link BusServer} instances on a
+ * non-blocking server socket. All peers are multiplexed over a small, fixed
+ * number of {@link Selector} threads rather than a thread per peer.
+ *
+ * Uses the same length-prefixed framing as
+ * {@link StandardSocketServerBusMessageConnection} so peers connect with an
+ * ordinary {@link StandardSocketBusMessageConnection}. Selected with the
+ * <code>nio://host:port</code> URI scheme.
+ */
+class StandardNioServerBusMessageConnection implements BusMessageConnection,
+		StandardBusMeteredConnection, StandardBusFlowControlledConnection,
+		StandardBusInterestedConnection, StandardBusJournalledConnection {
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	private static final int PEER_BUFFER_SIZE = 4 * 1024;
+	private static final int MAX_GATHERED_BUFFERS = 64;
+	private static final int ACCEPT_BACKLOG = 1024;
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+	private final URI localServiceUri;
+	private final BusMessageSerialiser serialiser;
+	private final int maxFrameSize;
+	private final long maxBacklog;
+	private final StandardBusConnectionMetrics metrics;
+	private final ExecutorService executor;
+	private final SelectorLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private final Map<Peer, Peer> peers = new ConcurrentHashMap<Peer, Peer>();
+	private final Map<BusMessageSubscription, BusMessageHandler> subscriptions = new ConcurrentHashMap<BusMessageSubscription, BusMessageHandler>();
+	private final BusMessageHandler puller = new StandardSocketBusMessageConnectionPuller(
+			subscriptions);
+	private ServerSocketChannel server;
+	private StandardBusMessageInterest interest;
+	private StandardBusJournal journal;
+	private int creditWindow;
+
+	public StandardNioServerBusMessageConnection(URI localServiceUri,
+			BusMessageSerialiser serialiser, int maxFrameSize, long maxBacklog,
+			int selectorThreads) {
+		super();
+		if (selectorThreads <= 0) {
+			throw new IllegalArgumentException(
+					"At least one selector thread is required");
+		}
+		this.localServiceUri = localServiceUri;
+		this.serialiser = serialiser;
+		this.maxFrameSize = maxFrameSize;
+		this.maxBacklog = maxBacklog;
+		this.metrics = new StandardBusConnectionMetrics(localServiceUri.toString());
+		this.executor = Executors.newFixedThreadPool(selectorThreads);
+		this.loops = new SelectorLoop[selectorThreads];
+	}
+
+	@Override
+	public void start() throws IOException {
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new SelectorLoop(Selector.open());
+		}
+		server = ServerSocketChannel.open();
+		server.configureBlocking(false);
+		// so a restarted server can rebind while old connections linger
+		server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		server.bind(new InetSocketAddress(localServiceUri.getHost(),
+				localServiceUri.getPort()), ACCEPT_BACKLOG);
+		server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+		logger.info(String.format("Binding service at %s", localServiceUri));
+
+		for (SelectorLoop loop : loops) {
+			executor.submit(loop);
+		}
+	}
+
+	@Override
+	public void push(BusMessage msg) throws IOException {
+		if (peers.isEmpty()) {
+			return;
+		}
+		ByteBuffer shared = null;
+		for (Peer peer : peers.keySet()) {
+			if (!peer.wanted.wants(msg)) {
+				continue;
+			}
+			if (shared == null) {
+				shared = StandardBusMessageFrameBuffer.toFrame(
+						serialiser.toBuffer(msg)).asReadOnlyBuffer();
+			}
+			peer.send(shared.duplicate());
+			metrics.messageOut(shared.remaining());
+		}
+	}
+
+	@Override
+	public StandardBusConnectionMetrics getMetrics() {
+		return metrics;
+	}
+
+	@Override
+	public BusMessageSubscriptionHandle pull(
+			BusMessageSubscription subscription, BusMessageHandler handler) {
+		subscriptions.put(subscription, handler);
+		return new StandardBusMessageSubscriptionHandle(subscriptions,
+				subscription);
+	}
+
+	int getConnectionCount() {
+		return peers.size();
+	}
+
+	/**
+	 * Grants each peer credit for window messages at a time, so that a peer
+	 * stops sending once this connection has fallen window messages behind.
+	 * Must be called before {@link #start()}.
+	 */
+	void setFlowControl(int window) {
+		this.creditWindow = window;
+	}
+
+	@Override
+	public void setInterest(StandardBusMessageInterest interest) {
+		this.interest = interest;
+	}
+
+	/**
+	 * Replay is not served, since reading the journal would stall every peer
+	 * of a selector thread. A peer asking for it is answered at once with the
+	 * last sequence journalled and resumes from the next.
+	 */
+	@Override
+	public void setJournal(StandardBusJournal journal) {
+		this.journal = journal;
+	}
+
+	@Override
+	public boolean isCongested() {
+		for (Peer peer : peers.keySet()) {
+			if (peer.backlog.get() > maxBacklog / 2L) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (server != null) {
+			try {
+				server.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		for (Peer peer : peers.keySet()) {
+			peer.close();
+		}
+		executor.shutdownNow();
+		for (SelectorLoop loop : loops) {
+			if (loop != null) {
+				try {
+					loop.selector.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private final class SelectorLoop implements Callable<Void> {
+		private final Selector selector;
+		private final ByteBuffer readBuffer = ByteBuffer
+				.allocateDirect(READ_BUFFER_SIZE);
+		private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<SocketChannel>();
+		private final Queue<Peer> writes = new ConcurrentLinkedQueue<Peer>();
+
+		SelectorLoop(Selector selector) {
+			this.selector = selector;
+		}
+
+		void register(SocketChannel channel) {
+			registrations.add(channel);
+			selector.wakeup();
+		}
+
+		void scheduleWrite(Peer peer) {
+			writes.add(peer);
+			selector.wakeup();
+		}
+
+		@Override
+		public Void call() throws Exception {
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					selector.select();
+					processRegistrations();
+					processWrites();
+					Iterator<SelectionKey> keys = selector.selectedKeys()
+							.iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						try {
+							process(key);
+						} catch (RuntimeException e) {
+							// drops the peer at fault rather than every peer of the loop
+							failed(key, e);
+						}
+					}
+				}
+			} catch (ClosedSelectorException e) {
+				// closed
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Selector failed", e);
+			}
+			return null;
+		}
+
+		private void failed(SelectionKey key, RuntimeException e) {
+			if (!(key.attachment() instanceof Peer)) {
+				logger.log(Level.WARNING, "Failed to accept connection", e);
+				return;
+			}
+			Peer peer = (Peer) key.attachment();
+			logger.log(Level.WARNING, "Dropping connection from "
+					+ peer.remoteAddress(), e);
+			peer.close();
+		}
+
+		private void processRegistrations() {
+			for (SocketChannel channel; (channel = registrations.poll()) != null;) {
+				try {
+					Peer peer = new Peer(channel, this);
+					peer.key = channel.register(selector, SelectionKey.OP_READ,
+							peer);
+					peers.put(peer, peer);
+					peer.credits.start();
+					if (interest != null) {
+						interest.addAdvertiser(peer);
+					}
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Failed to register connection", e);
+					try {
+						channel.close();
+					} catch (IOException io) {
+						io.printStackTrace();
+					}
+				}
+			}
+		}
+
+		private void processWrites() {
+			for (Peer peer; (peer = writes.poll()) != null;) {
+				peer.writeScheduled.set(false);
+				peer.flush();
+			}
+		}
+
+		private void process(SelectionKey key) {
+			if (!key.isValid()) {
+				return;
+			}
+			if (key.isAcceptable()) {
+				accept();
+				return;
+			}
+			Peer peer = (Peer) key.attachment();
+			if (key.isReadable()) {
+				peer.read(readBuffer);
+			}
+			if (key.isValid() && key.isWritable()) {
+				peer.flush();
+			}
+		}
+
+		private void accept() {
+			try {
+				for (SocketChannel channel; (channel = server.accept()) != null;) {
+					channel.configureBlocking(false);
+					channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+					loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE)
+							% loops.length].register(channel);
+				}
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Failed to accept connection", e);
+			}
+		}
+	}
+
+	private final class Peer implements StandardBusMessageFrameBuffer.FrameHandler,
+			StandardBusMessageCredits.Peer, StandardBusMessageInterest.Advertiser,
+			StandardBusMessageCompression.Peer {
+		private final SocketChannel channel;
+		private final SelectorLoop loop;
+		private final StandardBusMessageFrameBuffer frames;
+		private final StandardBusMessageCredits credits;
+		private final StandardBusPeerInterest wanted;
+		private final StandardBusMessageCompression compression;
+		private final BusMessageSerialiser reading;
+		private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+		// frames which need no credit, from any thread
+		private final Queue<ByteBuffer> control = new ConcurrentLinkedQueue<ByteBuffer>();
+		// frames which have taken credit, or need none; selector thread only
+		private final Queue<ByteBuffer> sendable = new ArrayDeque<ByteBuffer>();
+		private final AtomicBoolean writeScheduled = new AtomicBoolean();
+		private final AtomicLong backlog = new AtomicLong();
+		private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHERED_BUFFERS];
+		private SelectionKey key;
+		// whether frames are deflated as they become sendable; selector thread only
+		private boolean deflating;
+
+		Peer(SocketChannel channel, SelectorLoop loop) {
+			this.channel = channel;
+			this.loop = loop;
+			this.frames = new StandardBusMessageFrameBuffer(maxFrameSize,
+					PEER_BUFFER_SIZE);
+			this.credits = new StandardBusMessageCredits(
+					new BusMessageHandler() {
+						@Override
+						public void onMessage(BusMessage msg) {
+							if (!StandardBusJournal.isReplayMessage(msg)) {
+								puller.onMessage(msg);
+								return;
+							}
+							try {
+								onReplay(StandardBusJournal.sequenceOf(msg));
+							} catch (IOException e) {
+								logger.info(String.format(
+										"Failed to answer replay request from %s: %s",
+										remoteAddress(), e.getMessage()));
+							}
+						}
+					}, this, creditWindow);
+			this.wanted = new StandardBusPeerInterest(credits);
+			this.compression = new StandardBusMessageCompression(wanted, this,
+					0, maxFrameSize);
+			this.reading = compression.reading(serialiser);
+		}
+
+		void send(ByteBuffer frame) {
+			outbound.add(frame);
+			if (backlog.addAndGet(frame.remaining()) > maxBacklog) {
+				logger.info(String.format(
+						"Detaching %s: backlog of %d bytes exceeds %d",
+						remoteAddress(), backlog.get(), maxBacklog));
+				close();
+				return;
+			}
+			if (writeScheduled.compareAndSet(false, true)) {
+				loop.scheduleWrite(this);
+			}
+		}
+
+		// called only from the selector thread
+		void read(ByteBuffer readBuffer) {
+			try {
+				readBuffer.clear();
+				int read = channel.read(readBuffer);
+				if (read < 0) {
+					close();
+					return;
+				}
+				readBuffer.flip();
+				frames.write(readBuffer, this);
+			} catch (IOException e) {
+				logger.info(String.format("Dropping connection from %s: %s",
+						remoteAddress(), e.getMessage()));
+				close();
+			}
+		}
+
+		@Override
+		public void onFrame(ByteBuffer frame) throws IOException {
+			metrics.messageIn(StandardBusMessageFrameBuffer.HEADER_SIZE
+					+ frame.remaining());
+			compression.onMessage(reading.fromBuffer(frame));
+		}
+
+		@Override
+		public boolean advertise(BusMessage msg) {
+			if (!channel.isOpen()) {
+				return false;
+			}
+			try {
+				ByteBuffer frame = StandardBusMessageFrameBuffer.toFrame(serialiser
+						.toBuffer(msg));
+				metrics.messageOut(frame.remaining());
+				backlog.addAndGet(frame.remaining());
+				control.add(frame);
+			} catch (IOException e) {
+				logger.info(String.format("Failed to advertise interest to %s: %s",
+						remoteAddress(), e.getMessage()));
+				return false;
+			}
+			if (writeScheduled.compareAndSet(false, true)) {
+				loop.scheduleWrite(this);
+			}
+			return true;
+		}
+
+		// called only from the selector thread
+		@Override
+		public void sendCredits(BusMessage msg) throws IOException {
+			sendControl(msg);
+		}
+
+		// called only from the selector thread
+		private void sendControl(BusMessage msg) throws IOException {
+			ByteBuffer frame = StandardBusMessageFrameBuffer.toFrame(serialiser
+					.toBuffer(msg));
+			metrics.messageOut(frame.remaining());
+			backlog.addAndGet(frame.remaining());
+			sendable(frame);
+			flush();
+		}
+
+		/**
+		 * Answers a replay request without replaying anything, so that the
+		 * peer resumes with the next message rather than waiting forever.
+		 * Called only from the selector thread, which must not block reading
+		 * the journal.
+		 */
+		private void onReplay(long fromSequence) throws IOException {
+			StandardBusJournal journal = StandardNioServerBusMessageConnection.this.journal;
+			if (journal == null) {
+				logger.info(String.format(
+						"Ignoring replay request from %s: this server has no journal",
+						remoteAddress()));
+				return;
+			}
+			long lastSequence;
+			// messages after this one are pushed once it has been queued
+			synchronized (journal) {
+				lastSequence = journal.getLastSequence();
+				sendControl(StandardBusJournal.replayMessage(lastSequence));
+			}
+			logger.warning(String.format(
+					"Replay for %s from %d is not served over nio; resuming from %d",
+					remoteAddress(), fromSequence, lastSequence + 1L));
+		}
+
+		// called only from the selector thread
+		@Override
+		public void creditsGranted() {
+			flush();
+		}
+
+		// called only from the selector thread
+		@Override
+		public void sendOffer(BusMessage msg) throws IOException {
+			sendControl(msg);
+		}
+
+		// called only from the selector thread
+		@Override
+		public void startDeflating(BusMessage msg) throws IOException {
+			ByteBuffer frame = StandardBusMessageFrameBuffer.toFrame(serialiser
+					.toBuffer(msg));
+			metrics.messageOut(frame.remaining());
+			backlog.addAndGet(frame.remaining());
+			sendable.add(frame);
+			deflating = true;
+			flush();
+		}
+
+		// called only from the selector thread
+		private void sendable(ByteBuffer frame) {
+			if (deflating) {
+				ByteBuffer payload = frame.duplicate();
+				payload.position(payload.position()
+						+ StandardBusMessageFrameBuffer.HEADER_SIZE);
+				// gathered with others, so each needs its own buffer
+				ByteBuffer deflated = StandardBusMessageFrameBuffer
+						.toFrame(compression.deflate(payload));
+				backlog.addAndGet(deflated.remaining() - frame.remaining());
+				frame = deflated;
+			}
+			sendable.add(frame);
+		}
+
+		// called only from the selector thread
+		void flush() {
+			if (key == null || !key.isValid()) {
+				return;
+			}
+			try {
+				while (true) {
+					for (ByteBuffer frame; (frame = control.poll()) != null;) {
+						sendable(frame);
+					}
+					while (!outbound.isEmpty() && credits.tryAcquire()) {
+						ByteBuffer frame = outbound.poll();
+						if (frame == null) {
+							// cleared by close
+							return;
+						}
+						sendable(frame);
+					}
+					int n = 0;
+					for (Iterator<ByteBuffer> it = sendable.iterator(); n < gather.length
+							&& it.hasNext();) {
+						gather[n++] = it.next();
+					}
+					if (n == 0) {
+						key.interestOps(SelectionKey.OP_READ);
+						return;
+					}
+					backlog.addAndGet(-channel.write(gather, 0, n));
+					boolean complete = !gather[n - 1].hasRemaining();
+					Arrays.fill(gather, 0, n, null);
+					for (ByteBuffer b; (b = sendable.peek()) != null
+							&& !b.hasRemaining();) {
+						sendable.poll();
+					}
+					if (!complete) {
+						// socket buffer is full so wait until it is writable
+						key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+						return;
+					}
+				}
+			} catch (IOException e) {
+				logger.info(String.format("Dropping connection from %s: %s",
+						remoteAddress(), e.getMessage()));
+				close();
+			}
+		}
+
+		void close() {
+			peers.remove(this);
+			outbound.clear();
+			compression.close();
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		private Object remoteAddress() {
+			try {
+				return channel.getRemoteAddress();
+			} catch (IOException e) {
+				return "unknown";
+			}
+		}
+	}
+}
@@ -0,0 +1,356 @@
+package com.minorityhobbies.util.bus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Connects {@link BusServer}s in different processes on the same host through
+ * a memory-mapped file. Selected with the <code>shm:///path/to/file</code> URI
+ * scheme, normally with a path under <code>/dev/shm</code>. The optional
+ * <code>slots</code> and <code>capacity</code> query parameters size a new
+ * file; an existing file keeps the sizes it was created with.
+ *
+ * The file holds a fixed number of slots, each a single-producer ring buffer.
+ * On start a connection claims a free slot by locking it, a lock the operating
+ * system releases if the process dies, and publishes into that slot only. It
+ * reads every other slot so each message reaches every other connection on the
+ * file. Publishing and reading make no system calls; an idle reader spins,
+ * then yields, then parks for increasing intervals.
+ *
+ * A reader which falls more than a ring behind a producer loses the messages
+ * it missed; the loss is logged and counted.
+ */
+class StandardSharedMemoryBusMessageConnection implements BusMessageConnection,
+		StandardBusMeteredConnection {
+	static final int DEFAULT_SLOTS = 16;
+	static final int DEFAULT_SLOT_CAPACITY = 1024 * 1024;
+	private static final int MAGIC = 0x42555331;
+	private static final int FILE_HEADER_SIZE = 64;
+	private static final int SLOT_HEADER_SIZE = 64;
+	private static final int CLAIMED_OFFSET = 0;
+	private static final int PUBLISHED_OFFSET = 8;
+	private static final int RECORD_HEADER_SIZE = 4;
+	private static final int ALIGNMENT = 8;
+	private static final int PADDING = -1;
+	// spinning only delays the producer when there is a single processor
+	private static final int SPIN_TRIES = Runtime.getRuntime()
+			.availableProcessors() > 1 ? 10000 : 0;
+	private static final int YIELD_TRIES = 100;
+	private static final long MAX_PARK_NANOS = 1000000L;
+	// serialises creation of the file between connections in this process
+	private static final Object initLock = new Object();
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+	private final URI uri;
+	private final BusMessageSerialiser serialiser;
+	private final ExecutorService executor;
+	private final Map<BusMessageSubscription, BusMessageHandler> subscriptions = new ConcurrentHashMap<BusMessageSubscription, BusMessageHandler>();
+	private final BusMessageHandler puller = new StandardSocketBusMessageConnectionPuller(
+			subscriptions);
+	private final StandardBusConnectionMetrics metrics;
+	private final LongAdder lost = new LongAdder();
+	private int slots;
+	private int capacity;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private MappedByteBuffer map;
+	private ByteBuffer writeView;
+	private FileLock slotLock;
+	private int slot = -1;
+	private long tail;
+	private volatile boolean closed;
+	private volatile int fence;
+
+	public StandardSharedMemoryBusMessageConnection(URI uri,
+			BusMessageSerialiser serialiser) {
+		super();
+		if (!"shm".equals(uri.getScheme()) || uri.getPath() == null) {
+			throw new IllegalArgumentException("Unsupported URI: " + uri);
+		}
+		this.uri = uri;
+		this.serialiser = serialiser;
+		this.executor = Executors.newSingleThreadExecutor();
+		this.metrics = new StandardBusConnectionMetrics(uri.toString());
+		this.slots = DEFAULT_SLOTS;
+		this.capacity = DEFAULT_SLOT_CAPACITY;
+		if (uri.getQuery() != null) {
+			for (String parameter : uri.getQuery().split("&")) {
+				String[] kv = parameter.split("=", 2);
+				if (kv.length == 2 && "slots".equals(kv[0])) {
+					slots = Integer.parseInt(kv[1]);
+				} else if (kv.length == 2 && "capacity".equals(kv[0])) {
+					capacity = Integer.parseInt(kv[1]);
+				}
+			}
+		}
+		validate(slots, capacity);
+	}
+
+	private static void validate(int slots, int capacity) {
+		if (slots < 2) {
+			throw new IllegalArgumentException("At least two slots are required");
+		}
+		if (capacity < 64 || Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException(
+					"Slot capacity must be a power of two of at least 64 bytes");
+		}
+		if (fileSize(slots, capacity) > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Shared memory file is too large");
+		}
+	}
+
+	private static long fileSize(int slots, int capacity) {
+		return FILE_HEADER_SIZE + (long) slots * (SLOT_HEADER_SIZE + capacity);
+	}
+
+	@Override
+	public void start() throws IOException {
+		file = new RandomAccessFile(new File(uri.getPath()), "rw");
+		channel = file.getChannel();
+		synchronized (initLock) {
+			FileLock headerLock = channel.lock(0L, FILE_HEADER_SIZE, false);
+			try {
+				if (file.length() == 0L) {
+					file.setLength(fileSize(slots, capacity));
+					map = channel.map(FileChannel.MapMode.READ_WRITE, 0L,
+							fileSize(slots, capacity));
+					map.putInt(4, slots);
+					map.putInt(8, capacity);
+					map.putInt(0, MAGIC);
+				} else {
+					MappedByteBuffer header = channel.map(
+							FileChannel.MapMode.READ_WRITE, 0L, FILE_HEADER_SIZE);
+					if (header.getInt(0) != MAGIC) {
+						throw new IOException("Not a bus shared memory file: "
+								+ uri.getPath());
+					}
+					slots = header.getInt(4);
+					capacity = header.getInt(8);
+					validate(slots, capacity);
+					map = channel.map(FileChannel.MapMode.READ_WRITE, 0L,
+							fileSize(slots, capacity));
+				}
+			} finally {
+				headerLock.release();
+			}
+		}
+		writeView = map.duplicate();
+		claimSlot();
+		tail = map.getLong(slotOffset(slot) + PUBLISHED_OFFSET);
+		logger.info(String.format("Attached to %s as slot %d of %d", uri,
+				slot, slots));
+
+		final long[] positions = new long[slots];
+		for (int i = 0; i < slots; i++) {
+			positions[i] = map.getLong(slotOffset(i) + PUBLISHED_OFFSET);
+		}
+		executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				read(positions);
+				return null;
+			}
+		});
+	}
+
+	private void claimSlot() throws IOException {
+		for (int i = 0; i < slots; i++) {
+			try {
+				FileLock lock = channel.tryLock(slotOffset(i), SLOT_HEADER_SIZE,
+						false);
+				if (lock != null) {
+					slotLock = lock;
+					slot = i;
+					return;
+				}
+			} catch (OverlappingFileLockException e) {
+				// held by another connection in this process
+			}
+		}
+		throw new IOException(String.format("All %d slots of %s are in use",
+				slots, uri));
+	}
+
+	private int slotOffset(int i) {
+		return FILE_HEADER_SIZE + i * (SLOT_HEADER_SIZE + capacity);
+	}
+
+	// Java 8 has no fences for mapped buffers; a volatile write followed by a
+	// volatile read keeps the accesses either side of it in order
+	private void fullFence() {
+		fence = 0;
+		if (fence != 0) {
+			throw new IllegalStateException();
+		}
+	}
+
+	@Override
+	public synchronized void push(BusMessage msg) throws IOException {
+		if (closed) {
+			throw new IOException("Connection is closed");
+		}
+		ByteBuffer payload = serialiser.toBuffer(msg);
+		int length = payload.remaining();
+		int size = align(RECORD_HEADER_SIZE + length);
+		if (size > capacity) {
+			throw new IOException(String.format(
+					"Message of %d bytes exceeds slot capacity of %d", length,
+					capacity));
+		}
+		int header = slotOffset(slot);
+		int data = header + SLOT_HEADER_SIZE;
+		int offset = (int) (tail & (capacity - 1));
+		int padding = capacity - offset < size ? capacity - offset : 0;
+
+		// readers check the claim after copying a record to detect overwrites
+		map.putLong(header + CLAIMED_OFFSET, tail + padding + size);
+		fullFence();
+		if (padding > 0) {
+			map.putInt(data + offset, PADDING);
+			offset = 0;
+		}
+		writeView.clear().position(data + offset + RECORD_HEADER_SIZE);
+		writeView.put(payload);
+		map.putInt(data + offset, length);
+		fullFence();
+		tail += padding + size;
+		map.putLong(header + PUBLISHED_OFFSET, tail);
+		metrics.messageOut(RECORD_HEADER_SIZE + length);
+	}
+
+	private static int align(int size) {
+		return (size + ALIGNMENT - 1) & -ALIGNMENT;
+	}
+
+	private void read(long[] positions) throws IOException {
+		ByteBuffer readView = map.duplicate();
+		byte[] scratch = new byte[256];
+		int idle = 0;
+		while (!closed && !Thread.currentThread().isInterrupted()) {
+			int read = 0;
+			for (int i = 0; i < slots; i++) {
+				if (i == slot) {
+					continue;
+				}
+				int header = slotOffset(i);
+				int data = header + SLOT_HEADER_SIZE;
+				long published = map.getLong(header + PUBLISHED_OFFSET);
+				fullFence();
+				long pos = positions[i];
+				while (pos < published) {
+					if (published - pos > capacity) {
+						pos = overrun(i, pos, published);
+						break;
+					}
+					int offset = (int) (pos & (capacity - 1));
+					int length = map.getInt(data + offset);
+					if (length == PADDING) {
+						pos += capacity - offset;
+						continue;
+					}
+					if (length < 0 || length > capacity - RECORD_HEADER_SIZE) {
+						pos = overrun(i, pos, published);
+						break;
+					}
+					if (scratch.length < length) {
+						scratch = new byte[Math.max(length, scratch.length * 2)];
+					}
+					readView.clear().position(data + offset + RECORD_HEADER_SIZE);
+					readView.get(scratch, 0, length);
+					fullFence();
+					long claimed = map.getLong(header + CLAIMED_OFFSET);
+					if (claimed - pos > capacity) {
+						// overwritten while it was being copied
+						pos = overrun(i, pos, map.getLong(header + PUBLISHED_OFFSET));
+						break;
+					}
+					pos += align(RECORD_HEADER_SIZE + length);
+					read++;
+					metrics.messageIn(RECORD_HEADER_SIZE + length);
+					puller.onMessage(serialiser.fromBuffer(ByteBuffer.wrap(
+							scratch, 0, length)));
+				}
+				positions[i] = pos;
+			}
+			idle = read > 0 ? 0 : idle(idle);
+		}
+	}
+
+	private long overrun(int slot, long pos, long published) {
+		lost.increment();
+		logger.warning(String.format(
+				"Reader of %s fell behind slot %d; skipped %d bytes", uri, slot,
+				published - pos));
+		return published;
+	}
+
+	private static int idle(int idle) {
+		if (idle >= SPIN_TRIES + YIELD_TRIES) {
+			int backoff = Math.min(idle - SPIN_TRIES - YIELD_TRIES, 10);
+			LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << backoff));
+		} else if (idle >= SPIN_TRIES) {
+			Thread.yield();
+		}
+		return idle < SPIN_TRIES + YIELD_TRIES + 10 ? idle + 1 : idle;
+	}
+
+	/**
+	 * @return the number of times this reader fell behind a producer and
+	 *         skipped messages
+	 */
+	long getOverrunCount() {
+		return lost.sum();
+	}
+
+	int getSlot() {
+		return slot;
+	}
+
+	@Override
+	public StandardBusConnectionMetrics getMetrics() {
+		return metrics;
+	}
+
+	@Override
+	public BusMessageSubscriptionHandle pull(
+			BusMessageSubscription subscription, BusMessageHandler handler) {
+		subscriptions.put(subscription, handler);
+		return new StandardBusMessageSubscriptionHandle(subscriptions,
+				subscription);
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		executor.shutdownNow();
+		synchronized (this) {
+			if (slotLock != null) {
+				try {
+					slotLock.release();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				slotLock = null;
+			}
+			if (file != null) {
+				file.close();
+				file = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package com.minorityhobbies.util.bus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects outbound frames into a batch which is written in one call once it
+ * is full or once the linger time has passed since the first frame was added.
+ * Trades a bounded amount of latency for fewer, larger writes.
+ */
+final class StandardSocketBusMessageBatchWriter implements BusBatchStatistics {
+	private final Logger logger = Logger.getLogger(getClass().getName());
+	private final OutputStream out;
+	private final ScheduledExecutorService timer;
+	private final long lingerMicros;
+	private final byte[] batch;
+	private final Runnable lingerFlush = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				flush(BusBatchFlushReason.LINGER);
+			} catch (IOException e) {
+				logger.log(Level.INFO, "Failed to write batch", e);
+			}
+		}
+	};
+	private final AtomicLongArray flushes = new AtomicLongArray(
+			BusBatchFlushReason.values().length);
+	private int length;
+	private int messages;
+	private ScheduledFuture<?> pendingFlush;
+	private volatile long batchCount;
+	private volatile long messageCount;
+	private volatile long byteCount;
+	private volatile int largestBatch;
+
+	public StandardSocketBusMessageBatchWriter(OutputStream out,
+			ScheduledExecutorService timer, long lingerMicros, int maxBatchBytes) {
+		super();
+		this.out = out;
+		this.timer = timer;
+		this.lingerMicros = lingerMicros;
+		this.batch = new byte[maxBatchBytes];
+	}
+
+	synchronized void write(ByteBuffer payload) throws IOException {
+		int frameSize = StandardBusMessageFrameBuffer.HEADER_SIZE
+				+ payload.remaining();
+		if (length + frameSize > batch.length) {
+			flush(BusBatchFlushReason.SIZE);
+		}
+		if (frameSize > batch.length) {
+			// too large to batch so send it on its own
+			ByteBuffer frame = StandardBusMessageFrameBuffer.toFrame(payload);
+			out.write(frame.array(), 0, frame.limit());
+			out.flush();
+			completed(1, frameSize, BusBatchFlushReason.SIZE);
+			return;
+		}
+
+		int size = payload.remaining();
+		batch[length++] = (byte) (size >>> 24);
+		batch[length++] = (byte) (size >>> 16);
+		batch[length++] = (byte) (size >>> 8);
+		batch[length++] = (byte) size;
+		payload.get(batch, length, size);
+		length += size;
+		messages++;
+
+		if (length == batch.length) {
+			flush(BusBatchFlushReason.SIZE);
+		} else if (pendingFlush == null) {
+			pendingFlush = timer.schedule(lingerFlush, lingerMicros,
+					TimeUnit.MICROSECONDS);
+		}
+	}
+
+	synchronized void flush(BusBatchFlushReason reason) throws IOException {
+		if (pendingFlush != null) {
+			pendingFlush.cancel(false);
+			pendingFlush = null;
+		}
+		if (length == 0) {
+			return;
+		}
+		int bytes = length;
+		int batched = messages;
+		length = 0;
+		messages = 0;
+		out.write(batch, 0, bytes);
+		out.flush();
+		completed(batched, bytes, reason);
+	}
+
+	private void completed(int batched, int bytes, BusBatchFlushReason reason) {
+		// only updated while holding the lock so plain volatile writes suffice
+		batchCount++;
+		messageCount += batched;
+		byteCount += bytes;
+		if (batched > largestBatch) {
+			largestBatch = batched;
+		}
+		flushes.incrementAndGet(reason.ordinal());
+	}
+
+	@Override
+	public long getBatchCount() {
+		return batchCount;
+	}
+
+	@Override
+	public long getMessageCount() {
+		return messageCount;
+	}
+
+	@Override
+	public long getByteCount() {
+		return byteCount;
+	}
+
+	@Override
+	public int getLargestBatch() {
+		return largestBatch;
+	}
+
+	@Override
+	public long getFlushCount(BusBatchFlushReason reason) {
+		return flushes.get(reason.ordinal());
+	}
+}
@@ -1,5 +1,6 @@
 package com.minorityhobbies.util.bus;
 
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -7,30 +8,100 @@ import java.io.IOException;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.logging.Logger;
 
 import javax.net.ssl.SSLSocketFactory;
 
-class StandardSocketBusMessageConnection implements BusMessageConnection {
+class StandardSocketBusMessageConnection implements BusMessageConnection,
+		StandardBusMeteredConnection, StandardBusFlowControlledConnection,
+		StandardBusInterestedConnection {
+	private static final long INITIAL_RECONNECT_DELAY_MILLIS = 100L;
+	private static final long MAX_RECONNECT_DELAY_MILLIS = 5000L;
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
 	private final Map<BusMessageSubscription, BusMessageHandler> subscriptions = new ConcurrentHashMap<BusMessageSubscription, BusMessageHandler>();
+	private final BusMessageHandler puller = new StandardSocketBusMessageConnectionPuller(
+			subscriptions);
 	private final ExecutorService executor;
 	private final List<Closeable> closeHooks;
 	private final BusMessageSerialiser serialiser;
+	private final int maxFrameSize;
+	private final StandardBusConnectionMetrics metrics;
 	private Socket socket;
 	private DataInputStream in;
 	private DataOutputStream out;
 	private URI uri;
+	private long lingerMicros = -1L;
+	private int maxBatchBytes;
+	private ScheduledExecutorService batchTimer;
+	private volatile StandardSocketBusMessageBatchWriter batchWriter;
+	private boolean replay;
+	private volatile long lastSequence = -1L;
+	private volatile boolean awaitingReplay;
+	private volatile boolean closed;
+	private int creditWindow;
+	private long maxPendingBytes = StandardSocketBusMessagePeerWriter.DEFAULT_MAX_BACKLOG;
+	private volatile StandardBusMessageCredits credits;
+	private StandardBusMessageInterest interest;
+	private volatile StandardBusPeerInterest peerInterest;
+	private int compressionThreshold;
+	private volatile StandardBusMessageCompression compression;
+	// whether frames are deflated; guarded by this
+	private boolean deflating;
+	// messages waiting for credit from the peer; guarded by this
+	private final Queue<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+	private volatile long pendingBytes;
+
+	// drops messages the peer has already sent and those it will replay
+	private final BusMessageHandler sequencer = new BusMessageHandler() {
+		@Override
+		public void onMessage(BusMessage msg) {
+			long sequence = StandardBusJournal.sequenceOf(msg);
+			if (StandardBusJournal.isReplayMessage(msg)) {
+				if (sequence > lastSequence) {
+					logger.warning(String.format(
+							"%d messages from %s are no longer retained",
+							sequence - lastSequence, uri));
+					lastSequence = sequence;
+				}
+				awaitingReplay = false;
+				return;
+			}
+			if (sequence < 0L) {
+				puller.onMessage(msg);
+				return;
+			}
+			if (awaitingReplay || sequence <= lastSequence) {
+				return;
+			}
+			puller.onMessage(msg);
+			lastSequence = sequence;
+		}
+	};
 	
 	public StandardSocketBusMessageConnection(URI uri, BusMessageSerialiser serialiser) throws IOException {
+		this(uri, serialiser, StandardBusMessageFrameBuffer.DEFAULT_MAX_FRAME_SIZE);
+	}
+
+	public StandardSocketBusMessageConnection(URI uri, BusMessageSerialiser serialiser,
+			int maxFrameSize) throws IOException {
 		this.uri = uri;
 		this.executor = Executors.newSingleThreadExecutor();
 		this.closeHooks = new LinkedList<Closeable>();
 		this.serialiser = serialiser;
+		this.maxFrameSize = maxFrameSize;
+		this.metrics = new StandardBusConnectionMetrics(uri.toString());
 	}
 
 	public StandardSocketBusMessageConnection(String hostname, int port, BusMessageSerialiser serialiser)
@@ -40,23 +111,334 @@ class StandardSocketBusMessageConnection implements BusMessageConnection {
 
 	@Override
 	public void start() throws IOException {
-		if ("socket".equals(uri.getScheme())) {
-			this.socket = new Socket(uri.getHost(), uri.getPort());
+		connect();
+	}
+
+	private void connect() throws IOException {
+		Socket socket = null;
+		if ("socket".equals(uri.getScheme()) || "nio".equals(uri.getScheme())) {
+			socket = new Socket(uri.getHost(), uri.getPort());
 		} else if ("ssl".equals(uri.getScheme())) {
-			this.socket = SSLSocketFactory.getDefault().createSocket(
-					uri.getHost(), uri.getPort());
+			socket = SSLSocketFactory.getDefault().createSocket(uri.getHost(),
+					uri.getPort());
+		}
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				socket.getOutputStream()));
+		if (replay) {
+			awaitingReplay = true;
+		}
+		StandardBusMessageCredits credits = new StandardBusMessageCredits(
+				replay ? sequencer : puller, new StandardBusMessageCredits.Peer() {
+					@Override
+					public void sendCredits(BusMessage msg) throws IOException {
+						sendControl(msg);
+					}
+
+					@Override
+					public void creditsGranted() {
+						release();
+					}
+				}, creditWindow);
+		StandardBusPeerInterest peerInterest = new StandardBusPeerInterest(
+				credits);
+		StandardBusMessageCompression compression = new StandardBusMessageCompression(
+				peerInterest, compressionPeer(socket), compressionThreshold,
+				maxFrameSize);
+		StandardBusMessageCompression previous;
+		synchronized (this) {
+			previous = this.compression;
+			this.socket = socket;
+			this.in = in;
+			this.out = out;
+			this.credits = credits;
+			// the peer advertises its interest afresh too
+			this.peerInterest = peerInterest;
+			// and compression is negotiated afresh
+			this.compression = compression;
+			deflating = false;
+			// credit is granted afresh by the new connection
+			pending.clear();
+			pendingBytes = 0L;
+			if (lingerMicros >= 0L) {
+				if (batchTimer == null) {
+					batchTimer = Executors.newSingleThreadScheduledExecutor();
+				}
+				batchWriter = new StandardSocketBusMessageBatchWriter(
+						socket.getOutputStream(), batchTimer, lingerMicros,
+						maxBatchBytes);
+				metrics.setBatchStatistics(batchWriter);
+			}
+		}
+		if (previous != null) {
+			// its reader has stopped so the lost connection's streams can go
+			previous.close();
+		}
+		compression.start();
+		if (interest != null) {
+			interest.addAdvertiser(advertiser(socket));
+		}
+		if (replay) {
+			// sent after our interest so that the peer only replays what we want
+			sendControl(StandardBusJournal.replayMessage(lastSequence + 1L));
+		}
+		credits.start();
+		final StandardSocketBusMessageConnectionStreamReader reader = new StandardSocketBusMessageConnectionStreamReader(
+				in, compression.reading(serialiser), compression, maxFrameSize,
+				metrics);
+		executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try {
+					return reader.call();
+				} finally {
+					if (replay && !closed) {
+						reconnect();
+					}
+				}
+			}
+		});
+	}
+
+	// advertises interest on the given socket for as long as it is connected
+	private StandardBusMessageInterest.Advertiser advertiser(
+			final Socket connected) {
+		return new StandardBusMessageInterest.Advertiser() {
+			@Override
+			public boolean advertise(BusMessage msg) {
+				synchronized (StandardSocketBusMessageConnection.this) {
+					if (closed || socket != connected) {
+						return false;
+					}
+					try {
+						write(serialiser.toBuffer(msg));
+						return true;
+					} catch (IOException e) {
+						logger.info(String.format(
+								"Failed to advertise interest to %s: %s", uri,
+								e.getMessage()));
+						return false;
+					}
+				}
+			}
+		};
+	}
+
+	// negotiates compression on the given socket for as long as it is connected
+	private StandardBusMessageCompression.Peer compressionPeer(
+			final Socket connected) {
+		return new StandardBusMessageCompression.Peer() {
+			@Override
+			public void sendOffer(BusMessage msg) throws IOException {
+				sendControl(msg);
+			}
+
+			@Override
+			public void startDeflating(BusMessage msg) throws IOException {
+				synchronized (StandardSocketBusMessageConnection.this) {
+					if (closed || socket != connected) {
+						return;
+					}
+					write(serialiser.toBuffer(msg));
+					deflating = true;
+				}
+			}
+		};
+	}
+
+	private void reconnect() {
+		long delay = INITIAL_RECONNECT_DELAY_MILLIS;
+		logger.info(String.format("Lost connection to %s at sequence %d", uri,
+				lastSequence));
+		while (!closed) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				connect();
+				logger.info(String.format("Reconnected to %s", uri));
+				return;
+			} catch (IOException e) {
+				delay = Math.min(delay * 2L, MAX_RECONNECT_DELAY_MILLIS);
+			}
+		}
+	}
+
+	@Override
+	public void setInterest(StandardBusMessageInterest interest) {
+		this.interest = interest;
+	}
+
+	/**
+	 * Asks the peer, which must be a bus server with a journal, to replay
+	 * every message from the given sequence once connected. If the peer is
+	 * lost the connection keeps trying to reconnect and asks for replay from
+	 * the last message received; messages pushed while disconnected are
+	 * dropped. Must be called before {@link #start()}.
+	 */
+	void setReplay(long fromSequence) {
+		this.replay = true;
+		this.lastSequence = fromSequence - 1L;
+	}
+
+	/**
+	 * @return the sequence of the last message received from a journalled
+	 *         peer, or one less than the sequence replay was requested from
+	 */
+	long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * Offers the peer compression of every frame of at least threshold bytes
+	 * exchanged with it. A peer which does not support compression ignores
+	 * the offer. Must be called before {@link #start()}.
+	 */
+	void setCompression(int threshold) {
+		if (threshold <= 0) {
+			throw new IllegalArgumentException("Threshold must be positive");
+		}
+		this.compressionThreshold = threshold;
+	}
+
+	/**
+	 * @return true once the peer has started sending compressed frames
+	 */
+	boolean isCompressed() {
+		StandardBusMessageCompression compression = this.compression;
+		return compression != null && compression.isInflating();
+	}
+
+	/**
+	 * Batches outbound messages rather than writing each one as it is pushed.
+	 * A batch is written once it reaches maxBatchBytes or lingerMicros after
+	 * its first message was pushed. Must be called before {@link #start()}.
+	 */
+	void setBatching(long lingerMicros, int maxBatchBytes) {
+		if (lingerMicros < 0L || maxBatchBytes <= 0) {
+			throw new IllegalArgumentException(
+					"Linger time must not be negative and batch size must be positive");
 		}
-		this.in = new DataInputStream(socket.getInputStream());
-		this.out = new DataOutputStream(socket.getOutputStream());
-		executor.submit(new StandardSocketBusMessageConnectionStreamReader(in,
-				serialiser, new StandardSocketBusMessageConnectionPuller(
-						subscriptions)));
+		this.lingerMicros = lingerMicros;
+		this.maxBatchBytes = maxBatchBytes;
+	}
+
+	/**
+	 * @return the batching counters or null if batching is not enabled
+	 */
+	BusBatchStatistics getBatchStatistics() {
+		return batchWriter;
+	}
+
+	@Override
+	public StandardBusConnectionMetrics getMetrics() {
+		return metrics;
 	}
 
 	@Override
 	public void push(BusMessage msg) throws IOException {
-		byte[] data = serialiser.toBytes(msg);
-		out.write(data);
+		StandardBusPeerInterest peerInterest = this.peerInterest;
+		if (peerInterest != null && !peerInterest.wants(msg)) {
+			return;
+		}
+		ByteBuffer payload = serialiser.toBuffer(msg);
+		metrics.messageOut(StandardBusMessageFrameBuffer.HEADER_SIZE
+				+ payload.remaining());
+		try {
+			synchronized (this) {
+				if (!pending.isEmpty() || !credits.tryAcquire()) {
+					buffer(payload);
+					return;
+				}
+				write(payload);
+			}
+		} catch (IOException e) {
+			if (!replay || closed) {
+				throw e;
+			}
+			// dropped while reconnecting rather than detaching this connection
+		}
+	}
+
+	// you must hold the lock on this connection to call this method
+	private void write(ByteBuffer payload) throws IOException {
+		if (deflating) {
+			payload = compression.deflate(payload);
+		}
+		if (batchWriter != null) {
+			batchWriter.write(payload);
+		} else {
+			StandardBusMessageFrameBuffer.writeFrame(out, payload);
+			out.flush();
+		}
+	}
+
+	// you must hold the lock on this connection to call this method
+	private void buffer(ByteBuffer payload) throws IOException {
+		if (pendingBytes + payload.remaining() > maxPendingBytes) {
+			throw new IOException(String.format(
+					"%s has granted no credit for %d buffered bytes", uri,
+					pendingBytes));
+		}
+		// the serialiser reuses its buffer so keep a copy
+		ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+		copy.put(payload).flip();
+		pending.add(copy);
+		pendingBytes += copy.remaining();
+	}
+
+	private void sendControl(BusMessage msg) throws IOException {
+		synchronized (this) {
+			write(serialiser.toBuffer(msg));
+		}
+	}
+
+	// writes buffered messages once the peer has granted more credit
+	private void release() {
+		try {
+			synchronized (this) {
+				while (!pending.isEmpty() && credits.tryAcquire()) {
+					ByteBuffer payload = pending.poll();
+					pendingBytes -= payload.remaining();
+					write(payload);
+				}
+			}
+		} catch (IOException e) {
+			logger.info(String.format("Failed to write to %s: %s", uri,
+					e.getMessage()));
+		}
+	}
+
+	/**
+	 * Grants the peer credit for window messages at a time, so that it stops
+	 * sending once this connection has fallen window messages behind. Must
+	 * be called before {@link #start()}.
+	 */
+	void setFlowControl(int window) {
+		this.creditWindow = window;
+	}
+
+	/**
+	 * Sets the number of bytes which may wait for credit from the peer before
+	 * further pushes fail, and the bus server detaches this connection.
+	 */
+	void setMaxPendingBytes(long maxPendingBytes) {
+		this.maxPendingBytes = maxPendingBytes;
+	}
+
+	/**
+	 * @return the credit granted by the peer which remains, or
+	 *         {@link Long#MAX_VALUE} if the peer is not flow controlled
+	 */
+	long getCredits() {
+		return credits.getCredits();
+	}
+
+	@Override
+	public boolean isCongested() {
+		return pendingBytes > maxPendingBytes / 2L;
 	}
 
 	@Override
@@ -69,6 +451,17 @@ class StandardSocketBusMessageConnection implements BusMessageConnection {
 
 	@Override
 	public void close() throws IOException {
+		closed = true;
+		StandardSocketBusMessageBatchWriter batchWriter = this.batchWriter;
+		if (batchWriter != null) {
+			try {
+				batchWriter.flush(BusBatchFlushReason.CLOSE);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			batchTimer.shutdownNow();
+		}
+
 		for (Closeable c : closeHooks) {
 			try {
 				c.close();
@@ -82,6 +475,10 @@ class StandardSocketBusMessageConnection implements BusMessageConnection {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		StandardBusMessageCompression compression = this.compression;
+		if (compression != null) {
+			compression.close();
+		}
 		executor.shutdownNow();
 	}
 
@@ -1,44 +1,74 @@
 package com.minorityhobbies.util.bus;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.concurrent.Callable;
 
-final class StandardSocketBusMessageConnectionStreamReader implements Callable<Void> {
+final class StandardSocketBusMessageConnectionStreamReader implements Callable<Void>,
+		StandardBusMessageFrameBuffer.FrameHandler {
 	private final InputStream in;
 	private final BusMessageSerialiser serialiser;
 	private final BusMessageHandler handler;
+	private final StandardBusMessageFrameBuffer frames;
+	private final StandardBusConnectionMetrics metrics;
 	
 	public StandardSocketBusMessageConnectionStreamReader(InputStream in,
 			BusMessageSerialiser serialiser, BusMessageHandler handler) {
+		this(in, serialiser, handler,
+				StandardBusMessageFrameBuffer.DEFAULT_MAX_FRAME_SIZE);
+	}
+
+	public StandardSocketBusMessageConnectionStreamReader(InputStream in,
+			BusMessageSerialiser serialiser, BusMessageHandler handler,
+			int maxFrameSize) {
+		this(in, serialiser, handler, maxFrameSize, null);
+	}
+
+	/**
+	 * @param metrics
+	 *            counts each message read or null
+	 */
+	public StandardSocketBusMessageConnectionStreamReader(InputStream in,
+			BusMessageSerialiser serialiser, BusMessageHandler handler,
+			int maxFrameSize, StandardBusConnectionMetrics metrics) {
 		super();
 		this.in = in;
 		this.serialiser = serialiser;
 		this.handler = handler;
+		this.frames = new StandardBusMessageFrameBuffer(maxFrameSize);
+		this.metrics = metrics;
 	}
 
 	@Override
 	public Void call() throws Exception {
-		while (!Thread.currentThread().isInterrupted()) {
-			read();
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				if (!read()) {
+					break;
+				}
+			}
+		} finally {
+			in.close();
 		}
 		return null;
 	}
 
-	void read() throws IOException {
-		byte[] b = new byte[1024 * 32];
-		for (int read = 0; (read = in.read(b)) > -1; ) {
-			ByteArrayOutputStream bos = new ByteArrayOutputStream();
-			for (int i = 0; i < read; i++) {
-				if (b[i] != 4) {
-					bos.write(b[i]);
-				} else {
-					handler.onMessage(serialiser.fromBytes(Arrays.copyOfRange(b, 0, i)));
-					bos = new ByteArrayOutputStream();
-				}
-			}
+	/**
+	 * Reads once from the stream and dispatches every complete message.
+	 * 
+	 * @return false once the end of the stream has been reached
+	 */
+	boolean read() throws IOException {
+		return frames.read(in, this) > -1;
+	}
+
+	@Override
+	public void onFrame(ByteBuffer frame) throws IOException {
+		if (metrics != null) {
+			metrics.messageIn(StandardBusMessageFrameBuffer.HEADER_SIZE
+					+ frame.remaining());
 		}
+		handler.onMessage(serialiser.fromBuffer(frame));
 	}
-}
\ No newline at end of file
+}
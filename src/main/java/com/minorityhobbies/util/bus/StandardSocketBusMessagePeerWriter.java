@@ -0,0 +1,299 @@
+package com.minorityhobbies.util.bus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Writes frames to a single peer from its own queue so that one slow peer
+ * cannot hold up writes to any other. Frames queued while a write is in
+ * progress are coalesced into a single write on the next pass.
+ *
+ * A peer whose queued bytes exceed the maximum backlog is detached: its queue
+ * is discarded and the close hook is called.
+ *
+ * While the peer is replaying the journal, sequenced frames sent through
+ * {@link #send(long, ByteBuffer)} are held back and sent once the replay has
+ * caught up, skipping any the replay already covered.
+ *
+ * Once the peer grants credit, a frame is written only while credit remains
+ * and the rest wait in the queue. Control frames need no credit and are
+ * written ahead of queued frames.
+ *
+ * Once compression has started, every frame written after the start frame
+ * is deflated as it is written.
+ */
+final class StandardSocketBusMessagePeerWriter implements Runnable {
+	static final int DEFAULT_MAX_BACKLOG = 8 * 1024 * 1024;
+	private static final int COALESCE_BUFFER_SIZE = 64 * 1024;
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+	private final Object peer;
+	private final OutputStream out;
+	private final Executor executor;
+	private final long maxBacklog;
+	private final Closeable closeHook;
+	private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final Queue<ByteBuffer> control = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicLong backlog = new AtomicLong();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private final byte[] coalesce = new byte[COALESCE_BUFFER_SIZE];
+	// guarded by this
+	private final Map<Long, ByteBuffer> held = new LinkedHashMap<Long, ByteBuffer>();
+	private boolean replaying;
+	private long replayedTo = -1L;
+	private StandardBusMessageCredits credits;
+	private volatile ByteBuffer compressionStart;
+	private StandardBusMessageCompression compression;
+	// taken from a queue but not yet written; only used by the running task
+	private ByteBuffer carried;
+	// only used by the running task
+	private boolean deflating;
+	private ByteBuffer deflated = ByteBuffer.allocate(0);
+
+	public StandardSocketBusMessagePeerWriter(Object peer, OutputStream out,
+			Executor executor, long maxBacklog, Closeable closeHook) {
+		super();
+		this.peer = peer;
+		this.out = out;
+		this.executor = executor;
+		this.maxBacklog = maxBacklog;
+		this.closeHook = closeHook;
+	}
+
+	/**
+	 * Queues a frame for this peer. The buffer must not be modified once
+	 * queued; read-only duplicates of a shared frame may be sent to many peers.
+	 */
+	void send(ByteBuffer frame) {
+		if (closed.get()) {
+			return;
+		}
+		outbound.add(frame);
+		if (backlog.addAndGet(frame.remaining()) > maxBacklog) {
+			logger.info(String.format(
+					"Detaching %s: backlog of %d bytes exceeds %d", peer,
+					backlog.get(), maxBacklog));
+			close();
+			return;
+		}
+		schedule();
+	}
+
+	/**
+	 * Queues a control frame, which is written ahead of other frames and
+	 * needs no credit.
+	 */
+	void sendControl(ByteBuffer frame) {
+		if (closed.get()) {
+			return;
+		}
+		control.add(frame);
+		backlog.addAndGet(frame.remaining());
+		schedule();
+	}
+
+	/**
+	 * Queues the control frame which starts compression, and deflates every
+	 * frame written after it.
+	 */
+	void startDeflating(ByteBuffer frame) {
+		this.compressionStart = frame;
+		sendControl(frame);
+	}
+
+	/**
+	 * Sets the compression negotiated with the peer. Must be called before
+	 * any frame is sent.
+	 */
+	void setCompression(StandardBusMessageCompression compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Limits frames to the credit granted by the peer. Must be called before
+	 * any frame is sent.
+	 */
+	void setCredits(StandardBusMessageCredits credits) {
+		this.credits = credits;
+	}
+
+	void creditsGranted() {
+		schedule();
+	}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			executor.execute(this);
+		}
+	}
+
+	/**
+	 * @return true if more than half the maximum backlog is queued
+	 */
+	boolean isCongested() {
+		return backlog.get() > maxBacklog / 2L;
+	}
+
+	/**
+	 * Queues a frame carrying the given journal sequence.
+	 */
+	synchronized void send(long sequence, ByteBuffer frame) {
+		if (sequence <= replayedTo) {
+			return;
+		}
+		if (replaying) {
+			held.put(sequence, frame);
+			return;
+		}
+		send(frame);
+	}
+
+	synchronized void beginReplay() {
+		replaying = true;
+	}
+
+	/**
+	 * Sends the frames held during the replay which it did not cover.
+	 * 
+	 * @param lastReplayed
+	 *            sequence of the last message the replay covered
+	 */
+	synchronized void endReplay(long lastReplayed) {
+		replayedTo = lastReplayed;
+		for (Map.Entry<Long, ByteBuffer> frame : held.entrySet()) {
+			if (frame.getKey() > lastReplayed) {
+				send(frame.getValue());
+			}
+		}
+		held.clear();
+		replaying = false;
+	}
+
+	boolean isClosed() {
+		return closed.get();
+	}
+
+	long getBacklog() {
+		return backlog.get();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!closed.get()) {
+				int length = 0;
+				for (ByteBuffer frame; (frame = next()) != null;) {
+					int size = frame.remaining();
+					if (length + size > coalesce.length) {
+						if (length == 0) {
+							// larger than the coalescing buffer so write it alone
+							write(frame);
+						} else {
+							carried = frame;
+						}
+						break;
+					}
+					frame.get(coalesce, length, size);
+					length += size;
+				}
+				if (length > 0) {
+					out.write(coalesce, 0, length);
+				}
+				if (!hasWritable()) {
+					out.flush();
+					scheduled.set(false);
+					// a frame or credit may have arrived after the check above
+					if (!hasWritable() || !scheduled.compareAndSet(false, true)) {
+						return;
+					}
+				}
+			}
+		} catch (IOException e) {
+			logger.info(String.format("Dropping connection from %s: %s", peer,
+					e.getMessage()));
+			close();
+		}
+	}
+
+	// takes the next frame off the queues, ready to be written
+	private ByteBuffer next() {
+		ByteBuffer frame = carried;
+		if (frame != null) {
+			carried = null;
+			return frame;
+		}
+		frame = control.poll();
+		if (frame == null) {
+			if (outbound.isEmpty()
+					|| (credits != null && !credits.tryAcquire())) {
+				return null;
+			}
+			frame = outbound.poll();
+			if (frame == null) {
+				// cleared by close
+				return null;
+			}
+		}
+		backlog.addAndGet(-frame.remaining());
+		if (deflating) {
+			return deflate(frame);
+		}
+		if (frame == compressionStart) {
+			deflating = true;
+		}
+		return frame;
+	}
+
+	// valid until the next call
+	private ByteBuffer deflate(ByteBuffer frame) {
+		ByteBuffer payload = frame.duplicate();
+		payload.position(payload.position()
+				+ StandardBusMessageFrameBuffer.HEADER_SIZE);
+		ByteBuffer body = compression.deflate(payload);
+		int size = StandardBusMessageFrameBuffer.HEADER_SIZE + body.remaining();
+		if (deflated.capacity() < size) {
+			deflated = ByteBuffer.allocate(Math.max(size,
+					deflated.capacity() * 2));
+		}
+		deflated.clear();
+		deflated.putInt(body.remaining()).put(body).flip();
+		return deflated;
+	}
+
+	private boolean hasWritable() {
+		return carried != null || !control.isEmpty()
+				|| (!outbound.isEmpty() && (credits == null || credits.hasCredit()));
+	}
+
+	private void write(ByteBuffer frame) throws IOException {
+		byte[] b = new byte[frame.remaining()];
+		frame.get(b);
+		out.write(b);
+	}
+
+	void close() {
+		if (closed.compareAndSet(false, true)) {
+			outbound.clear();
+			control.clear();
+			if (compression != null) {
+				compression.close();
+			}
+			try {
+				closeHook.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
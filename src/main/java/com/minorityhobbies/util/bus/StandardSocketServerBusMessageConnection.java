@@ -1,48 +1,78 @@
 package com.minorityhobbies.util.bus;
 
-import java.io.DataOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Logger;
 
 import javax.net.ssl.SSLServerSocketFactory;
 
-class StandardSocketServerBusMessageConnection implements BusMessageConnection {
+class StandardSocketServerBusMessageConnection implements BusMessageConnection,
+		StandardBusMeteredConnection, StandardBusJournalledConnection,
+		StandardBusFlowControlledConnection, StandardBusInterestedConnection {
 	private final Logger logger = Logger.getLogger(getClass().getName());
 	private final URI localServiceUri;
 	private final ServerSocket server;
 	private final ExecutorService executor;
-	private final BusMessageSerialiser serialiser = new StandardBusMessageSerialiser();
-	private final Map<Socket, Socket> connections = new ConcurrentHashMap<Socket, Socket>();
+	private final BusMessageSerialiser serialiser;
+	private final int maxFrameSize;
+	private final long maxBacklog;
+	private final StandardBusConnectionMetrics metrics;
+	private final Map<Socket, StandardSocketBusMessagePeerWriter> connections = new ConcurrentHashMap<Socket, StandardSocketBusMessagePeerWriter>();
+	private final Map<Socket, StandardBusPeerInterest> interests = new ConcurrentHashMap<Socket, StandardBusPeerInterest>();
 	private final Map<BusMessageSubscription, BusMessageHandler> subscriptions = new ConcurrentHashMap<BusMessageSubscription, BusMessageHandler>();
+	private final BusMessageHandler puller = new StandardSocketBusMessageConnectionPuller(
+			subscriptions);
+	private StandardBusJournal journal;
+	private StandardBusMessageInterest interest;
+	private int creditWindow;
 
 	public StandardSocketServerBusMessageConnection(int port)
 			throws IOException {
 		super();
 		this.executor = Executors.newCachedThreadPool();
+		this.serialiser = new StandardBusMessageSerialiser();
+		this.maxFrameSize = StandardBusMessageFrameBuffer.DEFAULT_MAX_FRAME_SIZE;
+		this.maxBacklog = StandardSocketBusMessagePeerWriter.DEFAULT_MAX_BACKLOG;
 		try {
 			this.localServiceUri = new URI(String.format("socket://0.0.0.0:%d",
 					port));
 		} catch (URISyntaxException e) {
 			throw new RuntimeException(e);
 		}
+		this.metrics = new StandardBusConnectionMetrics(localServiceUri.toString());
 		this.server = new ServerSocket();
 	}
 
 	public StandardSocketServerBusMessageConnection(URI localServiceUri)
 			throws IOException {
+		this(localServiceUri, new StandardBusMessageSerialiser(),
+				StandardBusMessageFrameBuffer.DEFAULT_MAX_FRAME_SIZE,
+				StandardSocketBusMessagePeerWriter.DEFAULT_MAX_BACKLOG);
+	}
+
+	public StandardSocketServerBusMessageConnection(URI localServiceUri,
+			BusMessageSerialiser serialiser, int maxFrameSize, long maxBacklog)
+			throws IOException {
 		super();
 		this.executor = Executors.newCachedThreadPool();
+		this.serialiser = serialiser;
+		this.maxFrameSize = maxFrameSize;
+		this.maxBacklog = maxBacklog;
 		this.localServiceUri = localServiceUri;
+		this.metrics = new StandardBusConnectionMetrics(localServiceUri.toString());
 		if ("socket".equals(localServiceUri.getScheme())) {
 			this.server = new ServerSocket();
 		} else if ("ssl".equals(localServiceUri.getScheme())) {
@@ -56,6 +86,8 @@ class StandardSocketServerBusMessageConnection implements BusMessageConnection {
 
 	@Override
 	public void start() throws IOException {
+		// so a restarted server can rebind while old connections linger
+		this.server.setReuseAddress(true);
 		this.server.bind(new InetSocketAddress(localServiceUri.getHost(),
 				localServiceUri.getPort()));
 		logger.info(String.format("Binding service at %s", localServiceUri));
@@ -65,17 +97,189 @@ class StandardSocketServerBusMessageConnection implements BusMessageConnection {
 			public Void call() throws Exception {
 				while (!Thread.currentThread().isInterrupted()) {
 					final Socket socket = server.accept();
-					connections.put(socket, socket);
-					executor.submit(new StandardSocketBusMessageConnectionStreamReader(
-							socket.getInputStream(), serialiser,
-							new StandardSocketBusMessageConnectionPuller(
-									subscriptions)));
+					final StandardSocketBusMessagePeerWriter writer = new StandardSocketBusMessagePeerWriter(
+							socket.getRemoteSocketAddress(), socket.getOutputStream(),
+							executor, maxBacklog, new Closeable() {
+								@Override
+								public void close() throws IOException {
+									connections.remove(socket);
+									interests.remove(socket);
+									socket.close();
+								}
+							});
+					BusMessageHandler handler = new BusMessageHandler() {
+						@Override
+						public void onMessage(BusMessage msg) {
+							if (!StandardBusJournal.isReplayMessage(msg)) {
+								puller.onMessage(msg);
+							} else if (journal != null) {
+								replay(writer, interests.get(socket),
+										socket.getRemoteSocketAddress(),
+										StandardBusJournal.sequenceOf(msg));
+							} else {
+								// a control message, never passed on
+								logger.info(String.format(
+										"Ignoring replay request from %s: this server has no journal",
+										socket.getRemoteSocketAddress()));
+							}
+						}
+					};
+					StandardBusMessageCredits credits = new StandardBusMessageCredits(
+							handler, new StandardBusMessageCredits.Peer() {
+								@Override
+								public void sendCredits(BusMessage msg)
+										throws IOException {
+									writer.sendControl(frame(msg));
+								}
+
+								@Override
+								public void creditsGranted() {
+									writer.creditsGranted();
+								}
+							}, creditWindow);
+					StandardBusPeerInterest peerInterest = new StandardBusPeerInterest(
+							credits);
+					StandardBusMessageCompression compression = new StandardBusMessageCompression(
+							peerInterest, new StandardBusMessageCompression.Peer() {
+								@Override
+								public void sendOffer(BusMessage msg)
+										throws IOException {
+									writer.sendControl(frame(msg));
+								}
+
+								@Override
+								public void startDeflating(BusMessage msg)
+										throws IOException {
+									writer.startDeflating(frame(msg));
+								}
+							}, 0, maxFrameSize);
+					writer.setCredits(credits);
+					writer.setCompression(compression);
+					interests.put(socket, peerInterest);
+					connections.put(socket, writer);
+					credits.start();
+					if (interest != null) {
+						interest.addAdvertiser(new StandardBusMessageInterest.Advertiser() {
+							@Override
+							public boolean advertise(BusMessage msg) {
+								if (writer.isClosed()) {
+									return false;
+								}
+								try {
+									writer.sendControl(frame(msg));
+									return true;
+								} catch (IOException e) {
+									logger.info(String.format(
+											"Failed to advertise interest to %s: %s",
+											socket.getRemoteSocketAddress(),
+											e.getMessage()));
+									return false;
+								}
+							}
+						});
+					}
+					final StandardSocketBusMessageConnectionStreamReader reader = new StandardSocketBusMessageConnectionStreamReader(
+							socket.getInputStream(),
+							compression.reading(serialiser), compression,
+							maxFrameSize, metrics);
+					executor.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							try {
+								return reader.call();
+							} finally {
+								writer.close();
+							}
+						}
+					});
 				}
 				return null;
 			}
 		});
 	}
 
+	/**
+	 * Grants each peer credit for window messages at a time, so that a peer
+	 * stops sending once this connection has fallen window messages behind.
+	 * Must be called before {@link #start()}.
+	 */
+	void setFlowControl(int window) {
+		this.creditWindow = window;
+	}
+
+	@Override
+	public boolean isCongested() {
+		for (StandardSocketBusMessagePeerWriter writer : connections.values()) {
+			if (writer.isCongested()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void setJournal(StandardBusJournal journal) {
+		this.journal = journal;
+	}
+
+	@Override
+	public void setInterest(StandardBusMessageInterest interest) {
+		this.interest = interest;
+	}
+
+	/**
+	 * Sends the peer every retained message it wants from the given sequence,
+	 * on the peer's reader thread, holding back messages pushed in the
+	 * meantime.
+	 */
+	private void replay(final StandardSocketBusMessagePeerWriter writer,
+			final StandardBusPeerInterest peerInterest, Object peer,
+			long fromSequence) {
+		long lastReplayed = -1L;
+		writer.beginReplay();
+		try {
+			long first = Math.max(fromSequence, journal.getFirstSequence());
+			if (first > fromSequence) {
+				logger.warning(String.format(
+						"Replay for %s from %d starts at %d: earlier messages are no longer retained",
+						peer, fromSequence, first));
+			}
+			writer.send(frame(StandardBusJournal.replayMessage(first - 1L)));
+			lastReplayed = journal.replay(first,
+					new StandardBusJournal.RecordHandler() {
+						@Override
+						public void onRecord(long sequence, BusMessage msg)
+								throws IOException {
+							if (peerInterest != null && !peerInterest.wants(msg)) {
+								return;
+							}
+							// leave room for live messages in the backlog
+							while (writer.getBacklog() > maxBacklog / 2) {
+								if (writer.isClosed()) {
+									throw new IOException("Peer disconnected");
+								}
+								LockSupport.parkNanos(TimeUnit.MILLISECONDS
+										.toNanos(1L));
+							}
+							writer.send(frame(StandardBusJournal.sequenced(msg,
+									sequence)));
+						}
+					});
+		} catch (IOException e) {
+			logger.info(String.format("Replay for %s failed: %s", peer,
+					e.getMessage()));
+		} finally {
+			writer.endReplay(lastReplayed);
+		}
+	}
+
+	private ByteBuffer frame(BusMessage msg) throws IOException {
+		ByteBuffer frame = StandardBusMessageFrameBuffer.toFrame(serialiser
+				.toBuffer(msg));
+		metrics.messageOut(frame.remaining());
+		return frame;
+	}
+
 	@Override
 	public void close() throws IOException {
 		try {
@@ -97,12 +301,39 @@ class StandardSocketServerBusMessageConnection implements BusMessageConnection {
 
 	@Override
 	public void push(BusMessage msg) throws IOException {
-		for (Socket connection : connections.keySet()) {
-			DataOutputStream out = new DataOutputStream(
-					connection.getOutputStream());
-			out.write(serialiser.toBytes(msg));
-			out.flush();
+		if (connections.isEmpty()) {
+			return;
 		}
+		ByteBuffer shared = null;
+		long sequence = journal != null ? StandardBusJournal.sequenceOf(msg) : -1L;
+		for (Map.Entry<Socket, StandardSocketBusMessagePeerWriter> connection : connections
+				.entrySet()) {
+			StandardBusPeerInterest peerInterest = interests.get(connection
+					.getKey());
+			if (peerInterest != null && !peerInterest.wants(msg)) {
+				continue;
+			}
+			if (shared == null) {
+				shared = StandardBusMessageFrameBuffer.toFrame(
+						serialiser.toBuffer(msg)).asReadOnlyBuffer();
+			}
+			StandardSocketBusMessagePeerWriter writer = connection.getValue();
+			if (sequence >= 0L) {
+				writer.send(sequence, shared.duplicate());
+			} else {
+				writer.send(shared.duplicate());
+			}
+			metrics.messageOut(shared.remaining());
+		}
+	}
+
+	@Override
+	public StandardBusConnectionMetrics getMetrics() {
+		return metrics;
+	}
+
+	int getConnectionCount() {
+		return connections.size();
 	}
 
 	@Override
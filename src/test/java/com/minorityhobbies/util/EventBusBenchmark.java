@@ -0,0 +1,77 @@
+package com.minorityhobbies.util;
+
+import java.io.Closeable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the throughput of {@link ProcessEventBus} with
+ * {@link RingBufferEventBus} under each of its wait strategies, with 1, 4 and
+ * 16 threads publishing at once. Run as a plain Java application; results are
+ * printed to standard output.
+ */
+public class EventBusBenchmark {
+    private static final int EVENTS = 2000000;
+    private static final int WARMUP_EVENTS = 200000;
+
+    private interface BusFactory {
+        AbstractEventBus<Long> create();
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int publishers : new int[] { 1, 4, 16 }) {
+            run("queue", publishers, ProcessEventBus::new);
+            for (RingBufferEventBus.WaitStrategy waitStrategy : RingBufferEventBus.WaitStrategy.values()) {
+                run("ring " + waitStrategy, publishers,
+                        () -> new RingBufferEventBus<>(RingBufferEventBus.DEFAULT_CAPACITY, waitStrategy));
+            }
+        }
+    }
+
+    private static void run(String name, int publishers, BusFactory factory) throws Exception {
+        try (AbstractEventBus<Long> bus = factory.create()) {
+            publish(bus, publishers, WARMUP_EVENTS);
+            long nanos = publish(bus, publishers, EVENTS);
+            System.out.println(String.format("%-16s publishers=%2d %12.0f events/s",
+                    name, publishers, EVENTS * 1e9 / nanos));
+        }
+    }
+
+    // the time from the first publish until every event has been delivered
+    private static long publish(AbstractEventBus<Long> bus, int publishers, int events) throws Exception {
+        AtomicLong received = new AtomicLong();
+        CountDownLatch delivered = new CountDownLatch(1);
+        int perPublisher = events / publishers;
+        long total = (long) perPublisher * publishers;
+        try (Closeable handle = bus.subscribe(e -> {
+            if (received.incrementAndGet() == total) {
+                delivered.countDown();
+            }
+        })) {
+            CountDownLatch go = new CountDownLatch(1);
+            Thread[] threads = new Thread[publishers];
+            for (int p = 0; p < publishers; p++) {
+                threads[p] = new Thread(() -> {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    Long event = 1L;
+                    for (int i = 0; i < perPublisher; i++) {
+                        bus.publish(event);
+                    }
+                });
+                threads[p].start();
+            }
+            long start = System.nanoTime();
+            go.countDown();
+            delivered.await();
+            long nanos = System.nanoTime() - start;
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            return nanos;
+        }
+    }
+}
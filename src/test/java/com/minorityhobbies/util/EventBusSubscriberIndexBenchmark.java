@@ -0,0 +1,85 @@
+package com.minorityhobbies.util;
+
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Compares dispatching events to 10,000 subscribers which each want one key
+ * when they filter with {@link EventBusSubscriber#matches()}, and so are all
+ * tested against every event, with subscribing through the key index of
+ * {@link EventBus#subscribe(Function, Object, EventBusSubscriber)}. Events are
+ * dispatched on the publishing thread to measure the lookup alone. The type
+ * index is measured with one subscriber to the published type and the rest
+ * subscribed to another. Run as a
+ * plain Java application; results are printed to standard output.
+ */
+public class EventBusSubscriberIndexBenchmark {
+    private static final int SUBSCRIBERS = 10000;
+    private static final int WARMUP_EVENTS = 500000;
+    private static final int EVENTS = 1000000;
+    private static long delivered;
+
+    private static class DirectEventBus<T> extends AbstractEventBus<T> {
+        @Override
+        public void publish(T event) {
+            dispatch(event);
+        }
+
+        @Override
+        protected void onClose() {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Function<Integer, Integer> key = e -> e % SUBSCRIBERS;
+
+        DirectEventBus<Integer> scanned = new DirectEventBus<>();
+        for (int i = 0; i < SUBSCRIBERS; i++) {
+            final int wanted = i;
+            scanned.subscribe(new EventBusSubscriber<Integer>() {
+                @Override
+                public void onEvent(Integer event) {
+                    delivered++;
+                }
+
+                @Override
+                public Predicate<Integer> matches() {
+                    return e -> key.apply(e) == wanted;
+                }
+            });
+        }
+        run("predicate scan", scanned);
+
+        DirectEventBus<Integer> indexed = new DirectEventBus<>();
+        for (int i = 0; i < SUBSCRIBERS; i++) {
+            indexed.subscribe(key, i, e -> delivered++);
+        }
+        run("key index", indexed);
+
+        // one subscriber wants the events and the rest another type
+        DirectEventBus<Object> typed = new DirectEventBus<>();
+        typed.subscribe(Integer.class, e -> delivered++);
+        for (int i = 1; i < SUBSCRIBERS; i++) {
+            typed.subscribe(String.class, e -> delivered++);
+        }
+        run("type index", typed);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void run(String name, DirectEventBus<T> bus) {
+        // the scan is too slow to run as many events through
+        int scale = name.startsWith("predicate") ? 100 : 1;
+        for (int i = 0; i < WARMUP_EVENTS / scale; i++) {
+            bus.publish((T) Integer.valueOf(i));
+        }
+        delivered = 0L;
+        int events = EVENTS / scale;
+        long start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            bus.publish((T) Integer.valueOf(i));
+        }
+        long nanos = System.nanoTime() - start;
+        System.out.println(String.format("%-16s subscribers=%d %10.1f ns/event delivered=%d",
+                name, SUBSCRIBERS, (double) nanos / events, delivered));
+    }
+}
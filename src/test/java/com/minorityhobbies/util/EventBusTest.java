@@ -5,7 +5,13 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 public class EventBusTest {
     private ProcessEventBus<String> testBus;
@@ -36,4 +42,78 @@ public class EventBusTest {
         }
         assertEquals("foo", result.get());
     }
+
+    private static void await(List<?> received, int count) throws InterruptedException {
+        for (int i = 0; received.size() < count && i < 200; i++) {
+            Thread.sleep(10L);
+        }
+    }
+
+    @Test
+    public void typedSubscribersReceiveEventsOfTheirTypeAndSubtypes() throws Exception {
+        try (ProcessEventBus<Object> bus = new ProcessEventBus<>()) {
+            List<Object> numbers = new CopyOnWriteArrayList<>();
+            List<Object> strings = new CopyOnWriteArrayList<>();
+            bus.subscribe(Number.class, numbers::add);
+            Closeable handle = bus.subscribe(String.class, s -> strings.add(s.length()));
+            bus.publish(1);
+            bus.publish("foo");
+            bus.publish(2L);
+            await(numbers, 2);
+            await(strings, 1);
+            assertEquals("[1, 2]", numbers.toString());
+            assertEquals("[3]", strings.toString());
+
+            handle.close();
+            bus.publish("bar");
+            bus.publish(3.0);
+            await(numbers, 3);
+            assertEquals("[1, 2, 3.0]", numbers.toString());
+            assertEquals("[3]", strings.toString());
+        }
+    }
+
+    @Test
+    public void keyedSubscribersOnlyReceiveTheirKey() throws Exception {
+        Function<String, Character> firstLetter = s -> s.charAt(0);
+        try (ProcessEventBus<String> bus = new ProcessEventBus<>()) {
+            List<String> a = new CopyOnWriteArrayList<>();
+            List<String> b = new CopyOnWriteArrayList<>();
+            bus.subscribe(firstLetter, 'a', a::add);
+            bus.subscribe(firstLetter, 'b', b::add);
+            for (String event : new String[] { "apple", "banana", "cherry", "avocado" }) {
+                bus.publish(event);
+            }
+            await(a, 2);
+            await(b, 1);
+            assertEquals("[apple, avocado]", a.toString());
+            assertEquals("[banana]", b.toString());
+        }
+    }
+
+    @Test
+    public void predicateIsOnlyAskedForOnce() throws Exception {
+        AtomicInteger asked = new AtomicInteger();
+        List<String> received = new CopyOnWriteArrayList<>();
+        try (ProcessEventBus<String> bus = new ProcessEventBus<>()) {
+            bus.subscribe(new EventBusSubscriber<String>() {
+                @Override
+                public void onEvent(String event) {
+                    received.add(event);
+                }
+
+                @Override
+                public Predicate<String> matches() {
+                    asked.incrementAndGet();
+                    return e -> e.startsWith("a");
+                }
+            });
+            bus.publish("apple");
+            bus.publish("banana");
+            bus.publish("avocado");
+            await(received, 2);
+            assertEquals("[apple, avocado]", received.toString());
+            assertEquals(1, asked.get());
+        }
+    }
 }
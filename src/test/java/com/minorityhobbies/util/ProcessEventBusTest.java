@@ -7,11 +7,16 @@ import org.junit.Test;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Predicate;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class ProcessEventBusTest {
     private ProcessEventBus<String> eventBus;
@@ -104,4 +109,168 @@ public class ProcessEventBusTest {
 
         publishMessageAndTest("message2");
     }
+
+    @Test
+    public void subscribersMayChangeDuringDispatch() throws IOException, InterruptedException {
+        List<String> received = new CopyOnWriteArrayList<>();
+        AtomicReference<Closeable> first = new AtomicReference<>();
+        first.set(eventBus.subscribe(e -> {
+            received.add("first " + e);
+            try {
+                // unsubscribes itself and subscribes another while dispatching
+                first.get().close();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            eventBus.subscribe(e2 -> received.add("second " + e2));
+        }));
+        eventBus.publish("message1");
+        eventBus.publish("message2");
+        for (int i = 0; received.size() < 2 && i < 100; i++) {
+            Thread.sleep(10L);
+        }
+        Thread.sleep(50L);
+        assertEquals("[first message1, second message2]", received.toString());
+    }
+
+    @Test
+    public void partitionedEventsWithEqualKeysStayInOrder() throws Exception {
+        List<String> received = new CopyOnWriteArrayList<>();
+        try (ProcessEventBus<String> bus = new ProcessEventBus<>(e -> e.charAt(0), 4)) {
+            bus.subscribe(received::add);
+            for (int i = 0; i < 1000; i++) {
+                bus.publish((char) ('a' + i % 8) + "" + i);
+            }
+        }
+        // closing drains the queued events
+        assertEquals(1000, received.size());
+        int[] last = new int[8];
+        for (String e : received) {
+            int i = Integer.parseInt(e.substring(1));
+            assertTrue(e, i >= last[e.charAt(0) - 'a']);
+            last[e.charAt(0) - 'a'] = i;
+        }
+    }
+
+    @Test
+    public void partitionedEventsWithDifferentKeysAreDispatchedInParallel() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch other = new CountDownLatch(1);
+        try (ProcessEventBus<Integer> bus = new ProcessEventBus<>(e -> e, 2)) {
+            bus.subscribe(e -> {
+                try {
+                    if (e == 0) {
+                        release.await();
+                    } else {
+                        other.countDown();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            bus.publish(0);
+            bus.publish(2);
+            bus.publish(1);
+            assertTrue(other.await(5L, TimeUnit.SECONDS));
+            for (int i = 0; bus.getLaneDepth(0) > 1 && i < 100; i++) {
+                Thread.sleep(10L);
+            }
+            // 0 is being dispatched and 2 waits behind it
+            assertEquals(2, bus.getLaneCount());
+            assertEquals(1, bus.getLaneDepth(0));
+            assertEquals(0, bus.getLaneDepth(1));
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void batchModeDrainsQueuedEventsIntoOneCall() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        List<Integer> batched = new CopyOnWriteArrayList<>();
+        List<Integer> single = new CopyOnWriteArrayList<>();
+        try (ProcessEventBus<Integer> bus = new ProcessEventBus<>(64)) {
+            bus.subscribe(e -> {
+                try {
+                    // holds up the dispatcher while the rest are queued
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                single.add(e);
+            });
+            bus.subscribe((BatchEventBusSubscriber<Integer>) events -> {
+                batchSizes.add(events.size());
+                batched.addAll(events);
+            });
+            bus.publish(0);
+            for (int i = 0; bus.getLaneDepth(0) > 0 && i < 100; i++) {
+                Thread.sleep(10L);
+            }
+            for (int i = 1; i <= 100; i++) {
+                bus.publish(i);
+            }
+            release.countDown();
+        }
+        assertEquals(101, single.size());
+        assertEquals(101, batched.size());
+        for (int i = 0; i <= 100; i++) {
+            assertEquals(Integer.valueOf(i), single.get(i));
+            assertEquals(Integer.valueOf(i), batched.get(i));
+        }
+        // the first event alone, then the 100 queued behind it in 64 and 36
+        assertEquals("[1, 64, 36]", batchSizes.toString());
+    }
+
+    @Test
+    public void batchSizesAreRecorded() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ProcessEventBus<Integer> bus = new ProcessEventBus<>(e -> e, 1, 16);
+        try {
+            bus.subscribe(e -> {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            bus.publish(0);
+            for (int i = 0; bus.getLaneDepth(0) > 0 && i < 100; i++) {
+                Thread.sleep(10L);
+            }
+            for (int i = 1; i <= 20; i++) {
+                bus.publish(i);
+            }
+            release.countDown();
+        } finally {
+            bus.close();
+        }
+        long[] histogram = bus.getBatchSizeHistogram();
+        // batches of 1, 16 and 4
+        assertEquals(1L, histogram[0]);
+        assertEquals(1L, histogram[2]);
+        assertEquals(1L, histogram[4]);
+    }
+
+    @Test
+    public void eventsPublishedWhileClosingAreNotLeftQueued() throws Exception {
+        for (int run = 0; run < 20; run++) {
+            ProcessEventBus<Integer> bus = new ProcessEventBus<>(e -> e, 4);
+            CountDownLatch publishing = new CountDownLatch(1);
+            Thread publisher = new Thread(() -> {
+                for (int i = 0; !Thread.currentThread().isInterrupted(); i++) {
+                    bus.publish(i);
+                    publishing.countDown();
+                }
+            });
+            publisher.start();
+            assertTrue(publishing.await(5L, TimeUnit.SECONDS));
+            bus.close();
+            publisher.interrupt();
+            publisher.join();
+            for (int lane = 0; lane < bus.getLaneCount(); lane++) {
+                assertEquals(0, bus.getLaneDepth(lane));
+            }
+        }
+    }
 }
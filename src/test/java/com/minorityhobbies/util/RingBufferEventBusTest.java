@@ -0,0 +1,102 @@
+package com.minorityhobbies.util;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferEventBusTest {
+    private static void await(List<?> received, int count) throws InterruptedException {
+        for (int i = 0; received.size() < count && i < 500; i++) {
+            Thread.sleep(10L);
+        }
+    }
+
+    @Test
+    public void eventsAreDeliveredInOrderWithEachWaitStrategy() throws Exception {
+        for (RingBufferEventBus.WaitStrategy waitStrategy : RingBufferEventBus.WaitStrategy.values()) {
+            try (RingBufferEventBus<Integer> bus = new RingBufferEventBus<>(8, waitStrategy)) {
+                List<Integer> received = new CopyOnWriteArrayList<>();
+                bus.subscribe(received::add);
+                for (int i = 0; i < 100; i++) {
+                    bus.publish(i);
+                }
+                await(received, 100);
+                assertEquals(100, received.size());
+                for (int i = 0; i < 100; i++) {
+                    assertEquals(waitStrategy.toString(), Integer.valueOf(i), received.get(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void eventsFromManyPublishersWrapTheRing() throws Exception {
+        final int publishers = 4;
+        final int events = 5000;
+        try (RingBufferEventBus<int[]> bus = new RingBufferEventBus<>(16, RingBufferEventBus.WaitStrategy.PARK)) {
+            int[] last = new int[publishers];
+            AtomicInteger received = new AtomicInteger();
+            AtomicInteger outOfOrder = new AtomicInteger();
+            bus.subscribe(e -> {
+                if (e[1] != last[e[0]]++) {
+                    outOfOrder.incrementAndGet();
+                }
+                received.incrementAndGet();
+            });
+            Thread[] threads = new Thread[publishers];
+            for (int p = 0; p < publishers; p++) {
+                final int publisher = p;
+                threads[p] = new Thread(() -> {
+                    for (int i = 0; i < events; i++) {
+                        bus.publish(new int[] { publisher, i });
+                    }
+                });
+                threads[p].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            for (int i = 0; received.get() < publishers * events && i < 500; i++) {
+                Thread.sleep(10L);
+            }
+            assertEquals(publishers * events, received.get());
+            assertEquals(0, outOfOrder.get());
+        }
+    }
+
+    @Test
+    public void subscriberExceptionIsHandled() throws Exception {
+        try (RingBufferEventBus<String> bus = new RingBufferEventBus<>()) {
+            List<String> received = new CopyOnWriteArrayList<>();
+            bus.subscribe(e -> {
+                throw new RuntimeException();
+            });
+            bus.subscribe(received::add);
+            bus.publish("message1");
+            bus.publish("message2");
+            await(received, 2);
+            assertEquals("[message1, message2]", received.toString());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBeAPowerOfTwo() {
+        new RingBufferEventBus<String>(1000, RingBufferEventBus.WaitStrategy.PARK);
+    }
+
+    @Test
+    public void publishAfterCloseDoesNotBlock() throws Exception {
+        RingBufferEventBus<String> bus = new RingBufferEventBus<>(2, RingBufferEventBus.WaitStrategy.PARK);
+        bus.close();
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            bus.publish("event");
+        }
+        assertTrue(System.nanoTime() - start < 1000000000L);
+    }
+}
@@ -0,0 +1,93 @@
+package com.minorityhobbies.util.bus;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures the bytes allocated per message on the path a message takes
+ * through a bus server: build, receive from a connection and mark as local,
+ * dispatch to a subscriber and serialise for a remote connection.
+ *
+ * The map run reproduces the former behaviour, where every message held its
+ * own {@link HashMap} and each {@link BusMessage#getAttributes()} call and
+ * local wrapper copied it. The compact run uses
+ * {@link StandardCompactBusMessage}. Run as a plain Java application on a JVM
+ * which supports thread allocation counters.
+ */
+public class BusMessageAllocationBenchmark {
+	private static final int WARMUP = 200000;
+	private static final int ITERATIONS = 1000000;
+
+	private interface Pipeline {
+		long publish(int i) throws IOException;
+	}
+
+	public static void main(String[] args) throws IOException {
+		final BusMessageSerialiser serialiser = StandardBusMessageSerialisers.BINARY
+				.get();
+		final StandardBus bus = new StandardBus();
+		bus.subscribe(bus.getSubscriptions().newMessageTypeSubscription("quote"),
+				new BusMessageHandler() {
+					@Override
+					public void onMessage(BusMessage msg) {
+						msg.get("symbol");
+					}
+				});
+
+		run("map", new Pipeline() {
+			@Override
+			public long publish(int i) throws IOException {
+				Map<String, String> attributes = new HashMap<String, String>();
+				attributes.put(BusMessageAttribute.MESSAGE_ID.getAttributeName(), "id");
+				attributes.put(BusMessageAttribute.SOURCE.getAttributeName(), "source");
+				attributes.put(BusMessageAttribute.MESSAGE_TYPE.getAttributeName(), "quote");
+				attributes.put("symbol", "ABC");
+				attributes.put("price", "100.25");
+				attributes.put("size", "300");
+				BusMessage msg = new StandardBusMessage(attributes);
+				BusMessage local = new StandardBusMessage(msg.getAttributes());
+				bus.publish(local);
+				return serialiser.toBuffer(msg).remaining();
+			}
+		});
+		run("compact", new Pipeline() {
+			@Override
+			public long publish(int i) throws IOException {
+				BusMessage msg = new StandardBusMessageBuilder()
+						.setMessageId("id").setMessageSource("source")
+						.setMessageType("quote").setAttribute("symbol", "ABC")
+						.setAttribute("price", "100.25").setAttribute("size", "300")
+						.build();
+				BusMessage local = StandardCompactBusMessage.local(msg);
+				bus.publish(local);
+				return serialiser.toBuffer(msg).remaining();
+			}
+		});
+	}
+
+	private static void run(String name, Pipeline pipeline) throws IOException {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		long sink = 0;
+		for (int i = 0; i < WARMUP; i++) {
+			sink += pipeline.publish(i);
+		}
+
+		long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			sink += pipeline.publish(i);
+		}
+		long elapsed = System.nanoTime() - start;
+		long allocated = threads.getThreadAllocatedBytes(threadId)
+				- allocatedBefore;
+
+		System.out.println(String.format(
+				"%-8s %8.1f bytes/publish %8.1f ns/publish (%d)", name,
+				(double) allocated / ITERATIONS, (double) elapsed / ITERATIONS,
+				sink));
+	}
+}
@@ -0,0 +1,87 @@
+package com.minorityhobbies.util.bus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Measures the bandwidth saved and the CPU spent by
+ * {@link StandardBusMessageCompression} for messages of differing numbers of
+ * attributes, each frame compressed against the stream of earlier ones as it
+ * would be on a connection. Run as a plain Java application; results are
+ * printed to standard output.
+ */
+public class BusMessageCompressionBenchmark {
+	private static final int MESSAGES = 1000;
+	private static final int WARMUP_ITERATIONS = 100000;
+	private static final int ITERATIONS = 500000;
+	private static final StandardBusMessageCompression.Peer NO_PEER = new StandardBusMessageCompression.Peer() {
+		@Override
+		public void sendOffer(BusMessage msg) {
+		}
+
+		@Override
+		public void startDeflating(BusMessage msg) {
+		}
+	};
+
+	public static void main(String[] args) throws IOException {
+		for (String protocol : new String[] { "STANDARD", "BINARY" }) {
+			BusMessageSerialiser serialiser = StandardBusMessageSerialisers
+					.valueOf(protocol).get();
+			for (int attributeCount : new int[] { 5, 20, 100 }) {
+				run(protocol, serialiser, attributeCount);
+			}
+		}
+	}
+
+	private static void run(String protocol, BusMessageSerialiser serialiser,
+			int attributeCount) throws IOException {
+		// distinct ids and values, as a real stream of messages would have
+		ByteBuffer[] frames = new ByteBuffer[MESSAGES];
+		for (int i = 0; i < MESSAGES; i++) {
+			BusMessage msg = BusMessageSerialiserBenchmark
+					.createMessage(attributeCount);
+			StandardBusMessageBuilder builder = new StandardBusMessageBuilder();
+			for (String name : msg.getAttributes().keySet()) {
+				builder.put(name, msg.get(name) + "-" + i);
+			}
+			frames[i] = ByteBuffer.wrap(serialiser.toBytes(builder.build()));
+		}
+		StandardBusMessageCompression writer = new StandardBusMessageCompression(
+				null, NO_PEER, 1, StandardBusMessageFrameBuffer.DEFAULT_MAX_FRAME_SIZE);
+		StandardBusMessageCompression reader = new StandardBusMessageCompression(
+				null, NO_PEER, 0, StandardBusMessageFrameBuffer.DEFAULT_MAX_FRAME_SIZE);
+		reader.onMessage(StandardBusMessageCompression.compressionMessage(
+				StandardBusMessageCompression.START, 1));
+
+		int iterations = ITERATIONS / Math.max(1, attributeCount / 5);
+		long sink = 0;
+		for (int i = 0; i < WARMUP_ITERATIONS / Math.max(1, attributeCount / 5); i++) {
+			sink += reader.inflate(writer.deflate(frames[i % MESSAGES]))
+					.remaining();
+		}
+
+		long raw = 0L;
+		long compressed = 0L;
+		long deflateNanos = 0L;
+		long inflateNanos = 0L;
+		for (int i = 0; i < iterations; i++) {
+			ByteBuffer frame = frames[i % MESSAGES];
+			long start = System.nanoTime();
+			ByteBuffer deflated = writer.deflate(frame);
+			long deflatedAt = System.nanoTime();
+			sink += reader.inflate(deflated).remaining();
+			inflateNanos += System.nanoTime() - deflatedAt;
+			deflateNanos += deflatedAt - start;
+			raw += frame.remaining();
+			compressed += deflated.limit();
+		}
+
+		System.out.println(String.format(
+				"%-8s attributes=%3d bytes=%6d compressed=%8.1f ratio=%5.2f deflate=%8.1f ns/op inflate=%8.1f ns/op (%d)",
+				protocol, attributeCount, frames[0].remaining(),
+				(double) compressed / iterations, (double) raw / compressed,
+				(double) deflateNanos / iterations, (double) inflateNanos
+						/ iterations, sink & 1));
+	}
+}
@@ -0,0 +1,71 @@
+package com.minorityhobbies.util.bus;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares encode and decode throughput of the {@link StandardBusMessageSerialisers}
+ * and of {@link StandardBusMessageSerialiserAESGCM} for messages of differing
+ * numbers of attributes. Run as a plain Java
+ * application; results are printed to standard output.
+ */
+public class BusMessageSerialiserBenchmark {
+	private static final int WARMUP_ITERATIONS = 200000;
+	private static final int ITERATIONS = 1000000;
+
+	public static void main(String[] args) throws IOException {
+		String[] names = { "STANDARD", "BINARY", "AES", "AES_GCM" };
+		BusMessageSerialiser[] serialisers = {
+				StandardBusMessageSerialisers.STANDARD.get(),
+				StandardBusMessageSerialisers.BINARY.get(),
+				StandardBusMessageSerialisers.AES.get(),
+				new StandardBusMessageSerialiserAESGCM(
+						"benchmark".getBytes(StandardCharsets.UTF_8)) };
+		for (int attributeCount : new int[] { 5, 20, 100 }) {
+			BusMessage msg = createMessage(attributeCount);
+			for (int i = 0; i < serialisers.length; i++) {
+				run(names[i], serialisers[i], msg, attributeCount);
+			}
+		}
+	}
+
+	static BusMessage createMessage(int attributeCount) {
+		BusMessageBuilder mb = new StandardBusMessageBuilder()
+				.setMessageId("12345").setMessageSource("benchmark-source")
+				.setMessageDestination("benchmark-destination")
+				.setMessageType("benchmark");
+		for (int i = 4; i < attributeCount; i++) {
+			mb.setAttribute("attribute" + i, "value-" + i);
+		}
+		return mb.build();
+	}
+
+	private static void run(String s, BusMessageSerialiser serialiser,
+			BusMessage msg, int attributeCount) throws IOException {
+		int iterations = ITERATIONS / Math.max(1, attributeCount / 5);
+		long sink = 0;
+
+		for (int i = 0; i < WARMUP_ITERATIONS / Math.max(1, attributeCount / 5); i++) {
+			sink += serialiser.fromBytes(serialiser.toBytes(msg)).hashCode();
+		}
+
+		byte[] encoded = serialiser.toBytes(msg);
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sink += serialiser.toBytes(msg).length;
+		}
+		long encodeNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sink += serialiser.fromBytes(encoded).hashCode();
+		}
+		long decodeNanos = System.nanoTime() - start;
+
+		System.out.println(String.format(
+				"%-8s attributes=%3d bytes=%6d encode=%8.1f ns/op decode=%8.1f ns/op (%d)",
+				s, attributeCount, encoded.length, (double) encodeNanos
+						/ iterations, (double) decodeNanos / iterations, sink & 1));
+	}
+
+}
@@ -0,0 +1,176 @@
+package com.minorityhobbies.util.bus;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs each bus benchmark suite for a fixed time and reports throughput, the
+ * bytes allocated per operation by the measuring thread and, for suites
+ * whose operations are timed one by one, latency percentiles. The suites
+ * are:
+ * <ul>
+ * <li>encode and decode with each {@link StandardBusMessageSerialisers}
+ * entry</li>
+ * <li>{@link StandardBus#publish(BusMessage)} fanning out to 1, 10 and 100
+ * subscribers</li>
+ * <li>request/reply round trips between two buses built with
+ * {@link BusServerFactory#listenOn(URI)} and
+ * {@link BusServerFactory#connectTo(URI)}, which only communicate over
+ * loopback TCP</li>
+ * </ul>
+ * Run as a plain Java application; it needs nothing but localhost. The
+ * optional argument sets the seconds each suite runs for, so a large value
+ * turns it into a soak test.
+ */
+public class BusSoakBenchmark {
+	private static final ThreadMXBean THREADS = ManagementFactory
+			.getThreadMXBean();
+	private static long runNanos = TimeUnit.SECONDS.toNanos(5L);
+
+	private interface Operation {
+		void run() throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0) {
+			runNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(args[0]));
+		}
+		final BusMessage msg = BusMessageSerialiserBenchmark.createMessage(20);
+
+		for (StandardBusMessageSerialisers entry : StandardBusMessageSerialisers
+				.values()) {
+			final BusMessageSerialiser serialiser = entry.get();
+			final byte[] encoded = serialiser.toBytes(msg);
+			measure("encode " + entry, false, new Operation() {
+				@Override
+				public void run() throws Exception {
+					serialiser.toBytes(msg);
+				}
+			});
+			measure("decode " + entry, false, new Operation() {
+				@Override
+				public void run() throws Exception {
+					serialiser.fromBytes(encoded);
+				}
+			});
+		}
+
+		for (int subscribers : new int[] { 1, 10, 100 }) {
+			final Bus bus = new StandardBus();
+			for (int i = 0; i < subscribers; i++) {
+				bus.subscribe(bus.getSubscriptions().newMessageTypeSubscription(
+						"benchmark"), new BusMessageHandler() {
+					@Override
+					public void onMessage(BusMessage msg) {
+					}
+				});
+			}
+			measure("publish to " + subscribers, true, new Operation() {
+				@Override
+				public void run() throws Exception {
+					bus.publish(msg);
+				}
+			});
+		}
+
+		for (String protocol : new String[] { "STANDARD", "BINARY" }) {
+			roundTrips(protocol, msg);
+		}
+	}
+
+	private static void roundTrips(String protocol, BusMessage msg)
+			throws Exception {
+		ServerSocket s = new ServerSocket(0);
+		URI uri = new URI(String.format("socket://127.0.0.1:%d",
+				s.getLocalPort()));
+		s.close();
+		final Bus server = new BusServerFactory().withProtocol(protocol)
+				.listenOn(uri).build();
+		server.subscribe(server.getSubscriptions().newMessageTypeSubscription(
+				"benchmark"), new BusMessageHandler() {
+			@Override
+			public void onMessage(BusMessage msg) {
+				server.publish(server.getReplyBuilder(msg).build());
+			}
+		});
+		server.getBusServer().start();
+		final Bus client = new BusServerFactory().withProtocol(protocol)
+				.connectTo(uri).build();
+		client.getBusServer().start();
+
+		StandardBusMessageBuilder builder = new StandardBusMessageBuilder();
+		for (String name : msg.getAttributes().keySet()) {
+			builder.put(name, msg.get(name));
+		}
+		// the bus gives each request its own id
+		builder.put(BusMessageAttribute.MESSAGE_ID.getAttributeName(), null);
+		final BusMessage request = builder.build();
+		try {
+			measure("round trip " + protocol, true, new Operation() {
+				@Override
+				public void run() throws Exception {
+					client.request(request, 5L, TimeUnit.SECONDS).get();
+				}
+			});
+		} finally {
+			client.getBusServer().close();
+			server.getBusServer().close();
+		}
+	}
+
+	private static void measure(String name, boolean timed, Operation operation)
+			throws Exception {
+		// warm up for a fifth of the run
+		long deadline = System.nanoTime() + runNanos / 5L;
+		while (System.nanoTime() - deadline < 0L) {
+			operation.run();
+		}
+
+		StandardBusLatencyHistogram histogram = new StandardBusLatencyHistogram();
+		long operations = 0L;
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			if (timed) {
+				long t = System.nanoTime();
+				operation.run();
+				histogram.record(System.nanoTime() - t);
+				operations++;
+			} else {
+				for (int i = 0; i < 100; i++) {
+					operation.run();
+				}
+				operations += 100L;
+			}
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < runNanos);
+		allocated = allocatedBytes() - allocated;
+
+		StringBuilder report = new StringBuilder(String.format(
+				"%-20s %12.0f ops/s %10.1f B/op", name, operations * 1e9
+						/ elapsed, allocated < 0L ? Double.NaN
+						: (double) allocated / operations));
+		if (timed) {
+			report.append(String.format(
+					" p50=%9.2f us p99=%9.2f us p99.9=%9.2f us max=%9.2f us",
+					histogram.getPercentile(50.0) / 1000.0,
+					histogram.getPercentile(99.0) / 1000.0,
+					histogram.getPercentile(99.9) / 1000.0,
+					histogram.getMax() / 1000.0));
+		}
+		System.out.println(report);
+	}
+
+	// the bytes allocated by this thread, or -1 if the JVM cannot tell
+	private static long allocatedBytes() {
+		if (THREADS instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) THREADS)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1L;
+	}
+}
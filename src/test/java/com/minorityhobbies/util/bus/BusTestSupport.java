@@ -0,0 +1,54 @@
+package com.minorityhobbies.util.bus;
+
+import static org.junit.Assert.fail;
+
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Helpers shared by the bus tests.
+ */
+final class BusTestSupport {
+	private static final long AWAIT_TIMEOUT_MILLIS = 5000L;
+
+	private BusTestSupport() {
+	}
+
+	/**
+	 * @return a URI with the given scheme on a loopback port which was free
+	 *         when this was called
+	 */
+	static URI freeUri(String scheme) throws Exception {
+		ServerSocket s = new ServerSocket(0);
+		int port = s.getLocalPort();
+		s.close();
+		return new URI(String.format("%s://127.0.0.1:%d", scheme, port));
+	}
+
+	static BusMessage message(int id) {
+		return new StandardBusMessageBuilder().setMessageId(Integer.toString(id))
+				.build();
+	}
+
+	/**
+	 * Waits for the collection to hold at least count elements.
+	 * 
+	 * @throws AssertionError
+	 *             if it still holds fewer after five seconds
+	 */
+	static void await(Collection<?> received, int count)
+			throws InterruptedException {
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(AWAIT_TIMEOUT_MILLIS);
+		while (received.size() < count) {
+			if (System.nanoTime() - deadline > 0L) {
+				fail(String.format(
+						"Timed out after %dms waiting for %d elements; have %d: %s",
+						AWAIT_TIMEOUT_MILLIS, count, received.size(), received));
+			}
+			Thread.sleep(10L);
+		}
+	}
+}
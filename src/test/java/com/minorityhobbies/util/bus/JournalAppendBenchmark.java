@@ -0,0 +1,66 @@
+package com.minorityhobbies.util.bus;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measures sustained append throughput of {@link StandardBusJournal} with the
+ * mapping forced to disk after every message, after batches of messages and
+ * only when a segment fills. Segments are small enough that each run rolls
+ * and applies retention many times. Run as a plain Java application; the
+ * optional argument is the directory to journal into, which should be on the
+ * disk being measured.
+ */
+public class JournalAppendBenchmark {
+	private static final long TARGET_NANOS = 2000000000L;
+	private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	public static void main(String[] args) throws IOException {
+		File parent = new File(args.length > 0 ? args[0]
+				: System.getProperty("java.io.tmpdir"));
+		BusMessage msg = new StandardBusMessageBuilder().setMessageType("quote")
+				.setMessageSource("benchmark").setAttribute("symbol", "VOD.L")
+				.setAttribute("bid", "231.45").setAttribute("ask", "231.50")
+				.build();
+		for (int syncBatchSize : new int[] { 1, 64, 1024, 0 }) {
+			run(parent, msg, syncBatchSize);
+		}
+	}
+
+	private static void run(File parent, BusMessage msg, int syncBatchSize)
+			throws IOException {
+		File directory = File.createTempFile("journal-benchmark", "", parent);
+		directory.delete();
+		StandardBusJournal journal = new StandardBusJournal(directory,
+				SEGMENT_SIZE, syncBatchSize, 4L * SEGMENT_SIZE, 0L);
+		try {
+			for (int i = 0; i < 10000; i++) {
+				journal.append(msg);
+			}
+			long appended = 0L;
+			long start = System.nanoTime();
+			long elapsed;
+			do {
+				for (int i = 0; i < 100; i++) {
+					journal.append(msg);
+				}
+				appended += 100;
+				elapsed = System.nanoTime() - start;
+			} while (elapsed < TARGET_NANOS);
+
+			System.out.println(String.format(
+					"sync every %-8s %12.0f msgs/s %8.2f us/append",
+					syncBatchSize == 0 ? "segment" : Integer.toString(syncBatchSize),
+					appended * 1e9 / elapsed, elapsed / 1000.0 / appended));
+		} finally {
+			journal.close();
+			File[] files = directory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			directory.delete();
+		}
+	}
+}
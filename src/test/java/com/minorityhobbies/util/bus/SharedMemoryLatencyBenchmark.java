@@ -0,0 +1,112 @@
+package com.minorityhobbies.util.bus;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares round trip latency between two bus connections over a shared
+ * memory file and over loopback TCP. One side sends a ping and waits for the
+ * other side to echo it before sending the next, and the round trip times are
+ * reported as percentiles. Both sides run in this JVM but only communicate
+ * through the transport under test. Run as a plain Java application; the
+ * optional argument sets the number of measured round trips.
+ */
+public class SharedMemoryLatencyBenchmark {
+	private static int warmup = 20000;
+	private static int iterations = 100000;
+
+	private static final BusMessageSubscription ALL = new StandardBusMessageSubscriptions()
+			.newAllMessagesSubscription();
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0) {
+			iterations = Integer.parseInt(args[0]);
+			warmup = iterations / 5;
+		}
+		BusMessageSerialiser serialiser = StandardBusMessageSerialisers.BINARY
+				.get();
+
+		File file = File.createTempFile("bus-benchmark", ".shm",
+				new File("/dev/shm").isDirectory() ? new File("/dev/shm") : null);
+		try {
+			URI uri = new URI("shm://" + file.getAbsolutePath());
+			run("shm", new StandardSharedMemoryBusMessageConnection(uri,
+					serialiser), new StandardSharedMemoryBusMessageConnection(
+					uri, serialiser));
+		} finally {
+			file.delete();
+		}
+
+		ServerSocket s = new ServerSocket(0);
+		int port = s.getLocalPort();
+		s.close();
+		URI uri = new URI(String.format("socket://127.0.0.1:%d", port));
+		StandardSocketServerBusMessageConnection server = new StandardSocketServerBusMessageConnection(
+				uri, serialiser, StandardBusMessageFrameBuffer.DEFAULT_MAX_FRAME_SIZE,
+				StandardSocketBusMessagePeerWriter.DEFAULT_MAX_BACKLOG);
+		server.start();
+		run("tcp", new StandardSocketBusMessageConnection(uri, serialiser),
+				server);
+	}
+
+	private static void run(String name, final BusMessageConnection pinger,
+			final BusMessageConnection echoer) throws Exception {
+		final SynchronousQueue<BusMessage> replies = new SynchronousQueue<BusMessage>();
+		echoer.pull(ALL, new BusMessageHandler() {
+			@Override
+			public void onMessage(BusMessage msg) {
+				try {
+					echoer.push(msg);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		pinger.pull(ALL, new BusMessageHandler() {
+			@Override
+			public void onMessage(BusMessage msg) {
+				try {
+					replies.put(msg);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		if (echoer instanceof StandardSharedMemoryBusMessageConnection) {
+			echoer.start();
+		}
+		pinger.start();
+		Thread.sleep(200L);
+
+		BusMessage ping = new StandardBusMessageBuilder().setMessageType("ping")
+				.setAttribute("payload", "0123456789012345678901234567890123456789")
+				.build();
+		StandardBusLatencyHistogram histogram = new StandardBusLatencyHistogram();
+		try {
+			for (int i = 0; i < warmup + iterations; i++) {
+				long start = System.nanoTime();
+				pinger.push(ping);
+				if (replies.poll(5L, TimeUnit.SECONDS) == null) {
+					throw new IllegalStateException("No reply to ping " + i);
+				}
+				if (i >= warmup) {
+					histogram.record(System.nanoTime() - start);
+				}
+			}
+		} finally {
+			pinger.close();
+			echoer.close();
+		}
+
+		System.out.println(String.format(
+				"%-4s round trip p50=%8.1f us p99=%8.1f us p99.9=%8.1f us max=%8.1f us",
+				name, histogram.getPercentile(50.0) / 1000.0,
+				histogram.getPercentile(99.0) / 1000.0,
+				histogram.getPercentile(99.9) / 1000.0,
+				histogram.getMax() / 1000.0));
+	}
+}
@@ -0,0 +1,180 @@
+package com.minorityhobbies.util.bus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StandardBusAsyncDispatchTest {
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	private static BusMessage message(int id) {
+		return new StandardBusMessageBuilder().setMessageId(Integer.toString(id))
+				.setMessageType("test").build();
+	}
+
+	@Test
+	public void testMessagesAreDeliveredInOrderPerSubscriber()
+			throws InterruptedException {
+		StandardBus bus = new StandardBus(executor, 1000,
+				BusDispatchOverflowPolicy.BLOCK);
+		final int count = 10000;
+		final CountDownLatch done = new CountDownLatch(2 * count);
+		final List<String> first = new CopyOnWriteArrayList<String>();
+		final List<String> second = new CopyOnWriteArrayList<String>();
+		for (final List<String> received : Arrays.asList(first, second)) {
+			bus.subscribe(bus.getSubscriptions().newMessageTypeSubscription("test"),
+					new BusMessageHandler() {
+						@Override
+						public void onMessage(BusMessage msg) {
+							received.add(BusMessageAttribute.MESSAGE_ID.get(msg));
+							done.countDown();
+						}
+					});
+		}
+
+		for (int i = 0; i < count; i++) {
+			bus.publish(message(i));
+		}
+		assertTrue(done.await(30L, TimeUnit.SECONDS));
+		for (int i = 0; i < count; i++) {
+			assertEquals(Integer.toString(i), first.get(i));
+			assertEquals(Integer.toString(i), second.get(i));
+		}
+	}
+
+	@Test
+	public void testSlowSubscriberDoesNotBlockPublisher()
+			throws InterruptedException {
+		StandardBus bus = new StandardBus(executor, 10,
+				BusDispatchOverflowPolicy.DROP_NEWEST);
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<String> received = new CopyOnWriteArrayList<String>();
+		bus.subscribe(bus.getSubscriptions().newAllMessagesSubscription(),
+				new BusMessageHandler() {
+					@Override
+					public void onMessage(BusMessage msg) {
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						received.add(BusMessageAttribute.MESSAGE_ID.get(msg));
+					}
+				});
+
+		for (int i = 0; i < 100; i++) {
+			bus.publish(message(i));
+		}
+		BusSubscriptionStatistics statistics = bus.getSubscriptionStatistics()
+				.get(0);
+		assertEquals(10, statistics.getQueueCapacity());
+		// the first message may already have been taken by the handler
+		assertTrue(statistics.getDroppedCount() >= 89);
+		assertTrue(statistics.getQueueDepth() <= 10);
+
+		release.countDown();
+		for (int i = 0; i < 100
+				&& statistics.getDeliveredCount() + statistics.getDroppedCount() < 100; i++) {
+			Thread.sleep(10L);
+		}
+		assertEquals("0", received.get(0));
+		assertEquals(100L, statistics.getDeliveredCount()
+				+ statistics.getDroppedCount());
+	}
+
+	@Test
+	public void testDropOldestKeepsLatestMessages() throws InterruptedException {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(1);
+		StandardBus bus = new StandardBus(executor, 5,
+				BusDispatchOverflowPolicy.DROP_OLDEST);
+		final List<String> received = new CopyOnWriteArrayList<String>();
+		bus.subscribe(bus.getSubscriptions().newAllMessagesSubscription(),
+				new BusMessageHandler() {
+					@Override
+					public void onMessage(BusMessage msg) {
+						started.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						received.add(BusMessageAttribute.MESSAGE_ID.get(msg));
+					}
+				});
+
+		bus.publish(message(0));
+		assertTrue(started.await(5L, TimeUnit.SECONDS));
+		for (int i = 1; i <= 20; i++) {
+			bus.publish(message(i));
+		}
+		release.countDown();
+		for (int i = 0; i < 100 && received.size() < 6; i++) {
+			Thread.sleep(10L);
+		}
+		assertEquals(6, received.size());
+		assertEquals("0", received.get(0));
+		assertEquals("16", received.get(1));
+		assertEquals("20", received.get(5));
+		assertEquals(15L, bus.getSubscriptionStatistics().get(0)
+				.getDroppedCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOverflowPolicyIsRequired() {
+		new BusServerFactory().withAsyncDispatch(10, null);
+	}
+
+	@Test
+	public void testDispatchPoolIsShutDownWithTheServer() throws Exception {
+		Bus bus = new BusServerFactory().withAsyncDispatch(10,
+				BusDispatchOverflowPolicy.BLOCK).build();
+		final CountDownLatch delivered = new CountDownLatch(1);
+		bus.subscribe(bus.getSubscriptions().newAllMessagesSubscription(),
+				new BusMessageHandler() {
+					@Override
+					public void onMessage(BusMessage msg) {
+						delivered.countDown();
+					}
+				});
+		bus.publish(message(0));
+		assertTrue(delivered.await(5L, TimeUnit.SECONDS));
+
+		bus.getBusServer().close();
+		for (int i = 0; i < 500 && dispatchThreads() > 0; i++) {
+			Thread.sleep(10L);
+		}
+		assertEquals(0, dispatchThreads());
+	}
+
+	private static int dispatchThreads() {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("bus-dispatch-")) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
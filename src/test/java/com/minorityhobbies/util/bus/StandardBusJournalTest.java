@@ -0,0 +1,243 @@
+package com.minorityhobbies.util.bus;
+
+import static com.minorityhobbies.util.bus.BusTestSupport.await;
+import static com.minorityhobbies.util.bus.BusTestSupport.freeUri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.BindException;
+import java.net.URI;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StandardBusJournalTest {
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("bus", ".journal");
+		directory.delete();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	// padded so that a few records fill the small segments used here
+	private static BusMessage record(int id) {
+		return new StandardBusMessageBuilder().setMessageId(Integer.toString(id))
+				.setAttribute("payload", "0123456789").build();
+	}
+
+	private static List<String> replay(StandardBusJournal journal,
+			long fromSequence) throws IOException {
+		final List<String> ids = new LinkedList<String>();
+		journal.replay(fromSequence, new StandardBusJournal.RecordHandler() {
+			@Override
+			public void onRecord(long sequence, BusMessage msg) {
+				assertEquals(Long.toString(sequence),
+						BusMessageAttribute.MESSAGE_ID.get(msg));
+				ids.add(BusMessageAttribute.MESSAGE_ID.get(msg));
+			}
+		});
+		return ids;
+	}
+
+	private static File[] segments(File directory) {
+		return directory.listFiles();
+	}
+
+	@Test
+	public void testReplayFromAnySequence() throws IOException {
+		StandardBusJournal journal = new StandardBusJournal(directory, 4096, 0,
+				0L, 0L);
+		try {
+			for (int i = 1; i <= 5; i++) {
+				assertEquals(i, journal.append(record(i)));
+			}
+			assertEquals(5L, journal.getLastSequence());
+			assertEquals("[1, 2, 3, 4, 5]", replay(journal, 1L).toString());
+			assertEquals("[4, 5]", replay(journal, 4L).toString());
+			assertEquals("[]", replay(journal, 6L).toString());
+		} finally {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void testReopenedJournalResumesAfterLastIntactRecord()
+			throws IOException {
+		StandardBusJournal journal = new StandardBusJournal(directory, 4096, 1,
+				0L, 0L);
+		for (int i = 1; i <= 3; i++) {
+			journal.append(record(i));
+		}
+		journal.close();
+
+		// damage the payload of the last record as a torn write would
+		File segment = segments(directory)[0];
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		try {
+			int recordSize = 16 + new StandardBusMessageSerialiserBinary(
+					"JOURNAL").encodedSize((StandardCompactBusMessage) record(3));
+			raf.seek(2L * recordSize + 20L);
+			raf.write(0xff);
+		} finally {
+			raf.close();
+		}
+
+		journal = new StandardBusJournal(directory, 4096, 1, 0L, 0L);
+		try {
+			assertEquals(2L, journal.getLastSequence());
+			assertEquals(3L, journal.append(record(3)));
+			assertEquals("[1, 2, 3]", replay(journal, 1L).toString());
+		} finally {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void testSegmentsRollAndOldestAreDeletedBeyondRetainedSize()
+			throws IOException {
+		StandardBusJournal journal = new StandardBusJournal(directory, 256, 0,
+				3 * 256, 0L);
+		try {
+			for (int i = 1; i <= 40; i++) {
+				journal.append(record(i));
+			}
+			assertEquals(3, segments(directory).length);
+			long first = journal.getFirstSequence();
+			assertTrue(first > 1L);
+			List<String> ids = replay(journal, 1L);
+			assertEquals(Long.toString(first), ids.get(0));
+			assertEquals("40", ids.get(ids.size() - 1));
+			assertEquals(41L - first, ids.size());
+		} finally {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void testPeerReplaysMissedMessagesAcrossRestart() throws Exception {
+		URI uri = freeUri("socket");
+		Bus server = startJournalledServer(uri);
+		for (int i = 1; i <= 3; i++) {
+			server.publish(record(i));
+		}
+
+		final List<String> received = new CopyOnWriteArrayList<String>();
+		Bus client = new BusServerFactory().connectTo(uri).withReplay(2L)
+				.build();
+		client.subscribe(client.getSubscriptions().newAllMessagesSubscription(),
+				new BusMessageHandler() {
+					@Override
+					public void onMessage(BusMessage msg) {
+						received.add(BusMessageAttribute.MESSAGE_ID.get(msg));
+					}
+				});
+		client.getBusServer().start();
+		try {
+			await(received, 2);
+			server.publish(record(4));
+			await(received, 3);
+			assertEquals("[2, 3, 4]", received.toString());
+
+			// messages published while the client is away are replayed once it
+			// reconnects to the restarted server
+			server.getBusServer().close();
+			server = startJournalledServer(uri);
+			server.publish(record(5));
+			server.publish(record(6));
+			await(received, 5);
+			server.publish(record(7));
+			await(received, 6);
+			assertEquals("[2, 3, 4, 5, 6, 7]", received.toString());
+		} finally {
+			client.getBusServer().close();
+			server.getBusServer().close();
+		}
+	}
+
+	@Test
+	public void testNioPeerAskingForReplayResumesWithLiveMessages()
+			throws Exception {
+		URI uri = freeUri("nio");
+		Bus server = new BusServerFactory().listenOn(uri)
+				.withJournal(directory, 4096, 0).build();
+		final List<String> heard = new CopyOnWriteArrayList<String>();
+		server.subscribe(server.getSubscriptions().newAllMessagesSubscription(),
+				new BusMessageHandler() {
+					@Override
+					public void onMessage(BusMessage msg) {
+						heard.add(BusMessageAttribute.MESSAGE_TYPE.get(msg));
+					}
+				});
+		server.getBusServer().start();
+		for (int i = 1; i <= 3; i++) {
+			server.publish(record(i));
+		}
+
+		final List<String> received = new CopyOnWriteArrayList<String>();
+		Bus client = new BusServerFactory().connectTo(uri).withReplay(1L)
+				.build();
+		client.subscribe(client.getSubscriptions().newMessageTypeSubscription(
+				"live"), new BusMessageHandler() {
+			@Override
+			public void onMessage(BusMessage msg) {
+				received.add(BusMessageAttribute.MESSAGE_ID.get(msg));
+			}
+		});
+		client.getBusServer().start();
+		try {
+			// sent after the replay request, so it has been answered once heard
+			client.publish(client.getBusMessageBuilder().setMessageType("hello")
+					.build());
+			await(heard, 4);
+			for (int i = 4; i <= 13; i++) {
+				server.publish(client.getBusMessageBuilder()
+						.setMessageType("live").setMessageId(Integer.toString(i))
+						.build());
+			}
+			await(received, 10);
+			assertEquals(10, received.size());
+			assertFalse(heard.contains(StandardBusJournal.REPLAY_TYPE));
+		} finally {
+			client.getBusServer().close();
+			server.getBusServer().close();
+		}
+	}
+
+	// the port may still be held briefly after the previous server closed
+	private Bus startJournalledServer(URI uri) throws Exception {
+		for (int attempt = 1;; attempt++) {
+			Bus server = new BusServerFactory().listenOn(uri)
+					.withJournal(directory, 4096, 0).build();
+			try {
+				server.getBusServer().start();
+				return server;
+			} catch (BindException e) {
+				server.getBusServer().close();
+				if (attempt == 10) {
+					throw e;
+				}
+				Thread.sleep(50L * attempt);
+			}
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.minorityhobbies.util.bus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class StandardBusLatencyHistogramTest {
+	@Test
+	public void testSmallValuesAreExact() {
+		StandardBusLatencyHistogram histogram = new StandardBusLatencyHistogram();
+		for (int i = 1; i <= 50; i++) {
+			histogram.record(i);
+		}
+		assertEquals(50L, histogram.getCount());
+		assertEquals(25L, histogram.getPercentile(50.0));
+		assertEquals(50L, histogram.getPercentile(100.0));
+		assertEquals(50L, histogram.getMax());
+		assertEquals(25L, histogram.getMean());
+	}
+
+	@Test
+	public void testLargeValuesAreWithinPrecision() {
+		StandardBusLatencyHistogram histogram = new StandardBusLatencyHistogram();
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000L);
+		}
+		assertWithin(500000L, histogram.getPercentile(50.0));
+		assertWithin(990000L, histogram.getPercentile(99.0));
+		assertWithin(1000000L, histogram.getMax());
+	}
+
+	@Test
+	public void testBucketsCoverEveryValue() {
+		long[] values = { 0L, 63L, 64L, 65L, 127L, 128L, 1L << 40,
+				Long.MAX_VALUE };
+		for (long value : values) {
+			int bucket = StandardBusLatencyHistogram.bucketFor(value);
+			assertTrue(StandardBusLatencyHistogram.highestValueIn(bucket) >= value);
+			if (bucket > 0) {
+				assertTrue(StandardBusLatencyHistogram.highestValueIn(bucket - 1) < value);
+			}
+		}
+	}
+
+	@Test
+	public void testEmptyHistogram() {
+		StandardBusLatencyHistogram histogram = new StandardBusLatencyHistogram();
+		assertEquals(0L, histogram.getPercentile(99.0));
+		assertEquals(0L, histogram.getMax());
+		assertEquals(0L, histogram.getMean());
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue(actual + " is not close to " + expected,
+				actual >= expected && actual <= expected * 1.04);
+	}
+}
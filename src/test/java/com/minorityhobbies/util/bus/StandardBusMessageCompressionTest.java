@@ -0,0 +1,255 @@
+package com.minorityhobbies.util.bus;
+
+import static com.minorityhobbies.util.bus.BusTestSupport.await;
+import static com.minorityhobbies.util.bus.BusTestSupport.freeUri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+public class StandardBusMessageCompressionTest {
+	private static final BusMessageHandler NO_OP = new BusMessageHandler() {
+		@Override
+		public void onMessage(BusMessage msg) {
+		}
+	};
+
+	private static class RecordingPeer implements
+			StandardBusMessageCompression.Peer {
+		private final List<BusMessage> sent = new CopyOnWriteArrayList<BusMessage>();
+
+		@Override
+		public void sendOffer(BusMessage msg) {
+			sent.add(msg);
+		}
+
+		@Override
+		public void startDeflating(BusMessage msg) {
+			sent.add(msg);
+		}
+
+		BusMessage last() {
+			return sent.get(sent.size() - 1);
+		}
+	}
+
+	@Test
+	public void testHandshake() throws Exception {
+		RecordingPeer clientPeer = new RecordingPeer();
+		RecordingPeer serverPeer = new RecordingPeer();
+		StandardBusMessageCompression client = new StandardBusMessageCompression(
+				NO_OP, clientPeer, 64, 1024);
+		StandardBusMessageCompression server = new StandardBusMessageCompression(
+				NO_OP, serverPeer, 0, 1024);
+		server.start();
+		assertTrue(serverPeer.sent.isEmpty());
+
+		client.start();
+		assertEquals(1, clientPeer.sent.size());
+		assertEquals(StandardBusMessageCompression.OFFER, clientPeer.last()
+				.get(StandardBusMessageCompression.OPERATION_ATTRIBUTE));
+		server.onMessage(clientPeer.last());
+		assertEquals(1, serverPeer.sent.size());
+		assertEquals(StandardBusMessageCompression.START, serverPeer.last()
+				.get(StandardBusMessageCompression.OPERATION_ATTRIBUTE));
+		assertEquals("64", serverPeer.last().get(
+				StandardBusMessageCompression.THRESHOLD_ATTRIBUTE));
+		assertFalse(server.isInflating());
+
+		client.onMessage(serverPeer.last());
+		assertTrue(client.isInflating());
+		assertEquals(2, clientPeer.sent.size());
+		assertEquals(StandardBusMessageCompression.START, clientPeer.last()
+				.get(StandardBusMessageCompression.OPERATION_ATTRIBUTE));
+		server.onMessage(clientPeer.last());
+		assertTrue(server.isInflating());
+		assertEquals(1, serverPeer.sent.size());
+	}
+
+	@Test
+	public void testUnknownCodecIsDeclined() {
+		RecordingPeer peer = new RecordingPeer();
+		final List<BusMessage> passed = new CopyOnWriteArrayList<BusMessage>();
+		StandardBusMessageCompression compression = new StandardBusMessageCompression(
+				new BusMessageHandler() {
+					@Override
+					public void onMessage(BusMessage msg) {
+						passed.add(msg);
+					}
+				}, peer, 0, 1024);
+		compression.onMessage(new StandardBusMessageBuilder()
+				.put(StandardBusMessageCompression.OPERATION_ATTRIBUTE,
+						StandardBusMessageCompression.OFFER)
+				.put(StandardBusMessageCompression.CODEC_ATTRIBUTE, "zstd")
+				.put(StandardBusMessageCompression.THRESHOLD_ATTRIBUTE, "64")
+				.setMessageType(StandardBusMessageCompression.COMPRESSION_TYPE)
+				.build());
+		assertTrue(peer.sent.isEmpty());
+		assertTrue(passed.isEmpty());
+
+		compression.onMessage(new StandardBusMessageBuilder().setMessageType(
+				"quote").build());
+		assertEquals(1, passed.size());
+	}
+
+	@Test
+	public void testStreamCompressesAgainstEarlierFrames() throws Exception {
+		StandardBusMessageCompression writer = new StandardBusMessageCompression(
+				NO_OP, new RecordingPeer(), 64, 1024 * 1024);
+		StandardBusMessageCompression reader = new StandardBusMessageCompression(
+				NO_OP, new RecordingPeer(), 0, 1024 * 1024);
+		reader.onMessage(StandardBusMessageCompression.compressionMessage(
+				StandardBusMessageCompression.START, 64));
+
+		byte[] small = "tiny".getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = copy(writer.deflate(ByteBuffer.wrap(small)));
+		assertEquals(small.length + 1, frame.remaining());
+		assertEquals(ByteBuffer.wrap(small), reader.inflate(frame));
+
+		byte[] payload = repeat("_type=quote,symbol=VOD.L,bid=101.25,ask=101.50;",
+				40);
+		int first = 0;
+		for (int i = 0; i < 3; i++) {
+			frame = copy(writer.deflate(ByteBuffer.wrap(payload)));
+			assertTrue(frame.remaining() < payload.length);
+			if (i == 0) {
+				first = frame.remaining();
+			} else {
+				assertTrue(frame.remaining() < first);
+			}
+			assertEquals(ByteBuffer.wrap(payload), reader.inflate(frame));
+		}
+	}
+
+	@Test
+	public void testClosedStreamsAreNotUsed() throws Exception {
+		StandardBusMessageCompression writer = new StandardBusMessageCompression(
+				NO_OP, new RecordingPeer(), 64, 1024 * 1024);
+		StandardBusMessageCompression reader = new StandardBusMessageCompression(
+				NO_OP, new RecordingPeer(), 0, 1024 * 1024);
+		reader.onMessage(StandardBusMessageCompression.compressionMessage(
+				StandardBusMessageCompression.START, 64));
+		byte[] payload = repeat("_type=quote,symbol=VOD.L,bid=101.25,ask=101.50;",
+				40);
+		ByteBuffer frame = copy(writer.deflate(ByteBuffer.wrap(payload)));
+		assertEquals(ByteBuffer.wrap(payload), reader.inflate(frame.duplicate()));
+
+		writer.close();
+		frame = copy(writer.deflate(ByteBuffer.wrap(payload)));
+		assertEquals(payload.length + 1, frame.remaining());
+		assertEquals(ByteBuffer.wrap(payload), reader.inflate(frame));
+
+		reader.close();
+		try {
+			reader.inflate(copy(new StandardBusMessageCompression(NO_OP,
+					new RecordingPeer(), 64, 1024 * 1024).deflate(ByteBuffer
+					.wrap(payload))));
+			fail("Inflated a frame after closing");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testSocketServerExchangesCompressedMessages() throws Exception {
+		URI uri = freeUri("socket");
+		StandardSocketServerBusMessageConnection connection = new StandardSocketServerBusMessageConnection(
+				uri);
+		assertCompressedExchange(uri, connection, connection.getMetrics());
+	}
+
+	@Test
+	public void testNioServerExchangesCompressedMessages() throws Exception {
+		URI uri = freeUri("nio");
+		StandardNioServerBusMessageConnection connection = new StandardNioServerBusMessageConnection(
+				uri, new StandardBusMessageSerialiser(),
+				StandardBusMessageFrameBuffer.DEFAULT_MAX_FRAME_SIZE,
+				StandardSocketBusMessagePeerWriter.DEFAULT_MAX_BACKLOG, 1);
+		assertCompressedExchange(uri, connection, connection.getMetrics());
+	}
+
+	private void assertCompressedExchange(URI uri,
+			BusMessageConnection serverConnection,
+			StandardBusConnectionMetrics serverMetrics) throws Exception {
+		final Bus server = new StandardBus();
+		server.getBusServer().addConnection(serverConnection);
+		server.subscribe(server.getSubscriptions().newMessageTypeSubscription(
+				"request"), new BusMessageHandler() {
+			@Override
+			public void onMessage(BusMessage msg) {
+				server.publish(new StandardBusMessageBuilder()
+						.put("body", msg.get("body")).setMessageType("reply")
+						.setMessageId(BusMessageAttribute.MESSAGE_ID.get(msg))
+						.build());
+			}
+		});
+		server.getBusServer().start();
+
+		Bus client = new StandardBus();
+		StandardSocketBusMessageConnection connection = new StandardSocketBusMessageConnection(
+				uri, new StandardBusMessageSerialiser());
+		connection.setCompression(64);
+		client.getBusServer().addConnection(connection);
+		final List<String> received = new CopyOnWriteArrayList<String>();
+		client.subscribe(client.getSubscriptions().newMessageTypeSubscription(
+				"reply"), new BusMessageHandler() {
+			@Override
+			public void onMessage(BusMessage msg) {
+				received.add(BusMessageAttribute.MESSAGE_ID.get(msg) + "/"
+						+ msg.get("body").length());
+			}
+		});
+		client.getBusServer().start();
+		try {
+			for (int i = 0; i < 500 && !connection.isCompressed(); i++) {
+				Thread.sleep(10L);
+			}
+			assertTrue(connection.isCompressed());
+
+			String body = new String(repeat("bid=101.25,ask=101.50;", 100),
+					StandardCharsets.UTF_8);
+			long serverIn = serverMetrics.getBytesIn();
+			long clientIn = connection.getMetrics().getBytesIn();
+			for (int i = 0; i < 20; i++) {
+				client.publish(new StandardBusMessageBuilder()
+						.put("body", body).setMessageType("request")
+						.setMessageId("" + i).build());
+			}
+			await(received, 20);
+			assertEquals(20, received.size());
+			for (int i = 0; i < 20; i++) {
+				assertTrue(received.contains(i + "/" + body.length()));
+			}
+			long raw = 20L * body.length();
+			assertTrue(serverMetrics.getBytesIn() - serverIn < raw / 4L);
+			assertTrue(connection.getMetrics().getBytesIn() - clientIn < raw / 4L);
+		} finally {
+			client.getBusServer().close();
+			server.getBusServer().close();
+		}
+	}
+
+	private static ByteBuffer copy(ByteBuffer b) {
+		ByteBuffer copy = ByteBuffer.allocate(b.remaining());
+		copy.put(b.duplicate()).flip();
+		return copy;
+	}
+
+	private static byte[] repeat(String s, int times) {
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < times; i++) {
+			b.append(s);
+		}
+		return b.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,242 @@
+package com.minorityhobbies.util.bus;
+
+import static com.minorityhobbies.util.bus.BusTestSupport.freeUri;
+import static com.minorityhobbies.util.bus.BusTestSupport.message;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class StandardBusMessageCreditsTest {
+	private static class RecordingPeer implements StandardBusMessageCredits.Peer {
+		private final List<String> grants = new LinkedList<String>();
+		private int granted;
+
+		@Override
+		public void sendCredits(BusMessage msg) {
+			grants.add(msg.get(StandardBusMessageCredits.CREDITS_ATTRIBUTE));
+		}
+
+		@Override
+		public void creditsGranted() {
+			granted++;
+		}
+	}
+
+	private static final BusMessageHandler NO_OP = new BusMessageHandler() {
+		@Override
+		public void onMessage(BusMessage msg) {
+		}
+	};
+
+	@Test
+	public void testSenderIsLimitedOnlyOnceCreditIsGranted() {
+		RecordingPeer peer = new RecordingPeer();
+		StandardBusMessageCredits credits = new StandardBusMessageCredits(
+				NO_OP, peer, 0);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(credits.tryAcquire());
+		}
+		assertEquals(Long.MAX_VALUE, credits.getCredits());
+
+		credits.onMessage(StandardBusMessageCredits.creditMessage(2));
+		assertEquals(1, peer.granted);
+		assertTrue(credits.tryAcquire());
+		assertTrue(credits.tryAcquire());
+		assertFalse(credits.tryAcquire());
+		assertFalse(credits.hasCredit());
+
+		credits.onMessage(StandardBusMessageCredits.creditMessage(1));
+		assertEquals(2, peer.granted);
+		assertTrue(credits.tryAcquire());
+		assertFalse(credits.tryAcquire());
+	}
+
+	@Test
+	public void testReceiverGrantsWindowAndReplenishesAsMessagesAreConsumed()
+			throws IOException {
+		RecordingPeer peer = new RecordingPeer();
+		final List<BusMessage> consumed = new LinkedList<BusMessage>();
+		StandardBusMessageCredits credits = new StandardBusMessageCredits(
+				new BusMessageHandler() {
+					@Override
+					public void onMessage(BusMessage msg) {
+						consumed.add(msg);
+					}
+				}, peer, 4);
+		credits.start();
+		for (int i = 0; i < 5; i++) {
+			credits.onMessage(message(i));
+		}
+		assertEquals(5, consumed.size());
+		assertEquals("[4, 2, 2]", peer.grants.toString());
+		// credit messages are not passed on or counted
+		credits.onMessage(StandardBusMessageCredits.creditMessage(10));
+		assertEquals(5, consumed.size());
+		assertEquals(3, peer.grants.size());
+	}
+
+	@Test
+	public void testPeerWriterHoldsFramesWithoutCreditButNotControlFrames() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Executor direct = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		};
+		final StandardSocketBusMessagePeerWriter[] writer = new StandardSocketBusMessagePeerWriter[1];
+		StandardBusMessageCredits credits = new StandardBusMessageCredits(NO_OP,
+				new StandardBusMessageCredits.Peer() {
+					@Override
+					public void sendCredits(BusMessage msg) {
+					}
+
+					@Override
+					public void creditsGranted() {
+						writer[0].creditsGranted();
+					}
+				}, 0);
+		writer[0] = new StandardSocketBusMessagePeerWriter("peer", out, direct,
+				1024, new Closeable() {
+					@Override
+					public void close() {
+					}
+				});
+		writer[0].setCredits(credits);
+		credits.onMessage(StandardBusMessageCredits.creditMessage(2));
+
+		for (int i = 0; i < 5; i++) {
+			writer[0].send(ByteBuffer.wrap(new byte[10]));
+		}
+		assertEquals(20, out.size());
+		assertEquals(30L, writer[0].getBacklog());
+		writer[0].sendControl(ByteBuffer.wrap(new byte[3]));
+		assertEquals(23, out.size());
+		assertFalse(writer[0].isCongested());
+		for (int i = 0; i < 50; i++) {
+			writer[0].send(ByteBuffer.wrap(new byte[10]));
+		}
+		assertTrue(writer[0].isCongested());
+
+		credits.onMessage(StandardBusMessageCredits.creditMessage(100));
+		assertEquals(553, out.size());
+		assertEquals(0L, writer[0].getBacklog());
+		assertFalse(writer[0].isCongested());
+	}
+
+	@Test
+	public void testSenderBuffersUntilSlowReceiverGrantsCredit() throws Exception {
+		URI uri = freeUri("socket");
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<String> received = new CopyOnWriteArrayList<String>();
+		Bus server = new BusServerFactory().listenOn(uri).withFlowControl(4)
+				.build();
+		server.subscribe(server.getSubscriptions().newAllMessagesSubscription(),
+				new BusMessageHandler() {
+					@Override
+					public void onMessage(BusMessage msg) {
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						received.add(BusMessageAttribute.MESSAGE_ID.get(msg));
+					}
+				});
+		server.getBusServer().start();
+
+		Bus client = new BusServerFactory().connectTo(uri)
+				.withMaxPeerBacklog(1024).withMetrics(
+						"StandardBusMessageCreditsTest").build();
+		client.getBusServer().start();
+		try {
+			int published = 0;
+			for (int i = 0; i < 1000 && client.tryPublish(message(published)); i++) {
+				published++;
+				if (published == 1) {
+					// the initial grant may arrive after the first message
+					Thread.sleep(100L);
+				}
+			}
+			assertTrue(published < 1000);
+			assertFalse(client.tryPublish(message(published)));
+			assertEquals(2L, ManagementFactory.getPlatformMBeanServer()
+					.getAttribute(new ObjectName(
+							"com.minorityhobbies.util.bus:type=Bus,name=\"StandardBusMessageCreditsTest\""),
+							"RejectedCount"));
+
+			release.countDown();
+			for (int i = 0; i < 500 && received.size() < published; i++) {
+				Thread.sleep(10L);
+			}
+			assertEquals(published, received.size());
+			for (int i = 0; i < published; i++) {
+				assertEquals(Integer.toString(i), received.get(i));
+			}
+			assertTrue(client.tryPublish(message(published)));
+		} finally {
+			release.countDown();
+			client.getBusServer().close();
+			server.getBusServer().close();
+		}
+	}
+
+	@Test
+	public void testPublishReturnsWhenPeerStopsGrantingCredit() throws Exception {
+		URI uri = freeUri("socket");
+		final CountDownLatch release = new CountDownLatch(1);
+		Bus server = new BusServerFactory().listenOn(uri).withFlowControl(4)
+				.build();
+		server.subscribe(server.getSubscriptions().newAllMessagesSubscription(),
+				new BusMessageHandler() {
+					@Override
+					public void onMessage(BusMessage msg) {
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				});
+		server.getBusServer().start();
+
+		final Bus client = new BusServerFactory().connectTo(uri)
+				.withMaxPeerBacklog(1024).build();
+		client.getBusServer().start();
+		try {
+			Thread publisher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 1000; i++) {
+						client.publish(message(i));
+					}
+				}
+			});
+			publisher.start();
+			// the connection is detached once its backlog is full
+			publisher.join(5000L);
+			assertFalse(publisher.isAlive());
+		} finally {
+			release.countDown();
+			client.getBusServer().close();
+			server.getBusServer().close();
+		}
+	}
+}
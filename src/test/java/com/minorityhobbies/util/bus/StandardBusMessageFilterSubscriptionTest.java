@@ -0,0 +1,91 @@
+package com.minorityhobbies.util.bus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class StandardBusMessageFilterSubscriptionTest {
+	private final BusMessage quote = new StandardBusMessageBuilder()
+			.setMessageType("quote").setMessageSource("exchange")
+			.setAttribute("symbol", "VOD.L").setAttribute("bid", "231.45")
+			.setAttribute("venue", "LSE-XOFF").setAttribute("note", "it's")
+			.build();
+
+	private boolean matches(String expression) {
+		return new StandardBusMessageFilterSubscription(expression)
+				.matches(quote);
+	}
+
+	@Test
+	public void testEqualityAndInequality() {
+		assertTrue(matches("_type = 'quote'"));
+		assertFalse(matches("_type = 'trade'"));
+		assertTrue(matches("_type <> 'trade'"));
+		assertTrue(matches("_type != 'trade'"));
+		assertTrue(matches("bid = 231.45"));
+		assertTrue(matches("note = 'it''s'"));
+		assertFalse(matches("missing = 'x'"));
+		assertTrue(matches("missing <> 'x'"));
+	}
+
+	@Test
+	public void testInPrefixAndRanges() {
+		assertTrue(matches("symbol IN ('BP.L', 'VOD.L')"));
+		assertFalse(matches("symbol NOT IN ('BP.L', 'VOD.L')"));
+		assertTrue(matches("venue LIKE 'LSE%'"));
+		assertFalse(matches("venue NOT LIKE 'LSE%'"));
+		assertTrue(matches("venue like 'LSE-XOFF'"));
+		assertTrue(matches("bid > 231 AND bid < 232"));
+		assertTrue(matches("bid >= 231.45 AND bid <= 231.45"));
+		assertFalse(matches("bid > 231.45"));
+		assertTrue(matches("bid BETWEEN 200 AND 300"));
+		assertFalse(matches("bid NOT BETWEEN 200 AND 300"));
+		assertTrue(matches("bid > -1e3"));
+		// not a number
+		assertFalse(matches("symbol > 0"));
+		assertFalse(matches("missing < 0"));
+	}
+
+	@Test
+	public void testLogicalOperatorsAndPrecedence() {
+		assertTrue(matches("_type = 'trade' OR _type = 'quote' AND bid > 200"));
+		assertFalse(matches("(_type = 'trade' OR _type = 'quote') AND bid > 300"));
+		assertTrue(matches("NOT _type = 'trade' and not (bid < 100)"));
+		assertFalse(matches("NOT NOT _type = 'trade'"));
+	}
+
+	@Test
+	public void testFiltersAreIndexedByARequiredEqualityOrInTest() {
+		StandardBusMessageFilterSubscription filter = new StandardBusMessageFilterSubscription(
+				"bid > 100 AND symbol IN ('VOD.L', 'BP.L') AND _type = 'quote'");
+		assertEquals("symbol", filter.getAttributeName());
+		assertEquals(2, filter.getAttributeValues().size());
+
+		assertNull(new StandardBusMessageFilterSubscription(
+				"_type = 'quote' OR symbol = 'VOD.L'").getAttributeName());
+		assertNull(new StandardBusMessageFilterSubscription(
+				"NOT _type = 'quote'").getAttributeName());
+		assertNull(new StandardBusMessageFilterSubscription("bid = 231.45")
+				.getAttributeName());
+	}
+
+	@Test
+	public void testMalformedExpressionsAreRejected() {
+		for (String expression : new String[] { "", "_type", "_type = ",
+				"_type = 'quote", "_type = 'quote' AND", "(_type = 'quote'",
+				"_type = 'quote')", "bid > 'x'", "symbol IN ()",
+				"symbol IN (1)", "venue LIKE '%XOFF'", "and = 'x'",
+				"bid BETWEEN 1", "_type # 'quote'", "bid > 1.2.3" }) {
+			try {
+				new StandardBusMessageFilterSubscription(expression);
+				fail("Accepted " + expression);
+			} catch (IllegalArgumentException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("position"));
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package com.minorityhobbies.util.bus;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class StandardBusMessageFrameBufferTest implements
+		StandardBusMessageFrameBuffer.FrameHandler {
+	private List<String> frames;
+
+	@Before
+	public void setUp() {
+		frames = new LinkedList<String>();
+	}
+
+	@Override
+	public void onFrame(ByteBuffer frame) throws IOException {
+		frames.add(new String(frame.array(), frame.arrayOffset()
+				+ frame.position(), frame.remaining(), StandardCharsets.UTF_8));
+	}
+
+	private static byte[] frame(String... payloads) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bos);
+		for (String payload : payloads) {
+			StandardBusMessageFrameBuffer.writeFrame(out,
+					ByteBuffer.wrap(payload.getBytes(StandardCharsets.UTF_8)));
+		}
+		out.flush();
+		return bos.toByteArray();
+	}
+
+	@Test
+	public void testDeliversEveryFrameInOneRead() throws IOException {
+		StandardBusMessageFrameBuffer buffer = new StandardBusMessageFrameBuffer();
+		buffer.read(new ByteArrayInputStream(frame("one", "two", "three")), this);
+		assertEquals(3, frames.size());
+		assertEquals("one", frames.get(0));
+		assertEquals("two", frames.get(1));
+		assertEquals("three", frames.get(2));
+		assertEquals(0, buffer.available());
+	}
+
+	@Test
+	public void testCarriesPartialFramesAcrossReads() throws IOException {
+		StandardBusMessageFrameBuffer buffer = new StandardBusMessageFrameBuffer();
+		byte[] b = frame("first", "second");
+		for (int i = 0; i < b.length; i++) {
+			buffer.write(b, i, 1, this);
+		}
+		assertEquals(2, frames.size());
+		assertEquals("first", frames.get(0));
+		assertEquals("second", frames.get(1));
+	}
+
+	@Test
+	public void testFramesWrappingTheRing() throws IOException {
+		StandardBusMessageFrameBuffer buffer = new StandardBusMessageFrameBuffer(
+				1024, 16);
+		byte[] b = frame("abcdefgh", "ijklmnop", "qrstuvwx");
+		// feed in odd sized chunks so the frames straddle the end of the ring
+		for (int i = 0; i < b.length; i += 5) {
+			buffer.write(b, i, Math.min(5, b.length - i), this);
+		}
+		assertEquals(3, frames.size());
+		assertEquals("abcdefgh", frames.get(0));
+		assertEquals("ijklmnop", frames.get(1));
+		assertEquals("qrstuvwx", frames.get(2));
+	}
+
+	@Test
+	public void testGrowsForLargeFrames() throws IOException {
+		StandardBusMessageFrameBuffer buffer = new StandardBusMessageFrameBuffer(
+				1024 * 1024, 16);
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			large.append((char) ('a' + i % 26));
+		}
+		byte[] b = frame(large.toString(), "small");
+		ByteArrayInputStream in = new ByteArrayInputStream(b);
+		while (buffer.read(in, this) > -1) {
+		}
+		assertEquals(2, frames.size());
+		assertEquals(large.toString(), frames.get(0));
+		assertEquals("small", frames.get(1));
+	}
+
+	@Test(expected = IOException.class)
+	public void testRejectsOversizedFrames() throws IOException {
+		StandardBusMessageFrameBuffer buffer = new StandardBusMessageFrameBuffer(8);
+		buffer.read(new ByteArrayInputStream(frame("too long for this")), this);
+	}
+}
@@ -0,0 +1,214 @@
+package com.minorityhobbies.util.bus;
+
+import static com.minorityhobbies.util.bus.BusTestSupport.await;
+import static com.minorityhobbies.util.bus.BusTestSupport.freeUri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+public class StandardBusMessageInterestTest {
+	private static class RecordingAdvertiser implements
+			StandardBusMessageInterest.Advertiser {
+		private final List<String> advertised = new LinkedList<String>();
+		private boolean connected = true;
+
+		@Override
+		public boolean advertise(BusMessage msg) {
+			String name = msg.get(StandardBusMessageInterest.NAME_ATTRIBUTE);
+			advertised.add(msg.get(StandardBusMessageInterest.OPERATION_ATTRIBUTE)
+					+ (name != null ? " " + name + "="
+							+ msg.get(StandardBusMessageInterest.VALUE_ATTRIBUTE)
+							: ""));
+			return connected;
+		}
+	}
+
+	private final BusMessageSubscriptions subscriptions = new StandardBusMessageSubscriptions();
+
+	private static BusMessage message(String type, String source) {
+		return new StandardBusMessageBuilder().setMessageType(type)
+				.setMessageSource(source).build();
+	}
+
+	@Test
+	public void testSubscriptionsAreAdvertisedOnceAndWithdrawnWithTheLast() {
+		StandardBusMessageInterest interest = new StandardBusMessageInterest();
+		BusMessageSubscription quotes = subscriptions
+				.newMessageTypeSubscription("quote");
+		BusMessageSubscription moreQuotes = subscriptions
+				.newMessageTypeSubscription("quote");
+		interest.add(quotes);
+
+		RecordingAdvertiser peer = new RecordingAdvertiser();
+		interest.addAdvertiser(peer);
+		interest.add(moreQuotes);
+		interest.add(subscriptions.newSourceSubscription("exchange"));
+		interest.remove(quotes);
+		interest.remove(moreQuotes);
+		BusMessageSubscription all = subscriptions.newAllMessagesSubscription();
+		interest.add(all);
+		interest.remove(all);
+		assertEquals("[add _type=quote, matching, add _src=exchange, "
+				+ "remove _type=quote, all, matching]", peer.advertised.toString());
+
+		// a peer which has gone is no longer advertised to
+		peer.connected = false;
+		interest.add(quotes);
+		interest.add(moreQuotes);
+		assertEquals(7, peer.advertised.size());
+
+		RecordingAdvertiser late = new RecordingAdvertiser();
+		interest.addAdvertiser(late);
+		assertEquals(3, late.advertised.size());
+		assertTrue(late.advertised.contains("add _type=quote"));
+		assertTrue(late.advertised.contains("add _src=exchange"));
+		assertEquals("matching", late.advertised.get(2));
+	}
+
+	@Test
+	public void testFiltersAreAdvertisedByExpression() {
+		StandardBusMessageInterest interest = new StandardBusMessageInterest();
+		RecordingAdvertiser advertiser = new RecordingAdvertiser();
+		interest.addAdvertiser(advertiser);
+		BusMessageSubscription filter = subscriptions
+				.newFilterSubscription("bid > 100");
+		interest.add(filter);
+		interest.add(subscriptions.newFilterSubscription("bid > 100"));
+		interest.remove(filter);
+
+		StandardBusPeerInterest peer = new StandardBusPeerInterest(null);
+		interest.addAdvertiser(new StandardBusMessageInterest.Advertiser() {
+			@Override
+			public boolean advertise(BusMessage msg) {
+				peer.onMessage(msg);
+				return true;
+			}
+		});
+		assertTrue(peer.wants(new StandardBusMessageBuilder().setAttribute(
+				"bid", "101").build()));
+		assertFalse(peer.wants(new StandardBusMessageBuilder().setAttribute(
+				"bid", "99").build()));
+		assertEquals("[matching, addFilter]", advertiser.advertised.toString());
+	}
+
+	@Test
+	public void testPeerWantsEverythingUntilItAdvertisesInterest() {
+		final List<BusMessage> passed = new LinkedList<BusMessage>();
+		StandardBusPeerInterest peer = new StandardBusPeerInterest(
+				new BusMessageHandler() {
+					@Override
+					public void onMessage(BusMessage msg) {
+						passed.add(msg);
+					}
+				});
+		assertTrue(peer.wants(message("trade", "exchange")));
+
+		peer.onMessage(StandardBusMessageInterest.interestMessage(
+				StandardBusMessageInterest.ADD, "_type", "quote"));
+		peer.onMessage(StandardBusMessageInterest.interestMessage(
+				StandardBusMessageInterest.MATCHING, null, null));
+		assertTrue(peer.wants(message("quote", "exchange")));
+		assertFalse(peer.wants(message("trade", "exchange")));
+
+		peer.onMessage(StandardBusMessageInterest.interestMessage(
+				StandardBusMessageInterest.ADD, "_src", "exchange"));
+		peer.onMessage(StandardBusMessageInterest.interestMessage(
+				StandardBusMessageInterest.REMOVE, "_type", "quote"));
+		assertTrue(peer.wants(message("trade", "exchange")));
+		assertFalse(peer.wants(message("quote", "broker")));
+
+		peer.onMessage(StandardBusMessageInterest.interestMessage(
+				StandardBusMessageInterest.ALL, null, null));
+		assertTrue(peer.wants(message("quote", "broker")));
+
+		assertEquals(0, passed.size());
+		peer.onMessage(message("quote", "broker"));
+		assertEquals(1, passed.size());
+	}
+
+	@Test
+	public void testSocketServerOnlyPushesAdvertisedMessages() throws Exception {
+		URI uri = freeUri("socket");
+		StandardSocketServerBusMessageConnection connection = new StandardSocketServerBusMessageConnection(
+				uri);
+		assertOnlyAdvertisedMessagesArePushed(uri, connection);
+	}
+
+	@Test
+	public void testNioServerOnlyPushesAdvertisedMessages() throws Exception {
+		URI uri = freeUri("nio");
+		StandardNioServerBusMessageConnection connection = new StandardNioServerBusMessageConnection(
+				uri, new StandardBusMessageSerialiser(),
+				StandardBusMessageFrameBuffer.DEFAULT_MAX_FRAME_SIZE,
+				StandardSocketBusMessagePeerWriter.DEFAULT_MAX_BACKLOG, 1);
+		assertOnlyAdvertisedMessagesArePushed(uri, connection);
+	}
+
+	private void assertOnlyAdvertisedMessagesArePushed(URI uri,
+			BusMessageConnection serverConnection) throws Exception {
+		Bus server = new StandardBus();
+		server.getBusServer().addConnection(serverConnection);
+		server.getBusServer().start();
+
+		Bus client = new StandardBus(null, 0, null, new StandardBusOptions()
+				.withInterest(new StandardBusMessageInterest()));
+		StandardSocketBusMessageConnection connection = new StandardSocketBusMessageConnection(
+				uri, new StandardBusMessageSerialiser());
+		client.getBusServer().addConnection(connection);
+		final List<String> received = new CopyOnWriteArrayList<String>();
+		BusMessageHandler handler = new BusMessageHandler() {
+			@Override
+			public void onMessage(BusMessage msg) {
+				received.add(BusMessageAttribute.MESSAGE_TYPE.get(msg) + "/"
+						+ BusMessageAttribute.SOURCE.get(msg));
+			}
+		};
+		// advertised when the connection starts
+		client.subscribe(subscriptions.newMessageTypeSubscription("quote"),
+				handler);
+		client.getBusServer().start();
+		try {
+			// then as subscriptions are added
+			BusMessageSubscriptionHandle exchange = client.subscribe(
+					subscriptions.newSourceSubscription("exchange"), handler);
+			for (int i = 0; i < 500 && !received.contains("trade/exchange"); i++) {
+				server.publish(message("trade", "exchange"));
+				Thread.sleep(10L);
+			}
+			assertTrue(received.contains("trade/exchange"));
+
+			received.clear();
+			long in = connection.getMetrics().getMessagesIn();
+			for (int i = 0; i < 10; i++) {
+				server.publish(message("trade", "broker"));
+			}
+			server.publish(message("quote", "broker"));
+			server.publish(message("trade", "exchange"));
+			await(received, 2);
+			assertEquals("[quote/broker, trade/exchange]", received.toString());
+			assertEquals(in + 2L, connection.getMetrics().getMessagesIn());
+
+			// withdrawn when the handle is closed
+			exchange.close();
+			Thread.sleep(100L);
+			server.publish(message("trade", "exchange"));
+			server.publish(message("quote", "exchange"));
+			await(received, 3);
+			Thread.sleep(100L);
+			assertEquals("[quote/broker, trade/exchange, quote/exchange]",
+					received.toString());
+			assertEquals(in + 3L, connection.getMetrics().getMessagesIn());
+		} finally {
+			client.getBusServer().close();
+			server.getBusServer().close();
+		}
+	}
+}
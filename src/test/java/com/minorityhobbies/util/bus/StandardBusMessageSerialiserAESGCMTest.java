@@ -0,0 +1,91 @@
+package com.minorityhobbies.util.bus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class StandardBusMessageSerialiserAESGCMTest {
+	private static final byte[] KEY = "shared secret".getBytes(StandardCharsets.UTF_8);
+
+	private final BusMessage msg = new StandardBusMessageBuilder()
+			.setMessageId("1").setMessageType("test")
+			.setAttribute("key1", "value1").build();
+
+	@Test
+	public void testPeersWithSharedKeyCanDecrypt() throws IOException {
+		BusMessageSerialiser sender = new StandardBusMessageSerialiserAESGCM(KEY);
+		BusMessageSerialiser receiver = new StandardBusMessageSerialiserAESGCM(KEY);
+
+		BusMessage receivedMsg = receiver.fromBytes(sender.toBytes(msg));
+		assertEquals("1", BusMessageAttribute.MESSAGE_ID.get(receivedMsg));
+		assertEquals("test", BusMessageAttribute.MESSAGE_TYPE.get(receivedMsg));
+		assertEquals("value1", receivedMsg.get("key1"));
+		assertEquals(StandardBusMessageSerialiserAESGCM.PROTOCOL,
+				receivedMsg.get("_protocol"));
+	}
+
+	@Test
+	public void testBufferRoundTrip() throws IOException {
+		BusMessageSerialiser serialiser = new StandardBusMessageSerialiserAESGCM(KEY);
+		ByteBuffer encoded = serialiser.toBuffer(msg);
+		ByteBuffer copy = ByteBuffer.allocate(encoded.remaining());
+		copy.put(encoded).flip();
+
+		BusMessage receivedMsg = serialiser.fromBuffer(copy);
+		assertEquals(0, copy.remaining());
+		assertEquals("value1", receivedMsg.get("key1"));
+	}
+
+	@Test
+	public void testNonceIsNotReused() throws IOException {
+		BusMessageSerialiser serialiser = new StandardBusMessageSerialiserAESGCM(KEY);
+		byte[] first = serialiser.toBytes(msg);
+		byte[] second = serialiser.toBytes(msg);
+		assertFalse(Arrays.equals(
+				Arrays.copyOf(first, StandardBusMessageSerialiserAESGCM.NONCE_SIZE),
+				Arrays.copyOf(second, StandardBusMessageSerialiserAESGCM.NONCE_SIZE)));
+		assertFalse(Arrays.equals(first, second));
+	}
+
+	@Test
+	public void testDifferentKeyIsRejected() throws IOException {
+		byte[] b = new StandardBusMessageSerialiserAESGCM(KEY).toBytes(msg);
+		try {
+			new StandardBusMessageSerialiserAESGCM(
+					"other secret".getBytes(StandardCharsets.UTF_8)).fromBytes(b);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testTamperedMessageIsRejected() throws IOException {
+		BusMessageSerialiser serialiser = new StandardBusMessageSerialiserAESGCM(KEY);
+		byte[] b = serialiser.toBytes(msg);
+		b[StandardBusMessageSerialiserAESGCM.NONCE_SIZE + 2] ^= 1;
+		try {
+			serialiser.fromBytes(b);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testTruncatedMessageIsRejected() throws IOException {
+		try {
+			new StandardBusMessageSerialiserAESGCM(KEY).fromBytes(new byte[10]);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
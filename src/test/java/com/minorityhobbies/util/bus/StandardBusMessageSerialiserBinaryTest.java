@@ -0,0 +1,92 @@
+package com.minorityhobbies.util.bus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class StandardBusMessageSerialiserBinaryTest {
+	private final BusMessageSerialiser serialiser = StandardBusMessageSerialisers.BINARY
+			.get();
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		BusMessage msg = new StandardBusMessageBuilder().setMessageId("1")
+				.setMessageSource("here").setMessageDestination("there")
+				.setMessageType("test").setAttribute("key1", "value1")
+				.setAttribute("empty", "").build();
+
+		BusMessage receivedMsg = serialiser.fromBytes(serialiser.toBytes(msg));
+		assertEquals("1", BusMessageAttribute.MESSAGE_ID.get(receivedMsg));
+		assertEquals("here", BusMessageAttribute.SOURCE.get(receivedMsg));
+		assertEquals("there", BusMessageAttribute.DESTINATION.get(receivedMsg));
+		assertEquals("test", BusMessageAttribute.MESSAGE_TYPE.get(receivedMsg));
+		assertEquals("value1", receivedMsg.get("key1"));
+		assertEquals("", receivedMsg.get("empty"));
+		assertEquals("BINARY", receivedMsg.get("_protocol"));
+	}
+
+	@Test
+	public void testReservedAttributesUseSingleByteTags() throws IOException {
+		BusMessage msg = new StandardBusMessageBuilder().setMessageId("1").build();
+		byte[] b = serialiser.toBytes(msg);
+		// _id tag, length, value, then _protocol tag, length, "BINARY"
+		assertEquals(3 + 2 + "BINARY".length(), b.length);
+		assertEquals(StandardBusMessageSerialiserBinary.TAG_MESSAGE_ID, b[0]);
+	}
+
+	@Test
+	public void testMultiByteCharactersAndLengths() throws IOException {
+		StringBuilder longValue = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			longValue.append(i % 10);
+		}
+		Map<String, String> attributes = new HashMap<String, String>();
+		attributes.put("unicode", "caf\u00e9 \u20ac \ud83d\ude00");
+		attributes.put("long", longValue.toString());
+		BusMessage msg = new StandardBusMessage(attributes);
+
+		ByteBuffer buf = serialiser.toBuffer(msg);
+		BusMessage receivedMsg = serialiser.fromBuffer(buf);
+		assertEquals(0, buf.remaining());
+		assertEquals("caf\u00e9 \u20ac \ud83d\ude00", receivedMsg.get("unicode"));
+		assertEquals(longValue.toString(), receivedMsg.get("long"));
+	}
+
+	@Test
+	public void testEncodeBufferIsReused() throws IOException {
+		Map<String, String> attributes = new HashMap<String, String>();
+		attributes.put("key1", "value1");
+		BusMessage msg = new StandardBusMessage(attributes);
+
+		ByteBuffer first = serialiser.toBuffer(msg);
+		ByteBuffer second = serialiser.toBuffer(msg);
+		assertSame(first, second);
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncatedMessageIsRejected() throws IOException {
+		BusMessage msg = new StandardBusMessageBuilder().setMessageId("12345")
+				.build();
+		byte[] b = serialiser.toBytes(msg);
+		serialiser.fromBuffer(ByteBuffer.wrap(b, 0, 4));
+	}
+
+	@Test(expected = IOException.class)
+	public void testNegativeLengthIsRejected() throws IOException {
+		// a value whose length decodes to -1
+		serialiser.fromBuffer(ByteBuffer.wrap(new byte[] { 1, (byte) 0xff,
+				(byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f }));
+	}
+
+	@Test(expected = IOException.class)
+	public void testOverlongLengthIsRejected() throws IOException {
+		serialiser.fromBuffer(ByteBuffer.wrap(new byte[] { 1, (byte) 0x80,
+				(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0 }));
+	}
+}
@@ -0,0 +1,111 @@
+package com.minorityhobbies.util.bus;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class StandardBusMessageSubscriptionIndexTest {
+	private final BusMessageSubscriptions subscriptions = new StandardBusMessageSubscriptions();
+	private StandardBusMessageSubscriptionIndex index;
+	private List<String> received;
+
+	@Before
+	public void setUp() {
+		index = new StandardBusMessageSubscriptionIndex();
+		received = new LinkedList<String>();
+	}
+
+	private BusMessageHandler handler(final String name) {
+		return new BusMessageHandler() {
+			@Override
+			public void onMessage(BusMessage msg) {
+				received.add(name);
+			}
+		};
+	}
+
+	private static BusMessage message(String type, String destination) {
+		return new StandardBusMessageBuilder().setMessageType(type)
+				.setMessageDestination(destination).build();
+	}
+
+	@Test
+	public void testOnlyMatchingIndexedSubscriptionsReceive() {
+		index.put(subscriptions.newMessageTypeSubscription("a"), handler("type-a"));
+		index.put(subscriptions.newMessageTypeSubscription("b"), handler("type-b"));
+		index.put(subscriptions.newDestinationSubscription("x"), handler("dst-x"));
+
+		index.dispatch(message("a", "x"));
+		assertEquals(2, received.size());
+		assertEquals(true, received.contains("type-a"));
+		assertEquals(true, received.contains("dst-x"));
+	}
+
+	@Test
+	public void testOpaqueSubscriptionsAreTested() {
+		index.put(subscriptions.newAllMessagesSubscription(), handler("all"));
+		index.put(new BusMessageSubscription() {
+			@Override
+			public boolean matches(BusMessage msg) {
+				return "b".equals(BusMessageAttribute.MESSAGE_TYPE.get(msg));
+			}
+		}, handler("predicate-b"));
+
+		index.dispatch(message("a", "x"));
+		assertEquals(1, received.size());
+		assertEquals("all", received.get(0));
+	}
+
+	@Test
+	public void testIndexedFiltersAreTestedOnlyAgainstCandidates() {
+		BusMessageSubscription ab = subscriptions
+				.newFilterSubscription("_type IN ('a', 'b') AND _dst LIKE 'x%'");
+		index.put(ab, handler("filter-ab"));
+		index.put(subscriptions.newFilterSubscription("_type = 'a' OR _dst = 'y'"),
+				handler("filter-or"));
+
+		index.dispatch(message("a", "x1"));
+		index.dispatch(message("b", "y"));
+		index.dispatch(message("c", "x"));
+		assertEquals("[filter-ab, filter-or, filter-or]", received.toString());
+
+		index.remove(ab);
+		received.clear();
+		index.dispatch(message("b", "x"));
+		assertEquals(0, received.size());
+	}
+
+	@Test
+	public void testRemovedSubscriptionsNoLongerReceive() {
+		BusMessageSubscription a1 = subscriptions.newMessageTypeSubscription("a");
+		BusMessageSubscription a2 = subscriptions.newMessageTypeSubscription("a");
+		index.put(a1, handler("a1"));
+		index.put(a2, handler("a2"));
+		assertEquals(2, index.size());
+
+		index.remove(a1);
+		index.dispatch(message("a", "x"));
+		assertEquals(1, received.size());
+		assertEquals("a2", received.get(0));
+
+		index.remove(a2);
+		index.dispatch(message("a", "x"));
+		assertEquals(1, received.size());
+		assertEquals(0, index.size());
+	}
+
+	@Test
+	public void testResubscribingReplacesHandler() {
+		BusMessageSubscription a = subscriptions.newMessageTypeSubscription("a");
+		index.put(a, handler("first"));
+		index.put(a, handler("second"));
+
+		index.dispatch(message("a", "x"));
+		assertEquals(1, received.size());
+		assertEquals("second", received.get(0));
+	}
+}
@@ -0,0 +1,168 @@
+package com.minorityhobbies.util.bus;
+
+import static com.minorityhobbies.util.bus.BusTestSupport.freeUri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.concurrent.Executor;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Test;
+
+public class StandardBusMetricsTest {
+	private static final BusMessageHandler NO_OP = new BusMessageHandler() {
+		@Override
+		public void onMessage(BusMessage msg) {
+		}
+	};
+
+	@Test
+	public void testPublishAndDeliveryAreCounted() {
+		StandardBusMetrics metrics = new StandardBusMetrics();
+		StandardBus bus = new StandardBus(null, 0, null,
+				new StandardBusOptions().withMetrics(metrics));
+		final BusMessage[] received = new BusMessage[1];
+		bus.subscribe(bus.getSubscriptions().newMessageTypeSubscription("a"),
+				new BusMessageHandler() {
+					@Override
+					public void onMessage(BusMessage msg) {
+						received[0] = msg;
+					}
+				});
+		bus.subscribe(bus.getSubscriptions().newMessageTypeSubscription("b"),
+				NO_OP);
+
+		BusMessage msg = bus.getBusMessageBuilder().setMessageType("a").build();
+		bus.publish(msg);
+		bus.publish(bus.getBusMessageBuilder().setMessageType("c").build());
+
+		assertTrue(received[0] == msg);
+		assertEquals(2L, metrics.getPublishedCount());
+		assertEquals(1L, metrics.getDeliveredCount());
+		assertTrue(metrics.getDeliveryLatencyMaxNanos() >= metrics
+				.getHandlerLatencyMaxNanos());
+	}
+
+	@Test
+	public void testDroppedMessagesAreCounted() {
+		Executor executor = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				// nothing is delivered until the queue has overflowed
+			}
+		};
+		StandardBusMetrics metrics = new StandardBusMetrics();
+		StandardBus bus = new StandardBus(executor, 2,
+				BusDispatchOverflowPolicy.DROP_NEWEST,
+				new StandardBusOptions().withMetrics(metrics));
+		bus.subscribe(bus.getSubscriptions().newAllMessagesSubscription(), NO_OP);
+		for (int i = 0; i < 5; i++) {
+			bus.publish(bus.getBusMessageBuilder().setMessageType("a").build());
+		}
+		assertEquals(5L, metrics.getPublishedCount());
+		assertEquals(3L, metrics.getDroppedCount());
+	}
+
+	@Test
+	public void testMetricsAreExportedThroughJmx() throws Exception {
+		Bus bus = new BusServerFactory()
+				.listenOn(new URI("socket://127.0.0.1:0"))
+				.withMetrics("StandardBusMetricsTest").build();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(
+				"com.minorityhobbies.util.bus:type=Bus,name=\"StandardBusMetricsTest\"");
+		try {
+			bus.subscribe(bus.getSubscriptions().newAllMessagesSubscription(),
+					NO_OP);
+			bus.publish(bus.getBusMessageBuilder().setMessageType("a").build());
+
+			assertEquals(1L, server.getAttribute(name, "PublishedCount"));
+			assertEquals(1L, server.getAttribute(name, "DeliveredCount"));
+			assertEquals(1L, server.getAttribute(name, "ConnectionsAddedCount"));
+			TabularData connections = (TabularData) server.getAttribute(name,
+					"Connections");
+			assertEquals(1, connections.size());
+			CompositeData row = (CompositeData) connections.values().iterator()
+					.next();
+			assertEquals("socket://127.0.0.1:0", row.get("name"));
+			assertEquals(0L, row.get("bytesOut"));
+		} finally {
+			bus.getBusServer().close();
+		}
+		assertFalse(server.isRegistered(name));
+	}
+
+	@Test
+	public void testConnectionBytesAreCounted() throws Exception {
+		URI uri = freeUri("socket");
+		BusMessageSerialiser serialiser = StandardBusMessageSerialisers.BINARY
+				.get();
+		StandardSocketServerBusMessageConnection server = new StandardSocketServerBusMessageConnection(
+				uri, serialiser, StandardBusMessageFrameBuffer.DEFAULT_MAX_FRAME_SIZE,
+				StandardSocketBusMessagePeerWriter.DEFAULT_MAX_BACKLOG);
+		StandardSocketBusMessageConnection client = new StandardSocketBusMessageConnection(
+				uri, serialiser);
+		server.start();
+		client.start();
+		try {
+			BusMessage msg = new StandardBusMessageBuilder().setMessageType("a")
+					.build();
+			int frameSize = StandardBusMessageFrameBuffer.HEADER_SIZE
+					+ serialiser.toBytes(msg).length;
+			client.push(msg);
+			client.push(msg);
+			StandardBusConnectionMetrics received = server.getMetrics();
+			for (int i = 0; i < 500 && received.getMessagesIn() < 2; i++) {
+				Thread.sleep(10L);
+			}
+			assertEquals(2L, client.getMetrics().getMessagesOut());
+			assertEquals(2L * frameSize, client.getMetrics().getBytesOut());
+			assertEquals(2L, received.getMessagesIn());
+			assertEquals(2L * frameSize, received.getBytesIn());
+		} finally {
+			client.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void testBatchesAreExportedThroughJmx() throws Exception {
+		URI uri = freeUri("socket");
+		Bus server = new BusServerFactory().listenOn(uri).build();
+		Bus client = new BusServerFactory().connectTo(uri)
+				.withBatching(1000L, 1 << 16)
+				.withMetrics("StandardBusMetricsTest-batches").build();
+		MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(
+				"com.minorityhobbies.util.bus:type=Bus,name=\"StandardBusMetricsTest-batches\"");
+		try {
+			server.getBusServer().start();
+			client.getBusServer().start();
+			for (int i = 0; i < 10; i++) {
+				client.publish(client.getBusMessageBuilder()
+						.setMessageType("a").build());
+			}
+			for (int i = 0; i < 500
+					&& (Long) mbeans.getAttribute(name, "BatchedMessageCount") < 10L; i++) {
+				Thread.sleep(10L);
+			}
+			assertEquals(10L, mbeans.getAttribute(name, "BatchedMessageCount"));
+			long batches = (Long) mbeans.getAttribute(name, "BatchCount");
+			assertTrue(batches > 0L);
+			assertEquals(batches,
+					(Long) mbeans.getAttribute(name, "SizeFlushCount")
+							+ (Long) mbeans.getAttribute(name, "LingerFlushCount"));
+			assertTrue((Integer) mbeans.getAttribute(name, "LargestBatch") > 0);
+		} finally {
+			client.getBusServer().close();
+			server.getBusServer().close();
+		}
+	}
+}
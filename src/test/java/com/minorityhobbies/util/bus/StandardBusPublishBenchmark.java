@@ -0,0 +1,75 @@
+package com.minorityhobbies.util.bus;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the cost of {@link StandardBus#publish(BusMessage)} against the
+ * number of subscribers. Each subscriber listens for its own message type so
+ * every publish has exactly one matching handler. The indexed run uses type
+ * subscriptions; the predicate run registers equivalent opaque subscriptions
+ * which must be tested one by one; the filter run uses filter expressions
+ * which also test a numeric attribute. Run as a plain Java application.
+ */
+public class StandardBusPublishBenchmark {
+	private static final long TARGET_NANOS = 2000000000L;
+
+	public static void main(String[] args) {
+		for (int subscribers : new int[] { 10, 1000, 100000 }) {
+			run("indexed", subscribers);
+			run("predicate", subscribers);
+			run("filter", subscribers);
+		}
+	}
+
+	private static void run(String name, int subscriberCount) {
+		StandardBus bus = new StandardBus();
+		final AtomicLong delivered = new AtomicLong();
+		BusMessageHandler handler = new BusMessageHandler() {
+			@Override
+			public void onMessage(BusMessage msg) {
+				delivered.incrementAndGet();
+			}
+		};
+		for (int i = 0; i < subscriberCount; i++) {
+			final String type = "type-" + i;
+			if (name.equals("predicate")) {
+				bus.subscribe(new BusMessageSubscription() {
+					@Override
+					public boolean matches(BusMessage msg) {
+						return type.equals(BusMessageAttribute.MESSAGE_TYPE.get(msg));
+					}
+				}, handler);
+			} else if (name.equals("filter")) {
+				bus.subscribe(bus.getSubscriptions().newFilterSubscription(
+						"_type = '" + type + "' AND size >= 100"), handler);
+			} else {
+				bus.subscribe(bus.getSubscriptions().newMessageTypeSubscription(type),
+						handler);
+			}
+		}
+
+		BusMessage[] msgs = new BusMessage[Math.min(subscriberCount, 1024)];
+		for (int i = 0; i < msgs.length; i++) {
+			msgs[i] = bus.getBusMessageBuilder().setMessageType("type-" + i)
+					.setAttribute("size", "250").build();
+		}
+
+		// warm up, then publish until the time budget is spent
+		for (int i = 0; i < 10000; i++) {
+			bus.publish(msgs[i % msgs.length]);
+		}
+		long iterations = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			for (int i = 0; i < 100; i++) {
+				bus.publish(msgs[(int) (iterations++ % msgs.length)]);
+			}
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < TARGET_NANOS);
+
+		System.out.println(String.format(
+				"%-9s subscribers=%6d publish=%12.1f ns/op (%d delivered)", name,
+				subscriberCount, (double) elapsed / iterations, delivered.get()));
+	}
+}
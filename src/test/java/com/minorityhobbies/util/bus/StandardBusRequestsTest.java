@@ -0,0 +1,135 @@
+package com.minorityhobbies.util.bus;
+
+import static com.minorityhobbies.util.bus.BusTestSupport.freeUri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+public class StandardBusRequestsTest {
+	private static BusMessageSubscriptionHandle echo(final Bus bus) {
+		return bus.subscribe(bus.getSubscriptions().newMessageTypeSubscription(
+				"echo"), new BusMessageHandler() {
+			@Override
+			public void onMessage(BusMessage msg) {
+				bus.publish(bus.getReplyBuilder(msg).setMessageType("echoed")
+						.setAttribute("text", msg.get("text")).build());
+			}
+		});
+	}
+
+	private static BusMessage echoRequest(Bus bus, String text) {
+		return bus.getBusMessageBuilder().setMessageType("echo")
+				.setAttribute("text", text).build();
+	}
+
+	@Test
+	public void testRepliesCompleteTheirOwnRequest() throws Exception {
+		Bus bus = new StandardBus();
+		echo(bus);
+		List<CompletableFuture<BusMessage>> replies = new CopyOnWriteArrayList<CompletableFuture<BusMessage>>();
+		for (int i = 0; i < 100; i++) {
+			replies.add(bus.request(echoRequest(bus, Integer.toString(i)), 1L,
+					TimeUnit.SECONDS));
+		}
+		for (int i = 0; i < 100; i++) {
+			BusMessage reply = replies.get(i).get();
+			assertEquals(Integer.toString(i), reply.get("text"));
+			assertEquals("echoed", BusMessageAttribute.MESSAGE_TYPE.get(reply));
+		}
+		assertEquals(0, bus.getRequestsInFlight());
+	}
+
+	@Test
+	public void testRequestsWithoutAReplyTimeOut() throws Exception {
+		Bus bus = new StandardBus();
+		long start = System.nanoTime();
+		CompletableFuture<BusMessage> reply = bus.request(echoRequest(bus, "a"),
+				100L, TimeUnit.MILLISECONDS);
+		assertEquals(1, bus.getRequestsInFlight());
+		try {
+			reply.get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS
+				.toNanos(100L));
+		assertEquals(0, bus.getRequestsInFlight());
+	}
+
+	@Test
+	public void testCancelledRequestsAreNoLongerInFlight() {
+		Bus bus = new StandardBus();
+		CompletableFuture<BusMessage> reply = bus.request(echoRequest(bus, "a"),
+				1L, TimeUnit.MINUTES);
+		assertEquals(1, bus.getRequestsInFlight());
+		reply.cancel(false);
+		assertEquals(0, bus.getRequestsInFlight());
+	}
+
+	@Test
+	public void testMessageIdsOfRequestsInFlightMustBeUnique() throws Exception {
+		Bus bus = new StandardBus();
+		BusMessage request = bus.getBusMessageBuilder().setMessageType("echo")
+				.setMessageId("order-1").build();
+		CompletableFuture<BusMessage> first = bus.request(request, 1L,
+				TimeUnit.MINUTES);
+		try {
+			bus.request(request, 1L, TimeUnit.MINUTES).get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		assertEquals(1, bus.getRequestsInFlight());
+
+		// the id may be reused once the first request has ended
+		first.cancel(false);
+		echo(bus);
+		assertEquals("order-1",
+				BusMessageAttribute.MESSAGE_ID.get(bus.request(request, 1L,
+						TimeUnit.MINUTES).get()));
+	}
+
+	@Test
+	public void testRequestsAreAnsweredByRemotePeers() throws Exception {
+		URI uri = freeUri("socket");
+		Bus server = new StandardBus();
+		server.getBusServer().addConnection(
+				new StandardSocketServerBusMessageConnection(uri));
+		echo(server);
+		server.getBusServer().start();
+
+		Bus client = new StandardBus(null, 0, null, new StandardBusOptions()
+				.withInterest(new StandardBusMessageInterest()));
+		client.getBusServer().addConnection(
+				new StandardSocketBusMessageConnection(uri,
+						new StandardBusMessageSerialiser()));
+		client.getBusServer().start();
+		try {
+			BusMessage reply = null;
+			for (int i = 0; i < 50 && reply == null; i++) {
+				try {
+					reply = client.request(echoRequest(client, "remote"), 100L,
+							TimeUnit.MILLISECONDS).get();
+				} catch (ExecutionException e) {
+					assertTrue(e.getCause() instanceof TimeoutException);
+				}
+			}
+			assertEquals("remote", reply.get("text"));
+			assertEquals(0, client.getRequestsInFlight());
+		} finally {
+			client.getBusServer().close();
+			server.getBusServer().close();
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package com.minorityhobbies.util.bus;
+
+import static com.minorityhobbies.util.bus.BusTestSupport.await;
+import static com.minorityhobbies.util.bus.BusTestSupport.freeUri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class StandardBusServerMulticastDiscoveryTest {
+	private final BusMessageSerialiser serialiser = StandardBusMessageSerialisers.STANDARD
+			.get();
+	private URI discoveryUri;
+
+	@Before
+	public void setUp() throws Exception {
+		DatagramSocket s = new DatagramSocket(0);
+		int port = s.getLocalPort();
+		s.close();
+		discoveryUri = new URI(String.format("multicast://239.255.43.%d:%d",
+				1 + port % 250, port));
+	}
+
+	@Test
+	public void testServicesJoinWhenHeardAndLeaveWhenSilent() throws Exception {
+		URI serviceUri = freeUri("socket");
+		Bus server = new StandardBus();
+		server.getBusServer().addConnection(
+				new StandardSocketServerBusMessageConnection(serviceUri));
+		server.getBusServer().addConnection(
+				new StandardBusServerMulticastDiscovery("prices", serviceUri,
+						discoveryUri, serialiser, 20L, 80L));
+
+		final List<String> events = new CopyOnWriteArrayList<String>();
+		Map<URI, List<String>> services = new HashMap<URI, List<String>>();
+		services.put(discoveryUri, Arrays.asList("prices"));
+		Bus client = new StandardBus();
+		client.getBusServer().addConnection(
+				new StandardBusServerMulticastDiscoveryClient(client
+						.getBusServer(), services, serialiser,
+						new BusMembershipListener() {
+							@Override
+							public void joined(String serviceName, URI address) {
+								events.add("joined " + serviceName + " " + address);
+							}
+
+							@Override
+							public void left(String serviceName, URI address) {
+								events.add("left " + serviceName + " " + address);
+							}
+						}));
+		final List<String> received = new CopyOnWriteArrayList<String>();
+		client.subscribe(client.getSubscriptions().newAllMessagesSubscription(),
+				new BusMessageHandler() {
+					@Override
+					public void onMessage(BusMessage msg) {
+						received.add(BusMessageAttribute.MESSAGE_ID.get(msg));
+					}
+				});
+
+		server.getBusServer().start();
+		client.getBusServer().start();
+		try {
+			await(events, 1);
+			assertEquals(Arrays.asList("joined prices " + serviceUri), events);
+			for (int i = 0; i < 100 && received.isEmpty(); i++) {
+				server.publish(server.getBusMessageBuilder().setMessageId("1")
+						.build());
+				Thread.sleep(10L);
+			}
+			assertTrue(received.contains("1"));
+
+			// three missed beacons at the longest interval
+			server.getBusServer().close();
+			long closed = System.nanoTime();
+			await(events, 2);
+			assertEquals(Arrays.asList("joined prices " + serviceUri,
+					"left prices " + serviceUri), events);
+			assertTrue(System.nanoTime() - closed < 2000000000L);
+		} finally {
+			client.getBusServer().close();
+			server.getBusServer().close();
+		}
+	}
+
+	@Test
+	public void testBeaconsBackOffUntilProbed() throws Exception {
+		InetAddress group = InetAddress.getByName(discoveryUri.getHost());
+		MulticastSocket socket = new MulticastSocket(discoveryUri.getPort());
+		socket.joinGroup(group);
+		socket.setSoTimeout(2000);
+		StandardBusServerMulticastDiscovery discovery = new StandardBusServerMulticastDiscovery(
+				"prices", freeUri("socket"), discoveryUri, serialiser, 20L, 160L);
+		discovery.start();
+		try {
+			List<Long> intervals = new LinkedList<Long>();
+			while (intervals.size() < 6) {
+				intervals.add(nextBeaconInterval(socket));
+			}
+			assertEquals(Arrays.asList(20L, 40L, 80L, 160L, 160L, 160L),
+					intervals);
+
+			byte[] probe = serialiser.toBytes(new StandardBusMessageBuilder()
+					.setMessageType(StandardBusServerMulticastDiscovery.PROBE_TYPE)
+					.build());
+			socket.send(new DatagramPacket(probe, probe.length, group,
+					discoveryUri.getPort()));
+			assertEquals(20L, nextBeaconInterval(socket));
+		} finally {
+			discovery.close();
+			socket.close();
+		}
+	}
+
+	private long nextBeaconInterval(MulticastSocket socket) throws Exception {
+		byte[] b = new byte[StandardBusServerMulticastDiscovery.MAX_DATAGRAM_SIZE];
+		while (true) {
+			DatagramPacket p = new DatagramPacket(b, b.length);
+			try {
+				socket.receive(p);
+			} catch (SocketTimeoutException e) {
+				throw new AssertionError("No beacon heard");
+			}
+			BusMessage msg = serialiser.fromBytes(Arrays.copyOf(b,
+					p.getLength()));
+			if (StandardBusServerMulticastDiscovery.DISCOVERY_TYPE
+					.equals(BusMessageAttribute.MESSAGE_TYPE.get(msg))) {
+				return Long.parseLong(msg
+						.get(StandardBusServerMulticastDiscovery.INTERVAL_ATTRIBUTE));
+			}
+		}
+	}
+}
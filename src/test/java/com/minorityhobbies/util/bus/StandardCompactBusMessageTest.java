@@ -0,0 +1,100 @@
+package com.minorityhobbies.util.bus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class StandardCompactBusMessageTest {
+	@Test
+	public void testBuilderOverwritesAttributes() {
+		BusMessage msg = new StandardBusMessageBuilder().setMessageType("a")
+				.setAttribute("key", "1").setAttribute("key", "2")
+				.setMessageType("b").build();
+		assertEquals("b", BusMessageAttribute.MESSAGE_TYPE.get(msg));
+		assertEquals("2", msg.get("key"));
+		assertNull(msg.get("missing"));
+		assertEquals(2, msg.getAttributes().size());
+	}
+
+	@Test
+	public void testBuiltMessageIsNotChangedByReusingBuilder() {
+		StandardBusMessageBuilder builder = new StandardBusMessageBuilder();
+		BusMessage first = builder.setAttribute("key", "1").build();
+		builder.setAttribute("key", "2").setAttribute("other", "3");
+		assertEquals("1", first.get("key"));
+		assertNull(first.get("other"));
+	}
+
+	@Test
+	public void testAttributesAreReadOnlyView() {
+		BusMessage msg = new StandardBusMessageBuilder().setAttribute("key", "1")
+				.build();
+		Map<String, String> attributes = msg.getAttributes();
+		assertSame(attributes, msg.getAttributes());
+		assertTrue(attributes.containsKey("key"));
+		assertEquals("1", attributes.get("key"));
+
+		Map<String, String> expected = new HashMap<String, String>();
+		expected.put("key", "1");
+		assertEquals(expected, attributes);
+
+		try {
+			attributes.put("key", "2");
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		assertEquals("1", msg.get("key"));
+	}
+
+	@Test
+	public void testAttributeNamesAreInterned() {
+		String name = new String(new char[] { 'n', 'a', 'm', 'e' });
+		StandardCompactBusMessage first = (StandardCompactBusMessage) new StandardBusMessageBuilder()
+				.setAttribute("name", "1").build();
+		StandardCompactBusMessage second = (StandardCompactBusMessage) new StandardBusMessageBuilder()
+				.setAttribute(name, "2").build();
+		assertSame(first.nameAt(0), second.nameAt(0));
+	}
+
+	@Test
+	public void testLocalSharesAttributes() {
+		BusMessage msg = new StandardBusMessageBuilder().setAttribute("key", "1")
+				.build();
+		assertFalse(StandardCompactBusMessage.isLocal(msg));
+
+		BusMessage local = StandardCompactBusMessage.local(msg);
+		assertTrue(StandardCompactBusMessage.isLocal(local));
+		assertEquals("1", local.get("key"));
+		assertSame(local, StandardCompactBusMessage.local(local));
+
+		Map<String, String> attributes = new HashMap<String, String>();
+		attributes.put("key", "1");
+		BusMessage other = StandardCompactBusMessage.local(new StandardBusMessage(
+				attributes));
+		assertTrue(StandardCompactBusMessage.isLocal(other));
+		assertEquals("1", other.get("key"));
+	}
+
+	@Test
+	public void testStandardSerialiserRoundTrip() throws IOException {
+		BusMessageSerialiser serialiser = StandardBusMessageSerialisers.STANDARD
+				.get();
+		BusMessage msg = new StandardBusMessageBuilder().setMessageId("1")
+				.setAttribute("key", "value").build();
+		BusMessage receivedMsg = serialiser.fromBytes(serialiser.toBytes(msg));
+		assertEquals("1", BusMessageAttribute.MESSAGE_ID.get(receivedMsg));
+		assertEquals("value", receivedMsg.get("key"));
+		assertEquals("STANDARD", receivedMsg.get("_protocol"));
+		assertEquals(3, receivedMsg.getAttributes().size());
+	}
+}
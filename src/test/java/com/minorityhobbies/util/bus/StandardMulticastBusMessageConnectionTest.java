@@ -0,0 +1,211 @@
+package com.minorityhobbies.util.bus;
+
+import static com.minorityhobbies.util.bus.BusTestSupport.await;
+import static com.minorityhobbies.util.bus.BusTestSupport.message;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StandardMulticastBusMessageConnectionTest {
+	private final BusMessageSerialiser serialiser = StandardBusMessageSerialisers.BINARY
+			.get();
+	private final List<StandardMulticastBusMessageConnection> connections = new CopyOnWriteArrayList<StandardMulticastBusMessageConnection>();
+	private String group;
+
+	@Before
+	public void setUp() throws Exception {
+		DatagramSocket s = new DatagramSocket(0);
+		int port = s.getLocalPort();
+		s.close();
+		String loopback = NetworkInterface.getByInetAddress(
+				InetAddress.getLoopbackAddress()).getName();
+		group = String.format("udp://239.255.42.%d:%d?interface=%s",
+				1 + port % 250, port, loopback);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for (StandardMulticastBusMessageConnection connection : connections) {
+			connection.close();
+		}
+	}
+
+	private StandardMulticastBusMessageConnection connect(String parameters,
+			int dropEvery, final List<String> received) throws Exception {
+		StandardMulticastBusMessageConnection connection = new StandardMulticastBusMessageConnection(
+				new URI(group + parameters), serialiser);
+		connections.add(connection);
+		connection.setSimulatedLoss(dropEvery);
+		if (received != null) {
+			connection.pull(new StandardBusMessageSubscriptions()
+					.newAllMessagesSubscription(), new BusMessageHandler() {
+				@Override
+				public void onMessage(BusMessage msg) {
+					received.add(BusMessageAttribute.MESSAGE_ID.get(msg));
+				}
+			});
+		}
+		connection.start();
+		return connection;
+	}
+
+	@Test
+	public void testOneSendReachesEveryOtherMemberInOrder() throws Exception {
+		List<String> sentBack = new CopyOnWriteArrayList<String>();
+		List<String> receivedByB = new CopyOnWriteArrayList<String>();
+		List<String> receivedByC = new CopyOnWriteArrayList<String>();
+		StandardMulticastBusMessageConnection a = connect("", 0, sentBack);
+		connect("", 0, receivedByB);
+		connect("", 0, receivedByC);
+
+		for (int i = 0; i < 200; i++) {
+			a.push(message(i));
+		}
+		await(receivedByB, 200);
+		await(receivedByC, 200);
+		for (int i = 0; i < 200; i++) {
+			assertEquals(Integer.toString(i), receivedByB.get(i));
+			assertEquals(Integer.toString(i), receivedByC.get(i));
+		}
+		assertEquals(200L, a.getMetrics().getMessagesOut());
+		assertEquals(0, sentBack.size());
+	}
+
+	@Test
+	public void testFailingSubscriberDoesNotEndReception() throws Exception {
+		final List<String> received = new CopyOnWriteArrayList<String>();
+		StandardMulticastBusMessageConnection a = connect("", 0, null);
+		StandardMulticastBusMessageConnection b = connect("", 0, null);
+		b.pull(new StandardBusMessageSubscriptions().newAllMessagesSubscription(),
+				new BusMessageHandler() {
+					@Override
+					public void onMessage(BusMessage msg) {
+						String id = BusMessageAttribute.MESSAGE_ID.get(msg);
+						if ("0".equals(id)) {
+							throw new IllegalStateException("subscriber failed");
+						}
+						received.add(id);
+					}
+				});
+
+		for (int i = 0; i < 3; i++) {
+			a.push(message(i));
+		}
+		await(received, 2);
+		assertEquals("[1, 2]", received.toString());
+	}
+
+	@Test
+	public void testLostMessagesAreRecoveredWithNaks() throws Exception {
+		List<String> received = new CopyOnWriteArrayList<String>();
+		StandardMulticastBusMessageConnection a = connect("", 0, null);
+		StandardMulticastBusMessageConnection b = connect("", 5, received);
+
+		// the last message is lost too, which only a heartbeat reveals
+		for (int i = 0; i < 100; i++) {
+			a.push(message(i));
+		}
+		await(received, 100);
+		assertEquals(100, received.size());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(Integer.toString(i), received.get(i));
+		}
+		assertTrue(b.getNakCount() > 0L);
+		assertTrue(a.getRetransmitCount() >= 20L);
+		assertEquals(0L, b.getLostCount());
+	}
+
+	@Test
+	public void testMessagesWhichLeftTheWindowAreSkipped() throws Exception {
+		List<String> received = new CopyOnWriteArrayList<String>();
+		StandardMulticastBusMessageConnection a = connect("&window=4", 0, null);
+		StandardMulticastBusMessageConnection b = connect("&window=4", 3,
+				received);
+
+		for (int i = 0; i < 300; i++) {
+			a.push(message(i));
+		}
+		for (int i = 0; i < 500 && received.size() + b.getLostCount() < 300; i++) {
+			Thread.sleep(10L);
+		}
+		assertEquals(300L, received.size() + b.getLostCount());
+		int last = -1;
+		for (String id : received) {
+			assertTrue(Integer.parseInt(id) > last);
+			last = Integer.parseInt(id);
+		}
+	}
+
+	@Test
+	public void testUnansweredTailLossIsSkipped() throws Exception {
+		List<String> received = new CopyOnWriteArrayList<String>();
+		StandardMulticastBusMessageConnection b = connect("", 0, received);
+		URI uri = new URI(group);
+		MulticastSocket sender = new MulticastSocket(0);
+		try {
+			sender.setNetworkInterface(NetworkInterface.getByInetAddress(
+					InetAddress.getLoopbackAddress()));
+			InetSocketAddress to = new InetSocketAddress(uri.getHost(),
+					uri.getPort());
+			long session = 42L;
+			byte[] payload = serialiser.toBytes(message(1));
+			ByteBuffer data = ByteBuffer.allocate(17 + payload.length);
+			data.put((byte) 1).putLong(session).putLong(1L).put(payload);
+			sender.send(new DatagramPacket(data.array(), data.limit(), to));
+			await(received, 1);
+
+			// a sender which has sent five more but never answers NAKs
+			ByteBuffer heartbeat = ByteBuffer.allocate(25);
+			heartbeat.put((byte) 3).putLong(session).putLong(6L).putLong(1L);
+			for (int i = 0; i < 500 && b.getLostCount() == 0L; i++) {
+				sender.send(new DatagramPacket(heartbeat.array(),
+						heartbeat.limit(), to));
+				Thread.sleep(30L);
+			}
+		} finally {
+			sender.close();
+		}
+		assertEquals(5L, b.getLostCount());
+		assertEquals(5L, b.getNakCount());
+	}
+
+	@Test
+	public void testBusesShareAGroupThroughTheFactory() throws Exception {
+		Bus a = new BusServerFactory().connectTo(new URI(group)).build();
+		Bus b = new BusServerFactory().connectTo(new URI(group)).build();
+		final List<String> received = new CopyOnWriteArrayList<String>();
+		b.subscribe(b.getSubscriptions().newMessageTypeSubscription("quote"),
+				new BusMessageHandler() {
+					@Override
+					public void onMessage(BusMessage msg) {
+						received.add(BusMessageAttribute.MESSAGE_ID.get(msg));
+					}
+				});
+		a.getBusServer().start();
+		b.getBusServer().start();
+		try {
+			a.publish(a.getBusMessageBuilder().setMessageType("quote")
+					.setMessageId("1").build());
+			await(received, 1);
+			assertEquals("[1]", received.toString());
+		} finally {
+			a.getBusServer().close();
+			b.getBusServer().close();
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package com.minorityhobbies.util.bus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+/**
+ * Connects several thousand loopback clients to a single NIO server and checks
+ * that messages flow in both directions.
+ */
+public class StandardNioServerBusMessageConnectionLoadIT {
+	private static final int CLIENT_COUNT = 5000;
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+	private final BusMessageSerialiser serialiser = StandardBusMessageSerialisers.BINARY
+			.get();
+
+	private static int freePort() throws IOException {
+		ServerSocket s = new ServerSocket(0);
+		try {
+			return s.getLocalPort();
+		} finally {
+			s.close();
+		}
+	}
+
+	@Test
+	public void testManyClients() throws Exception {
+		URI uri = new URI(String.format("nio://127.0.0.1:%d", freePort()));
+		StandardNioServerBusMessageConnection server = new StandardNioServerBusMessageConnection(
+				uri, serialiser, StandardBusMessageFrameBuffer.DEFAULT_MAX_FRAME_SIZE,
+				StandardSocketBusMessagePeerWriter.DEFAULT_MAX_BACKLOG, 2);
+		final CountDownLatch received = new CountDownLatch(CLIENT_COUNT);
+		server.pull(new StandardBusMessageSubscriptions()
+				.newMessageTypeSubscription("hello"), new BusMessageHandler() {
+			@Override
+			public void onMessage(BusMessage msg) {
+				received.countDown();
+			}
+		});
+
+		List<Socket> clients = new ArrayList<Socket>(CLIENT_COUNT);
+		try {
+			server.start();
+
+			long start = System.nanoTime();
+			for (int i = 0; i < CLIENT_COUNT; i++) {
+				Socket client = new Socket(uri.getHost(), uri.getPort());
+				clients.add(client);
+				DataOutputStream out = new DataOutputStream(client.getOutputStream());
+				StandardBusMessageFrameBuffer.writeFrame(out, serialiser
+						.toBuffer(new StandardBusMessageBuilder()
+								.setMessageType("hello")
+								.setMessageSource(Integer.toString(i)).build()));
+				out.flush();
+			}
+			assertTrue(received.await(60L, TimeUnit.SECONDS));
+			for (int i = 0; i < 100 && server.getConnectionCount() < CLIENT_COUNT; i++) {
+				Thread.sleep(10L);
+			}
+			assertEquals(CLIENT_COUNT, server.getConnectionCount());
+			long connected = System.nanoTime() - start;
+
+			server.push(new StandardBusMessageBuilder().setMessageType("broadcast")
+					.build());
+			for (Socket client : clients) {
+				client.setSoTimeout(10000);
+				DataInputStream in = new DataInputStream(client.getInputStream());
+				byte[] frame = new byte[in.readInt()];
+				in.readFully(frame);
+				assertEquals("broadcast",
+						BusMessageAttribute.MESSAGE_TYPE.get(serialiser.fromBytes(frame)));
+			}
+			long broadcast = System.nanoTime() - start - connected;
+
+			logger.info(String.format(
+					"%d clients connected and sent in %d ms, broadcast received in %d ms",
+					CLIENT_COUNT, TimeUnit.NANOSECONDS.toMillis(connected),
+					TimeUnit.NANOSECONDS.toMillis(broadcast)));
+		} finally {
+			for (Socket client : clients) {
+				client.close();
+			}
+			server.close();
+		}
+	}
+}
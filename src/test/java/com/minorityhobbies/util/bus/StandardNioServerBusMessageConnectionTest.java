@@ -0,0 +1,49 @@
+package com.minorityhobbies.util.bus;
+
+import static com.minorityhobbies.util.bus.BusTestSupport.await;
+import static com.minorityhobbies.util.bus.BusTestSupport.freeUri;
+import static org.junit.Assert.assertEquals;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+public class StandardNioServerBusMessageConnectionTest {
+	@Test
+	public void testFailingHandlerDoesNotSilenceOtherPeers() throws Exception {
+		URI uri = freeUri("nio");
+		final List<String> received = new CopyOnWriteArrayList<String>();
+		Bus server = new BusServerFactory().listenOn(uri)
+				.withSelectorThreads(1).build();
+		server.subscribe(server.getSubscriptions().newAllMessagesSubscription(),
+				new BusMessageHandler() {
+					@Override
+					public void onMessage(BusMessage msg) {
+						if ("bad".equals(BusMessageAttribute.MESSAGE_TYPE.get(msg))) {
+							throw new IllegalStateException("handler failed");
+						}
+						received.add(BusMessageAttribute.MESSAGE_TYPE.get(msg));
+					}
+				});
+		server.getBusServer().start();
+		Bus first = new BusServerFactory().connectTo(uri).build();
+		first.getBusServer().start();
+		Bus second = new BusServerFactory().connectTo(uri).build();
+		second.getBusServer().start();
+		try {
+			first.publish(first.getBusMessageBuilder().setMessageType("bad")
+					.build());
+			Thread.sleep(100L);
+			second.publish(second.getBusMessageBuilder().setMessageType("good")
+					.build());
+			await(received, 1);
+			assertEquals("[good]", received.toString());
+		} finally {
+			first.getBusServer().close();
+			second.getBusServer().close();
+			server.getBusServer().close();
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package com.minorityhobbies.util.bus;
+
+import static com.minorityhobbies.util.bus.BusTestSupport.await;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StandardSharedMemoryBusMessageConnectionTest {
+	private final BusMessageSerialiser serialiser = StandardBusMessageSerialisers.BINARY
+			.get();
+	private File file;
+	private URI uri;
+	private final List<StandardSharedMemoryBusMessageConnection> connections = new CopyOnWriteArrayList<StandardSharedMemoryBusMessageConnection>();
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("bus", ".shm");
+		uri = new URI("shm://" + file.getAbsolutePath() + "?slots=2&capacity=1024");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for (StandardSharedMemoryBusMessageConnection connection : connections) {
+			connection.close();
+		}
+		file.delete();
+	}
+
+	private StandardSharedMemoryBusMessageConnection connect(
+			final List<BusMessage> received) throws IOException {
+		StandardSharedMemoryBusMessageConnection connection = new StandardSharedMemoryBusMessageConnection(
+				uri, serialiser);
+		connections.add(connection);
+		if (received != null) {
+			connection.pull(new StandardBusMessageSubscriptions()
+					.newAllMessagesSubscription(), new BusMessageHandler() {
+				@Override
+				public void onMessage(BusMessage msg) {
+					received.add(msg);
+				}
+			});
+		}
+		connection.start();
+		return connection;
+	}
+
+	@Test
+	public void testMessagesReachOtherConnectionInOrder() throws Exception {
+		List<BusMessage> receivedByA = new CopyOnWriteArrayList<BusMessage>();
+		List<BusMessage> receivedByB = new CopyOnWriteArrayList<BusMessage>();
+		StandardSharedMemoryBusMessageConnection a = connect(receivedByA);
+		connect(receivedByB);
+
+		// enough messages to wrap the 1KB ring many times
+		for (int i = 0; i < 2000; i++) {
+			a.push(new StandardBusMessageBuilder()
+					.setMessageId(Integer.toString(i)).build());
+			if (i % 20 == 19) {
+				await(receivedByB, i + 1);
+			}
+		}
+		await(receivedByB, 2000);
+		assertEquals(2000, receivedByB.size());
+		for (int i = 0; i < 2000; i++) {
+			assertEquals(Integer.toString(i),
+					BusMessageAttribute.MESSAGE_ID.get(receivedByB.get(i)));
+		}
+		assertEquals(0, receivedByA.size());
+	}
+
+	@Test
+	public void testEachConnectionClaimsItsOwnSlot() throws Exception {
+		StandardSharedMemoryBusMessageConnection a = connect(null);
+		StandardSharedMemoryBusMessageConnection b = connect(null);
+		assertTrue(a.getSlot() != b.getSlot());
+		try {
+			connect(null);
+			fail();
+		} catch (IOException e) {
+			// both slots are in use
+		}
+		a.close();
+		connect(null);
+	}
+
+	@Test
+	public void testOversizedMessageIsRejected() throws Exception {
+		StandardSharedMemoryBusMessageConnection a = connect(null);
+		StringBuilder padding = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			padding.append('x');
+		}
+		try {
+			a.push(new StandardBusMessageBuilder().setAttribute("padding",
+					padding.toString()).build());
+			fail();
+		} catch (IOException e) {
+			// larger than the ring
+		}
+	}
+
+	@Test
+	public void testSlowReaderSkipsOverwrittenMessages() throws Exception {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<BusMessage> receivedByB = new CopyOnWriteArrayList<BusMessage>();
+		StandardSharedMemoryBusMessageConnection a = connect(null);
+		StandardSharedMemoryBusMessageConnection b = new StandardSharedMemoryBusMessageConnection(
+				uri, serialiser);
+		connections.add(b);
+		b.pull(new StandardBusMessageSubscriptions().newAllMessagesSubscription(),
+				new BusMessageHandler() {
+					@Override
+					public void onMessage(BusMessage msg) {
+						receivedByB.add(msg);
+						blocked.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				});
+		b.start();
+
+		a.push(new StandardBusMessageBuilder().setMessageId("first").build());
+		assertTrue(blocked.await(5L, TimeUnit.SECONDS));
+		for (int i = 0; i < 100; i++) {
+			a.push(new StandardBusMessageBuilder().setMessageId(
+					Integer.toString(i)).build());
+		}
+		release.countDown();
+		for (int i = 0; i < 500 && b.getOverrunCount() == 0; i++) {
+			Thread.sleep(10L);
+		}
+		assertEquals(1L, b.getOverrunCount());
+		a.push(new StandardBusMessageBuilder().setMessageId("last").build());
+		for (int i = 0; i < 500; i++) {
+			BusMessage last = receivedByB.get(receivedByB.size() - 1);
+			if ("last".equals(BusMessageAttribute.MESSAGE_ID.get(last))) {
+				break;
+			}
+			Thread.sleep(10L);
+		}
+		assertEquals("last", BusMessageAttribute.MESSAGE_ID.get(receivedByB
+				.get(receivedByB.size() - 1)));
+		assertTrue(receivedByB.size() < 102);
+	}
+}
@@ -0,0 +1,106 @@
+package com.minorityhobbies.util.bus;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StandardSocketBusMessageBatchWriterTest {
+	private ScheduledExecutorService timer;
+	private CountingOutputStream out;
+
+	private static class CountingOutputStream extends ByteArrayOutputStream {
+		private int writes;
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			writes++;
+			super.write(b, off, len);
+		}
+	}
+
+	@Before
+	public void setUp() {
+		timer = Executors.newSingleThreadScheduledExecutor();
+		out = new CountingOutputStream();
+	}
+
+	@After
+	public void tearDown() {
+		timer.shutdownNow();
+	}
+
+	private static ByteBuffer payload(int size) {
+		return ByteBuffer.wrap(new byte[size]);
+	}
+
+	private List<Integer> frameSizes() throws IOException {
+		final List<Integer> sizes = new LinkedList<Integer>();
+		byte[] b = out.toByteArray();
+		new StandardBusMessageFrameBuffer().write(b, 0, b.length,
+				new StandardBusMessageFrameBuffer.FrameHandler() {
+					@Override
+					public void onFrame(ByteBuffer frame) throws IOException {
+						sizes.add(frame.remaining());
+					}
+				});
+		return sizes;
+	}
+
+	@Test
+	public void testMessagesWithinLingerTimeAreWrittenTogether() throws Exception {
+		StandardSocketBusMessageBatchWriter writer = new StandardSocketBusMessageBatchWriter(
+				out, timer, 50000L, 64 * 1024);
+		for (int i = 0; i < 10; i++) {
+			writer.write(payload(10));
+		}
+		assertEquals(0, out.writes);
+		for (int i = 0; i < 100 && writer.getBatchCount() == 0; i++) {
+			Thread.sleep(10L);
+		}
+		assertEquals(1, out.writes);
+		assertEquals(1L, writer.getFlushCount(BusBatchFlushReason.LINGER));
+		assertEquals(10L, writer.getMessageCount());
+		assertEquals(10, writer.getLargestBatch());
+		assertEquals(140L, writer.getByteCount());
+		assertEquals(10, frameSizes().size());
+	}
+
+	@Test
+	public void testFullBatchIsWrittenImmediately() throws Exception {
+		StandardSocketBusMessageBatchWriter writer = new StandardSocketBusMessageBatchWriter(
+				out, timer, 60000000L, 100);
+		// each frame is 4 + 46 bytes so two fill the batch exactly
+		for (int i = 0; i < 5; i++) {
+			writer.write(payload(46));
+		}
+		assertEquals(2, out.writes);
+		assertEquals(2L, writer.getFlushCount(BusBatchFlushReason.SIZE));
+		assertEquals(4L, writer.getMessageCount());
+
+		writer.flush(BusBatchFlushReason.CLOSE);
+		assertEquals(1L, writer.getFlushCount(BusBatchFlushReason.CLOSE));
+		assertEquals(5, frameSizes().size());
+	}
+
+	@Test
+	public void testOversizedMessageIsWrittenAlone() throws Exception {
+		StandardSocketBusMessageBatchWriter writer = new StandardSocketBusMessageBatchWriter(
+				out, timer, 60000000L, 100);
+		writer.write(payload(10));
+		writer.write(payload(500));
+		assertEquals(2, out.writes);
+		List<Integer> sizes = frameSizes();
+		assertEquals(Integer.valueOf(10), sizes.get(0));
+		assertEquals(Integer.valueOf(500), sizes.get(1));
+	}
+}
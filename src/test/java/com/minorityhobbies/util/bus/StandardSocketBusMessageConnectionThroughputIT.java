@@ -0,0 +1,90 @@
+package com.minorityhobbies.util.bus;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+/**
+ * Pushes a large number of small messages back-to-back through a loopback
+ * socket and checks every one of them arrives intact and in order.
+ */
+public class StandardSocketBusMessageConnectionThroughputIT {
+	private static final int MESSAGE_COUNT = 1000000;
+
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	private static int freePort() throws IOException {
+		ServerSocket s = new ServerSocket(0);
+		try {
+			return s.getLocalPort();
+		} finally {
+			s.close();
+		}
+	}
+
+	@Test
+	public void testStandardProtocol() throws Exception {
+		run(StandardBusMessageSerialisers.STANDARD);
+	}
+
+	@Test
+	public void testBinaryProtocol() throws Exception {
+		run(StandardBusMessageSerialisers.BINARY);
+	}
+
+	private void run(StandardBusMessageSerialisers protocol) throws Exception {
+		URI uri = new URI(String.format("socket://127.0.0.1:%d", freePort()));
+		BusMessageSerialiser serialiser = protocol.get();
+		StandardSocketServerBusMessageConnection server = new StandardSocketServerBusMessageConnection(
+				uri, serialiser, StandardBusMessageFrameBuffer.DEFAULT_MAX_FRAME_SIZE,
+				StandardSocketBusMessagePeerWriter.DEFAULT_MAX_BACKLOG);
+		StandardSocketBusMessageConnection client = new StandardSocketBusMessageConnection(
+				uri, serialiser);
+
+		final CountDownLatch received = new CountDownLatch(MESSAGE_COUNT);
+		final AtomicLong outOfOrder = new AtomicLong();
+		server.pull(new StandardBusMessageSubscriptions().newAllMessagesSubscription(),
+				new BusMessageHandler() {
+					private long expected = 0;
+
+					@Override
+					public void onMessage(BusMessage msg) {
+						if (Long.parseLong(BusMessageAttribute.MESSAGE_ID.get(msg)) != expected++) {
+							outOfOrder.incrementAndGet();
+						}
+						received.countDown();
+					}
+				});
+		try {
+			server.start();
+			client.start();
+
+			long start = System.nanoTime();
+			for (int i = 0; i < MESSAGE_COUNT; i++) {
+				client.push(new StandardBusMessageBuilder()
+						.setMessageId(Integer.toString(i))
+						.setMessageType("throughput").build());
+			}
+			received.await(120L, TimeUnit.SECONDS);
+			long elapsed = System.nanoTime() - start;
+
+			assertEquals(0L, received.getCount());
+			assertEquals(0L, outOfOrder.get());
+			logger.info(String.format("%s: %d messages in %d ms (%.0f msgs/s)",
+					protocol, MESSAGE_COUNT,
+					TimeUnit.NANOSECONDS.toMillis(elapsed), MESSAGE_COUNT
+							/ (elapsed / 1e9)));
+		} finally {
+			client.close();
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package com.minorityhobbies.util.bus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StandardSocketServerBusMessageConnectionTest {
+	private static final int MAX_BACKLOG = 1024 * 1024;
+
+	private final BusMessageSerialiser serialiser = StandardBusMessageSerialisers.BINARY
+			.get();
+	private StandardSocketServerBusMessageConnection server;
+	private URI uri;
+
+	@Before
+	public void setUp() throws Exception {
+		ServerSocket s = new ServerSocket(0);
+		int port = s.getLocalPort();
+		s.close();
+		uri = new URI(String.format("socket://127.0.0.1:%d", port));
+		server = new StandardSocketServerBusMessageConnection(uri, serialiser,
+				StandardBusMessageFrameBuffer.DEFAULT_MAX_FRAME_SIZE, MAX_BACKLOG);
+		server.start();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		server.close();
+	}
+
+	private Socket connect() throws Exception {
+		Socket socket = new Socket(uri.getHost(), uri.getPort());
+		for (int i = 0; i < 100 && server.getConnectionCount() == 0; i++) {
+			Thread.sleep(10L);
+		}
+		return socket;
+	}
+
+	private BusMessage message(int id, String padding) {
+		return new StandardBusMessageBuilder().setMessageId(Integer.toString(id))
+				.setAttribute("padding", padding).build();
+	}
+
+	private void awaitConnections(int count) throws InterruptedException {
+		for (int i = 0; i < 500 && server.getConnectionCount() != count; i++) {
+			Thread.sleep(10L);
+		}
+		assertEquals(count, server.getConnectionCount());
+	}
+
+	@Test
+	public void testBroadcastReachesEveryPeerInOrder() throws Exception {
+		Socket first = connect();
+		Socket second = connect();
+		awaitConnections(2);
+		try {
+			for (int i = 0; i < 1000; i++) {
+				server.push(message(i, ""));
+			}
+			for (Socket peer : new Socket[] { first, second }) {
+				peer.setSoTimeout(10000);
+				DataInputStream in = new DataInputStream(peer.getInputStream());
+				for (int i = 0; i < 1000; i++) {
+					byte[] frame = new byte[in.readInt()];
+					in.readFully(frame);
+					assertEquals(Integer.toString(i), BusMessageAttribute.MESSAGE_ID
+							.get(serialiser.fromBytes(frame)));
+				}
+			}
+		} finally {
+			first.close();
+			second.close();
+		}
+	}
+
+	@Test
+	public void testSlowPeerIsDetached() throws Exception {
+		final Socket fast = connect();
+		awaitConnections(1);
+		Socket slow = connect();
+		awaitConnections(2);
+
+		final AtomicLong received = new AtomicLong();
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					DataInputStream in = new DataInputStream(fast.getInputStream());
+					while (true) {
+						byte[] frame = new byte[in.readInt()];
+						in.readFully(frame);
+						received.incrementAndGet();
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		});
+		reader.start();
+
+		StringBuilder padding = new StringBuilder();
+		for (int i = 0; i < 1024; i++) {
+			padding.append('x');
+		}
+		int sent = 0;
+		try {
+			// the slow peer never reads so its backlog grows until it is detached
+			while (server.getConnectionCount() > 1 && sent < 1000000) {
+				for (int i = 0; i < 100; i++) {
+					server.push(message(sent++, padding.toString()));
+				}
+				Thread.sleep(1L);
+			}
+			assertEquals(1, server.getConnectionCount());
+			for (int i = 0; i < 1000 && received.get() < sent; i++) {
+				Thread.sleep(10L);
+			}
+			assertEquals(sent, received.get());
+			assertTrue(sent < 1000000);
+		} finally {
+			fast.close();
+			slow.close();
+		}
+	}
+}